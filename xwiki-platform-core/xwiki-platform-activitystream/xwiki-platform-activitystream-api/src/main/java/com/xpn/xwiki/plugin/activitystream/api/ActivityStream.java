@@ -19,6 +19,7 @@
  */
 package com.xpn.xwiki.plugin.activitystream.api;
 
+import java.util.Iterator;
 import java.util.List;
 
 import com.sun.syndication.feed.synd.SyndEntry;
@@ -259,6 +260,45 @@ List<ActivityEvent> searchEvents(String fromHql, String hql, boolean filter, int
     List<ActivityEvent> searchEvents(String fromHql, String hql, boolean filter, boolean globalSearch, int nb,
         int start, List<Object> parameterValues, XWikiContext context) throws ActivityStreamException;
 
+    /**
+     * Search events using keyset pagination. The events are ordered by date and id descending and, instead of skipping
+     * the events of the previous pages, the query starts right after the last event of the previous page so that
+     * getting a deep page costs the same as getting the first one. Events can't be filtered by priority this way.
+     * 
+     * @param fromHql HQL from query statement
+     * @param hql HQL where query statement
+     * @param globalSearch true if the request must be performed on the main database
+     * @param after the last event of the previous page, null to get the first page
+     * @param nb number of events to retrieve
+     * @param parameterValues values of the parametrized query
+     * @param context the XWiki context
+     * @return matching events
+     * @throws ActivityStreamException if the search query fails
+     * @since 5.4M1
+     */
+    List<ActivityEvent> searchEventsAfter(String fromHql, String hql, boolean globalSearch, ActivityEvent after,
+        int nb, List<Object> parameterValues, XWikiContext context) throws ActivityStreamException;
+
+    /**
+     * Iterate over the events matching the query, ordered by date and id descending. The events are fetched lazily,
+     * one page at a time, using {@link #searchEventsAfter(String, String, boolean, ActivityEvent, int, List,
+     * XWikiContext)}.
+     * <p>
+     * The iterator throws a {@link RuntimeException} wrapping the {@link ActivityStreamException} if fetching a page
+     * fails.
+     * 
+     * @param fromHql HQL from query statement
+     * @param hql HQL where query statement
+     * @param globalSearch true if the request must be performed on the main database
+     * @param pageSize number of events fetched at once
+     * @param parameterValues values of the parametrized query
+     * @param context the XWiki context
+     * @return an iterator over the matching events
+     * @since 5.4M1
+     */
+    Iterator<ActivityEvent> iterateEvents(String fromHql, String hql, boolean globalSearch, int pageSize,
+        List<Object> parameterValues, XWikiContext context);
+
     /**
      * Get events from the activity stream.
      * 
@@ -300,6 +340,36 @@ List<ActivityEvent> getEventsForSpace(String space, boolean filter, int nb, int
     List<ActivityEvent> getEventsForUser(String user, boolean filter, int nb, int start, XWikiContext context)
         throws ActivityStreamException;
 
+    /**
+     * Get events from the activity stream of a space, using keyset pagination (see
+     * {@link #searchEventsAfter(String, String, boolean, ActivityEvent, int, List, XWikiContext)}).
+     * 
+     * @param space space to retrieve the events from
+     * @param after the last event of the previous page, null to get the first page
+     * @param nb number of events to retrieve
+     * @param context the XWiki context
+     * @return a list of events
+     * @throws ActivityStreamException if the retrieval fails
+     * @since 5.4M1
+     */
+    List<ActivityEvent> getEventsForSpace(String space, ActivityEvent after, int nb, XWikiContext context)
+        throws ActivityStreamException;
+
+    /**
+     * Get events from the activity stream of a user, using keyset pagination (see
+     * {@link #searchEventsAfter(String, String, boolean, ActivityEvent, int, List, XWikiContext)}).
+     * 
+     * @param user user to retrieve the events from
+     * @param after the last event of the previous page, null to get the first page
+     * @param nb number of events to retrieve
+     * @param context the XWiki context
+     * @return a list of events
+     * @throws ActivityStreamException if the retrieval fails
+     * @since 5.4M1
+     */
+    List<ActivityEvent> getEventsForUser(String user, ActivityEvent after, int nb, XWikiContext context)
+        throws ActivityStreamException;
+
     /**
      * Get events from a particular activity stream.
      * 
@@ -0,0 +1,145 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.plugin.activitystream.impl;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.plugin.activitystream.api.ActivityEvent;
+import com.xpn.xwiki.plugin.activitystream.api.ActivityStream;
+import com.xpn.xwiki.plugin.activitystream.api.ActivityStreamException;
+
+/**
+ * Iterates over the events matching a query, fetching them one page at a time using keyset pagination.
+ * 
+ * @version $Id$
+ * @since 5.4M1
+ */
+class ActivityEventIterator implements Iterator<ActivityEvent>
+{
+    /**
+     * The activity stream to query.
+     */
+    private final ActivityStream activityStream;
+
+    /**
+     * HQL from query statement.
+     */
+    private final String fromHql;
+
+    /**
+     * HQL where query statement.
+     */
+    private final String hql;
+
+    /**
+     * True if the request must be performed on the main database.
+     */
+    private final boolean globalSearch;
+
+    /**
+     * The number of events fetched at once.
+     */
+    private final int pageSize;
+
+    /**
+     * The values of the parametrized query.
+     */
+    private final List<Object> parameterValues;
+
+    /**
+     * The XWiki context.
+     */
+    private final XWikiContext context;
+
+    /**
+     * The current page.
+     */
+    private List<ActivityEvent> page;
+
+    /**
+     * The index of the next event to return in the current page.
+     */
+    private int index;
+
+    /**
+     * True when the last page has been fetched.
+     */
+    private boolean lastPage;
+
+    /**
+     * @param activityStream the activity stream to query
+     * @param fromHql HQL from query statement
+     * @param hql HQL where query statement
+     * @param globalSearch true if the request must be performed on the main database
+     * @param pageSize the number of events fetched at once
+     * @param parameterValues the values of the parametrized query
+     * @param context the XWiki context
+     */
+    ActivityEventIterator(ActivityStream activityStream, String fromHql, String hql, boolean globalSearch,
+        int pageSize, List<Object> parameterValues, XWikiContext context)
+    {
+        this.activityStream = activityStream;
+        this.fromHql = fromHql;
+        this.hql = hql;
+        this.globalSearch = globalSearch;
+        this.pageSize = Math.max(pageSize, 1);
+        this.parameterValues = parameterValues;
+        this.context = context;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        if ((this.page == null || this.index >= this.page.size()) && !this.lastPage) {
+            ActivityEvent after = this.page != null ? this.page.get(this.page.size() - 1) : null;
+
+            try {
+                this.page = this.activityStream.searchEventsAfter(this.fromHql, this.hql, this.globalSearch, after,
+                    this.pageSize, this.parameterValues, this.context);
+            } catch (ActivityStreamException e) {
+                throw new RuntimeException("Failed to get the next page of activity events", e);
+            }
+
+            this.index = 0;
+            this.lastPage = this.page.size() < this.pageSize;
+        }
+
+        return this.index < this.page.size();
+    }
+
+    @Override
+    public ActivityEvent next()
+    {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        return this.page.get(this.index++);
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.plugin.activitystream.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.ApplicationStoppedEvent;
+import org.xwiki.observation.event.Event;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.plugin.activitystream.api.ActivityEvent;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+import com.xpn.xwiki.util.AbstractXWikiRunnable;
+import com.xpn.xwiki.web.Utils;
+
+/**
+ * Writes activity events in the database from a background thread, so that the requests producing them don't wait
+ * for the database. The events waiting to be written are kept in a bounded buffer (the producers wait when it's full)
+ * and are written in batches, one transaction per database, so that the cost of a commit is shared by all the events
+ * of a batch.
+ * <p>
+ * The inserts of a batch are sent in a single JDBC batch only when Hibernate is configured to use JDBC batching (the
+ * {@code jdbc.batch_size} property, or the default of the dialect). It can't be enabled for this session alone, and
+ * it's disabled in the default Oracle configuration, in which case each insert is still a separate statement.
+ * <p>
+ * The buffer is flushed when the application stops. The events still in the buffer are lost if the server crashes,
+ * unless the producers choose to wait until their events are committed. The events that can't be handed over to the
+ * writer thread because it's stopped are given back to the producers, which write them synchronously.
+ * 
+ * @version $Id$
+ * @since 5.4M1
+ */
+public class ActivityEventWriter extends AbstractXWikiRunnable implements EventListener
+{
+    /**
+     * Logging helper object.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ActivityEventWriter.class);
+
+    /**
+     * The name of the listener.
+     */
+    private static final String NAME = "activitystream.writer";
+
+    /**
+     * The events to match.
+     */
+    private static final List<Event> EVENTS = Collections.<Event>singletonList(new ApplicationStoppedEvent());
+
+    /**
+     * The time in milliseconds the writer waits for new events before checking if it should stop.
+     */
+    private static final long POLL_INTERVAL = 1000L;
+
+    /**
+     * The maximum time in milliseconds to wait for the buffer to be flushed when the application stops.
+     */
+    private static final long FLUSH_TIMEOUT = 30000L;
+
+    /**
+     * An event waiting to be written in a database.
+     * 
+     * @version $Id$
+     */
+    private static class PendingEvent
+    {
+        /**
+         * The event to write.
+         */
+        private final ActivityEvent event;
+
+        /**
+         * The database in which to write the event.
+         */
+        private final String database;
+
+        /**
+         * Released when the event has been written, null if nobody waits for it.
+         */
+        private final CountDownLatch written;
+
+        /**
+         * @param event the event to write
+         * @param database the database in which to write the event
+         * @param written released when the event has been written, null if nobody waits for it
+         */
+        PendingEvent(ActivityEvent event, String database, CountDownLatch written)
+        {
+            this.event = event;
+            this.database = database;
+            this.written = written;
+        }
+    }
+
+    /**
+     * The events waiting to be written.
+     */
+    private final BlockingQueue<PendingEvent> queue;
+
+    /**
+     * The maximum number of events written in the same transaction.
+     */
+    private final int batchSize;
+
+    /**
+     * The XWiki context used by the writer thread.
+     */
+    private final XWikiContext xwikiContext;
+
+    /**
+     * The thread writing the events.
+     */
+    private Thread thread;
+
+    /**
+     * True when the writer should stop once the buffer is empty.
+     */
+    private volatile boolean exit;
+
+    /**
+     * @param queueSize the maximum number of events waiting to be written
+     * @param batchSize the maximum number of events written in the same transaction
+     * @param context the XWiki context to copy for the writer thread
+     */
+    public ActivityEventWriter(int queueSize, int batchSize, XWikiContext context)
+    {
+        this.queue = new ArrayBlockingQueue<PendingEvent>(queueSize);
+        this.batchSize = Math.max(batchSize, 1);
+        this.xwikiContext = context.clone();
+    }
+
+    /**
+     * Start the thread writing the events.
+     */
+    public synchronized void start()
+    {
+        if (this.thread == null) {
+            this.thread = new Thread(this, "XWiki activity stream writer");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+    }
+
+    /**
+     * Add an event to the buffer, waiting if the buffer is full.
+     * 
+     * @param event the event to write
+     * @param databases the databases in which to write the event
+     * @param waitForCommit true to wait until the event has been written in all the databases
+     * @return the databases in which the event has not been handed over to the writer thread (because it's stopped or
+     *         the current thread has been interrupted), in which the caller has to write the event itself
+     */
+    public List<String> write(ActivityEvent event, List<String> databases, boolean waitForCommit)
+    {
+        List<String> remaining = new ArrayList<String>();
+        List<PendingEvent> queued = new ArrayList<PendingEvent>(databases.size());
+
+        CountDownLatch written = waitForCommit ? new CountDownLatch(databases.size()) : null;
+        for (String database : databases) {
+            PendingEvent pendingEvent = new PendingEvent(event, database, written);
+            if (offer(pendingEvent)) {
+                queued.add(pendingEvent);
+            } else {
+                remaining.add(database);
+                if (written != null) {
+                    written.countDown();
+                }
+            }
+        }
+
+        if (written != null) {
+            await(written);
+        }
+
+        // The writer thread may have stopped before taking the events
+        if (!queued.isEmpty() && !isWriting()) {
+            for (PendingEvent pendingEvent : queued) {
+                if (this.queue.remove(pendingEvent)) {
+                    remaining.add(pendingEvent.database);
+                }
+            }
+        }
+
+        return remaining;
+    }
+
+    /**
+     * Add an event to the buffer, waiting for room as long as the writer thread is running.
+     * 
+     * @param pendingEvent the event to add
+     * @return true if the event has been added to the buffer
+     */
+    private boolean offer(PendingEvent pendingEvent)
+    {
+        try {
+            while (isWriting()) {
+                if (this.queue.offer(pendingEvent, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return false;
+    }
+
+    /**
+     * Wait until the events have been written, as long as the writer thread is running.
+     * 
+     * @param written released when the events have been written
+     */
+    private void await(CountDownLatch written)
+    {
+        try {
+            while (!written.await(POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                if (!isAlive()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return true if the writer thread is running and accepts new events
+     */
+    private boolean isWriting()
+    {
+        return !this.exit && isAlive();
+    }
+
+    /**
+     * @return true if the writer thread is running
+     */
+    private synchronized boolean isAlive()
+    {
+        return this.thread != null && this.thread.isAlive();
+    }
+
+    /**
+     * Write the events remaining in the buffer and stop the writer thread.
+     */
+    public void flush()
+    {
+        this.exit = true;
+
+        Thread writerThread;
+        synchronized (this) {
+            writerThread = this.thread;
+        }
+
+        if (writerThread != null) {
+            try {
+                writerThread.join(FLUSH_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (!this.queue.isEmpty()) {
+            LOGGER.warn("[{}] activity events could not be written before the application stopped",
+                this.queue.size());
+        }
+    }
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return EVENTS;
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        flush();
+    }
+
+    @Override
+    protected void declareProperties(ExecutionContext executionContext)
+    {
+        this.xwikiContext.declareInExecutionContext(executionContext);
+    }
+
+    @Override
+    protected void runInternal()
+    {
+        XWikiContext context =
+            (XWikiContext) Utils.getComponent(Execution.class).getContext().getProperty(
+                XWikiContext.EXECUTIONCONTEXT_KEY);
+
+        List<PendingEvent> batch = new ArrayList<PendingEvent>(this.batchSize);
+        while (!this.exit || !this.queue.isEmpty()) {
+            try {
+                PendingEvent first = this.queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    this.queue.drainTo(batch, this.batchSize - 1);
+
+                    writeBatch(batch, context);
+                }
+            } catch (InterruptedException e) {
+                LOGGER.warn("The activity stream writer has been interrupted");
+                this.exit = true;
+            } catch (Exception e) {
+                LOGGER.error("Unexpected error while writing activity events", e);
+            } finally {
+                for (PendingEvent pendingEvent : batch) {
+                    if (pendingEvent.written != null) {
+                        pendingEvent.written.countDown();
+                    }
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Write a batch of events, using one transaction per database.
+     * 
+     * @param batch the events to write
+     * @param context the XWiki context
+     */
+    private void writeBatch(List<PendingEvent> batch, XWikiContext context)
+    {
+        Map<String, List<ActivityEvent>> eventsByDatabase = new LinkedHashMap<String, List<ActivityEvent>>();
+        for (PendingEvent pendingEvent : batch) {
+            List<ActivityEvent> events = eventsByDatabase.get(pendingEvent.database);
+            if (events == null) {
+                events = new ArrayList<ActivityEvent>();
+                eventsByDatabase.put(pendingEvent.database, events);
+            }
+            events.add(pendingEvent.event);
+        }
+
+        for (Map.Entry<String, List<ActivityEvent>> entry : eventsByDatabase.entrySet()) {
+            if (!saveEvents(entry.getValue(), entry.getKey(), context) && entry.getValue().size() > 1) {
+                // Don't lose the whole batch because of a single invalid event
+                for (ActivityEvent event : entry.getValue()) {
+                    saveEvents(Collections.singletonList(event), entry.getKey(), context);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write events in a database in a single transaction.
+     * 
+     * @param events the events to write
+     * @param database the database in which to write the events
+     * @param context the XWiki context
+     * @return true if the events have been written
+     */
+    private boolean saveEvents(List<ActivityEvent> events, String database, XWikiContext context)
+    {
+        String originalDatabase = context.getDatabase();
+        context.setDatabase(database);
+        XWikiHibernateStore store = context.getWiki().getHibernateStore();
+        try {
+            store.beginTransaction(context);
+            Session session = store.getSession(context);
+            for (ActivityEvent event : events) {
+                session.save(event);
+            }
+            store.endTransaction(context, true);
+
+            return true;
+        } catch (Exception e) {
+            LOGGER.error("Failed to write [{}] activity events in database [{}]", events.size(), database, e);
+            store.endTransaction(context, false);
+
+            return false;
+        } finally {
+            context.setDatabase(originalDatabase);
+        }
+    }
+}
@@ -23,6 +23,8 @@
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 import org.apache.commons.lang3.RandomStringUtils;
@@ -96,6 +98,16 @@ public class ActivityStreamImpl implements ActivityStream, EventListener
      */
     private static final String LISTENER_NAME = "activitystream";
 
+    /**
+     * The prefix of the configuration parameters of the activity stream.
+     */
+    private static final String PARAM_PREFIX = "xwiki.plugin.activitystream.";
+
+    /**
+     * The durability mode in which the request adding an event waits until the event is committed.
+     */
+    private static final String DURABILITY_STRICT = "strict";
+
     /**
      * The events to match.
      */
@@ -117,6 +129,16 @@ public class ActivityStreamImpl implements ActivityStream, EventListener
         }
     };
 
+    /**
+     * Writes the events in the background, null if the events are written synchronously.
+     */
+    private ActivityEventWriter writer;
+
+    /**
+     * True if the requests adding events wait until their events are committed.
+     */
+    private boolean strictDurability;
+
     /**
      * Set fields related to the document which fired the event in the given event object.
      * 
@@ -230,6 +252,28 @@ public void init(XWikiContext context) throws XWikiException
         }
         // Init activitystream cleaner.
         ActivityStreamCleaner.getInstance().init(context);
+        // Init the background writer.
+        initWriter(context);
+    }
+
+    /**
+     * Start the thread writing the events in the background, if a buffer size is configured. By default the events are
+     * written synchronously by the requests adding them.
+     * 
+     * @param context the XWiki context
+     */
+    private void initWriter(XWikiContext context)
+    {
+        int queueSize = (int) context.getWiki().ParamAsLong(PARAM_PREFIX + "writer.queueSize", 0);
+        if (queueSize > 0 && this.writer == null) {
+            int batchSize = (int) context.getWiki().ParamAsLong(PARAM_PREFIX + "writer.batchSize", 100);
+            this.strictDurability =
+                DURABILITY_STRICT.equals(context.getWiki().Param(PARAM_PREFIX + "durability", "relaxed"));
+
+            this.writer = new ActivityEventWriter(queueSize, batchSize, context);
+            Utils.getComponent(ObservationManager.class).addListener(this.writer);
+            this.writer.start();
+        }
     }
 
     @Override
@@ -296,34 +340,48 @@ public void addActivityEvent(ActivityEvent event, XWikiDocument doc, XWikiContex
     {
         prepareEvent(event, doc, context);
 
+        List<String> databases = new ArrayList<String>(2);
         if (useLocalStore(context)) {
             // store event in the local database
-            XWikiHibernateStore localHibernateStore = context.getWiki().getHibernateStore();
-            try {
-                localHibernateStore.beginTransaction(context);
-                Session session = localHibernateStore.getSession(context);
-                session.save(event);
-                localHibernateStore.endTransaction(context, true);
-            } catch (XWikiException e) {
-                localHibernateStore.endTransaction(context, false);
-            }
+            databases.add(context.getDatabase());
         }
-
         if (useMainStore(context)) {
             // store event in the main database
-            String oriDatabase = context.getDatabase();
-            context.setDatabase(context.getMainXWiki());
-            XWikiHibernateStore mainHibernateStore = context.getWiki().getHibernateStore();
-            try {
-                mainHibernateStore.beginTransaction(context);
-                Session session = mainHibernateStore.getSession(context);
-                session.save(event);
-                mainHibernateStore.endTransaction(context, true);
-            } catch (XWikiException e) {
-                mainHibernateStore.endTransaction(context, false);
-            } finally {
-                context.setDatabase(oriDatabase);
-            }
+            databases.add(context.getMainXWiki());
+        }
+
+        List<String> remainingDatabases = databases;
+        if (this.writer != null) {
+            // The databases in which the event could not be handed over to the background writer
+            remainingDatabases = this.writer.write(event, databases, this.strictDurability);
+        }
+
+        for (String database : remainingDatabases) {
+            saveActivityEvent(event, database, context);
+        }
+    }
+
+    /**
+     * Write an event in a database, in the current thread.
+     * 
+     * @param event the event to write
+     * @param database the database in which to write the event
+     * @param context the XWiki context
+     */
+    private void saveActivityEvent(ActivityEvent event, String database, XWikiContext context)
+    {
+        String oriDatabase = context.getDatabase();
+        context.setDatabase(database);
+        XWikiHibernateStore hibernateStore = context.getWiki().getHibernateStore();
+        try {
+            hibernateStore.beginTransaction(context);
+            Session session = hibernateStore.getSession(context);
+            session.save(event);
+            hibernateStore.endTransaction(context, true);
+        } catch (XWikiException e) {
+            hibernateStore.endTransaction(context, false);
+        } finally {
+            context.setDatabase(oriDatabase);
         }
     }
 
@@ -640,7 +698,6 @@ public List<ActivityEvent> searchEvents(String fromHql, String hql, boolean filt
         int start, List<Object> parameterValues, XWikiContext context) throws ActivityStreamException
     {
         StringBuffer searchHql = new StringBuffer();
-        List<ActivityEvent> results;
 
         if (filter) {
             searchHql.append("select act from ActivityEventImpl as act, ActivityEventImpl as act2 ");
@@ -658,13 +715,71 @@ public List<ActivityEvent> searchEvents(String fromHql, String hql, boolean filt
             searchHql.append(" order by act.date desc");
         }
 
+        return executeSearch(searchHql.toString(), globalSearch, nb, start, parameterValues, context);
+    }
+
+    @Override
+    public List<ActivityEvent> searchEventsAfter(String fromHql, String hql, boolean globalSearch,
+        ActivityEvent after, int nb, List<Object> parameterValues, XWikiContext context) throws ActivityStreamException
+    {
+        StringBuffer searchHql = new StringBuffer();
+        List<Object> values = new ArrayList<Object>();
+        if (parameterValues != null) {
+            values.addAll(parameterValues);
+        }
+
+        searchHql.append("select act from ActivityEventImpl as act ");
+        searchHql.append(fromHql);
+        searchHql.append(" where ");
+        addHiddenEventsFilter(searchHql);
+        // Keep the caller's conditions together so that a top level "or" doesn't escape the seek condition
+        searchHql.append('(');
+        searchHql.append(StringUtils.isNotBlank(hql) ? hql : "1=1");
+        searchHql.append(')');
+        if (after != null) {
+            // Seek right after the last event of the previous page instead of skipping the previous pages, which lets
+            // the database start the scan from the (date, eventId) indexes.
+            searchHql.append(" and (act.date < ? or (act.date = ? and act.eventId < ?))");
+            values.add(after.getDate());
+            values.add(after.getDate());
+            values.add(after.getEventId());
+        }
+        searchHql.append(" order by act.date desc, act.eventId desc");
+
+        return executeSearch(searchHql.toString(), globalSearch, nb, 0, values, context);
+    }
+
+    @Override
+    public Iterator<ActivityEvent> iterateEvents(String fromHql, String hql, boolean globalSearch, int pageSize,
+        List<Object> parameterValues, XWikiContext context)
+    {
+        return new ActivityEventIterator(this, fromHql, hql, globalSearch, pageSize, parameterValues, context);
+    }
+
+    /**
+     * Execute an events search query in the local or the main database.
+     * 
+     * @param hql the query
+     * @param globalSearch true if the request must be performed on the main database
+     * @param nb number of events to retrieve
+     * @param start query offset
+     * @param parameterValues values of the parametrized query
+     * @param context the XWiki context
+     * @param <T> the type of the results
+     * @return the results of the query
+     * @throws ActivityStreamException if the search query fails
+     */
+    private <T> List<T> executeSearch(String hql, boolean globalSearch, int nb, int start,
+        List<Object> parameterValues, XWikiContext context) throws ActivityStreamException
+    {
+        List<T> results;
+
         if (globalSearch) {
             // Search in the main database
             String oriDatabase = context.getDatabase();
             try {
                 context.setDatabase(context.getMainXWiki());
-                results =
-                    context.getWiki().getStore().search(searchHql.toString(), nb, start, parameterValues, context);
+                results = context.getWiki().getStore().search(hql, nb, start, parameterValues, context);
             } catch (XWikiException e) {
                 throw new ActivityStreamException(e);
             } finally {
@@ -673,8 +788,7 @@ public List<ActivityEvent> searchEvents(String fromHql, String hql, boolean filt
         } else {
             try {
                 // Search in the local database
-                results =
-                    context.getWiki().getStore().search(searchHql.toString(), nb, start, parameterValues, context);
+                results = context.getWiki().getStore().search(hql, nb, start, parameterValues, context);
             } catch (XWikiException e) {
                 throw new ActivityStreamException(e);
             }
@@ -704,6 +818,22 @@ public List<ActivityEvent> getEventsForUser(String user, boolean filter, int nb,
         return searchEvents("act.user='" + user + "'", filter, nb, start, context);
     }
 
+    @Override
+    public List<ActivityEvent> getEventsForSpace(String space, ActivityEvent after, int nb, XWikiContext context)
+        throws ActivityStreamException
+    {
+        return searchEventsAfter("", "act.space=?", false, after, nb, Collections.<Object>singletonList(space),
+            context);
+    }
+
+    @Override
+    public List<ActivityEvent> getEventsForUser(String user, ActivityEvent after, int nb, XWikiContext context)
+        throws ActivityStreamException
+    {
+        return searchEventsAfter("", "act.user=?", false, after, nb, Collections.<Object>singletonList(user),
+            context);
+    }
+
     @Override
     public List<ActivityEvent> getEvents(String stream, boolean filter, int nb, int start, XWikiContext context)
         throws ActivityStreamException
@@ -311,6 +311,32 @@ public List<ActivityEvent> searchEvents(String hql, boolean filter, boolean glob
         }
     }
 
+    /**
+     * Search in database activity events matching the given hql query, using keyset pagination. Retrieved events are
+     * ordered by date and id descending. To get the next page, pass the last event of the current page: the cost of
+     * the query doesn't depend on the page depth.
+     * 
+     * @param hql the "where" clause of the hql query to look events for
+     * @param globalSearch true if the request must be performed on the main database
+     * @param after the last event of the previous page, null to get the first page
+     * @param nb the number of events to retrieve
+     * @param parameterValues list of parameters to insert in the query
+     * @return a list of matching events, wrapped as {@link com.xpn.xwiki.plugin.activitystream.plugin.ActivityEvent}
+     *         objects.
+     * @throws ActivityStreamException if the search query fails
+     * @since 5.4M1
+     */
+    public List<ActivityEvent> searchEventsAfter(String hql, boolean globalSearch, ActivityEvent after, int nb,
+        List<Object> parameterValues) throws ActivityStreamException
+    {
+        if (hasProgrammingRights()) {
+            return wrapEvents(getActivityStream().searchEventsAfter("", hql, globalSearch,
+                after != null ? after.getEvent() : null, nb, parameterValues, this.context));
+        } else {
+            return null;
+        }
+    }
+
     /**
      * Search in database activity events matching the given hql query. Retrieved events are ordered by date descending.
      * 
@@ -465,6 +491,52 @@ public List<ActivityEvent> getEventsForUser(String user, boolean filter, int nb,
         }
     }
 
+    /**
+     * Return the latest recorded events triggered in the given space, using keyset pagination: to get the next page,
+     * pass the last event of the current page.
+     * 
+     * @param space the space to retrieve latest events for
+     * @param after the last event of the previous page, null to get the first page
+     * @param nb the number of events to retrieve
+     * @return a list of matching events, wrapped as {@link com.xpn.xwiki.plugin.activitystream.plugin.ActivityEvent}
+     *         objects.
+     * @throws ActivityStreamException if the retrieval fails
+     * @since 5.4M1
+     */
+    public List<ActivityEvent> getEventsForSpace(String space, ActivityEvent after, int nb)
+        throws ActivityStreamException
+    {
+        if (hasProgrammingRights()) {
+            return wrapEvents(getActivityStream().getEventsForSpace(space, after != null ? after.getEvent() : null,
+                nb, this.context));
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Return the latest recorded events triggered by the given user, using keyset pagination: to get the next page,
+     * pass the last event of the current page.
+     * 
+     * @param user the user to retrieve latest events for
+     * @param after the last event of the previous page, null to get the first page
+     * @param nb the number of events to retrieve
+     * @return a list of matching events, wrapped as {@link com.xpn.xwiki.plugin.activitystream.plugin.ActivityEvent}
+     *         objects.
+     * @throws ActivityStreamException if the retrieval fails
+     * @since 5.4M1
+     */
+    public List<ActivityEvent> getEventsForUser(String user, ActivityEvent after, int nb)
+        throws ActivityStreamException
+    {
+        if (hasProgrammingRights()) {
+            return wrapEvents(getActivityStream().getEventsForUser(user, after != null ? after.getEvent() : null, nb,
+                this.context));
+        } else {
+            return null;
+        }
+    }
+
     /**
      * Return the latest events recorded for the given stream name.
      * 
@@ -0,0 +1,182 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.plugin.activitystream.impl;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.plugin.activitystream.api.ActivityEvent;
+import com.xpn.xwiki.plugin.activitystream.api.ActivityStream;
+
+/**
+ * Unit tests for {@link ActivityEventIterator}.
+ * 
+ * @version $Id$
+ */
+public class ActivityEventIteratorTest
+{
+    private ActivityStream activityStream;
+
+    /**
+     * The stored events, ordered by date and id descending.
+     */
+    private List<ActivityEvent> events = new ArrayList<ActivityEvent>();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.activityStream = mock(ActivityStream.class);
+
+        // Answer like the keyset query does
+        when(
+            this.activityStream.searchEventsAfter(anyString(), anyString(), anyBoolean(), any(ActivityEvent.class),
+                anyInt(), anyListOf(Object.class), any(XWikiContext.class))).thenAnswer(
+            new Answer<List<ActivityEvent>>()
+            {
+                @Override
+                public List<ActivityEvent> answer(InvocationOnMock invocation) throws Throwable
+                {
+                    ActivityEvent after = (ActivityEvent) invocation.getArguments()[3];
+                    int nb = (Integer) invocation.getArguments()[4];
+
+                    List<ActivityEvent> page = new ArrayList<ActivityEvent>();
+                    for (ActivityEvent event : events) {
+                        if (page.size() < nb && (after == null || isAfter(event, after))) {
+                            page.add(event);
+                        }
+                    }
+
+                    return page;
+                }
+            });
+    }
+
+    private boolean isAfter(ActivityEvent event, ActivityEvent after)
+    {
+        int dates = event.getDate().compareTo(after.getDate());
+
+        return dates < 0 || (dates == 0 && event.getEventId().compareTo(after.getEventId()) < 0);
+    }
+
+    private ActivityEvent addEvent(long date, String id)
+    {
+        ActivityEvent event = new ActivityEventImpl();
+        event.setDate(new Date(date));
+        event.setEventId(id);
+        this.events.add(event);
+
+        return event;
+    }
+
+    private List<ActivityEvent> iterate(int pageSize)
+    {
+        Iterator<ActivityEvent> iterator =
+            new ActivityEventIterator(this.activityStream, "", "1=1", false, pageSize, null, null);
+
+        List<ActivityEvent> result = new ArrayList<ActivityEvent>();
+        while (iterator.hasNext()) {
+            result.add(iterator.next());
+        }
+
+        return result;
+    }
+
+    @Test
+    public void eventsWithTheSameDateAreNotLostAcrossPages() throws Exception
+    {
+        ActivityEvent event5 = addEvent(3000L, "e");
+        // The second page starts in the middle of these
+        ActivityEvent event4 = addEvent(2000L, "d");
+        ActivityEvent event3 = addEvent(2000L, "c");
+        ActivityEvent event2 = addEvent(2000L, "b");
+        ActivityEvent event1 = addEvent(1000L, "a");
+
+        Assert.assertEquals(Arrays.asList(event5, event4, event3, event2, event1), iterate(2));
+
+        verify(this.activityStream).searchEventsAfter("", "1=1", false, null, 2, null, null);
+        verify(this.activityStream).searchEventsAfter("", "1=1", false, event4, 2, null, null);
+        verify(this.activityStream).searchEventsAfter("", "1=1", false, event2, 2, null, null);
+    }
+
+    @Test
+    public void lastFullPageIsFollowedByAnEmptyPage() throws Exception
+    {
+        ActivityEvent event4 = addEvent(2000L, "d");
+        ActivityEvent event3 = addEvent(2000L, "c");
+        ActivityEvent event2 = addEvent(1000L, "b");
+        ActivityEvent event1 = addEvent(1000L, "a");
+
+        Assert.assertEquals(Arrays.asList(event4, event3, event2, event1), iterate(2));
+
+        // A full page doesn't tell whether there are more events
+        verify(this.activityStream, times(3)).searchEventsAfter(anyString(), anyString(), anyBoolean(),
+            any(ActivityEvent.class), anyInt(), anyListOf(Object.class), any(XWikiContext.class));
+        verify(this.activityStream).searchEventsAfter("", "1=1", false, event1, 2, null, null);
+    }
+
+    @Test
+    public void partialPageIsTheLastOne() throws Exception
+    {
+        ActivityEvent event3 = addEvent(3000L, "c");
+        ActivityEvent event2 = addEvent(2000L, "b");
+        ActivityEvent event1 = addEvent(1000L, "a");
+
+        Assert.assertEquals(Arrays.asList(event3, event2, event1), iterate(2));
+
+        verify(this.activityStream, times(2)).searchEventsAfter(anyString(), anyString(), anyBoolean(),
+            any(ActivityEvent.class), anyInt(), anyListOf(Object.class), any(XWikiContext.class));
+    }
+
+    @Test
+    public void noEvents() throws Exception
+    {
+        Iterator<ActivityEvent> iterator =
+            new ActivityEventIterator(this.activityStream, "", "1=1", false, 10, null, null);
+
+        Assert.assertFalse(iterator.hasNext());
+        try {
+            iterator.next();
+            Assert.fail("Expected a NoSuchElementException");
+        } catch (NoSuchElementException expected) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.plugin.activitystream.impl;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.xwiki.test.annotation.AllComponents;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.plugin.activitystream.api.ActivityEvent;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+import com.xpn.xwiki.test.MockitoOldcoreRule;
+
+/**
+ * Unit tests for {@link ActivityEventWriter}.
+ * 
+ * @version $Id$
+ */
+@AllComponents
+public class ActivityEventWriterTest
+{
+    private static final List<String> DATABASES = Arrays.asList("xwiki", "wiki");
+
+    @Rule
+    public MockitoOldcoreRule oldcore = new MockitoOldcoreRule();
+
+    private XWikiHibernateStore store;
+
+    private Session session;
+
+    private ActivityEventWriter writer;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.store = mock(XWikiHibernateStore.class);
+        this.session = mock(Session.class);
+        when(this.oldcore.getMockXWiki().getHibernateStore()).thenReturn(this.store);
+        when(this.store.getSession(any(XWikiContext.class))).thenReturn(this.session);
+
+        this.writer = new ActivityEventWriter(10, 10, this.oldcore.getXWikiContext());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        this.writer.flush();
+    }
+
+    /**
+     * Make the writer thread wait in its first transaction until the returned latch is released.
+     * 
+     * @param writing released when the writer thread is in its first transaction
+     * @return the latch to release to let the writer thread continue
+     */
+    private CountDownLatch blockFirstTransaction(final CountDownLatch writing) throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        when(this.store.beginTransaction(any(XWikiContext.class))).thenAnswer(new Answer<Boolean>()
+        {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable
+            {
+                writing.countDown();
+                release.await(10, TimeUnit.SECONDS);
+
+                return true;
+            }
+        });
+
+        return release;
+    }
+
+    @Test(timeout = 10000)
+    public void strictWriteReturnsOnceEventIsCommitted() throws Exception
+    {
+        this.writer.start();
+
+        ActivityEvent event = new ActivityEventImpl();
+        Assert.assertEquals(Collections.emptyList(), this.writer.write(event, DATABASES, true));
+
+        verify(this.session, times(2)).save(event);
+        verify(this.store, times(2)).endTransaction(any(XWikiContext.class), anyBoolean());
+        verify(this.store, never()).endTransaction(any(XWikiContext.class), eq(false));
+    }
+
+    @Test(timeout = 10000)
+    public void eventsQueuedTogetherAreWrittenInTheSameTransaction() throws Exception
+    {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = blockFirstTransaction(writing);
+        this.writer.start();
+
+        List<String> database = Collections.singletonList("xwiki");
+        this.writer.write(new ActivityEventImpl(), database, false);
+        writing.await();
+
+        // Queued while the writer is busy with the first event
+        ActivityEvent event1 = new ActivityEventImpl();
+        ActivityEvent event2 = new ActivityEventImpl();
+        this.writer.write(event1, database, false);
+        this.writer.write(event2, database, false);
+
+        release.countDown();
+        this.writer.flush();
+
+        verify(this.session).save(event1);
+        verify(this.session).save(event2);
+        verify(this.store, times(2)).beginTransaction(any(XWikiContext.class));
+    }
+
+    @Test(timeout = 10000)
+    public void failedBatchIsWrittenEventByEvent() throws Exception
+    {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = blockFirstTransaction(writing);
+        this.writer.start();
+
+        List<String> database = Collections.singletonList("xwiki");
+        this.writer.write(new ActivityEventImpl(), database, false);
+        writing.await();
+
+        ActivityEvent invalidEvent = new ActivityEventImpl();
+        ActivityEvent validEvent = new ActivityEventImpl();
+        doThrow(new RuntimeException("invalid event")).when(this.session).save(invalidEvent);
+        this.writer.write(invalidEvent, database, false);
+        this.writer.write(validEvent, database, false);
+
+        release.countDown();
+        this.writer.flush();
+
+        // Once in the failed batch and once alone
+        verify(this.session, times(2)).save(invalidEvent);
+        // The batch failed before the valid event was saved
+        verify(this.session, times(1)).save(validEvent);
+        verify(this.store, times(2)).endTransaction(any(XWikiContext.class), eq(false));
+    }
+
+    @Test(timeout = 10000)
+    public void eventsAreGivenBackWhenTheWriterIsNotRunning() throws Exception
+    {
+        ActivityEvent event = new ActivityEventImpl();
+
+        // Not started yet
+        Assert.assertEquals(DATABASES, this.writer.write(event, DATABASES, true));
+
+        this.writer.start();
+        this.writer.flush();
+
+        // Stopped: the caller must not wait forever for a thread which is gone
+        Assert.assertEquals(DATABASES, this.writer.write(event, DATABASES, true));
+        Assert.assertEquals(DATABASES, this.writer.write(event, DATABASES, false));
+
+        verify(this.session, never()).save(any());
+    }
+
+    @Test(timeout = 10000)
+    public void flushWritesTheRemainingEvents() throws Exception
+    {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = blockFirstTransaction(writing);
+        this.writer.start();
+
+        List<String> database = Collections.singletonList("xwiki");
+        this.writer.write(new ActivityEventImpl(), database, false);
+        writing.await();
+
+        ActivityEvent event = new ActivityEventImpl();
+        this.writer.write(event, database, false);
+
+        release.countDown();
+        // Sent when the application stops
+        this.writer.onEvent(null, null, null);
+
+        verify(this.session).save(event);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.plugin.activitystream.impl;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.test.annotation.AllComponents;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.plugin.activitystream.api.ActivityEvent;
+import com.xpn.xwiki.test.MockitoOldcoreRule;
+
+/**
+ * Unit tests for the keyset pagination of {@link ActivityStreamImpl}.
+ * 
+ * @version $Id$
+ */
+@AllComponents
+public class ActivityStreamImplTest
+{
+    private static final String SELECT = "select act from ActivityEventImpl as act  where "
+        + " (act.hidden <> true or act.hidden is null) and ";
+
+    private static final String SEEK = " and (act.date < ? or (act.date = ? and act.eventId < ?))";
+
+    private static final String ORDER = " order by act.date desc, act.eventId desc";
+
+    @Rule
+    public MockitoOldcoreRule oldcore = new MockitoOldcoreRule();
+
+    private ActivityStreamImpl activityStream;
+
+    private ActivityEvent after;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        // Hide the events of hidden documents
+        this.oldcore.getMocker().registerMockComponent(ConfigurationSource.class, "user");
+
+        this.activityStream = new ActivityStreamImpl();
+
+        this.after = new ActivityEventImpl();
+        this.after.setDate(new Date(1000L));
+        this.after.setEventId("event2");
+    }
+
+    @Test
+    public void firstPageHasNoSeekCondition() throws Exception
+    {
+        this.activityStream.searchEventsAfter("", "act.space=?", false, null, 10,
+            Collections.<Object>singletonList("Main"), this.oldcore.getXWikiContext());
+
+        verify(this.oldcore.getMockStore()).search(eq(SELECT + "(act.space=?)" + ORDER), eq(10), eq(0),
+            eq(Arrays.<Object>asList("Main")), any(XWikiContext.class));
+    }
+
+    @Test
+    public void nextPageStartsAfterTheLastEventIncludingDateTies() throws Exception
+    {
+        this.activityStream.searchEventsAfter("", "act.space=?", false, this.after, 10,
+            Collections.<Object>singletonList("Main"), this.oldcore.getXWikiContext());
+
+        // Events with the same date as the last event are ordered by id, so none is skipped nor repeated
+        verify(this.oldcore.getMockStore()).search(eq(SELECT + "(act.space=?)" + SEEK + ORDER), eq(10), eq(0),
+            eq(Arrays.<Object>asList("Main", this.after.getDate(), this.after.getDate(), "event2")),
+            any(XWikiContext.class));
+    }
+
+    @Test
+    public void callerConditionsAreKeptTogether() throws Exception
+    {
+        this.activityStream.searchEventsAfter("", "act.type='create' or act.type='update'", false, this.after, 10,
+            null, this.oldcore.getXWikiContext());
+
+        // Without the parentheses the events of the first type would escape the seek condition
+        verify(this.oldcore.getMockStore()).search(
+            eq(SELECT + "(act.type='create' or act.type='update')" + SEEK + ORDER), eq(10), eq(0),
+            eq(Arrays.<Object>asList(this.after.getDate(), this.after.getDate(), "event2")), any(XWikiContext.class));
+    }
+
+    @Test
+    public void emptyConditionMatchesAllEvents() throws Exception
+    {
+        this.activityStream.searchEventsAfter("", null, false, null, 10, null, this.oldcore.getXWikiContext());
+
+        verify(this.oldcore.getMockStore()).search(eq(SELECT + "(1=1)" + ORDER), eq(10), eq(0),
+            eq(Collections.<Object>emptyList()), any(XWikiContext.class));
+    }
+
+    @Test
+    public void spaceAndUserEventsAreSearchedAfterTheLastEvent() throws Exception
+    {
+        this.activityStream.getEventsForSpace("Main", this.after, 20, this.oldcore.getXWikiContext());
+        this.activityStream.getEventsForUser("XWiki.Admin", this.after, 20, this.oldcore.getXWikiContext());
+
+        verify(this.oldcore.getMockStore()).search(eq(SELECT + "(act.space=?)" + SEEK + ORDER), eq(20), eq(0),
+            eq(Arrays.<Object>asList("Main", this.after.getDate(), this.after.getDate(), "event2")),
+            any(XWikiContext.class));
+        verify(this.oldcore.getMockStore()).search(eq(SELECT + "(act.user=?)" + SEEK + ORDER), eq(20), eq(0),
+            eq(Arrays.<Object>asList("XWiki.Admin", this.after.getDate(), this.after.getDate(), "event2")),
+            any(XWikiContext.class));
+    }
+}
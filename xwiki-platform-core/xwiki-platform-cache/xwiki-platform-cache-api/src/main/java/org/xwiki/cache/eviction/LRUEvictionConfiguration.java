@@ -32,6 +32,13 @@ public class LRUEvictionConfiguration extends EntryEvictionConfiguration
      */
     public static final String MAXENTRIES_ID = "maxentries";
 
+    /**
+     * The key to access the maximum memory (in bytes) the cache entries can use.
+     * 
+     * @since 5.4M1
+     */
+    public static final String MAXMEMORY_ID = "maxmemory";
+
     /**
      * Create a new EntryEvictionConfiguration based on LRU algorithm.
      */
@@ -70,4 +77,24 @@ public int getMaxEntries()
 
         return obj == null ? 0 : (Integer) get(MAXENTRIES_ID);
     }
+
+    /**
+     * @param maxMemory the maximum memory (in bytes) the cache entries can use. Not supported by all implementations.
+     * @since 5.4M1
+     */
+    public void setMaxMemory(long maxMemory)
+    {
+        put(MAXMEMORY_ID, maxMemory);
+    }
+
+    /**
+     * @return the maximum memory (in bytes) the cache entries can use, 0 for no limit
+     * @since 5.4M1
+     */
+    public long getMaxMemory()
+    {
+        Object obj = get(MAXMEMORY_ID);
+
+        return obj == null ? 0 : ((Number) obj).longValue();
+    }
 }
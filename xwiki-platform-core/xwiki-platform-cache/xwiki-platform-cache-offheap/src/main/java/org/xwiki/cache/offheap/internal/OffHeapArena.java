@@ -0,0 +1,207 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.cache.offheap.internal;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Memory outside of the Java heap, allocated by big slabs split in fixed size chunks. A value is stored in as many
+ * chunks as needed, not necessarily contiguous, so that storing a value doesn't require a native allocation and freed
+ * chunks can always be reused whatever the size of the next values.
+ * 
+ * @version $Id$
+ * @since 5.4M1
+ */
+final class OffHeapArena
+{
+    /**
+     * The default size (in bytes) of a chunk.
+     */
+    static final int DEFAULT_CHUNK_SIZE = 4096;
+
+    /**
+     * The default number of chunks in a slab.
+     */
+    static final int DEFAULT_SLAB_CHUNKS = 256;
+
+    /**
+     * The size (in bytes) of a chunk.
+     */
+    private final int chunkSize;
+
+    /**
+     * The number of chunks in a slab.
+     */
+    private final int slabChunks;
+
+    /**
+     * The allocated slabs.
+     */
+    private ByteBuffer[] slabs = new ByteBuffer[0];
+
+    /**
+     * The stack of the free chunks, identified by their index in the slabs.
+     */
+    private int[] freeChunks = new int[0];
+
+    /**
+     * The number of free chunks.
+     */
+    private int freeCount;
+
+    /**
+     * Create an arena with the default chunk and slab sizes.
+     */
+    OffHeapArena()
+    {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_SLAB_CHUNKS);
+    }
+
+    /**
+     * @param chunkSize the size (in bytes) of a chunk
+     * @param slabChunks the number of chunks in a slab
+     */
+    OffHeapArena(int chunkSize, int slabChunks)
+    {
+        this.chunkSize = chunkSize;
+        this.slabChunks = slabChunks;
+    }
+
+    /**
+     * @param length a number of bytes
+     * @return the memory (in bytes) used to store the passed number of bytes
+     */
+    long getSize(int length)
+    {
+        return (long) getChunkCount(length) * this.chunkSize;
+    }
+
+    /**
+     * Copy the passed bytes in free chunks, allocating a new slab if needed.
+     * 
+     * @param bytes the bytes to store
+     * @return the chunks where the bytes are stored
+     */
+    synchronized int[] write(byte[] bytes)
+    {
+        int count = getChunkCount(bytes.length);
+        while (this.freeCount < count) {
+            addSlab();
+        }
+
+        int[] chunks = new int[count];
+        for (int i = 0; i < count; ++i) {
+            chunks[i] = this.freeChunks[--this.freeCount];
+
+            int offset = i * this.chunkSize;
+            getChunk(chunks[i]).put(bytes, offset, Math.min(this.chunkSize, bytes.length - offset));
+        }
+
+        return chunks;
+    }
+
+    /**
+     * @param chunks the chunks where the bytes are stored
+     * @param length the number of stored bytes
+     * @return a copy of the stored bytes
+     */
+    synchronized byte[] read(int[] chunks, int length)
+    {
+        byte[] bytes = new byte[length];
+
+        for (int i = 0; i < chunks.length; ++i) {
+            int offset = i * this.chunkSize;
+            getChunk(chunks[i]).get(bytes, offset, Math.min(this.chunkSize, length - offset));
+        }
+
+        return bytes;
+    }
+
+    /**
+     * @param chunks the chunks to make available for other values
+     */
+    synchronized void free(int[] chunks)
+    {
+        for (int chunk : chunks) {
+            this.freeChunks[this.freeCount++] = chunk;
+        }
+    }
+
+    /**
+     * Release all the slabs. The chunks given before are not valid anymore.
+     */
+    synchronized void clear()
+    {
+        // The direct memory is released when the buffers are garbage collected
+        this.slabs = new ByteBuffer[0];
+        this.freeChunks = new int[0];
+        this.freeCount = 0;
+    }
+
+    /**
+     * @return the memory (in bytes) allocated outside of the Java heap
+     */
+    synchronized long getCapacity()
+    {
+        return (long) this.slabs.length * this.slabChunks * this.chunkSize;
+    }
+
+    /**
+     * @param length a number of bytes
+     * @return the number of chunks needed to store the passed number of bytes
+     */
+    private int getChunkCount(int length)
+    {
+        return (length + this.chunkSize - 1) / this.chunkSize;
+    }
+
+    /**
+     * @param chunk the index of a chunk
+     * @return a buffer limited to the chunk, with its own position
+     */
+    private ByteBuffer getChunk(int chunk)
+    {
+        ByteBuffer buffer = this.slabs[chunk / this.slabChunks].duplicate();
+
+        int offset = (chunk % this.slabChunks) * this.chunkSize;
+        buffer.limit(offset + this.chunkSize);
+        buffer.position(offset);
+
+        return buffer;
+    }
+
+    /**
+     * Allocate a new slab and make its chunks available.
+     */
+    private void addSlab()
+    {
+        int slab = this.slabs.length;
+
+        this.slabs = Arrays.copyOf(this.slabs, slab + 1);
+        this.slabs[slab] = ByteBuffer.allocateDirect(this.slabChunks * this.chunkSize);
+
+        this.freeChunks = Arrays.copyOf(this.freeChunks, this.slabs.length * this.slabChunks);
+        // Pushed in reverse order so that the chunks of the slab are used in order
+        for (int i = this.slabChunks - 1; i >= 0; --i) {
+            this.freeChunks[this.freeCount++] = slab * this.slabChunks + i;
+        }
+    }
+}
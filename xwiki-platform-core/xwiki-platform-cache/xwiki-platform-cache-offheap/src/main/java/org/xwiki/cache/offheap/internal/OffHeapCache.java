@@ -0,0 +1,434 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.cache.offheap.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.input.ClassLoaderObjectInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.EntryEvictionConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
+import org.xwiki.cache.offheap.internal.event.OffHeapCacheEntryEvent;
+import org.xwiki.cache.util.AbstractCache;
+
+/**
+ * Cache storing the serialized values in direct {@link ByteBuffer}s, outside of the Java heap. The direct memory is
+ * allocated by big slabs shared by the entries (see {@link OffHeapArena}). Supports the maximum number of entries, the
+ * maximum memory and the time to live (handled as a maximum idle time) eviction constraints.
+ * 
+ * @param <T> the class of the data stored in the cache.
+ * @version $Id$
+ * @since 5.4M1
+ */
+public class OffHeapCache<T> extends AbstractCache<T>
+{
+    /**
+     * The logger to log.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(OffHeapCache.class);
+
+    /**
+     * A serialized value stored outside of the heap.
+     * 
+     * @version $Id$
+     */
+    private static final class Slot
+    {
+        /**
+         * The chunks of the arena where the serialized value is stored.
+         */
+        private final int[] chunks;
+
+        /**
+         * The size in bytes of the serialized value.
+         */
+        private final int length;
+
+        /**
+         * The memory used by the serialized value.
+         */
+        private final long size;
+
+        /**
+         * True if the value is a byte array stored as is, false if it's a serialized object.
+         */
+        private final boolean raw;
+
+        /**
+         * The date of the last access to the value.
+         */
+        private long lastAccess = System.currentTimeMillis();
+
+        /**
+         * @param chunks the chunks of the arena where the serialized value is stored
+         * @param length the size in bytes of the serialized value
+         * @param size the memory used by the serialized value
+         * @param raw true if the value is a byte array stored as is
+         */
+        private Slot(int[] chunks, int length, long size, boolean raw)
+        {
+            this.chunks = chunks;
+            this.length = length;
+            this.size = size;
+            this.raw = raw;
+        }
+    }
+
+    /**
+     * The memory where the serialized values are stored.
+     */
+    private final OffHeapArena arena = new OffHeapArena();
+
+    /**
+     * The entries of the cache ordered from the least recently used to the most recently used.
+     */
+    private final Map<String, Slot> slots = new LinkedHashMap<String, Slot>(16, 0.75f, true);
+
+    /**
+     * The maximum number of entries, 0 for no limit.
+     */
+    private final int maxEntries;
+
+    /**
+     * The maximum memory used by the serialized values, 0 for no limit.
+     */
+    private final long maxMemory;
+
+    /**
+     * The maximum idle time of an entry in milliseconds, 0 for no limit.
+     */
+    private final long maxIdle;
+
+    /**
+     * The memory currently used by the serialized values.
+     */
+    private long memory;
+
+    /**
+     * @param configuration the configuration of the cache
+     */
+    public OffHeapCache(CacheConfiguration configuration)
+    {
+        this.configuration = configuration;
+
+        EntryEvictionConfiguration eec =
+            (EntryEvictionConfiguration) configuration.get(EntryEvictionConfiguration.CONFIGURATIONID);
+
+        if (eec != null) {
+            Number entries = (Number) eec.get(LRUEvictionConfiguration.MAXENTRIES_ID);
+            this.maxEntries = entries != null ? entries.intValue() : 0;
+            Number bytes = (Number) eec.get(LRUEvictionConfiguration.MAXMEMORY_ID);
+            this.maxMemory = bytes != null ? bytes.longValue() : 0;
+            this.maxIdle = eec.getTimeToLive() * 1000L;
+        } else {
+            this.maxEntries = 0;
+            this.maxMemory = 0;
+            this.maxIdle = 0;
+        }
+    }
+
+    @Override
+    public void set(String key, T value)
+    {
+        byte[] bytes = serialize(key, value);
+
+        if (bytes == null) {
+            // Don't keep an outdated value
+            remove(key);
+
+            return;
+        }
+
+        boolean raw = value instanceof byte[];
+        boolean notify = hasListeners();
+
+        Slot previous;
+        List<OffHeapCacheEntryEvent<T>> removedEvents;
+        synchronized (this.slots) {
+            Slot slot = new Slot(this.arena.write(bytes), bytes.length, this.arena.getSize(bytes.length), raw);
+
+            previous = this.slots.put(key, slot);
+            if (previous != null) {
+                release(key, previous, false);
+            }
+            this.memory += slot.size;
+
+            removedEvents = evict(notify);
+        }
+
+        if (notify) {
+            OffHeapCacheEntryEvent<T> event = newEvent(key, bytes, raw);
+            if (previous != null) {
+                sendEntryModifiedEvent(event);
+            } else {
+                sendEntryAddedEvent(event);
+            }
+
+            for (OffHeapCacheEntryEvent<T> removedEvent : removedEvents) {
+                sendEntryRemovedEvent(removedEvent);
+            }
+        }
+    }
+
+    @Override
+    public T get(String key)
+    {
+        Slot slot;
+        byte[] bytes;
+        OffHeapCacheEntryEvent<T> expiredEvent = null;
+        synchronized (this.slots) {
+            slot = this.slots.get(key);
+
+            if (slot == null) {
+                return null;
+            }
+
+            long now = System.currentTimeMillis();
+            if (this.maxIdle > 0 && now - slot.lastAccess > this.maxIdle) {
+                this.slots.remove(key);
+                expiredEvent = release(key, slot, hasListeners());
+                bytes = null;
+            } else {
+                slot.lastAccess = now;
+                // Copied while holding the lock since the chunks are reused once the entry is removed
+                bytes = this.arena.read(slot.chunks, slot.length);
+            }
+        }
+
+        if (bytes == null) {
+            if (expiredEvent != null) {
+                sendEntryRemovedEvent(expiredEvent);
+            }
+
+            return null;
+        }
+
+        // Deserialize outside of the lock
+        return read(key, bytes, slot.raw);
+    }
+
+    @Override
+    public void remove(String key)
+    {
+        OffHeapCacheEntryEvent<T> event = null;
+        synchronized (this.slots) {
+            Slot slot = this.slots.remove(key);
+            if (slot != null) {
+                event = release(key, slot, hasListeners());
+            }
+        }
+
+        if (event != null) {
+            sendEntryRemovedEvent(event);
+        }
+    }
+
+    @Override
+    public void removeAll()
+    {
+        synchronized (this.slots) {
+            this.slots.clear();
+            this.memory = 0;
+            this.arena.clear();
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        super.dispose();
+
+        removeAll();
+    }
+
+    /**
+     * @return the memory in bytes currently used by the serialized values, counting the whole chunks they use
+     */
+    public long getMemory()
+    {
+        synchronized (this.slots) {
+            return this.memory;
+        }
+    }
+
+    /**
+     * @return the memory in bytes allocated outside of the Java heap, including the free chunks
+     */
+    public long getCapacity()
+    {
+        return this.arena.getCapacity();
+    }
+
+    /**
+     * Remove the least recently used (and the expired) entries until the cache constraints are respected. Has to be
+     * called while holding the lock.
+     * 
+     * @param notify true if the events of the removed entries are needed
+     * @return the events of the removed entries
+     */
+    private List<OffHeapCacheEntryEvent<T>> evict(boolean notify)
+    {
+        List<OffHeapCacheEntryEvent<T>> events = null;
+
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<String, Slot>> it = this.slots.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Slot> entry = it.next();
+
+            if ((this.maxEntries > 0 && this.slots.size() > this.maxEntries)
+                || (this.maxMemory > 0 && this.memory > this.maxMemory)
+                || (this.maxIdle > 0 && now - entry.getValue().lastAccess > this.maxIdle)) {
+                it.remove();
+                OffHeapCacheEntryEvent<T> event = release(entry.getKey(), entry.getValue(), notify);
+                if (event != null) {
+                    if (events == null) {
+                        events = new ArrayList<OffHeapCacheEntryEvent<T>>();
+                    }
+                    events.add(event);
+                }
+            } else {
+                // Entries are ordered by access so the next ones are more recent
+                break;
+            }
+        }
+
+        return events != null ? events : Collections.<OffHeapCacheEntryEvent<T>>emptyList();
+    }
+
+    /**
+     * Free the memory of an entry removed from the cache. Has to be called while holding the lock.
+     * 
+     * @param key the key of the removed entry
+     * @param slot the serialized value of the removed entry
+     * @param notify true if the event of the removed entry is needed
+     * @return the event of the removed entry or null if not needed
+     */
+    private OffHeapCacheEntryEvent<T> release(String key, Slot slot, boolean notify)
+    {
+        OffHeapCacheEntryEvent<T> event = null;
+        if (notify) {
+            // Copied before the chunks are reused by other entries
+            event = newEvent(key, this.arena.read(slot.chunks, slot.length), slot.raw);
+        }
+
+        this.arena.free(slot.chunks);
+        this.memory -= slot.size;
+
+        return event;
+    }
+
+    /**
+     * @param key the key of the entry
+     * @param bytes the serialized value of the entry
+     * @param raw true if the value is a byte array stored as is
+     * @return the event of the entry
+     */
+    private OffHeapCacheEntryEvent<T> newEvent(String key, byte[] bytes, boolean raw)
+    {
+        return new OffHeapCacheEntryEvent<T>(new OffHeapCacheEntry<T>(this, key, bytes, raw));
+    }
+
+    /**
+     * @return true if at least one listener is registered, to avoid deserializing values for nothing
+     */
+    private boolean hasListeners()
+    {
+        return this.cacheEntryListeners.getListenerCount() > 0;
+    }
+
+    /**
+     * Serialize the value.
+     * 
+     * @param key the key of the entry
+     * @param value the value to serialize
+     * @return the serialized value or null if the value can't be serialized
+     */
+    private byte[] serialize(String key, T value)
+    {
+        if (value instanceof byte[]) {
+            return (byte[]) value;
+        } else if (value instanceof Serializable) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ObjectOutputStream stream = new ObjectOutputStream(bytes);
+                stream.writeObject(value);
+                stream.close();
+
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to serialize the value of entry [{}] in cache [{}]", key,
+                    this.configuration.getConfigurationId(), e);
+            }
+        } else if (value != null) {
+            LOGGER.warn("Can't store the value of entry [{}] in cache [{}]: [{}] is not serializable", key,
+                this.configuration.getConfigurationId(), value.getClass());
+        }
+
+        return null;
+    }
+
+    /**
+     * Deserialize the value.
+     * 
+     * @param key the key of the entry
+     * @param bytes the serialized value
+     * @param raw true if the value is a byte array stored as is
+     * @return a new instance of the value or null if it can't be deserialized
+     */
+    @SuppressWarnings("unchecked")
+    T read(String key, byte[] bytes, boolean raw)
+    {
+        if (raw) {
+            return (T) bytes;
+        }
+
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        if (classLoader == null) {
+            classLoader = getClass().getClassLoader();
+        }
+
+        try {
+            ObjectInputStream stream = new ClassLoaderObjectInputStream(classLoader, new ByteArrayInputStream(bytes));
+            try {
+                return (T) stream.readObject();
+            } finally {
+                stream.close();
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Failed to deserialize the value of entry [{}] in cache [{}]", key,
+                this.configuration.getConfigurationId(), e);
+
+            return null;
+        }
+    }
+}
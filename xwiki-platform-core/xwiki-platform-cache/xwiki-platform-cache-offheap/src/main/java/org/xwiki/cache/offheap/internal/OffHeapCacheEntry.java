@@ -0,0 +1,85 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.cache.offheap.internal;
+
+import org.xwiki.cache.CacheEntry;
+
+/**
+ * Implements {@link CacheEntry} for {@link OffHeapCache}. The value is only deserialized when requested.
+ * 
+ * @param <T> the class of the data stored in the cache.
+ * @version $Id$
+ * @since 5.4M1
+ */
+public class OffHeapCacheEntry<T> implements CacheEntry<T>
+{
+    /**
+     * The cache where this entry is stored.
+     */
+    private OffHeapCache<T> cache;
+
+    /**
+     * The key of the entry.
+     */
+    private String key;
+
+    /**
+     * The serialized value.
+     */
+    private byte[] bytes;
+
+    /**
+     * True if the value is a byte array stored as is, false if it's a serialized object.
+     */
+    private boolean raw;
+
+    /**
+     * @param cache the cache where this entry is stored
+     * @param key the key of the entry
+     * @param bytes the serialized value
+     * @param raw true if the value is a byte array stored as is
+     */
+    OffHeapCacheEntry(OffHeapCache<T> cache, String key, byte[] bytes, boolean raw)
+    {
+        this.cache = cache;
+        this.key = key;
+        this.bytes = bytes;
+        this.raw = raw;
+    }
+
+    @Override
+    public OffHeapCache<T> getCache()
+    {
+        return this.cache;
+    }
+
+    @Override
+    public String getKey()
+    {
+        return this.key;
+    }
+
+    @Override
+    public T getValue()
+    {
+        // Each caller gets its own copy of a byte array value
+        return this.cache.read(this.key, this.raw ? this.bytes.clone() : this.bytes, this.raw);
+    }
+}
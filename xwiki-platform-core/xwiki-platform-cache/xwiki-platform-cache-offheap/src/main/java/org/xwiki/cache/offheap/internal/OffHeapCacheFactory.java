@@ -0,0 +1,51 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.cache.offheap.internal;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheFactory;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.component.annotation.Component;
+
+/**
+ * Create caches storing their values serialized outside of the Java heap. Values stored in such caches have to be
+ * {@link java.io.Serializable} (or byte arrays) and a copy of the value is returned by each call to
+ * {@link Cache#get(String)}.
+ * <p>
+ * The memory used by the cache is not subject to the garbage collector pressure but is limited by the
+ * {@code -XX:MaxDirectMemorySize} JVM option.
+ * 
+ * @version $Id$
+ * @since 5.4M1
+ */
+@Component
+@Named("offheap")
+@Singleton
+public class OffHeapCacheFactory implements CacheFactory
+{
+    @Override
+    public <T> Cache<T> newCache(CacheConfiguration configuration)
+    {
+        return new OffHeapCache<T>(configuration);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.cache.offheap.internal;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link OffHeapArena}.
+ * 
+ * @version $Id$
+ */
+public class OffHeapArenaTest
+{
+    private OffHeapArena arena = new OffHeapArena(8, 4);
+
+    private static byte[] bytes(int length)
+    {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            bytes[i] = (byte) i;
+        }
+
+        return bytes;
+    }
+
+    @Test
+    public void writeAndRead()
+    {
+        byte[] value = bytes(20);
+        int[] chunks = this.arena.write(value);
+
+        Assert.assertEquals(3, chunks.length);
+        Assert.assertEquals(24, this.arena.getSize(value.length));
+        Assert.assertArrayEquals(value, this.arena.read(chunks, value.length));
+        Assert.assertEquals(32, this.arena.getCapacity());
+    }
+
+    @Test
+    public void writeEmptyValue()
+    {
+        int[] chunks = this.arena.write(new byte[0]);
+
+        Assert.assertEquals(0, chunks.length);
+        Assert.assertArrayEquals(new byte[0], this.arena.read(chunks, 0));
+        Assert.assertEquals(0, this.arena.getCapacity());
+    }
+
+    @Test
+    public void valuesSpanSeveralSlabs()
+    {
+        byte[] first = bytes(24);
+        byte[] second = bytes(17);
+        int[] firstChunks = this.arena.write(first);
+        int[] secondChunks = this.arena.write(second);
+
+        Assert.assertEquals(64, this.arena.getCapacity());
+        Assert.assertArrayEquals(first, this.arena.read(firstChunks, first.length));
+        Assert.assertArrayEquals(second, this.arena.read(secondChunks, second.length));
+    }
+
+    @Test
+    public void freedChunksAreReused()
+    {
+        int[] chunks = this.arena.write(bytes(32));
+        this.arena.free(chunks);
+
+        // Fragmented but still enough room
+        byte[] value = bytes(30);
+        int[] otherChunks = this.arena.write(value);
+
+        Assert.assertEquals(32, this.arena.getCapacity());
+        Assert.assertArrayEquals(value, this.arena.read(otherChunks, value.length));
+    }
+
+    @Test
+    public void clear()
+    {
+        this.arena.write(bytes(32));
+        this.arena.clear();
+
+        Assert.assertEquals(0, this.arena.getCapacity());
+
+        byte[] value = bytes(5);
+        Assert.assertArrayEquals(value, this.arena.read(this.arena.write(value), value.length));
+    }
+}
@@ -0,0 +1,556 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.plugin.mailsender;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers mails asynchronously using a bounded pool of worker threads.
+ * <ul>
+ * <li>each worker keeps its SMTP connection open between two messages and closes it after
+ * {@value #MAX_MESSAGES_PER_CONNECTION} messages or when it has been idle for a while</li>
+ * <li>the number of messages sent per second is limited across all the workers</li>
+ * <li>a message that could not be sent is retried later with an exponential backoff</li>
+ * <li>each queued message is written in a spool directory until it's sent or given up, so that the messages still
+ * in the queue when the server stops can be {@link #resume(Session, MailConfiguration, String) resumed} when the
+ * queue is created again (or else the next time a mail is queued for the same wiki)</li>
+ * </ul>
+ * Only the MIME messages are written on disk: the SMTP configuration (and thus the credentials) of each wiki is kept
+ * in memory.
+ * 
+ * @version $Id$
+ * @since 5.4M1
+ */
+public class MailDeliveryQueue
+{
+    /** Logging helper object. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(MailDeliveryQueue.class);
+
+    /** The maximum number of messages sent using the same SMTP connection. */
+    private static final int MAX_MESSAGES_PER_CONNECTION = 100;
+
+    /** The time in milliseconds after which an idle worker closes its SMTP connection. */
+    private static final long IDLE_TIMEOUT = 10000L;
+
+    /** The extension of the files in which messages are spooled. */
+    private static final String SPOOL_EXTENSION = ".eml";
+
+    /**
+     * A message waiting to be sent.
+     * 
+     * @version $Id$
+     */
+    private static class QueuedMessage implements Delayed
+    {
+        /** The message to send. */
+        private final MimeMessage message;
+
+        /** The session used to create the message, shared by the messages having the same SMTP configuration. */
+        private final Session session;
+
+        /** The SMTP configuration to use. */
+        private final MailConfiguration configuration;
+
+        /** The file in which the message is spooled, null if it's not. */
+        private final File spoolFile;
+
+        /** The number of failed delivery attempts. */
+        private int attempts;
+
+        /** The time (as returned by {@link System#nanoTime()}) before which the message should not be sent. */
+        private long scheduledTime = System.nanoTime();
+
+        /**
+         * @param message the message to send
+         * @param session the session used to create the message
+         * @param configuration the SMTP configuration to use
+         * @param spoolFile the file in which the message is spooled, null if it's not
+         */
+        QueuedMessage(MimeMessage message, Session session, MailConfiguration configuration, File spoolFile)
+        {
+            this.message = message;
+            this.session = session;
+            this.configuration = configuration;
+            this.spoolFile = spoolFile;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit)
+        {
+            return unit.convert(this.scheduledTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other)
+        {
+            long diff = getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+
+    /**
+     * Takes messages from the queue and sends them, keeping the SMTP connection open between two messages.
+     * 
+     * @version $Id$
+     */
+    private class Worker implements Runnable
+    {
+        /** The currently open SMTP connection, null if there is none. */
+        private Transport transport;
+
+        /** The message which was used to open the current SMTP connection. */
+        private QueuedMessage transportMessage;
+
+        /** The number of messages sent using the current SMTP connection. */
+        private int transportCount;
+
+        @Override
+        public void run()
+        {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    QueuedMessage queuedMessage = queue.poll(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+
+                    if (queuedMessage != null) {
+                        deliver(queuedMessage);
+                    } else {
+                        closeTransport();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                closeTransport();
+            }
+        }
+
+        /**
+         * @param queuedMessage the message to send
+         * @throws InterruptedException when interrupted while waiting for the rate limit
+         */
+        private void deliver(QueuedMessage queuedMessage) throws InterruptedException
+        {
+            try {
+                Transport currentTransport = getTransport(queuedMessage);
+
+                acquirePermit();
+
+                currentTransport.sendMessage(queuedMessage.message, queuedMessage.message.getAllRecipients());
+                this.transportCount++;
+
+                status.onSent();
+                deleteSpoolFile(queuedMessage);
+            } catch (InterruptedException e) {
+                // Put the message back in the queue so that it's not lost
+                queue.add(queuedMessage);
+
+                throw e;
+            } catch (MessagingException e) {
+                closeTransport();
+                onFailure(queuedMessage, e);
+            } catch (RuntimeException e) {
+                // Don't let an unexpected error kill the worker or lose the message
+                closeTransport();
+                onFailure(queuedMessage, e);
+            }
+        }
+
+        /**
+         * @param queuedMessage the message to send
+         * @return an open SMTP connection suitable for the provided message
+         * @throws MessagingException when failing to connect to the SMTP server
+         */
+        private Transport getTransport(QueuedMessage queuedMessage) throws MessagingException
+        {
+            if (this.transport != null
+                && (this.transportCount >= MAX_MESSAGES_PER_CONNECTION || !this.transport.isConnected()
+                    || !isSameServer(this.transportMessage, queuedMessage))) {
+                closeTransport();
+            }
+
+            if (this.transport == null) {
+                Transport newTransport = queuedMessage.session.getTransport("smtp");
+                MailConfiguration configuration = queuedMessage.configuration;
+                if (!configuration.usesAuthentication()) {
+                    // no auth info - typical 127.0.0.1 open relay scenario
+                    newTransport.connect();
+                } else {
+                    // auth info present - typical with external smtp server
+                    newTransport.connect(configuration.getSmtpUsername(), configuration.getSmtpPassword());
+                }
+
+                this.transport = newTransport;
+                this.transportMessage = queuedMessage;
+                this.transportCount = 0;
+            }
+
+            return this.transport;
+        }
+
+        /**
+         * Close the current SMTP connection, if any.
+         */
+        private void closeTransport()
+        {
+            if (this.transport != null) {
+                try {
+                    this.transport.close();
+                } catch (MessagingException e) {
+                    LOGGER.debug("Failed to close the SMTP connection", e);
+                }
+
+                this.transport = null;
+                this.transportMessage = null;
+            }
+        }
+    }
+
+    /** The messages waiting to be sent, ordered by the time at which they should be sent. */
+    private final DelayQueue<QueuedMessage> queue = new DelayQueue<QueuedMessage>();
+
+    /** The progress of the delivery. */
+    private final MailDeliveryStatus status = new MailDeliveryStatus();
+
+    /** The wikis for which the spooled messages have already been loaded. */
+    private final Set<String> resumedWikis = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * The spool files of the messages queued by this run, so that loading the spooled messages of a wiki doesn't queue
+     * again the messages queued concurrently for the same wiki.
+     */
+    private final Set<File> queuedSpoolFiles = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    /** The directory in which the queued messages are spooled, null to keep them only in memory. */
+    private final File spoolDirectory;
+
+    /** The maximum number of delivery attempts for each message. */
+    private final int maxAttempts;
+
+    /** The time in milliseconds to wait before the first retry, doubled for each following retry. */
+    private final long retryDelay;
+
+    /** The minimum time in nanoseconds between two messages, 0 if the rate is not limited. */
+    private final long permitInterval;
+
+    /** The time (as returned by {@link System#nanoTime()}) at which the next message can be sent. */
+    private long nextPermit;
+
+    /** The workers. */
+    private final ExecutorService workers;
+
+    /**
+     * @param threads the number of threads sending mails
+     * @param rate the maximum number of messages sent per second, 0 or less for no limit
+     * @param maxAttempts the maximum number of delivery attempts for each message
+     * @param retryDelay the time in milliseconds to wait before the first retry, doubled for each following retry
+     * @param spoolDirectory the directory in which the queued messages are spooled, null to keep them only in memory
+     */
+    public MailDeliveryQueue(int threads, long rate, int maxAttempts, long retryDelay, File spoolDirectory)
+    {
+        this.maxAttempts = Math.max(maxAttempts, 1);
+        this.retryDelay = Math.max(retryDelay, 0);
+        this.permitInterval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+        this.spoolDirectory = spoolDirectory;
+
+        int workerCount = Math.max(threads, 1);
+        BasicThreadFactory factory =
+            new BasicThreadFactory.Builder().namingPattern("XWiki mail delivery thread %d").daemon(true).build();
+        this.workers = Executors.newFixedThreadPool(workerCount, factory);
+        for (int i = 0; i < workerCount; ++i) {
+            this.workers.execute(new Worker());
+        }
+    }
+
+    /**
+     * @return the progress of the delivery
+     */
+    public MailDeliveryStatus getStatus()
+    {
+        return this.status;
+    }
+
+    /**
+     * Add a message to the queue.
+     * <p>
+     * The first time a message is queued for a wiki the messages spooled for this wiki by a previous run are queued
+     * again using the same session and configuration.
+     * 
+     * @param message the message to send
+     * @param session the session used to create the message, messages sharing the same session and configuration can
+     *            be sent using the same SMTP connection
+     * @param configuration the SMTP configuration to use
+     * @param wiki the wiki the message is sent for
+     */
+    public void add(MimeMessage message, Session session, MailConfiguration configuration, String wiki)
+    {
+        resume(session, configuration, wiki);
+
+        enqueue(new QueuedMessage(message, session, configuration, spool(message, wiki)));
+    }
+
+    /**
+     * @return the wikis having messages in the spool directory, left by a previous run or not yet resumed
+     */
+    public List<String> getSpooledWikis()
+    {
+        List<String> wikis = new ArrayList<String>();
+
+        File[] directories = this.spoolDirectory != null ? this.spoolDirectory.listFiles() : null;
+        if (directories != null) {
+            for (File directory : directories) {
+                File[] files = directory.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (file.getName().endsWith(SPOOL_EXTENSION)) {
+                            wikis.add(directory.getName());
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+
+        return wikis;
+    }
+
+    /**
+     * Queue again the messages spooled for the provided wiki by a previous run, if it's not already done.
+     * 
+     * @param session the session to use to load the messages
+     * @param configuration the SMTP configuration to use to send the messages
+     * @param wiki the wiki the messages were sent for
+     */
+    public void resume(Session session, MailConfiguration configuration, String wiki)
+    {
+        if (this.resumedWikis.add(wiki)) {
+            load(session, configuration, wiki);
+        }
+    }
+
+    /**
+     * Stop the workers. The messages still in the queue stay in the spool directory.
+     */
+    public void dispose()
+    {
+        this.workers.shutdownNow();
+
+        try {
+            // Give the workers a chance to close their SMTP connection
+            this.workers.awaitTermination(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param queuedMessage the message to add to the queue
+     */
+    private void enqueue(QueuedMessage queuedMessage)
+    {
+        this.status.onQueued();
+        this.queue.add(queuedMessage);
+    }
+
+    /**
+     * Queue the messages spooled for the provided wiki which are not in the queue.
+     * 
+     * @param session the session to use to load the messages
+     * @param configuration the SMTP configuration to use
+     * @param wiki the wiki
+     */
+    private void load(Session session, MailConfiguration configuration, String wiki)
+    {
+        File directory = getSpoolDirectory(wiki);
+        File[] files = directory != null ? directory.listFiles() : null;
+
+        if (files != null) {
+            int loaded = 0;
+            for (File file : files) {
+                if (file.getName().endsWith(SPOOL_EXTENSION) && this.queuedSpoolFiles.add(file)) {
+                    InputStream stream = null;
+                    try {
+                        stream = new FileInputStream(file);
+                        enqueue(new QueuedMessage(new MimeMessage(session, stream), session, configuration, file));
+                        loaded++;
+                    } catch (Exception e) {
+                        LOGGER.error("Failed to load spooled mail [{}]", file, e);
+                        this.queuedSpoolFiles.remove(file);
+                    } finally {
+                        IOUtils.closeQuietly(stream);
+                    }
+                }
+            }
+
+            if (loaded > 0) {
+                LOGGER.info("Resumed the delivery of {} spooled mails for wiki [{}]", loaded, wiki);
+            }
+        }
+    }
+
+    /**
+     * @param message the message to spool
+     * @param wiki the wiki the message is sent for
+     * @return the file in which the message has been spooled, null if it has not
+     */
+    private File spool(MimeMessage message, String wiki)
+    {
+        File directory = getSpoolDirectory(wiki);
+
+        if (directory != null) {
+            File file = new File(directory, UUID.randomUUID().toString() + SPOOL_EXTENSION);
+            // Before the file is created so that it's not loaded by a concurrent resume
+            this.queuedSpoolFiles.add(file);
+
+            boolean spooled = false;
+            OutputStream stream = null;
+            try {
+                directory.mkdirs();
+                stream = new FileOutputStream(file);
+                message.writeTo(stream);
+                spooled = true;
+            } catch (Exception e) {
+                // The message is still queued in memory
+                LOGGER.warn("Failed to spool mail in [{}]: {}", file, e.getMessage());
+            } finally {
+                IOUtils.closeQuietly(stream);
+            }
+
+            if (spooled) {
+                return file;
+            }
+
+            file.delete();
+            this.queuedSpoolFiles.remove(file);
+        }
+
+        return null;
+    }
+
+    /**
+     * @param wiki the wiki
+     * @return the directory in which the messages of the provided wiki are spooled, null if they are not
+     */
+    private File getSpoolDirectory(String wiki)
+    {
+        return this.spoolDirectory != null ? new File(this.spoolDirectory, wiki) : null;
+    }
+
+    /**
+     * @param queuedMessage the message which has been sent or given up
+     */
+    private void deleteSpoolFile(QueuedMessage queuedMessage)
+    {
+        if (queuedMessage.spoolFile != null) {
+            if (!queuedMessage.spoolFile.delete()) {
+                LOGGER.warn("Failed to delete spooled mail [{}]", queuedMessage.spoolFile);
+            }
+            this.queuedSpoolFiles.remove(queuedMessage.spoolFile);
+        }
+    }
+
+    /**
+     * Schedule another attempt to send the message or give it up.
+     * 
+     * @param queuedMessage the message which could not be sent
+     * @param cause the reason of the failure
+     */
+    private void onFailure(QueuedMessage queuedMessage, Exception cause)
+    {
+        queuedMessage.attempts++;
+
+        if (queuedMessage.attempts < this.maxAttempts) {
+            long delay = this.retryDelay << Math.min(queuedMessage.attempts - 1, 16);
+            queuedMessage.scheduledTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+
+            LOGGER.warn("Failed to send mail (attempt {} of {}), retrying in {} ms: {}", queuedMessage.attempts,
+                this.maxAttempts, delay, cause.getMessage());
+
+            this.status.onRetried();
+            this.queue.add(queuedMessage);
+        } else {
+            LOGGER.error("Failed to send mail after {} attempts, giving up", queuedMessage.attempts, cause);
+
+            this.status.onFailed();
+            deleteSpoolFile(queuedMessage);
+        }
+    }
+
+    /**
+     * Wait until the rate limit allows to send another message.
+     * 
+     * @throws InterruptedException when interrupted while waiting
+     */
+    private void acquirePermit() throws InterruptedException
+    {
+        if (this.permitInterval > 0) {
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long permit = Math.max(now, this.nextPermit);
+                this.nextPermit = permit + this.permitInterval;
+                wait = permit - now;
+            }
+
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+
+    /**
+     * @param first a queued message
+     * @param second another queued message
+     * @return true if both messages can be sent using the same SMTP connection
+     */
+    private static boolean isSameServer(QueuedMessage first, QueuedMessage second)
+    {
+        return first.session == second.session
+            && StringUtils.equals(first.configuration.getSmtpUsername(), second.configuration.getSmtpUsername())
+            && StringUtils.equals(first.configuration.getSmtpPassword(), second.configuration.getSmtpPassword());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.plugin.mailsender;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of the mails handed to the {@link MailDeliveryQueue}. The counters are cumulative since the queue was
+ * created.
+ * 
+ * @version $Id$
+ * @since 5.4M1
+ */
+public class MailDeliveryStatus
+{
+    /** The number of mails added to the queue. */
+    private final AtomicLong queued = new AtomicLong();
+
+    /** The number of mails successfully handed to the SMTP server. */
+    private final AtomicLong sent = new AtomicLong();
+
+    /** The number of failed delivery attempts that have been scheduled again. */
+    private final AtomicLong retried = new AtomicLong();
+
+    /** The number of mails given up after the last allowed attempt. */
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @return the number of mails added to the queue
+     */
+    public long getQueuedCount()
+    {
+        return this.queued.get();
+    }
+
+    /**
+     * @return the number of mails successfully handed to the SMTP server
+     */
+    public long getSentCount()
+    {
+        return this.sent.get();
+    }
+
+    /**
+     * @return the number of failed delivery attempts that have been scheduled again
+     */
+    public long getRetriedCount()
+    {
+        return this.retried.get();
+    }
+
+    /**
+     * @return the number of mails given up after the last allowed attempt
+     */
+    public long getFailedCount()
+    {
+        return this.failed.get();
+    }
+
+    /**
+     * @return the number of mails waiting to be sent, including the ones waiting for a retry
+     */
+    public long getPendingCount()
+    {
+        return this.queued.get() - this.sent.get() - this.failed.get();
+    }
+
+    /**
+     * @return true if all the queued mails have been either sent or given up
+     */
+    public boolean isDone()
+    {
+        return getPendingCount() <= 0;
+    }
+
+    /**
+     * Called when a mail is added to the queue.
+     */
+    void onQueued()
+    {
+        this.queued.incrementAndGet();
+    }
+
+    /**
+     * Called when a mail has been sent.
+     */
+    void onSent()
+    {
+        this.sent.incrementAndGet();
+    }
+
+    /**
+     * Called when a failed mail is scheduled for another attempt.
+     */
+    void onRetried()
+    {
+        this.retried.incrementAndGet();
+    }
+
+    /**
+     * Called when a mail is given up.
+     */
+    void onFailed()
+    {
+        this.failed.incrementAndGet();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("queued: %d, sent: %d, retried: %d, failed: %d", getQueuedCount(), getSentCount(),
+            getRetriedCount(), getFailedCount());
+    }
+}
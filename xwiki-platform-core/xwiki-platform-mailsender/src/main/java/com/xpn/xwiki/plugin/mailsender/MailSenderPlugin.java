@@ -29,12 +29,15 @@
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -59,6 +62,11 @@
 import org.apache.velocity.context.Context;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xwiki.environment.Environment;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.ApplicationStoppedEvent;
+import org.xwiki.observation.event.Event;
 import org.xwiki.rendering.syntax.Syntax;
 
 import com.xpn.xwiki.XWiki;
@@ -74,6 +82,7 @@
 import com.xpn.xwiki.plugin.XWikiPluginInterface;
 import com.xpn.xwiki.render.XWikiVelocityRenderer;
 import com.xpn.xwiki.web.ExternalServletURLFactory;
+import com.xpn.xwiki.web.Utils;
 import com.xpn.xwiki.web.XWikiURLFactory;
 
 /**
@@ -121,6 +130,40 @@ public class MailSenderPlugin extends XWikiDefaultPlugin
     /** The name of the header that specifies the sender of the mail. */
     private static final String FROM = "From";
 
+    /** The prefix of the configuration parameters of the asynchronous delivery. */
+    private static final String DELIVERY_PARAM_PREFIX = "xwiki.plugin.mailsender.delivery.";
+
+    /** The name of the directory, relative to the permanent directory, in which queued mails are spooled. */
+    private static final String DELIVERY_SPOOL_DIRECTORY = "mailsender/queue";
+
+    /** The queue used to deliver mails asynchronously, created the first time a mail is queued. */
+    private MailDeliveryQueue deliveryQueue;
+
+    /** The mail sessions used by the queued mails, shared so that mails can reuse the same SMTP connection. */
+    private final ConcurrentMap<Properties, Session> deliverySessions = new ConcurrentHashMap<Properties, Session>();
+
+    /** Stops the delivery workers when the application stops. */
+    private final EventListener deliveryShutdownListener = new EventListener()
+    {
+        @Override
+        public String getName()
+        {
+            return "mailsenderDeliveryShutdown";
+        }
+
+        @Override
+        public List<Event> getEvents()
+        {
+            return Collections.<Event>singletonList(new ApplicationStoppedEvent());
+        }
+
+        @Override
+        public void onEvent(Event event, Object source, Object data)
+        {
+            dispose();
+        }
+    };
+
     /**
      * Default plugin constructor.
      * 
@@ -139,6 +182,34 @@ public void init(XWikiContext context)
         } catch (Exception e) {
             e.printStackTrace();
         }
+
+        try {
+            ObservationManager observationManager = Utils.getComponent(ObservationManager.class);
+            observationManager.removeListener(this.deliveryShutdownListener.getName());
+            observationManager.addListener(this.deliveryShutdownListener);
+        } catch (Exception e) {
+            LOGGER.warn("Failed to register the mail delivery shutdown listener: {}", e.getMessage());
+        }
+
+        // Send the mails which were still queued when the server stopped
+        File spoolDirectory = getDeliverySpoolDirectory();
+        if (spoolDirectory != null && spoolDirectory.isDirectory()) {
+            getDeliveryQueue(context);
+        }
+    }
+
+    /**
+     * Stop the asynchronous delivery of the queued mails. The mails which are not sent yet stay in the spool directory
+     * and are sent again when the delivery queue is created again.
+     * 
+     * @since 5.4M1
+     */
+    public synchronized void dispose()
+    {
+        if (this.deliveryQueue != null) {
+            this.deliveryQueue.dispose();
+            this.deliveryQueue = null;
+        }
     }
 
     @Override
@@ -779,6 +850,149 @@ public boolean sendMails(Collection<Mail> emails, MailConfiguration mailConfigur
         return true;
     }
 
+    /**
+     * Queue a single Mail to be sent asynchronously by the delivery workers. The mail is sent using the SMTP
+     * configuration of the current wiki.
+     * 
+     * @param mailItem The Mail to send
+     * @param context the XWiki context
+     * @return True if the email has been queued, false if it has no recipient
+     * @since 5.4M1
+     */
+    public boolean queueMail(Mail mailItem, XWikiContext context) throws MessagingException, XWikiException,
+        IOException
+    {
+        // TODO: Fix the need to instantiate a new XWiki API object
+        com.xpn.xwiki.api.XWiki xwikiApi = new com.xpn.xwiki.api.XWiki(context.getWiki(), context);
+        return queueMail(mailItem, new MailConfiguration(xwikiApi), context);
+    }
+
+    /**
+     * Queue a single Mail to be sent asynchronously by the delivery workers.
+     * 
+     * @param mailItem The Mail to send
+     * @param mailConfiguration the SMTP configuration to use
+     * @param context the XWiki context
+     * @return True if the email has been queued, false if it has no recipient
+     * @since 5.4M1
+     */
+    public boolean queueMail(Mail mailItem, MailConfiguration mailConfiguration, XWikiContext context)
+        throws MessagingException, XWikiException, IOException
+    {
+        Session session = getDeliverySession(mailConfiguration);
+
+        MimeMessage message = createMimeMessage(mailItem, session, context);
+        if (message == null) {
+            return false;
+        }
+
+        LOGGER.debug("Queuing email: " + mailItem.toString());
+
+        getDeliveryQueue(context).add(message, session, mailConfiguration, context.getDatabase());
+
+        return true;
+    }
+
+    /**
+     * @return the progress of the asynchronous delivery of the queued mails, null if no mail has been queued yet
+     * @since 5.4M1
+     */
+    public MailDeliveryStatus getDeliveryStatus()
+    {
+        MailDeliveryQueue queue;
+        synchronized (this) {
+            queue = this.deliveryQueue;
+        }
+
+        return queue != null ? queue.getStatus() : null;
+    }
+
+    /**
+     * @param mailConfiguration the SMTP configuration to use
+     * @return the session to use for the queued mails sent with the provided configuration
+     */
+    private Session getDeliverySession(MailConfiguration mailConfiguration)
+    {
+        Properties properties = initProperties(mailConfiguration);
+        Session session = this.deliverySessions.get(properties);
+        if (session == null) {
+            session = Session.getInstance(properties, null);
+            Session existingSession = this.deliverySessions.putIfAbsent(properties, session);
+            if (existingSession != null) {
+                session = existingSession;
+            }
+        }
+
+        return session;
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the queue used to deliver mails asynchronously
+     */
+    private synchronized MailDeliveryQueue getDeliveryQueue(XWikiContext context)
+    {
+        if (this.deliveryQueue == null) {
+            XWiki xwiki = context.getWiki();
+            int threads = (int) xwiki.ParamAsLong(DELIVERY_PARAM_PREFIX + "threads", 2);
+            long rate = xwiki.ParamAsLong(DELIVERY_PARAM_PREFIX + "rate", 0);
+            int maxAttempts = (int) xwiki.ParamAsLong(DELIVERY_PARAM_PREFIX + "maxAttempts", 5);
+            long retryDelay = xwiki.ParamAsLong(DELIVERY_PARAM_PREFIX + "retryDelay", 60) * 1000L;
+
+            this.deliveryQueue =
+                new MailDeliveryQueue(threads, rate, maxAttempts, retryDelay, getDeliverySpoolDirectory());
+
+            for (String wiki : this.deliveryQueue.getSpooledWikis()) {
+                resumeDelivery(wiki, context);
+            }
+        }
+
+        return this.deliveryQueue;
+    }
+
+    /**
+     * Queue again the mails spooled for the provided wiki by a previous run, using the current SMTP configuration of
+     * the wiki.
+     * 
+     * @param wiki the wiki
+     * @param context the XWiki context
+     */
+    private void resumeDelivery(String wiki, XWikiContext context)
+    {
+        String currentWiki = context.getDatabase();
+        try {
+            context.setDatabase(wiki);
+
+            MailConfiguration configuration =
+                new MailConfiguration(new com.xpn.xwiki.api.XWiki(context.getWiki(), context));
+            this.deliveryQueue.resume(getDeliverySession(configuration), configuration, wiki);
+        } catch (Exception e) {
+            // The mails will be resumed the next time a mail is queued for this wiki
+            LOGGER.warn("Failed to resume the delivery of the mails spooled for wiki [{}]: {}", wiki, e.getMessage());
+        } finally {
+            context.setDatabase(currentWiki);
+        }
+    }
+
+    /**
+     * @return the directory in which the queued mails are spooled, null if there is no permanent directory
+     */
+    private File getDeliverySpoolDirectory()
+    {
+        try {
+            Environment environment = Utils.getComponent(Environment.class);
+            if (environment.getPermanentDirectory() != null) {
+                return new File(environment.getPermanentDirectory(), DELIVERY_SPOOL_DIRECTORY);
+            }
+        } catch (Exception e) {
+            LOGGER.debug("Failed to get the permanent directory", e);
+        }
+
+        LOGGER.warn("No permanent directory available, queued mails will be lost when the server stops");
+
+        return null;
+    }
+
     /**
      * Uses an XWiki document to build the message subject and context, based on variables stored in the
      * VelocityContext. Sends the email.
@@ -795,6 +1009,48 @@ public boolean sendMails(Collection<Mail> emails, MailConfiguration mailConfigur
      */
     public int sendMailFromTemplate(String templateDocFullName, String from, String to, String cc, String bcc,
         String language, VelocityContext vcontext, XWikiContext context) throws XWikiException
+    {
+        return sendMailFromTemplate(templateDocFullName, from, to, cc, bcc, language, vcontext, false, context);
+    }
+
+    /**
+     * Uses an XWiki document to build the message subject and context, based on variables stored in the
+     * VelocityContext. Queues the email to be sent asynchronously by the delivery workers.
+     * 
+     * @param templateDocFullName Full name of the template to be used (example: XWiki.MyEmailTemplate). The template
+     *            needs to have an XWiki.Email object attached
+     * @param from Email sender
+     * @param to Email recipient
+     * @param cc Email Carbon Copy
+     * @param bcc Email Hidden Carbon Copy
+     * @param language Language of the email
+     * @param vcontext Velocity context passed to the velocity renderer
+     * @return 0 if the email has been queued
+     * @since 5.4M1
+     */
+    public int queueMailFromTemplate(String templateDocFullName, String from, String to, String cc, String bcc,
+        String language, VelocityContext vcontext, XWikiContext context) throws XWikiException
+    {
+        return sendMailFromTemplate(templateDocFullName, from, to, cc, bcc, language, vcontext, true, context);
+    }
+
+    /**
+     * Uses an XWiki document to build the message subject and context, based on variables stored in the
+     * VelocityContext. Sends or queues the email.
+     * 
+     * @param templateDocFullName Full name of the template to be used (example: XWiki.MyEmailTemplate). The template
+     *            needs to have an XWiki.Email object attached
+     * @param from Email sender
+     * @param to Email recipient
+     * @param cc Email Carbon Copy
+     * @param bcc Email Hidden Carbon Copy
+     * @param language Language of the email
+     * @param vcontext Velocity context passed to the velocity renderer
+     * @param queue true to queue the email, false to send it right away
+     * @return 0 if the email has been sent or queued
+     */
+    private int sendMailFromTemplate(String templateDocFullName, String from, String to, String cc, String bcc,
+        String language, VelocityContext vcontext, boolean queue, XWikiContext context) throws XWikiException
     {
         XWikiURLFactory originalURLFactory = context.getURLFactory();
         // Backup the Locale and restore it in the finally block
@@ -837,7 +1093,11 @@ public int sendMailFromTemplate(String templateDocFullName, String from, String
             mail.setAttachments(docApi.getAttachmentList());
 
             try {
-                sendMail(mail, context);
+                if (queue) {
+                    queueMail(mail, context);
+                } else {
+                    sendMail(mail, context);
+                }
                 return 0;
             } catch (Exception e) {
                 LOGGER.error("sendEmailFromTemplate: " + templateDocFullName + " vcontext: " + updatedVelocityContext, e);
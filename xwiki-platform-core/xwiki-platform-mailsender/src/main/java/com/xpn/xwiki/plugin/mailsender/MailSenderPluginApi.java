@@ -181,6 +181,41 @@ public int sendMail(Mail mail)
         return result;
     }
 
+    /**
+     * Queue a mail to be sent asynchronously, using the SMTP configuration of the current wiki. The mail is retried
+     * later if the SMTP server can't be reached.
+     * 
+     * @param mail the mail to send
+     * @return 0 on success, -1 on failure. On failure the error message is stored in the XWiki context under the
+     *         "error" key.
+     * @since 5.4M1
+     */
+    public int queueMail(Mail mail)
+    {
+        int result = 0;
+        try {
+            getProtectedPlugin().queueMail(mail, this.context);
+        } catch (Exception e) {
+            // If the exception is a null pointer exception there is no message and e.getMessage() is null.
+            if (e.getMessage() != null) {
+                this.context.put("error", e.getMessage());
+            }
+            LOGGER.error("Failed to queue email [" + mail.toString() + "]", e);
+            result = -1;
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the progress of the asynchronous delivery of the queued mails, null if no mail has been queued yet
+     * @since 5.4M1
+     */
+    public MailDeliveryStatus getDeliveryStatus()
+    {
+        return getProtectedPlugin().getDeliveryStatus();
+    }
+
     @Override
     public MailConfiguration createMailConfiguration(XWiki xwiki)
     {
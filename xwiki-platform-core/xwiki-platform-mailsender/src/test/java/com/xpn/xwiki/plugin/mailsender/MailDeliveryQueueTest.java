@@ -0,0 +1,174 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.plugin.mailsender;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.mail.Address;
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.mock_javamail.Mailbox;
+
+/**
+ * Unit tests for {@link MailDeliveryQueue}. The mails are delivered to the mock JavaMail mailboxes.
+ * 
+ * @version $Id$
+ */
+public class MailDeliveryQueueTest
+{
+    private static final String RECIPIENT = "peter@acme.org";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Session session;
+
+    private MailDeliveryQueue queue;
+
+    @Before
+    public void setUp()
+    {
+        this.session = Session.getInstance(new Properties(), null);
+
+        Mailbox.clearAll();
+    }
+
+    @After
+    public void tearDown()
+    {
+        if (this.queue != null) {
+            this.queue.dispose();
+        }
+    }
+
+    private MimeMessage createMessage(String subject) throws MessagingException
+    {
+        MimeMessage message = new MimeMessage(this.session);
+        message.setFrom(new InternetAddress("john@acme.org"));
+        message.setRecipient(RecipientType.TO, new InternetAddress(RECIPIENT));
+        message.setSubject(subject);
+        message.setText("Text content");
+
+        return message;
+    }
+
+    private void waitForDelivery() throws InterruptedException
+    {
+        MailDeliveryStatus status = this.queue.getStatus();
+        for (int i = 0; i < 100 && !status.isDone(); ++i) {
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    public void spooledMailsAreResumed() throws Exception
+    {
+        File spoolDirectory = this.folder.newFolder("queue");
+        File wikiDirectory = new File(spoolDirectory, "wiki");
+        wikiDirectory.mkdirs();
+        File spooledFile = new File(wikiDirectory, "previous.eml");
+        OutputStream stream = new FileOutputStream(spooledFile);
+        try {
+            createMessage("Spooled subject").writeTo(stream);
+        } finally {
+            stream.close();
+        }
+        new File(spoolDirectory, "otherwiki").mkdirs();
+
+        this.queue = new MailDeliveryQueue(1, 0, 2, 1, spoolDirectory);
+
+        Assert.assertEquals(Arrays.asList("wiki"), this.queue.getSpooledWikis());
+
+        this.queue.resume(this.session, new MailConfiguration(), "wiki");
+        // Already resumed
+        this.queue.resume(this.session, new MailConfiguration(), "wiki");
+
+        waitForDelivery();
+
+        Assert.assertEquals(1, this.queue.getStatus().getQueuedCount());
+        Assert.assertEquals(1, this.queue.getStatus().getSentCount());
+        Assert.assertEquals(1, Mailbox.get(RECIPIENT).size());
+        Assert.assertEquals("Spooled subject", Mailbox.get(RECIPIENT).get(0).getSubject());
+        Assert.assertFalse(spooledFile.exists());
+        Assert.assertEquals(Collections.emptyList(), this.queue.getSpooledWikis());
+    }
+
+    @Test
+    public void unexpectedErrorIsRetried() throws Exception
+    {
+        final AtomicBoolean failed = new AtomicBoolean();
+        MimeMessage message = new MimeMessage(createMessage("Test subject"))
+        {
+            @Override
+            public Address[] getAllRecipients() throws MessagingException
+            {
+                if (failed.compareAndSet(false, true)) {
+                    throw new IllegalStateException("Unexpected error");
+                }
+
+                return super.getAllRecipients();
+            }
+        };
+
+        this.queue = new MailDeliveryQueue(1, 0, 3, 1, null);
+        this.queue.add(message, this.session, new MailConfiguration(), "wiki");
+
+        waitForDelivery();
+
+        Assert.assertEquals(1, this.queue.getStatus().getRetriedCount());
+        Assert.assertEquals(1, this.queue.getStatus().getSentCount());
+        Assert.assertEquals(0, this.queue.getStatus().getFailedCount());
+        Assert.assertEquals(1, Mailbox.get(RECIPIENT).size());
+    }
+
+    @Test
+    public void queuedMailIsSentOnce() throws Exception
+    {
+        File spoolDirectory = this.folder.newFolder("queue");
+
+        this.queue = new MailDeliveryQueue(2, 0, 2, 1, spoolDirectory);
+        this.queue.add(createMessage("First subject"), this.session, new MailConfiguration(), "wiki");
+        this.queue.add(createMessage("Second subject"), this.session, new MailConfiguration(), "wiki");
+
+        waitForDelivery();
+
+        // The spooled files of the queued mails are not loaded again
+        Assert.assertEquals(2, this.queue.getStatus().getQueuedCount());
+        Assert.assertEquals(2, this.queue.getStatus().getSentCount());
+        Assert.assertEquals(2, Mailbox.get(RECIPIENT).size());
+        Assert.assertEquals(Collections.emptyList(), this.queue.getSpooledWikis());
+    }
+}
@@ -134,4 +134,40 @@ public void testSendRawMessage() throws MessagingException, IOException
         inbox = Mailbox.get("adam@acme.org");
         assertEquals(1, inbox.size());
     }
+
+    public void testQueueMail() throws Exception
+    {
+        this.mockXWiki.stubs().method("ParamAsLong").with(eq("xwiki.plugin.mailsender.delivery.threads"), ANYTHING)
+            .will(returnValue(2L));
+        this.mockXWiki.stubs().method("ParamAsLong").with(eq("xwiki.plugin.mailsender.delivery.rate"), ANYTHING)
+            .will(returnValue(0L));
+        this.mockXWiki.stubs().method("ParamAsLong").with(eq("xwiki.plugin.mailsender.delivery.maxAttempts"), ANYTHING)
+            .will(returnValue(3L));
+        this.mockXWiki.stubs().method("ParamAsLong").with(eq("xwiki.plugin.mailsender.delivery.retryDelay"), ANYTHING)
+            .will(returnValue(1L));
+
+        assertNull(this.api.getDeliveryStatus());
+
+        for (int i = 0; i < 5; ++i) {
+            Mail mail = this.api.createMail();
+            mail.setFrom("john@acme.org");
+            mail.setTo("peter@acme.org");
+            mail.setSubject("Test subject " + i);
+            mail.setTextPart("Text content");
+
+            assertEquals(0, this.api.queueMail(mail));
+        }
+
+        MailDeliveryStatus status = this.api.getDeliveryStatus();
+        assertEquals(5, status.getQueuedCount());
+
+        // Wait for the workers to deliver the mails
+        for (int i = 0; i < 100 && !status.isDone(); ++i) {
+            Thread.sleep(100);
+        }
+
+        assertEquals(5, status.getSentCount());
+        assertEquals(0, status.getFailedCount());
+        assertEquals(5, Mailbox.get("peter@acme.org").size());
+    }
 }
@@ -19,6 +19,8 @@
  */
 package org.xwiki.observation.remote.internal.jgroups;
 
+import java.util.List;
+
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
@@ -60,6 +62,12 @@ public class DefaultJGroupsReceiver extends ReceiverAdapter implements JGroupsRe
     @Inject
     private Logger logger;
 
+    /**
+     * Used to decode the messages.
+     */
+    @Inject
+    private RemoteEventDataCodec codec;
+
     /**
      * @return the RemoteObservationManager
      */
@@ -79,8 +87,30 @@ public RemoteObservationManager getRemoteObservationManager()
     @Override
     public void receive(Message msg)
     {
-        RemoteEventData remoteEvent = (RemoteEventData) msg.getObject();
+        if (this.codec.isEncoded(msg.getRawBuffer(), msg.getOffset(), msg.getLength())) {
+            List<RemoteEventData> remoteEvents;
+            try {
+                remoteEvents = this.codec.decode(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+            } catch (Exception e) {
+                this.logger.error("Failed to decode JGroups remote events message", e);
+
+                return;
+            }
 
+            for (RemoteEventData remoteEvent : remoteEvents) {
+                receive(remoteEvent);
+            }
+        } else {
+            // Message sent by an instance which does not support grouped events yet
+            receive((RemoteEventData) msg.getObject());
+        }
+    }
+
+    /**
+     * @param remoteEvent the received event
+     */
+    private void receive(RemoteEventData remoteEvent)
+    {
         this.logger.debug("Received JGroups remote event [{}]", remoteEvent);
 
         getRemoteObservationManager().notify(remoteEvent);
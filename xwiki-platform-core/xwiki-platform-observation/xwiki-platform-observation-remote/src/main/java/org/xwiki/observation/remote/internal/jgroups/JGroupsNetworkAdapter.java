@@ -23,13 +23,23 @@
 import java.io.InputStream;
 import java.lang.management.ManagementFactory;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.jgroups.JChannel;
 import org.jgroups.Message;
@@ -41,7 +51,11 @@
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
 import org.xwiki.environment.Environment;
+import org.xwiki.observation.remote.CoalescableEvent;
 import org.xwiki.observation.remote.NetworkAdapter;
 import org.xwiki.observation.remote.RemoteEventData;
 import org.xwiki.observation.remote.RemoteEventException;
@@ -49,6 +63,11 @@
 
 /**
  * JGroups based implementation of {@link NetworkAdapter}.
+ * <p>
+ * When the compact format is enabled, events sent within a short delay are grouped in one message encoded with
+ * {@link RemoteEventDataCodec}, and a {@link CoalescableEvent} replaces the equal event still waiting to be sent.
+ * Otherwise each event is sent in its own Java serialized message, which is what the members running an older version
+ * expect.
  * 
  * @version $Id$
  * @since 2.0RC1
@@ -56,13 +75,38 @@
 @Component
 @Named("jgroups")
 @Singleton
-public class JGroupsNetworkAdapter implements NetworkAdapter
+public class JGroupsNetworkAdapter implements NetworkAdapter, Initializable
 {
     /**
      * Relative path where to find jgroups channels configurations.
      */
     public static final String CONFIGURATION_PATH = "observation/remote/jgroups/";
 
+    /**
+     * Name of the property indicating if the events are sent in the compact format.
+     */
+    private static final String PROPNAME_COMPACT = "observation.remote.jgroups.compact";
+
+    /**
+     * Name of the property indicating how long (in milliseconds) to wait for other events before sending a message.
+     */
+    private static final String PROPNAME_BATCH_DELAY = "observation.remote.jgroups.batch.delay";
+
+    /**
+     * The default delay before sending a message.
+     */
+    private static final long PROPVALUE_BATCH_DELAY = 10;
+
+    /**
+     * Name of the property indicating the maximum number of events in one message.
+     */
+    private static final String PROPNAME_BATCH_SIZE = "observation.remote.jgroups.batch.size";
+
+    /**
+     * The default maximum number of events in one message.
+     */
+    private static final int PROPVALUE_BATCH_SIZE = 100;
+
     /**
      * Used to lookup the receiver corresponding to the channel identifier.
      */
@@ -75,30 +119,304 @@ public class JGroupsNetworkAdapter implements NetworkAdapter
     @Inject
     private Logger logger;
 
+    /**
+     * Used to get the batching configuration.
+     */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /**
+     * Used to encode the messages.
+     */
+    @Inject
+    private RemoteEventDataCodec codec;
+
     /**
      * The network channels.
      */
     private Map<String, JChannel> channels = new ConcurrentHashMap<String, JChannel>();
 
+    /**
+     * True if the events are grouped and sent in the compact format.
+     */
+    private boolean compact;
+
+    /**
+     * How long (in milliseconds) to wait for other events before sending a message.
+     */
+    private long batchDelay;
+
+    /**
+     * The maximum number of events in one message.
+     */
+    private int batchSize;
+
+    /**
+     * The events waiting to be sent.
+     */
+    private final List<RemoteEventData> pendingEvents = new ArrayList<RemoteEventData>();
+
+    /**
+     * True if a task is already scheduled to send the pending events. The pending events are always sent from the flush
+     * executor thread so that the messages are sent in the same order as the events, without holding the lock.
+     */
+    private boolean flushScheduled;
+
+    /**
+     * Used to send the pending events after the batch delay.
+     */
+    private ScheduledExecutorService flushExecutor;
+
+    /**
+     * The number of messages sent.
+     */
+    private final AtomicLong sentMessages = new AtomicLong();
+
+    /**
+     * The number of events sent.
+     */
+    private final AtomicLong sentEvents = new AtomicLong();
+
+    /**
+     * The number of events which have not been sent because a more recent equal event replaced them.
+     */
+    private final AtomicLong coalescedEvents = new AtomicLong();
+
+    /**
+     * Send the pending events.
+     */
+    private final Runnable flushTask = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            flush();
+        }
+    };
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.compact = this.configuration.getProperty(PROPNAME_COMPACT, false);
+        this.batchDelay = this.configuration.getProperty(PROPNAME_BATCH_DELAY, PROPVALUE_BATCH_DELAY);
+        this.batchSize = Math.max(this.configuration.getProperty(PROPNAME_BATCH_SIZE, PROPVALUE_BATCH_SIZE), 1);
+
+        registerStatistics();
+    }
+
+    /**
+     * Expose the statistics of the sent events through JMX, replacing the ones of a previous instance.
+     */
+    private void registerStatistics()
+    {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(JGroupsStatistics.OBJECT_NAME);
+            if (mbs.isRegistered(name)) {
+                mbs.unregisterMBean(name);
+            }
+            mbs.registerMBean(new JGroupsStatistics(this), name);
+        } catch (Exception e) {
+            this.logger.warn("Failed to register the remote events statistics against the JMX server", e);
+        }
+    }
+
     @Override
     public void send(RemoteEventData remoteEvent)
     {
-        this.logger.debug("Send JGroups remote event [" + remoteEvent + "]");
+        this.logger.debug("Send JGroups remote event [{}]", remoteEvent);
+
+        if (!this.compact) {
+            sendSerializedMessage(remoteEvent);
+        } else if (this.batchDelay <= 0) {
+            sendMessage(Collections.singletonList(remoteEvent));
+        } else {
+            synchronized (this.pendingEvents) {
+                if (remoteEvent.getEvent() instanceof CoalescableEvent) {
+                    coalesce(remoteEvent);
+                }
+
+                this.pendingEvents.add(remoteEvent);
+
+                if (this.pendingEvents.size() == this.batchSize) {
+                    // Don't wait for the batch delay but still send from the flush executor thread
+                    getFlushExecutor().execute(this.flushTask);
+                    this.flushScheduled = true;
+                } else if (!this.flushScheduled) {
+                    getFlushExecutor().schedule(this.flushTask, this.batchDelay, TimeUnit.MILLISECONDS);
+                    this.flushScheduled = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove the pending event replaced by the passed one.
+     * 
+     * @param remoteEvent the new event
+     */
+    private void coalesce(RemoteEventData remoteEvent)
+    {
+        for (Iterator<RemoteEventData> it = this.pendingEvents.iterator(); it.hasNext();) {
+            RemoteEventData pendingEvent = it.next();
+
+            if (remoteEvent.getEvent().equals(pendingEvent.getEvent())
+                && (remoteEvent.getSource() == null ? pendingEvent.getSource() == null : remoteEvent.getSource()
+                    .equals(pendingEvent.getSource()))) {
+                it.remove();
+                this.coalescedEvents.incrementAndGet();
+
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return the executor used to send the pending events after the batch delay
+     */
+    private ScheduledExecutorService getFlushExecutor()
+    {
+        // Called while holding the pendingEvents lock
+        if (this.flushExecutor == null) {
+            this.flushExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "XWiki JGroups remote events sender");
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+            });
+        }
+
+        return this.flushExecutor;
+    }
+
+    /**
+     * Send all the pending events in one message.
+     */
+    private void flush()
+    {
+        List<RemoteEventData> remoteEvents;
+        synchronized (this.pendingEvents) {
+            this.flushScheduled = false;
 
-        // Send the message to the whole group
-        Message message = new Message(null, null, remoteEvent);
+            if (this.pendingEvents.isEmpty()) {
+                return;
+            }
+
+            remoteEvents = new ArrayList<RemoteEventData>(this.pendingEvents);
+            this.pendingEvents.clear();
+        }
+
+        sendMessage(remoteEvents);
+    }
+
+    /**
+     * Send all the pending events and wait until they are sent.
+     */
+    private void flushAndWait()
+    {
+        ScheduledExecutorService executor;
+        synchronized (this.pendingEvents) {
+            executor = this.flushExecutor;
+        }
+
+        if (executor != null) {
+            // Go through the flush executor to send the events after the ones being sent
+            try {
+                executor.submit(this.flushTask).get();
+            } catch (Exception e) {
+                this.logger.warn("Failed to send the pending remote events", e);
+            }
+        }
+    }
+
+    /**
+     * Send events to the whole group in one message.
+     * 
+     * @param remoteEvents the events to send
+     */
+    private void sendMessage(List<RemoteEventData> remoteEvents)
+    {
+        byte[] buffer;
+        try {
+            buffer = this.codec.encode(remoteEvents);
+        } catch (Exception e) {
+            this.logger.error("Failed to encode remote events [{}]", remoteEvents, e);
+
+            return;
+        }
+
+        this.sentEvents.addAndGet(remoteEvents.size());
+
+        sendToChannels(new Message(null, null, buffer), remoteEvents);
+    }
+
+    /**
+     * Send an event to the whole group in its own Java serialized message.
+     * 
+     * @param remoteEvent the event to send
+     */
+    private void sendSerializedMessage(RemoteEventData remoteEvent)
+    {
+        this.sentEvents.incrementAndGet();
+
+        sendToChannels(new Message(null, null, remoteEvent), remoteEvent);
+    }
+
+    /**
+     * Send a message to all the channels.
+     * 
+     * @param message the message to send
+     * @param content the content of the message, for logging
+     */
+    private void sendToChannels(Message message, Object content)
+    {
+        this.sentMessages.incrementAndGet();
 
         // Send message to JGroups channels
         for (Map.Entry<String, JChannel> entry : this.channels.entrySet()) {
             try {
                 entry.getValue().send(message);
             } catch (Exception e) {
-                this.logger.error("Failed to send message [" + remoteEvent + "] to the channel [" + entry.getKey()
-                    + "]", e);
+                this.logger.error("Failed to send message [" + content + "] to the channel [" + entry.getKey() + "]",
+                    e);
             }
         }
     }
 
+    /**
+     * @return the number of messages sent
+     * @see JGroupsStatistics
+     * @since 5.4M1
+     */
+    public long getSentMessageCount()
+    {
+        return this.sentMessages.get();
+    }
+
+    /**
+     * @return the number of events sent
+     * @since 5.4M1
+     */
+    public long getSentEventCount()
+    {
+        return this.sentEvents.get();
+    }
+
+    /**
+     * @return the number of events which have not been sent because a more recent equal event replaced them
+     * @since 5.4M1
+     */
+    public long getCoalescedEventCount()
+    {
+        return this.coalescedEvents.get();
+    }
+
     @Override
     public void startChannel(String channelId) throws RemoteEventException
     {
@@ -136,6 +454,9 @@ public void stopChannel(String channelId) throws RemoteEventException
             throw new RemoteEventException(MessageFormat.format("Channel [{0}] is not started", channelId));
         }
 
+        // Make sure the channel receives the events sent before it's stopped
+        flushAndWait();
+
         channel.close();
 
         this.channels.remove(channelId);
@@ -217,6 +538,15 @@ private ProtocolStackConfigurator loadChannelConfiguration(String channelId) thr
     @Override
     public void stopAllChannels() throws RemoteEventException
     {
+        flushAndWait();
+
+        synchronized (this.pendingEvents) {
+            if (this.flushExecutor != null) {
+                this.flushExecutor.shutdownNow();
+                this.flushExecutor = null;
+            }
+        }
+
         for (Map.Entry<String, JChannel> channelEntry : this.channels.entrySet()) {
             channelEntry.getValue().close();
         }
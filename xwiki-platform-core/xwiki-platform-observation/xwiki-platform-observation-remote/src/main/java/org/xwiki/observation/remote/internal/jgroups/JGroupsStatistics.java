@@ -0,0 +1,65 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.observation.remote.internal.jgroups;
+
+/**
+ * Expose the statistics of a {@link JGroupsNetworkAdapter} through JMX.
+ * 
+ * @version $Id$
+ * @since 5.4M1
+ */
+public class JGroupsStatistics implements JGroupsStatisticsMBean
+{
+    /**
+     * The name under which the statistics are registered against the JMX server.
+     */
+    public static final String OBJECT_NAME = "org.xwiki:type=RemoteObservation,name=jgroups";
+
+    /**
+     * The network adapter.
+     */
+    private final JGroupsNetworkAdapter networkAdapter;
+
+    /**
+     * @param networkAdapter the network adapter
+     */
+    public JGroupsStatistics(JGroupsNetworkAdapter networkAdapter)
+    {
+        this.networkAdapter = networkAdapter;
+    }
+
+    @Override
+    public long getSentMessageCount()
+    {
+        return this.networkAdapter.getSentMessageCount();
+    }
+
+    @Override
+    public long getSentEventCount()
+    {
+        return this.networkAdapter.getSentEventCount();
+    }
+
+    @Override
+    public long getCoalescedEventCount()
+    {
+        return this.networkAdapter.getCoalescedEventCount();
+    }
+}
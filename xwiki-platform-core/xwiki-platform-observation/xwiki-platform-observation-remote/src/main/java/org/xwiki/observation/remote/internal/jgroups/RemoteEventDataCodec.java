@@ -0,0 +1,584 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.observation.remote.internal.jgroups;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.event.AbstractFilterableEvent;
+import org.xwiki.observation.event.filter.FixedNameEventFilter;
+import org.xwiki.observation.remote.RemoteEventData;
+
+/**
+ * Compact binary encoding of a batch of {@link RemoteEventData}.
+ * <p>
+ * The message starts with a magic number and a format version followed by the number of events. Each event is made of
+ * three tagged values (event, source and data). Strings are written only once per message and then referenced by
+ * index, filterable events with a fixed name filter are written as their class name and filter, and anything else
+ * falls back on standard Java serialization.
+ * 
+ * @version $Id$
+ * @since 5.4M1
+ */
+@Component(roles = RemoteEventDataCodec.class)
+@Singleton
+public class RemoteEventDataCodec
+{
+    /**
+     * The first bytes of an encoded message, used to distinguish it from a Java serialized {@link RemoteEventData}.
+     */
+    private static final byte[] MAGIC = {'X', 'R', 'E'};
+
+    /**
+     * The version of the format. Should be incremented each time the format changes in an incompatible way.
+     */
+    private static final byte VERSION = 1;
+
+    /**
+     * The encoding of the strings.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte TAG_NULL = 0;
+
+    private static final byte TAG_STRING = 1;
+
+    private static final byte TAG_STRING_REFERENCE = 2;
+
+    private static final byte TAG_TRUE = 3;
+
+    private static final byte TAG_FALSE = 4;
+
+    private static final byte TAG_INTEGER = 5;
+
+    private static final byte TAG_LONG = 6;
+
+    private static final byte TAG_MAP = 7;
+
+    private static final byte TAG_LIST = 8;
+
+    private static final byte TAG_FILTERABLE_EVENT = 9;
+
+    private static final byte TAG_SERIALIZED = 10;
+
+    /**
+     * Indicate for each filterable event class if it can be written as its class name and filter.
+     */
+    private final Map<Class< ? >, Boolean> compactEventClasses = new ConcurrentHashMap<Class< ? >, Boolean>();
+
+    /**
+     * The state of the encoding of one message.
+     * 
+     * @version $Id$
+     */
+    private class Encoder
+    {
+        /**
+         * The strings already written in the message and their index.
+         */
+        private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+        /**
+         * The stream to write to.
+         */
+        private final DataOutputStream output;
+
+        /**
+         * @param output the stream to write to
+         */
+        Encoder(DataOutputStream output)
+        {
+            this.output = output;
+        }
+
+        /**
+         * @param value the value to write
+         * @throws IOException when failing to write the value
+         */
+        void writeValue(Object value) throws IOException
+        {
+            if (value == null) {
+                this.output.writeByte(TAG_NULL);
+            } else if (value instanceof String) {
+                writeString((String) value);
+            } else if (value instanceof Boolean) {
+                this.output.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+            } else if (value instanceof Integer) {
+                this.output.writeByte(TAG_INTEGER);
+                this.output.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                this.output.writeByte(TAG_LONG);
+                this.output.writeLong((Long) value);
+            } else if (value.getClass() == HashMap.class && hasStringKeys((Map< ? , ? >) value)) {
+                writeMap((Map<String, ? >) value);
+            } else if (value.getClass() == ArrayList.class) {
+                writeList((List< ? >) value);
+            } else if (isCompactEvent(value)) {
+                this.output.writeByte(TAG_FILTERABLE_EVENT);
+                writeString(value.getClass().getName());
+                writeString(((AbstractFilterableEvent) value).getEventFilter().getFilter());
+            } else {
+                writeSerialized(value);
+            }
+        }
+
+        /**
+         * @param value the string to write
+         * @throws IOException when failing to write the string
+         */
+        private void writeString(String value) throws IOException
+        {
+            Integer index = this.strings.get(value);
+
+            if (index != null) {
+                this.output.writeByte(TAG_STRING_REFERENCE);
+                writeSize(index);
+            } else {
+                this.strings.put(value, this.strings.size());
+                this.output.writeByte(TAG_STRING);
+                byte[] bytes = value.getBytes(UTF8);
+                writeSize(bytes.length);
+                this.output.write(bytes);
+            }
+        }
+
+        /**
+         * @param map the map to write
+         * @throws IOException when failing to write the map
+         */
+        private void writeMap(Map<String, ? > map) throws IOException
+        {
+            this.output.writeByte(TAG_MAP);
+            writeSize(map.size());
+            for (Map.Entry<String, ? > entry : map.entrySet()) {
+                writeString(entry.getKey());
+                writeValue(entry.getValue());
+            }
+        }
+
+        /**
+         * @param list the list to write
+         * @throws IOException when failing to write the list
+         */
+        private void writeList(List< ? > list) throws IOException
+        {
+            this.output.writeByte(TAG_LIST);
+            writeSize(list.size());
+            for (Object element : list) {
+                writeValue(element);
+            }
+        }
+
+        /**
+         * @param value the value to serialize
+         * @throws IOException when failing to serialize the value
+         */
+        private void writeSerialized(Object value) throws IOException
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream objectOutput = new ObjectOutputStream(bytes);
+            objectOutput.writeObject(value);
+            objectOutput.close();
+
+            this.output.writeByte(TAG_SERIALIZED);
+            writeSize(bytes.size());
+            bytes.writeTo(this.output);
+        }
+
+        /**
+         * Write a positive integer using as few bytes as possible.
+         * 
+         * @param size the integer to write
+         * @throws IOException when failing to write the integer
+         */
+        void writeSize(int size) throws IOException
+        {
+            int value = size;
+            while ((value & ~0x7F) != 0) {
+                this.output.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            this.output.writeByte(value);
+        }
+    }
+
+    /**
+     * The state of the decoding of one message.
+     * 
+     * @version $Id$
+     */
+    private static class Decoder
+    {
+        /**
+         * The strings already read in the message, by index.
+         */
+        private final List<String> strings = new ArrayList<String>();
+
+        /**
+         * The stream to read from.
+         */
+        private final DataInputStream input;
+
+        /**
+         * @param input the stream to read from
+         */
+        Decoder(DataInputStream input)
+        {
+            this.input = input;
+        }
+
+        /**
+         * @return the read value
+         * @throws IOException when failing to read the value
+         */
+        Serializable readValue() throws IOException
+        {
+            byte tag = this.input.readByte();
+
+            switch (tag) {
+                case TAG_NULL:
+                    return null;
+                case TAG_TRUE:
+                    return Boolean.TRUE;
+                case TAG_FALSE:
+                    return Boolean.FALSE;
+                case TAG_INTEGER:
+                    return this.input.readInt();
+                case TAG_LONG:
+                    return this.input.readLong();
+                case TAG_MAP:
+                    return readMap();
+                case TAG_LIST:
+                    return readList();
+                case TAG_FILTERABLE_EVENT:
+                    return readEvent();
+                case TAG_SERIALIZED:
+                    return readSerialized();
+                default:
+                    return readString(tag);
+            }
+        }
+
+        /**
+         * @return the read string
+         * @throws IOException when failing to read the string
+         */
+        private String readString() throws IOException
+        {
+            return readString(this.input.readByte());
+        }
+
+        /**
+         * @param tag the tag of the value
+         * @return the read string
+         * @throws IOException when failing to read the string
+         */
+        private String readString(byte tag) throws IOException
+        {
+            if (tag == TAG_STRING) {
+                byte[] bytes = new byte[readSize()];
+                this.input.readFully(bytes);
+                String value = new String(bytes, UTF8);
+                this.strings.add(value);
+
+                return value;
+            } else if (tag == TAG_STRING_REFERENCE) {
+                int index = readSize();
+                if (index >= this.strings.size()) {
+                    throw new IOException("Invalid string reference [" + index + "]");
+                }
+
+                return this.strings.get(index);
+            }
+
+            throw new IOException("Unknown value tag [" + tag + "]");
+        }
+
+        /**
+         * @return the read map
+         * @throws IOException when failing to read the map
+         */
+        private HashMap<String, Serializable> readMap() throws IOException
+        {
+            int size = readSize();
+            HashMap<String, Serializable> map = new HashMap<String, Serializable>(size * 2);
+            for (int i = 0; i < size; ++i) {
+                String key = readString();
+                map.put(key, readValue());
+            }
+
+            return map;
+        }
+
+        /**
+         * @return the read list
+         * @throws IOException when failing to read the list
+         */
+        private ArrayList<Serializable> readList() throws IOException
+        {
+            int size = readSize();
+            ArrayList<Serializable> list = new ArrayList<Serializable>(size);
+            for (int i = 0; i < size; ++i) {
+                list.add(readValue());
+            }
+
+            return list;
+        }
+
+        /**
+         * @return the read event
+         * @throws IOException when failing to read the event
+         */
+        private Serializable readEvent() throws IOException
+        {
+            String className = readString();
+            String filter = readString();
+
+            try {
+                Class< ? > eventClass = Class.forName(className, false, getClassLoader());
+                if (!AbstractFilterableEvent.class.isAssignableFrom(eventClass)) {
+                    throw new IOException("Class [" + className + "] is not a filterable event");
+                }
+
+                return (Serializable) eventClass.getConstructor(String.class).newInstance(filter);
+            } catch (Exception e) {
+                throw new IOException("Failed to create event of type [" + className + "]", e);
+            }
+        }
+
+        /**
+         * @return the unserialized value
+         * @throws IOException when failing to unserialize the value
+         */
+        private Serializable readSerialized() throws IOException
+        {
+            byte[] bytes = new byte[readSize()];
+            this.input.readFully(bytes);
+
+            ObjectInputStream objectInput = new ContextObjectInputStream(new ByteArrayInputStream(bytes));
+            try {
+                return (Serializable) objectInput.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Failed to unserialize value", e);
+            } finally {
+                objectInput.close();
+            }
+        }
+
+        /**
+         * @return the read positive integer
+         * @throws IOException when failing to read the integer
+         */
+        int readSize() throws IOException
+        {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte b = this.input.readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+
+            throw new IOException("Malformed size");
+        }
+    }
+
+    /**
+     * Resolve classes with the context class loader to support events coming from extensions.
+     * 
+     * @version $Id$
+     */
+    private static class ContextObjectInputStream extends ObjectInputStream
+    {
+        /**
+         * @param input the stream to read from
+         * @throws IOException when failing to read the stream header
+         */
+        ContextObjectInputStream(InputStream input) throws IOException
+        {
+            super(input);
+        }
+
+        @Override
+        protected Class< ? > resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException
+        {
+            try {
+                return Class.forName(desc.getName(), false, getClassLoader());
+            } catch (ClassNotFoundException e) {
+                return super.resolveClass(desc);
+            }
+        }
+    }
+
+    /**
+     * @return the class loader to use to find event classes
+     */
+    private static ClassLoader getClassLoader()
+    {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+
+        return classLoader != null ? classLoader : RemoteEventDataCodec.class.getClassLoader();
+    }
+
+    /**
+     * @param map the map to check
+     * @return true if all the keys of the passed map are strings
+     */
+    private static boolean hasStringKeys(Map< ? , ? > map)
+    {
+        for (Object key : map.keySet()) {
+            if (!(key instanceof String)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param value the value to check
+     * @return true if the value is an event fully described by its class and the name of its filter
+     */
+    private boolean isCompactEvent(Object value)
+    {
+        if (value instanceof AbstractFilterableEvent
+            && ((AbstractFilterableEvent) value).getEventFilter() instanceof FixedNameEventFilter
+            && ((AbstractFilterableEvent) value).getEventFilter().getFilter() != null) {
+            Boolean compact = this.compactEventClasses.get(value.getClass());
+
+            if (compact == null) {
+                // Make sure the event built back from its filter is the same
+                try {
+                    String filter = ((AbstractFilterableEvent) value).getEventFilter().getFilter();
+                    compact = value.equals(value.getClass().getConstructor(String.class).newInstance(filter));
+                } catch (Exception e) {
+                    compact = false;
+                }
+
+                this.compactEventClasses.put(value.getClass(), compact);
+            }
+
+            return compact;
+        }
+
+        return false;
+    }
+
+    /**
+     * @param buffer the message buffer
+     * @param offset the offset of the message in the buffer
+     * @param length the length of the message
+     * @return true if the message has been produced by {@link #encode(List)}
+     */
+    public boolean isEncoded(byte[] buffer, int offset, int length)
+    {
+        if (buffer == null || length < MAGIC.length + 1) {
+            return false;
+        }
+
+        for (int i = 0; i < MAGIC.length; ++i) {
+            if (buffer[offset + i] != MAGIC[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param remoteEvents the events to encode
+     * @return the encoded message
+     * @throws IOException when failing to encode the events
+     */
+    public byte[] encode(List<RemoteEventData> remoteEvents) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128 * remoteEvents.size());
+        DataOutputStream output = new DataOutputStream(bytes);
+
+        output.write(MAGIC);
+        output.writeByte(VERSION);
+
+        Encoder encoder = new Encoder(output);
+        encoder.writeSize(remoteEvents.size());
+        for (RemoteEventData remoteEvent : remoteEvents) {
+            encoder.writeValue(remoteEvent.getEvent());
+            encoder.writeValue(remoteEvent.getSource());
+            encoder.writeValue(remoteEvent.getData());
+        }
+
+        output.flush();
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param buffer the message buffer
+     * @param offset the offset of the message in the buffer
+     * @param length the length of the message
+     * @return the decoded events
+     * @throws IOException when failing to decode the message
+     */
+    public List<RemoteEventData> decode(byte[] buffer, int offset, int length) throws IOException
+    {
+        if (!isEncoded(buffer, offset, length)) {
+            throw new IOException("The message is not a remote events message");
+        }
+
+        DataInputStream input =
+            new DataInputStream(new ByteArrayInputStream(buffer, offset + MAGIC.length, length - MAGIC.length));
+
+        byte version = input.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported remote events message version [" + version + "]");
+        }
+
+        Decoder decoder = new Decoder(input);
+        int size = decoder.readSize();
+        List<RemoteEventData> remoteEvents = new ArrayList<RemoteEventData>(size);
+        for (int i = 0; i < size; ++i) {
+            RemoteEventData remoteEvent = new RemoteEventData();
+            remoteEvent.setEvent(decoder.readValue());
+            remoteEvent.setSource(decoder.readValue());
+            remoteEvent.setData(decoder.readValue());
+
+            remoteEvents.add(remoteEvent);
+        }
+
+        return remoteEvents;
+    }
+}
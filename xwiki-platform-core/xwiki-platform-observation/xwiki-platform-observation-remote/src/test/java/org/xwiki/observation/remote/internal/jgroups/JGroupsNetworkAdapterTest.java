@@ -0,0 +1,195 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.observation.remote.internal.jgroups;
+
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.helpers.NOPLogger;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.observation.event.AbstractFilterableEvent;
+import org.xwiki.observation.event.Event;
+import org.xwiki.observation.remote.CoalescableEvent;
+import org.xwiki.observation.remote.RemoteEventData;
+import org.xwiki.observation.remote.test.TestEvent;
+
+/**
+ * Validate the grouping of the events in {@link JGroupsNetworkAdapter}.
+ * 
+ * @version $Id$
+ */
+public class JGroupsNetworkAdapterTest
+{
+    public static class TestCoalescableEvent extends AbstractFilterableEvent implements CoalescableEvent
+    {
+        private static final long serialVersionUID = 1L;
+
+        public TestCoalescableEvent(String name)
+        {
+            super(name);
+        }
+    }
+
+    private ConfigurationSource configuration;
+
+    private JGroupsNetworkAdapter networkAdapter;
+
+    /**
+     * The events encoded in each message.
+     */
+    private final List<List<RemoteEventData>> messages = new ArrayList<List<RemoteEventData>>();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.configuration = mock(ConfigurationSource.class);
+        when(this.configuration.getProperty(eq("observation.remote.jgroups.compact"), anyBoolean())).thenReturn(true);
+        // Only send the pending events when explicitly flushed
+        when(this.configuration.getProperty(eq("observation.remote.jgroups.batch.delay"), anyLong())).thenReturn(
+            60000L);
+        when(this.configuration.getProperty(eq("observation.remote.jgroups.batch.size"), anyInt())).thenReturn(100);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        this.networkAdapter.stopAllChannels();
+    }
+
+    private void initializeNetworkAdapter() throws Exception
+    {
+        this.networkAdapter = new JGroupsNetworkAdapter();
+
+        ReflectionUtils.setFieldValue(this.networkAdapter, "logger", NOPLogger.NOP_LOGGER);
+        ReflectionUtils.setFieldValue(this.networkAdapter, "configuration", this.configuration);
+        ReflectionUtils.setFieldValue(this.networkAdapter, "codec", new RemoteEventDataCodec()
+        {
+            @Override
+            public byte[] encode(List<RemoteEventData> remoteEvents) throws IOException
+            {
+                messages.add(new ArrayList<RemoteEventData>(remoteEvents));
+
+                return super.encode(remoteEvents);
+            }
+        });
+
+        this.networkAdapter.initialize();
+    }
+
+    private RemoteEventData send(Event event, Serializable source)
+    {
+        RemoteEventData remoteEvent = new RemoteEventData();
+        remoteEvent.setEvent(event);
+        remoteEvent.setSource(source);
+
+        this.networkAdapter.send(remoteEvent);
+
+        return remoteEvent;
+    }
+
+    @Test
+    public void coalescableEventReplacesThePendingEqualEvent() throws Exception
+    {
+        initializeNetworkAdapter();
+
+        send(new TestCoalescableEvent("A"), "en");
+        RemoteEventData eventB = send(new TestCoalescableEvent("B"), "en");
+        RemoteEventData eventA = send(new TestCoalescableEvent("A"), "en");
+        // Different source
+        RemoteEventData eventAfr = send(new TestCoalescableEvent("A"), "fr");
+        // Not coalescable
+        RemoteEventData event1 = send(new TestEvent(), "en");
+        RemoteEventData event2 = send(new TestEvent(), "en");
+
+        this.networkAdapter.stopAllChannels();
+
+        Assert.assertEquals(1, this.messages.size());
+        Assert.assertEquals(Arrays.asList(eventB, eventA, eventAfr, event1, event2), this.messages.get(0));
+
+        Assert.assertEquals(1, this.networkAdapter.getSentMessageCount());
+        Assert.assertEquals(5, this.networkAdapter.getSentEventCount());
+        Assert.assertEquals(1, this.networkAdapter.getCoalescedEventCount());
+    }
+
+    @Test
+    public void fullBatchIsSentWithoutWaitingForTheDelay() throws Exception
+    {
+        when(this.configuration.getProperty(eq("observation.remote.jgroups.batch.size"), anyInt())).thenReturn(2);
+        initializeNetworkAdapter();
+
+        send(new TestEvent(), "1");
+        send(new TestEvent(), "2");
+
+        for (int i = 0; i < 100 && this.networkAdapter.getSentMessageCount() == 0; ++i) {
+            Thread.sleep(100);
+        }
+
+        Assert.assertEquals(1, this.networkAdapter.getSentMessageCount());
+        Assert.assertEquals(2, this.networkAdapter.getSentEventCount());
+    }
+
+    @Test
+    public void serializedFormatSendsEachEventInItsOwnMessage() throws Exception
+    {
+        when(this.configuration.getProperty(eq("observation.remote.jgroups.compact"), anyBoolean())).thenReturn(false);
+        initializeNetworkAdapter();
+
+        send(new TestCoalescableEvent("A"), "en");
+        send(new TestCoalescableEvent("A"), "en");
+
+        Assert.assertTrue(this.messages.isEmpty());
+        Assert.assertEquals(2, this.networkAdapter.getSentMessageCount());
+        Assert.assertEquals(2, this.networkAdapter.getSentEventCount());
+        Assert.assertEquals(0, this.networkAdapter.getCoalescedEventCount());
+    }
+
+    @Test
+    public void statisticsAreExposedThroughJMX() throws Exception
+    {
+        initializeNetworkAdapter();
+
+        send(new TestCoalescableEvent("A"), "en");
+        send(new TestCoalescableEvent("A"), "en");
+        this.networkAdapter.stopAllChannels();
+
+        ObjectName name = new ObjectName(JGroupsStatistics.OBJECT_NAME);
+        Assert.assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "SentMessageCount"));
+        Assert.assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "SentEventCount"));
+        Assert.assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "CoalescedEventCount"));
+    }
+}
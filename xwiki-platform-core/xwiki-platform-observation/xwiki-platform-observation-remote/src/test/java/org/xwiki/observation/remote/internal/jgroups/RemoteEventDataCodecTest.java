@@ -0,0 +1,155 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.observation.remote.internal.jgroups;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.observation.event.filter.RegexEventFilter;
+import org.xwiki.observation.remote.RemoteEventData;
+import org.xwiki.observation.remote.test.TestEvent;
+import org.xwiki.observation.remote.test.TestFilterableEvent;
+
+/**
+ * Validate {@link RemoteEventDataCodec}.
+ * 
+ * @version $Id$
+ */
+public class RemoteEventDataCodecTest
+{
+    private RemoteEventDataCodec codec = new RemoteEventDataCodec();
+
+    private RemoteEventData createDocumentEvent(int index)
+    {
+        HashMap<String, Serializable> source = new HashMap<String, Serializable>();
+        source.put("docname", "wiki:Space.Page" + index);
+        source.put("docversion", "1." + index);
+        source.put("doclanguage", "");
+
+        HashMap<String, Serializable> data = new HashMap<String, Serializable>();
+        data.put("contextwiki", "wiki");
+        data.put("contextuser", "XWiki.Admin");
+
+        RemoteEventData remoteEvent = new RemoteEventData();
+        remoteEvent.setEvent(new TestFilterableEvent("wiki:Space.Page" + index));
+        remoteEvent.setSource(source);
+        remoteEvent.setData(data);
+
+        return remoteEvent;
+    }
+
+    private List<RemoteEventData> roundTrip(List<RemoteEventData> remoteEvents) throws Exception
+    {
+        byte[] buffer = this.codec.encode(remoteEvents);
+
+        Assert.assertTrue(this.codec.isEncoded(buffer, 0, buffer.length));
+
+        return this.codec.decode(buffer, 0, buffer.length);
+    }
+
+    private void assertEquals(RemoteEventData expected, RemoteEventData actual)
+    {
+        Assert.assertEquals(expected.getEvent(), actual.getEvent());
+        Assert.assertEquals(expected.getSource(), actual.getSource());
+        Assert.assertEquals(expected.getData(), actual.getData());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        RemoteEventData documentEvent = createDocumentEvent(0);
+
+        RemoteEventData serializableEvent = new RemoteEventData();
+        serializableEvent.setEvent(new TestEvent());
+        serializableEvent.setSource(new ArrayList<Serializable>(Arrays.<Serializable>asList("a", 1, 2L, true, null)));
+        serializableEvent.setData(new StringBuilder("serialized"));
+
+        RemoteEventData regexEvent = new RemoteEventData();
+        regexEvent.setEvent(new TestFilterableEvent(new RegexEventFilter(".*")));
+
+        List<RemoteEventData> result = roundTrip(Arrays.asList(documentEvent, serializableEvent, regexEvent));
+
+        Assert.assertEquals(3, result.size());
+        assertEquals(documentEvent, result.get(0));
+        Assert.assertEquals(serializableEvent.getEvent(), result.get(1).getEvent());
+        Assert.assertEquals(serializableEvent.getSource(), result.get(1).getSource());
+        Assert.assertEquals("serialized", result.get(1).getData().toString());
+        Assert.assertEquals(RegexEventFilter.class,
+            ((TestFilterableEvent) result.get(2).getEvent()).getEventFilter().getClass());
+    }
+
+    @Test
+    public void testLongString() throws Exception
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 70000; ++i) {
+            builder.append('é');
+        }
+
+        RemoteEventData remoteEvent = new RemoteEventData();
+        remoteEvent.setEvent(new TestEvent());
+        remoteEvent.setSource(builder.toString());
+
+        Assert.assertEquals(builder.toString(), roundTrip(Arrays.asList(remoteEvent)).get(0).getSource());
+    }
+
+    @Test
+    public void testIsEncoded()
+    {
+        Assert.assertFalse(this.codec.isEncoded(null, 0, 0));
+        Assert.assertFalse(this.codec.isEncoded(new byte[] {1, 2, 3, 4}, 0, 4));
+    }
+
+    /**
+     * Compare the size of a batch of document events with the size of the same events sent one by one with Java
+     * serialization.
+     */
+    @Test
+    public void testSmallerThanSerialization() throws Exception
+    {
+        List<RemoteEventData> remoteEvents = new ArrayList<RemoteEventData>();
+        int serializedSize = 0;
+        for (int i = 0; i < 100; ++i) {
+            RemoteEventData remoteEvent = createDocumentEvent(i);
+            remoteEvents.add(remoteEvent);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream output = new ObjectOutputStream(bytes);
+            output.writeObject(remoteEvent);
+            output.close();
+            serializedSize += bytes.size();
+        }
+
+        int encodedSize = this.codec.encode(remoteEvents).length;
+
+        Assert.assertTrue("Encoded size [" + encodedSize + "] is not 5 times smaller than serialized size ["
+            + serializedSize + "]", encodedSize * 5 < serializedSize);
+
+        // Each event alone should also be smaller
+        Assert.assertTrue(this.codec.encode(remoteEvents.subList(0, 1)).length * 2 < serializedSize / 100);
+    }
+}
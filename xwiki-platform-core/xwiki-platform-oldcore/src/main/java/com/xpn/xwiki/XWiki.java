@@ -39,6 +39,7 @@
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
@@ -141,6 +142,7 @@
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.doc.XWikiDocument.XWikiAttachmentToRemove;
 import com.xpn.xwiki.doc.XWikiDocumentArchive;
+import com.xpn.xwiki.internal.cache.rendering.RenderingCache;
 import com.xpn.xwiki.internal.event.XObjectAddedEvent;
 import com.xpn.xwiki.internal.event.XObjectDeletedEvent;
 import com.xpn.xwiki.internal.event.XObjectEvent;
@@ -1349,6 +1351,8 @@ public XWikiDocument getDocument(EntityReference reference, XWikiContext context
 
     public XWikiDocument getDocument(XWikiDocument doc, XWikiContext context) throws XWikiException
     {
+        addRenderingDependency(doc.getDocumentReference(), context);
+
         String currentWiki = context.getDatabase();
         try {
             context.setDatabase(doc.getDocumentReference().getWikiReference().getName());
@@ -1404,6 +1408,46 @@ public XWikiDocument getDocument(DocumentReference reference, XWikiContext conte
         return getDocument(doc, context);
     }
 
+    /**
+     * Loads several documents at once, which is much faster than calling
+     * {@link #getDocument(DocumentReference, XWikiContext)} for each of them when most of them are not in the cache.
+     * 
+     * @param references the references of the documents to load, the locale of a reference indicates the translation
+     *            to load
+     * @param context the XWiki context
+     * @return the documents, in the same order as the passed references (documents which don't exist are returned as
+     *         new documents)
+     * @throws XWikiException when failing to load the documents
+     * @since 5.4M1
+     */
+    public List<XWikiDocument> getDocuments(Collection<DocumentReference> references, XWikiContext context)
+        throws XWikiException
+    {
+        for (DocumentReference reference : references) {
+            addRenderingDependency(reference, context);
+        }
+
+        return getStore().loadXWikiDocs(references, context);
+    }
+
+    /**
+     * Indicate to the renderings in progress that will be cached that their result depends on the passed document, so
+     * that the cached results are invalidated when it's modified. The documents loaded with
+     * {@link #getDocument(DocumentReference, XWikiContext)} are automatically added, this is meant for the documents
+     * used without being loaded (wiki macros, etc.).
+     * 
+     * @param reference the reference of the document used by the renderings in progress
+     * @param context the XWiki context
+     * @since 5.4M1
+     */
+    public void addRenderingDependency(DocumentReference reference, XWikiContext context)
+    {
+        // Only lookup the rendering cache when a rendering that will be cached is in progress
+        if (context.get(RenderingCache.CONTEXT_DEPENDENCIES) != null) {
+            Utils.getComponent(RenderingCache.class).addDependency(reference, context);
+        }
+    }
+
     /**
      * @deprecated since 2.2M1 use {@link #getDocument(DocumentReference, XWikiContext)} instead
      */
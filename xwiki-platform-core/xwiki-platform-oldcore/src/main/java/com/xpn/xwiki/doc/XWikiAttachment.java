@@ -27,8 +27,9 @@
 import java.util.Date;
 import java.util.List;
 
-import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Base64InputStream;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.ReaderInputStream;
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.tika.Tika;
@@ -504,8 +505,15 @@ public void fromXML(Element docel) throws XWikiException
         Element contentel = docel.element("content");
         if (contentel != null) {
             String base64content = contentel.getText();
-            byte[] content = Base64.decodeBase64(base64content.getBytes());
-            setContent(content);
+            // Decode the content while copying it to the attachment storage instead of decoding it in memory first.
+            // Note that the whole base64 encoded content is still held in memory as the text of the XML element, since
+            // the XML of the document is parsed as a whole.
+            try {
+                setContent(new Base64InputStream(new ReaderInputStream(new StringReader(base64content), "US-ASCII")));
+            } catch (IOException e) {
+                throw new XWikiException(XWikiException.MODULE_XWIKI_DOC, XWikiException.ERROR_DOC_XML_PARSING,
+                    "Failed to read the content of attachment [" + getFilename() + "]", e);
+            }
         }
         Element archiveel = docel.element("versions");
         if (archiveel != null) {
@@ -143,6 +143,7 @@
 import com.xpn.xwiki.doc.rcs.XWikiRCSNodeInfo;
 import com.xpn.xwiki.internal.AbstractNotifyOnUpdateList;
 import com.xpn.xwiki.internal.cache.rendering.RenderingCache;
+import com.xpn.xwiki.internal.cache.xdom.XDOMCache;
 import com.xpn.xwiki.internal.merge.MergeUtils;
 import com.xpn.xwiki.internal.xml.DOMXMLWriter;
 import com.xpn.xwiki.internal.xml.XMLWriter;
@@ -540,6 +541,12 @@ public void onUpdate()
      */
     private RenderingCache renderingCache;
 
+    /**
+     * Used to avoid parsing again the same content. Do not inject the component here to avoid any simple new
+     * XWikiDocument to cause many useless initialization.
+     */
+    private XDOMCache xdomCache;
+
     /**
      * Used to display the title and the content of this document. Do not inject the component here to avoid any simple
      * new XWikiDocument to cause many useless initialization, in particular, during initialization of the stub context
@@ -960,6 +967,18 @@ private RenderingCache getRenderingCache()
         return this.renderingCache;
     }
 
+    /**
+     * @return the cache of parsed contents or {@code null} if it's not available (e.g. in some tests)
+     */
+    private XDOMCache getXDOMCache()
+    {
+        if (this.xdomCache == null && Utils.getComponentManager() != null
+            && Utils.getComponentManager().hasComponent(XDOMCache.class)) {
+            this.xdomCache = Utils.getComponent((Type) XDOMCache.class);
+        }
+        return this.xdomCache;
+    }
+
     /**
      * @return the configured document displayer
      */
@@ -4796,7 +4815,7 @@ public Set<String> getUniqueLinkedPages(XWikiContext context)
             if (is10Syntax()) {
                 pageNames = getUniqueLinkedPages10(context);
             } else {
-                XDOM dom = getXDOM();
+                XDOM dom = getReadOnlyXDOM();
 
                 List<LinkBlock> linkBlocks =
                     dom.getBlocks(new ClassBlockMatcher(LinkBlock.class), Block.Axes.DESCENDANT);
@@ -5041,7 +5060,7 @@ public List<String> getIncludedPages(XWikiContext context)
             return getIncludedPagesForXWiki10Syntax(getContent(), context);
         } else {
             // Find all include macros listed on the page
-            XDOM dom = getXDOM();
+            XDOM dom = getReadOnlyXDOM();
 
             List<String> result = new ArrayList<String>();
             List<MacroBlock> macroBlocks =
@@ -6508,7 +6527,7 @@ public String getDefaultEditMode(XWikiContext context) throws XWikiException
             // Find all include macros and extract the document names
             // TODO: Is there a good way not to hardcode the macro name? The macro itself shouldn't know
             // its own name since it's a deployment time concern.
-            for (Block macroBlock : getXDOM().getBlocks(new MacroBlockMatcher("include"), Axes.CHILD)) {
+            for (Block macroBlock : getReadOnlyXDOM().getBlocks(new MacroBlockMatcher("include"), Axes.CHILD)) {
                 String documentName = macroBlock.getParameter("document");
                 if (documentName != null) {
                     // Resolve the document name into a valid Reference
@@ -7234,7 +7253,7 @@ public List<DocumentSection> getSections() throws XWikiException
             return getSections10();
         } else {
             List<DocumentSection> splitSections = new ArrayList<DocumentSection>();
-            List<HeaderBlock> headers = getFilteredHeaders();
+            List<HeaderBlock> headers = getFilteredHeaders(getReadOnlyXDOM());
 
             int sectionNumber = 1;
             for (HeaderBlock header : headers) {
@@ -7244,9 +7263,10 @@ public List<DocumentSection> getSections() throws XWikiException
                 // Need to do the same thing than 1.0 content here
                 String documentSectionLevel = StringUtils.repeat("1.", header.getLevel().getAsInt() - 1) + "1";
 
+                // Work on a copy of the header since creating a new XDOM modifies the parent of its children
                 DocumentSection docSection =
                     new DocumentSection(sectionNumber++, documentSectionIndex, documentSectionLevel, renderXDOM(
-                        new XDOM(header.getChildren()), getSyntax()));
+                        new XDOM(header.clone().getChildren()), getSyntax()));
                 splitSections.add(docSection);
             }
 
@@ -7276,9 +7296,10 @@ private XWikiContext getXWikiContext()
     /**
      * Filter the headers from a document XDOM based on xwiki.section.depth property from xwiki.cfg file.
      * 
+     * @param xdom the XDOM of the document
      * @return the filtered headers
      */
-    private List<HeaderBlock> getFilteredHeaders()
+    private List<HeaderBlock> getFilteredHeaders(XDOM xdom)
     {
         List<HeaderBlock> filteredHeaders = new ArrayList<HeaderBlock>();
 
@@ -7316,7 +7337,6 @@ private List<HeaderBlock> getFilteredHeaders()
         //
         // Which obviously is not correct...
 
-        final XDOM xdom = getXDOM();
         if (!xdom.getChildren().isEmpty()) {
             Block currentBlock = xdom.getChildren().get(0);
             while (currentBlock != null) {
@@ -7403,10 +7423,11 @@ public String getContentOfSection(int sectionNumber) throws XWikiException
         if (is10Syntax()) {
             content = getContentOfSection10(sectionNumber);
         } else {
-            List<HeaderBlock> headers = getFilteredHeaders();
+            List<HeaderBlock> headers = getFilteredHeaders(getReadOnlyXDOM());
 
             if (headers.size() >= sectionNumber) {
-                SectionBlock section = headers.get(sectionNumber - 1).getSection();
+                // Work on a copy of the section since creating a new XDOM modifies the parent of its children
+                Block section = headers.get(sectionNumber - 1).getSection().clone();
                 content = renderXDOM(new XDOM(Collections.<Block> singletonList(section)), getSyntax());
             }
         }
@@ -7468,7 +7489,7 @@ public String updateDocumentSection(int sectionNumber, String newSectionContent)
             content = updateDocumentSection10(sectionNumber, newSectionContent);
         } else {
             // Get the current section block
-            HeaderBlock header = getFilteredHeaders().get(sectionNumber - 1);
+            HeaderBlock header = getFilteredHeaders(getXDOM()).get(sectionNumber - 1);
 
             XDOM xdom = (XDOM) header.getRoot();
 
@@ -8025,10 +8046,33 @@ public void convertSyntax(Syntax targetSyntax, XWikiContext context) throws XWik
      */
     @Override
     public XDOM getXDOM()
+    {
+        return getReadOnlyXDOM().clone();
+    }
+
+    /**
+     * Same as {@link #getXDOM()} but return the cached XDOM instead of a clone to avoid copying the whole block tree
+     * when the caller only need to look at it.
+     * <p>
+     * The returned XDOM is shared and must never be modified. Note that creating a new block with some of its blocks as
+     * children (like in {@code new XDOM(block.getChildren())}) modifies them since it changes their parent.
+     * 
+     * @return the cached XDOM corresponding to the document's string content
+     */
+    private XDOM getReadOnlyXDOM()
     {
         if (this.xdom == null) {
             try {
-                this.xdom = parseContent(getContent());
+                XDOMCache cache = getXDOMCache();
+                XDOM cachedXDOM = cache != null ? cache.get(this) : null;
+                if (cachedXDOM != null) {
+                    this.xdom = cachedXDOM;
+                } else {
+                    this.xdom = parseContent(getContent());
+                    if (cache != null) {
+                        cache.set(this, this.xdom);
+                    }
+                }
             } catch (XWikiException e) {
                 if (StringUtils.isEmpty(getContent())) {
                     LOGGER.debug("Syntax [{}] cannot handle empty input. Returning empty XDOM.", getSyntax());
@@ -8038,7 +8082,7 @@ public XDOM getXDOM()
             }
         }
 
-        return this.xdom.clone();
+        return this.xdom;
     }
 
     /**
@@ -0,0 +1,172 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.internal.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe bloom filter of strings. It answers either "definitely not added" or "maybe added", the probability of a
+ * wrong "maybe added" answer being bounded by the false positive probability as long as the number of added elements
+ * does not exceed the expected number of elements.
+ * 
+ * @version $Id$
+ * @since 5.4M1
+ */
+public class BloomFilter
+{
+    /**
+     * The number of bits in a long.
+     */
+    private static final int LONG_BITS = 64;
+
+    /**
+     * FNV-1a 64 bits offset basis.
+     */
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    /**
+     * FNV-1a 64 bits prime.
+     */
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * The bits of the filter.
+     */
+    private final AtomicLongArray bits;
+
+    /**
+     * The number of bits of the filter.
+     */
+    private final long size;
+
+    /**
+     * The number of bits set for each element.
+     */
+    private final int hashCount;
+
+    /**
+     * @param expectedElements the expected number of elements
+     * @param falsePositiveProbability the wanted probability of false positives when the filter contains the expected
+     *            number of elements
+     */
+    public BloomFilter(long expectedElements, double falsePositiveProbability)
+    {
+        long elements = Math.max(1, expectedElements);
+        double probability = Math.min(Math.max(falsePositiveProbability, Double.MIN_VALUE), 1);
+
+        long optimalSize = (long) Math.ceil(-elements * Math.log(probability) / (Math.log(2) * Math.log(2)));
+        int arraySize = (int) Math.min(Integer.MAX_VALUE, Math.max(1, (optimalSize + LONG_BITS - 1) / LONG_BITS));
+
+        this.bits = new AtomicLongArray(arraySize);
+        this.size = (long) arraySize * LONG_BITS;
+        this.hashCount = Math.max(1, (int) Math.round((double) this.size / elements * Math.log(2)));
+    }
+
+    /**
+     * @param element the element to add
+     */
+    public void put(String element)
+    {
+        long hash = hash(element);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+
+        for (int i = 1; i <= this.hashCount; ++i) {
+            long bit = index(hash1 + i * hash2);
+
+            int word = (int) (bit / LONG_BITS);
+            long mask = 1L << (bit % LONG_BITS);
+
+            long value;
+            do {
+                value = this.bits.get(word);
+                if ((value & mask) != 0) {
+                    break;
+                }
+            } while (!this.bits.compareAndSet(word, value, value | mask));
+        }
+    }
+
+    /**
+     * @param element the element to check
+     * @return false if the element has definitely never been added, true if it might have been added
+     */
+    public boolean mightContain(String element)
+    {
+        long hash = hash(element);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+
+        for (int i = 1; i <= this.hashCount; ++i) {
+            long bit = index(hash1 + i * hash2);
+
+            if ((this.bits.get((int) (bit / LONG_BITS)) & (1L << (bit % LONG_BITS))) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the number of bits of the filter
+     */
+    public long getSize()
+    {
+        return this.size;
+    }
+
+    /**
+     * @return the number of bits set for each element
+     */
+    public int getHashCount()
+    {
+        return this.hashCount;
+    }
+
+    /**
+     * @param combinedHash one of the hashes of the element
+     * @return the index of the corresponding bit
+     */
+    private long index(int combinedHash)
+    {
+        // Flip all the bits if the hash is negative
+        return (combinedHash < 0 ? ~combinedHash : combinedHash) % this.size;
+    }
+
+    /**
+     * @param element the element to hash
+     * @return the 64 bits FNV-1a hash of the element
+     */
+    private static long hash(String element)
+    {
+        long hash = FNV_OFFSET;
+
+        for (int i = 0; i < element.length(); ++i) {
+            char c = element.charAt(i);
+            hash ^= c & 0xff;
+            hash *= FNV_PRIME;
+            hash ^= c >>> 8;
+            hash *= FNV_PRIME;
+        }
+
+        return hash;
+    }
+}
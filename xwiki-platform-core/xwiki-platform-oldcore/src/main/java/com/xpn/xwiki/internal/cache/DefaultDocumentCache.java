@@ -21,8 +21,11 @@
 
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.inject.Inject;
 
@@ -34,6 +37,8 @@
 import org.xwiki.cache.CacheException;
 import org.xwiki.cache.CacheManager;
 import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.event.CacheEntryEvent;
+import org.xwiki.cache.event.CacheEntryListener;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.annotation.InstantiationStrategy;
 import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
@@ -43,10 +48,11 @@
 import org.xwiki.observation.ObservationManager;
 import org.xwiki.observation.event.Event;
 
+import com.xpn.xwiki.internal.event.DocumentInvalidatedEvent;
+
 /**
- * Specialized cache component related to documents. It automatically clean the cache when the document is related.
- * <p>
- * TODO: add support for dependencies
+ * Specialized cache component related to documents. It automatically clean the cache when the document or one of
+ * the declared dependencies is modified.
  * 
  * @param <C> the type of the data stored in the cache
  * @version $Id$
@@ -60,7 +66,7 @@
      * Event listened by the component.
      */
     private static final List<Event> EVENTS = Arrays.<Event> asList(new DocumentCreatedEvent(),
-        new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+        new DocumentUpdatedEvent(), new DocumentDeletedEvent(), new DocumentInvalidatedEvent());
 
     /**
      * Used to listen to document modification events.
@@ -86,18 +92,42 @@ public void onEvent(Event event, Object source, Object data)
         {
             String documentReferenceString = ((AbstractDocumentEvent) event).getEventFilter().getFilter();
 
-            Collection<String> keys = mappingCache.get(documentReferenceString);
+            Collection<String> keys = mappings.remove(documentReferenceString);
 
             if (keys != null) {
                 for (String key : keys) {
                     cache.remove(key);
                 }
-
-                mappingCache.remove(documentReferenceString);
             }
         }
     }
 
+    /**
+     * Forget the mappings of the entries removed from the cache, whatever the reason (eviction, invalidation, etc.).
+     * 
+     * @version $Id$
+     */
+    private class MappingCleaner implements CacheEntryListener<C>
+    {
+        @Override
+        public void cacheEntryAdded(CacheEntryEvent<C> event)
+        {
+            // Mapped when set
+        }
+
+        @Override
+        public void cacheEntryRemoved(CacheEntryEvent<C> event)
+        {
+            removeMappings(event.getEntry().getKey());
+        }
+
+        @Override
+        public void cacheEntryModified(CacheEntryEvent<C> event)
+        {
+            // Mapped when set
+        }
+    }
+
     /**
      * The listener used to listen to document modification events.
      */
@@ -127,9 +157,17 @@ public void onEvent(Event event, Object source, Object data)
     private Cache<C> cache;
 
     /**
-     * The cache used to follow multiple cache entries related to the same document.
+     * The keys of the cache entries to remove when a document is modified, indexed by document. It's not an evicting
+     * cache since losing a mapping would mean losing the invalidation of the entries depending on the document: the
+     * mappings are removed along with the entries instead.
      */
-    private Cache<Collection<String>> mappingCache;
+    private final ConcurrentMap<String, Set<String>> mappings = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * The documents each cache entry is mapped to, indexed by key.
+     */
+    private final ConcurrentMap<String, Collection<String>> keyDocuments =
+        new ConcurrentHashMap<String, Collection<String>>();
 
     /**
      * The identifier of the cache and event listener.
@@ -142,11 +180,7 @@ public void create(CacheConfiguration cacheConfiguration) throws CacheException
         this.name = cacheConfiguration.getConfigurationId();
 
         this.cache = this.cacheManager.createNewCache(cacheConfiguration);
-
-        CacheConfiguration mappingCacheConfiguration = (CacheConfiguration) cacheConfiguration.clone();
-        mappingCacheConfiguration.setConfigurationId(cacheConfiguration.getConfigurationId() + ".mapping");
-
-        this.mappingCache = this.cacheManager.createNewCache(mappingCacheConfiguration);
+        this.cache.addCacheEntryListener(new MappingCleaner());
 
         this.observationManager.addListener(this.listener);
     }
@@ -161,20 +195,74 @@ public C get(DocumentReference documentReference, Object... extensions)
 
     @Override
     public void set(C data, DocumentReference documentReference, Object... extensions)
+    {
+        set(data, Collections.<DocumentReference> emptyList(), documentReference, extensions);
+    }
+
+    @Override
+    public void set(C data, Collection<DocumentReference> dependencies, DocumentReference documentReference,
+        Object... extensions)
     {
         String key = getKey(documentReference, extensions);
         this.cache.set(key, data);
 
+        Collection<String> documents = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        Collection<String> previousDocuments = this.keyDocuments.putIfAbsent(key, documents);
+        if (previousDocuments != null) {
+            documents = previousDocuments;
+        }
+
+        addMapping(documentReference, key, documents);
+        for (DocumentReference dependency : dependencies) {
+            addMapping(dependency, key, documents);
+        }
+    }
+
+    /**
+     * Remember that the provided cache entry should be removed when the passed document is modified.
+     * 
+     * @param documentReference the reference of the document
+     * @param key the key of the cache entry
+     * @param documents the documents the cache entry is mapped to
+     */
+    private void addMapping(DocumentReference documentReference, String key, Collection<String> documents)
+    {
         String documentReferenceString = this.serializer.serialize(documentReference);
 
-        Collection<String> keys = this.mappingCache.get(documentReferenceString);
+        Set<String> keys = this.mappings.get(documentReferenceString);
 
         if (keys == null) {
-            keys = new HashSet<String>();
-            this.mappingCache.set(documentReferenceString, keys);
+            keys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            Set<String> previousKeys = this.mappings.putIfAbsent(documentReferenceString, keys);
+            if (previousKeys != null) {
+                keys = previousKeys;
+            }
         }
 
         keys.add(key);
+        documents.add(documentReferenceString);
+    }
+
+    /**
+     * Forget the documents a removed cache entry was mapped to.
+     * 
+     * @param key the key of the removed cache entry
+     */
+    private void removeMappings(String key)
+    {
+        Collection<String> documents = this.keyDocuments.remove(key);
+
+        if (documents != null) {
+            for (String documentReferenceString : documents) {
+                Set<String> keys = this.mappings.get(documentReferenceString);
+                if (keys != null) {
+                    keys.remove(key);
+                    if (keys.isEmpty()) {
+                        this.mappings.remove(documentReferenceString, keys);
+                    }
+                }
+            }
+        }
     }
 
     /**
@@ -218,26 +306,29 @@ public void remove(C data, DocumentReference documentReference, Object... extens
         String key = getKey(documentReference, extensions);
         this.cache.remove(key);
 
-        String documentReferenceString = serializer.serialize(documentReference);
-
-        Collection<String> keys = mappingCache.get(documentReferenceString);
+        // Also done by the cache listener, but the cache might not notify the removal of a missing entry
+        removeMappings(key);
+    }
 
-        if (keys != null) {
-            keys.remove(key);
-        }
+    @Override
+    public void addCacheEntryListener(CacheEntryListener<C> listener)
+    {
+        this.cache.addCacheEntryListener(listener);
     }
 
     @Override
     public void removeAll()
     {
         this.cache.removeAll();
-        this.mappingCache.removeAll();
+        this.mappings.clear();
+        this.keyDocuments.clear();
     }
 
     @Override
     public void dispose()
     {
         this.cache.dispose();
-        this.mappingCache.dispose();
+        this.mappings.clear();
+        this.keyDocuments.clear();
     }
 }
@@ -19,8 +19,11 @@
  */
 package com.xpn.xwiki.internal.cache;
 
+import java.util.Collection;
+
 import org.xwiki.cache.CacheException;
 import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.event.CacheEntryListener;
 import org.xwiki.component.annotation.ComponentRole;
 import org.xwiki.model.reference.DocumentReference;
 
@@ -64,6 +67,19 @@
      */
     void set(C data, DocumentReference documentReference, Object... extensions);
 
+    /**
+     * Add a new value or overwrite the existing one associated with the provided key. The value is removed from the
+     * cache when the document or any of the passed dependencies is modified.
+     * 
+     * @param data the data to store
+     * @param dependencies the references of the other documents the data depends on
+     * @param documentReference the reference of the document
+     * @param extensions the extensions to the document reference
+     * @since 5.4M1
+     */
+    void set(C data, Collection<DocumentReference> dependencies, DocumentReference documentReference,
+        Object... extensions);
+
     /**
      * Remove from the cache the value associated to the provided key elements.
      * 
@@ -73,6 +89,14 @@
      */
     void remove(C data, DocumentReference documentReference, Object... extensions);
 
+    /**
+     * Add a listener to the events of the underlying cache (like evictions).
+     * 
+     * @param listener the listener to add
+     * @since 5.4M1
+     */
+    void addCacheEntryListener(CacheEntryListener<C> listener);
+
     /**
      * Remove all the entries the cache contains.
      */
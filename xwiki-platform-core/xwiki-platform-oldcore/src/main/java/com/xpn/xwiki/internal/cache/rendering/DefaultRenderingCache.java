@@ -21,26 +21,47 @@
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.TreeSet;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import org.slf4j.Logger;
 import org.xwiki.cache.CacheException;
 import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.event.CacheEntryEvent;
+import org.xwiki.cache.event.CacheEntryListener;
 import org.xwiki.cache.eviction.LRUEvictionConfiguration;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
 
 import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.internal.cache.DocumentCache;
+import com.xpn.xwiki.user.api.XWikiRightService;
 
 /**
  * Default implementation of {@link RenderingCache}.
+ * <p>
+ * The cached results are associated with the current user and its groups (since the result depends on the user rights
+ * and can contain information specific to the user) and the request parameters. They are removed from the cache when
+ * the document or any other document loaded during the rendering (included documents, wiki macros, etc.) is modified,
+ * which is why the document version is not needed in the key. On top of the entries count the memory used
+ * by the cached results is limited, the least recently used results are removed when it's exceeded.
  *
  * @version $Id$
  * @since 2.4M1
@@ -49,6 +70,76 @@
 @Singleton
 public class DefaultRenderingCache implements RenderingCache, Initializable
 {
+    /**
+     * A rendering result stored in the cache.
+     * 
+     * @version $Id$
+     */
+    private static class CachedRendering
+    {
+        /**
+         * The rendering result.
+         */
+        private final String content;
+
+        /**
+         * The reference of the rendered document.
+         */
+        private final DocumentReference documentReference;
+
+        /**
+         * The extensions to the document reference used as cache key.
+         */
+        private final Object[] extensions;
+
+        /**
+         * @param content the rendering result
+         * @param documentReference the reference of the rendered document
+         * @param extensions the extensions to the document reference used as cache key
+         */
+        CachedRendering(String content, DocumentReference documentReference, Object[] extensions)
+        {
+            this.content = content;
+            this.documentReference = documentReference;
+            this.extensions = extensions;
+        }
+
+        /**
+         * @return an estimation of the memory (in bytes) used by the rendering result
+         */
+        long getMemory()
+        {
+            // 2 bytes per character
+            return 2L * this.content.length();
+        }
+    }
+
+    /**
+     * Keep the memory accounting up to date when entries are removed from the cache.
+     * 
+     * @version $Id$
+     */
+    private class CacheListener implements CacheEntryListener<CachedRendering>
+    {
+        @Override
+        public void cacheEntryAdded(CacheEntryEvent<CachedRendering> event)
+        {
+            // Accounted when set
+        }
+
+        @Override
+        public void cacheEntryRemoved(CacheEntryEvent<CachedRendering> event)
+        {
+            forget(event.getEntry().getValue());
+        }
+
+        @Override
+        public void cacheEntryModified(CacheEntryEvent<CachedRendering> event)
+        {
+            // Accounted when set
+        }
+    }
+
     /**
      * UTF-8 encoding key.
      */
@@ -64,6 +155,12 @@ public class DefaultRenderingCache implements RenderingCache, Initializable
      */
     private static final String PARAMETER_REFRESH = "refresh";
 
+    /**
+     * The name of the XWiki context property containing the rights keys already computed during the current request,
+     * indexed by wiki and user.
+     */
+    private static final String CONTEXT_RIGHTS_KEYS = "renderingcache.rightsKeys";
+
     /**
      * Configuration of the rendering cache.
      */
@@ -74,7 +171,30 @@ public class DefaultRenderingCache implements RenderingCache, Initializable
      * Actually cache object.
      */
     @Inject
-    private DocumentCache<String> cache;
+    private DocumentCache<CachedRendering> cache;
+
+    /**
+     * Used to serialize the groups of the current user.
+     */
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    /**
+     * Logging framework.
+     */
+    @Inject
+    private Logger logger;
+
+    /**
+     * The cached results, ordered from the least recently used to the most recently used, used to limit the memory.
+     */
+    private final Map<CachedRendering, CachedRendering> usage =
+        new LinkedHashMap<CachedRendering, CachedRendering>(16, 0.75f, true);
+
+    /**
+     * The memory (in bytes) currently used by the cached results.
+     */
+    private long memory;
 
     @Override
     public void initialize() throws InitializationException
@@ -89,6 +209,7 @@ public void initialize() throws InitializationException
 
             try {
                 this.cache.create(cacheConfiguration);
+                this.cache.addCacheEntryListener(new CacheListener());
             } catch (CacheException e) {
                 throw new InitializationException("Failed to initialize core rendering cache", e);
             }
@@ -106,9 +227,21 @@ public String getRenderedContent(DocumentReference documentReference, String sou
             String refresh = context.getRequest() != null ? context.getRequest().getParameter(PARAMETER_REFRESH) : null;
 
             if (!"1".equals(refresh)) {
-                renderedContent =
-                        this.cache.get(documentReference, source, getAction(context), context.getLanguage(),
-                                getRequestParameters(context));
+                CachedRendering cachedRendering = this.cache.get(documentReference, getExtensions(documentReference,
+                    source, context));
+                if (cachedRendering != null) {
+                    synchronized (this.usage) {
+                        // Mark as recently used
+                        this.usage.get(cachedRendering);
+                    }
+                    renderedContent = cachedRendering.content;
+                }
+            }
+
+            if (renderedContent == null) {
+                // The content is going to be rendered and then cached: start collecting the documents it depends on
+                getDependencies(context).put(Arrays.asList(documentReference, source),
+                    new HashSet<DocumentReference>());
             }
         }
 
@@ -120,9 +253,167 @@ public void setRenderedContent(DocumentReference documentReference, String sourc
             XWikiContext context)
     {
         if (this.configuration.isCached(documentReference)) {
-            this.cache.set(renderedContent, documentReference, source, getAction(context), context.getLanguage(),
-                    getRequestParameters(context));
+            Collection<DocumentReference> dependencies =
+                getDependencies(context).remove(Arrays.asList(documentReference, source));
+
+            Object[] extensions = getExtensions(documentReference, source, context);
+            CachedRendering cachedRendering = new CachedRendering(renderedContent, documentReference, extensions);
+
+            // Forget the result being replaced, if any
+            forget(this.cache.get(documentReference, extensions));
+
+            if (dependencies != null) {
+                this.cache.set(cachedRendering, dependencies, documentReference, extensions);
+            } else {
+                this.cache.set(cachedRendering, documentReference, extensions);
+            }
+
+            remember(cachedRendering);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void addDependency(DocumentReference documentReference, XWikiContext context)
+    {
+        Map<Object, Collection<DocumentReference>> dependencies =
+            (Map<Object, Collection<DocumentReference>>) context.get(CONTEXT_DEPENDENCIES);
+        if (dependencies != null) {
+            for (Collection<DocumentReference> documentDependencies : dependencies.values()) {
+                documentDependencies.add(documentReference);
+            }
+        }
+    }
+
+    /**
+     * Account for the memory of a result added to the cache and remove the least recently used results when the
+     * maximum memory is exceeded.
+     * 
+     * @param cachedRendering the result added to the cache
+     */
+    private void remember(CachedRendering cachedRendering)
+    {
+        long maxMemory = this.configuration.getMaxMemory();
+
+        synchronized (this.usage) {
+            this.usage.put(cachedRendering, cachedRendering);
+            this.memory += cachedRendering.getMemory();
+
+            for (Iterator<CachedRendering> it = this.usage.keySet().iterator(); this.memory > maxMemory
+                && it.hasNext();) {
+                CachedRendering leastRecentlyUsed = it.next();
+                it.remove();
+                this.memory -= leastRecentlyUsed.getMemory();
+
+                this.cache.remove(leastRecentlyUsed, leastRecentlyUsed.documentReference,
+                    leastRecentlyUsed.extensions);
+            }
+        }
+    }
+
+    /**
+     * Stop accounting for the memory of a result removed from the cache.
+     * 
+     * @param cachedRendering the result removed from the cache
+     */
+    private void forget(CachedRendering cachedRendering)
+    {
+        if (cachedRendering != null) {
+            synchronized (this.usage) {
+                if (this.usage.remove(cachedRendering) != null) {
+                    this.memory -= cachedRendering.getMemory();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param context the XWiki context
+     * @return the documents loaded during the renderings in progress, see {@link RenderingCache#CONTEXT_DEPENDENCIES}
+     */
+    @SuppressWarnings("unchecked")
+    private Map<Object, Collection<DocumentReference>> getDependencies(XWikiContext context)
+    {
+        Map<Object, Collection<DocumentReference>> dependencies =
+            (Map<Object, Collection<DocumentReference>>) context.get(CONTEXT_DEPENDENCIES);
+        if (dependencies == null) {
+            dependencies = new HashMap<Object, Collection<DocumentReference>>();
+            context.put(CONTEXT_DEPENDENCIES, dependencies);
+        }
+
+        return dependencies;
+    }
+
+    /**
+     * @param documentReference the reference of the document being rendered
+     * @param source the source to render
+     * @param context the XWiki context
+     * @return the extensions to the document reference identifying the rendering result in the cache
+     */
+    private Object[] getExtensions(DocumentReference documentReference, String source, XWikiContext context)
+    {
+        return new Object[] {source, getAction(context), context.getLanguage(), getRequestParameters(context),
+            getRightsKey(context)};
+    }
+
+    /**
+     * The results are not shared between users since the rights can be granted directly to a user and the content can
+     * be specific to the current user. The groups are part of the key so that a change of membership is taken into
+     * account without waiting for the results to expire.
+     * 
+     * @param context the XWiki context
+     * @return a key identifying the current user and its rights
+     */
+    @SuppressWarnings("unchecked")
+    private String getRightsKey(XWikiContext context)
+    {
+        DocumentReference userReference = context.getUserReference();
+        if (userReference == null || XWikiRightService.GUEST_USER.equals(userReference.getName())) {
+            return XWikiRightService.GUEST_USER_FULLNAME;
+        } else if (XWikiRightService.SUPERADMIN_USER.equals(userReference.getName())) {
+            return XWikiRightService.SUPERADMIN_USER_FULLNAME;
         }
+
+        // Computed once per request and user since it's needed for each cache lookup
+        Map<Object, String> rightsKeys = (Map<Object, String>) context.get(CONTEXT_RIGHTS_KEYS);
+        if (rightsKeys == null) {
+            rightsKeys = new HashMap<Object, String>();
+            context.put(CONTEXT_RIGHTS_KEYS, rightsKeys);
+        }
+
+        // The groups are resolved in the current wiki
+        Object rightsKeysKey = Arrays.asList(context.getDatabase(), userReference);
+        String rightsKey = rightsKeys.get(rightsKeysKey);
+        if (rightsKey == null) {
+            rightsKey = this.serializer.serialize(userReference);
+            try {
+                Collection<DocumentReference> groups = context.getWiki().getGroupService(context)
+                    .getAllGroupsReferencesForMember(userReference, 0, 0, context);
+
+                // Sort the groups so that the key doesn't depend on the order in which they are returned
+                rightsKey += new TreeSet<String>(serialize(groups)).toString();
+            } catch (XWikiException e) {
+                this.logger.warn("Failed to get the groups of user [{}]: {}", userReference, e.getMessage());
+            }
+
+            rightsKeys.put(rightsKeysKey, rightsKey);
+        }
+
+        return rightsKey;
+    }
+
+    /**
+     * @param references the references to serialize
+     * @return the serialized references
+     */
+    private List<String> serialize(Collection<DocumentReference> references)
+    {
+        List<String> result = new ArrayList<String>(references.size());
+        for (DocumentReference reference : references) {
+            result.add(this.serializer.serialize(reference));
+        }
+
+        return result;
     }
 
     /**
@@ -78,6 +78,16 @@ public class DefaultRenderingCacheConfiguration implements RenderingCacheConfigu
      */
     private static final int PROPVALUE_SIZE = 100;
 
+    /**
+     * Name of the property indication the maximum memory used by the cache.
+     */
+    private static final String PROPNAME_MAXMEMORY = PREFIX + "maxMemory";
+
+    /**
+     * The default maximum memory used by the cache (32MB).
+     */
+    private static final long PROPVALUE_MAXMEMORY = 32L * 1024 * 1024;
+
     /**
      * xwiki.properties file configurations.
      */
@@ -150,6 +160,12 @@ public int getSize()
         return this.farmConfiguration.getProperty(PROPNAME_SIZE, PROPVALUE_SIZE);
     }
 
+    @Override
+    public long getMaxMemory()
+    {
+        return this.farmConfiguration.getProperty(PROPNAME_MAXMEMORY, PROPVALUE_MAXMEMORY);
+    }
+
     @Override
     public boolean isCached(DocumentReference documentReference)
     {
@@ -33,6 +33,15 @@
 @Role
 public interface RenderingCache
 {
+    /**
+     * The name of the XWiki context property containing the documents loaded while rendering content that is going to
+     * be cached. It's a {@code Map<Object, Collection<DocumentReference>>} and the reference of each loaded document is
+     * added to all its values, so that the cached result is invalidated when one of these documents is modified.
+     * 
+     * @since 5.4M1
+     */
+    String CONTEXT_DEPENDENCIES = "renderingcache.dependencies";
+
     /**
      * The stored result of the rendering of the provided source.
      * 
@@ -53,4 +62,14 @@
      */
     void setRenderedContent(DocumentReference documentReference, String source, String renderedContent,
         XWikiContext context);
+
+    /**
+     * Indicate that the renderings in progress which are going to be cached depend on the provided document (included
+     * document, wiki macro, etc.), so that their result is invalidated when it's modified.
+     * 
+     * @param documentReference the reference of the document used by the renderings in progress
+     * @param context the XWiki context
+     * @since 5.4M1
+     */
+    void addDependency(DocumentReference documentReference, XWikiContext context);
 }
@@ -46,6 +46,12 @@
      */
     int getSize();
 
+    /**
+     * @return the maximum memory (in bytes) used by the rendering results stored in the cache
+     * @since 5.4M1
+     */
+    long getMaxMemory();
+
     /**
      * Indicate if the provided document's rendering result should be cached.
      * 
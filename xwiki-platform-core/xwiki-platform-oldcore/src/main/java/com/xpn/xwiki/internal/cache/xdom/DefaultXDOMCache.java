@@ -0,0 +1,179 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.internal.cache.xdom;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.rendering.block.XDOM;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.internal.cache.DocumentCache;
+
+/**
+ * Default implementation of {@link XDOMCache}.
+ * <p>
+ * The XDOMs are associated with the reference, locale, version and syntax of the document and removed from the cache
+ * when the document is modified. Since the content of a document can be modified without changing its version (before
+ * it's saved) a digest of the parsed content is stored along with the XDOM and checked before returning it.
+ * 
+ * @version $Id$
+ * @since 5.4M1
+ */
+@Component
+@Singleton
+public class DefaultXDOMCache implements XDOMCache, Initializable
+{
+    /**
+     * A parsed content stored in the cache.
+     * 
+     * @version $Id$
+     */
+    private static class CachedXDOM
+    {
+        /**
+         * The digest of the parsed content.
+         */
+        private final String digest;
+
+        /**
+         * The result of the parsing.
+         */
+        private final XDOM xdom;
+
+        /**
+         * @param digest the digest of the parsed content
+         * @param xdom the result of the parsing
+         */
+        CachedXDOM(String digest, XDOM xdom)
+        {
+            this.digest = digest;
+            this.xdom = xdom;
+        }
+    }
+
+    /**
+     * Identifier of the cache.
+     */
+    private static final String NAME = "core.xdomcache";
+
+    /**
+     * Name of the property indicating if the cache is enabled or not.
+     */
+    private static final String PROPNAME_ENABLED = NAME + ".enabled";
+
+    /**
+     * Name of the property indicating the size of the cache.
+     */
+    private static final String PROPNAME_SIZE = NAME + ".size";
+
+    /**
+     * The default size of the cache.
+     */
+    private static final int PROPVALUE_SIZE = 100;
+
+    /**
+     * xwiki.properties file configurations.
+     */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /**
+     * Actual cache object.
+     */
+    @Inject
+    private DocumentCache<CachedXDOM> cache;
+
+    /**
+     * Indicate if the cache is enabled.
+     */
+    private boolean enabled;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.enabled = this.configuration.getProperty(PROPNAME_ENABLED, false);
+
+        if (this.enabled) {
+            CacheConfiguration cacheConfiguration = new CacheConfiguration();
+            cacheConfiguration.setConfigurationId(NAME);
+            LRUEvictionConfiguration lru = new LRUEvictionConfiguration();
+            lru.setMaxEntries(this.configuration.getProperty(PROPNAME_SIZE, PROPVALUE_SIZE));
+            cacheConfiguration.put(LRUEvictionConfiguration.CONFIGURATIONID, lru);
+
+            try {
+                this.cache.create(cacheConfiguration);
+            } catch (CacheException e) {
+                throw new InitializationException("Failed to initialize core XDOM cache", e);
+            }
+        }
+    }
+
+    @Override
+    public XDOM get(XWikiDocument document)
+    {
+        if (this.enabled) {
+            CachedXDOM cachedXDOM = this.cache.get(document.getDocumentReference(), getExtensions(document));
+
+            if (cachedXDOM != null && cachedXDOM.digest.equals(getDigest(document))) {
+                return cachedXDOM.xdom;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public void set(XWikiDocument document, XDOM xdom)
+    {
+        if (this.enabled) {
+            this.cache.set(new CachedXDOM(getDigest(document), xdom), document.getDocumentReference(),
+                getExtensions(document));
+        }
+    }
+
+    /**
+     * @param document the document
+     * @return the extensions to the document reference identifying the XDOM in the cache
+     */
+    private Object[] getExtensions(XWikiDocument document)
+    {
+        return new Object[] {document.getLocale(), document.getVersion(), document.getSyntaxId()};
+    }
+
+    /**
+     * @param document the document
+     * @return the digest of the content of the document
+     */
+    private String getDigest(XWikiDocument document)
+    {
+        return DigestUtils.md5Hex(document.getContent());
+    }
+}
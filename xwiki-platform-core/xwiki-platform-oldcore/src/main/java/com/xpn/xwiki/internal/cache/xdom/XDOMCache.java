@@ -0,0 +1,50 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.internal.cache.xdom;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.rendering.block.XDOM;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Keep the result of the parsing of the documents content so that it's not parsed again when the same version of a
+ * document is loaded again (for example after being removed from the documents cache).
+ * <p>
+ * The cached XDOMs are shared and must never be modified.
+ * 
+ * @version $Id$
+ * @since 5.4M1
+ */
+@Role
+public interface XDOMCache
+{
+    /**
+     * @param document the document
+     * @return the XDOM corresponding to the current content of the document or {@code null} if it's not in the cache
+     */
+    XDOM get(XWikiDocument document);
+
+    /**
+     * @param document the document
+     * @param xdom the XDOM corresponding to the current content of the document
+     */
+    void set(XWikiDocument document, XDOM xdom);
+}
@@ -0,0 +1,81 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.internal.event;
+
+import org.xwiki.bridge.event.AbstractDocumentEvent;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.event.filter.EventFilter;
+import org.xwiki.observation.event.filter.FixedNameEventFilter;
+import org.xwiki.observation.remote.CoalescableEvent;
+
+/**
+ * Event received from another member of the cluster instead of the document creation, modification and deletion
+ * events when remote observation is configured to only send invalidations.
+ * <p>
+ * The event is sent with the following parameters:
+ * <ul>
+ * <li>source: an {@link com.xpn.xwiki.doc.XWikiDocument} which only contains the reference and the language of the
+ * modified document, nothing is loaded from the store</li>
+ * <li>data: the new version of the document or null if the document has been deleted</li>
+ * </ul>
+ * 
+ * @version $Id$
+ * @since 5.4M1
+ */
+public class DocumentInvalidatedEvent extends AbstractDocumentEvent implements CoalescableEvent
+{
+    /**
+     * The version identifier for this Serializable class. Increment only if the <i>serialized</i> form of the class
+     * changes.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Matches all documents.
+     */
+    public DocumentInvalidatedEvent()
+    {
+        super();
+    }
+
+    /**
+     * @param documentReference the reference of the document to match
+     */
+    public DocumentInvalidatedEvent(DocumentReference documentReference)
+    {
+        super(documentReference);
+    }
+
+    /**
+     * @param documentReference the serialized reference of the document to match
+     */
+    public DocumentInvalidatedEvent(String documentReference)
+    {
+        super(new FixedNameEventFilter(documentReference));
+    }
+
+    /**
+     * @param eventFilter the filter to use for matching events
+     */
+    public DocumentInvalidatedEvent(EventFilter eventFilter)
+    {
+        super(eventFilter);
+    }
+}
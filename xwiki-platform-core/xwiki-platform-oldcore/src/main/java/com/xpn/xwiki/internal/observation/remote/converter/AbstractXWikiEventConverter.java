@@ -21,14 +21,20 @@
 
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 
+import org.apache.commons.lang3.LocaleUtils;
 import org.slf4j.Logger;
+import org.xwiki.configuration.ConfigurationSource;
 import org.xwiki.context.Execution;
 import org.xwiki.context.ExecutionContext;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.observation.remote.converter.AbstractEventConverter;
 
 import com.xpn.xwiki.XWikiContext;
@@ -48,8 +54,16 @@ public abstract class AbstractXWikiEventConverter extends AbstractEventConverter
 
     private static final String CONTEXT_USER = "contextuser";
 
+    /**
+     * Name of the property indicating if the remote events are sent in the compact format, which only the members
+     * running 5.4M1 or later understand.
+     */
+    private static final String PROPNAME_COMPACT = "observation.remote.jgroups.compact";
+
     private static final String DOC_NAME = "docname";
 
+    private static final String DOC_LOCALE = "doclocale";
+
     private static final String DOC_VERSION = "docversion";
 
     private static final String DOC_LANGUAGE = "doclanguage";
@@ -76,6 +90,30 @@ public abstract class AbstractXWikiEventConverter extends AbstractEventConverter
     @Inject
     private XWikiStubContextProvider stubContextProvider;
 
+    /**
+     * Used to know if the document references can be sent as strings.
+     */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource xwikiProperties;
+
+    /**
+     * True if the document references are sent as strings, read once from the configuration.
+     */
+    private volatile Boolean compact;
+
+    /**
+     * Used to send document references as strings, which are a lot more compact than serialized references.
+     */
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    /**
+     * Used to read document references sent as strings.
+     */
+    @Inject
+    protected DocumentReferenceResolver<String> resolver;
+
     /**
      * @param context the XWiki context to serialize
      * @return the serialized version of the context
@@ -93,7 +131,7 @@ protected Serializable serializeXWikiContext(XWikiContext context)
     /**
      * @return a stub XWikiContext, null if none can be generated (XWiki has never been accessed yet)
      */
-    private XWikiContext getXWikiStubContext()
+    protected XWikiContext getXWikiStubContext()
     {
         ExecutionContext context = this.execution.getContext();
         XWikiContext xcontext = (XWikiContext) context.getProperty(XWikiContext.EXECUTIONCONTEXT_KEY);
@@ -139,7 +177,16 @@ protected Serializable serializeXWikiDocument(XWikiDocument document)
     {
         HashMap<String, Serializable> remoteDataMap = new HashMap<String, Serializable>();
 
-        remoteDataMap.put(DOC_NAME, document.getDocumentReference());
+        DocumentReference documentReference = document.getDocumentReference();
+        if (isCompact()) {
+            remoteDataMap.put(DOC_NAME, this.serializer.serialize(documentReference));
+            if (documentReference.getLocale() != null) {
+                remoteDataMap.put(DOC_LOCALE, documentReference.getLocale().toString());
+            }
+        } else {
+            // The members running an older version expect a DocumentReference
+            remoteDataMap.put(DOC_NAME, documentReference);
+        }
 
         if (!document.isNew()) {
             remoteDataMap.put(DOC_VERSION, document.getVersion());
@@ -156,6 +203,18 @@ protected Serializable serializeXWikiDocument(XWikiDocument document)
         return remoteDataMap;
     }
 
+    /**
+     * @return true if the document references are sent as strings
+     */
+    private boolean isCompact()
+    {
+        if (this.compact == null) {
+            this.compact = Boolean.TRUE.equals(this.xwikiProperties.getProperty(PROPNAME_COMPACT, Boolean.FALSE));
+        }
+
+        return this.compact;
+    }
+
     protected XWikiDocument getDocument(DocumentReference documentReference, String language, String version)
         throws XWikiException
     {
@@ -175,6 +234,30 @@ protected XWikiDocument getDocument(DocumentReference documentReference, String
         return targetDocument;
     }
 
+    /**
+     * @param remoteDataMap the serialized version of the document
+     * @return the reference of the document
+     */
+    private DocumentReference unserializeDocumentReference(Map<String, Serializable> remoteDataMap)
+    {
+        Serializable reference = remoteDataMap.get(DOC_NAME);
+
+        if (reference instanceof DocumentReference) {
+            // Sent by an older version
+            return (DocumentReference) reference;
+        }
+
+        DocumentReference documentReference = this.resolver.resolve((String) reference);
+
+        String locale = (String) remoteDataMap.get(DOC_LOCALE);
+        if (locale != null) {
+            documentReference = new DocumentReference(documentReference,
+                locale.isEmpty() ? Locale.ROOT : LocaleUtils.toLocale(locale));
+        }
+
+        return documentReference;
+    }
+
     /**
      * @param remoteData the serialized version of the document
      * @return the document
@@ -184,7 +267,7 @@ protected XWikiDocument unserializeDocument(Serializable remoteData) throws XWik
     {
         Map<String, Serializable> remoteDataMap = (Map<String, Serializable>) remoteData;
 
-        DocumentReference docReference = (DocumentReference) remoteDataMap.get(DOC_NAME);
+        DocumentReference docReference = unserializeDocumentReference(remoteDataMap);
 
         XWikiDocument doc;
         if (remoteDataMap.get(DOC_VERSION) == null) {
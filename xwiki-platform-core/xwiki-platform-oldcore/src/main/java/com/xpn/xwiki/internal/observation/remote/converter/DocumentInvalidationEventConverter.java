@@ -0,0 +1,217 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.internal.observation.remote.converter;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.observation.event.Event;
+import org.xwiki.observation.remote.LocalEventData;
+import org.xwiki.observation.remote.RemoteEventData;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.internal.event.DocumentInvalidatedEvent;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Send a {@link DocumentInvalidatedEvent} instead of the document events when remote observation is configured to only
+ * send invalidations.
+ * <p>
+ * Other members of the cluster then only remove the document from their caches instead of loading it. Documents with a
+ * class or with objects of a class which is not explicitly listed in the configuration are still sent as complete
+ * document events since they generally have to be loaded by the listeners (groups, wiki macros, wiki components,
+ * translations, etc.). The same goes for modifications of attachments, so that the other members still generate the
+ * attachment events.
+ * <p>
+ * The listeners maintaining a per member index (Lucene, Solr) react to the {@link DocumentInvalidatedEvent} by
+ * indexing the document again.
+ * 
+ * @version $Id$
+ * @since 5.4M1
+ */
+@Component
+@Singleton
+@Named("documentinvalidation")
+public class DocumentInvalidationEventConverter extends AbstractXWikiEventConverter
+{
+    /**
+     * Name of the property indicating if only invalidations should be sent.
+     */
+    private static final String PROPNAME_ENABLED = "observation.remote.invalidation.enabled";
+
+    /**
+     * Name of the property listing the classes of the objects which does not prevent sending only an invalidation.
+     */
+    private static final String PROPNAME_CLASSES = "observation.remote.invalidation.classes";
+
+    /**
+     * The default classes of the objects which does not prevent sending only an invalidation.
+     */
+    private static final List<String> PROPVALUE_CLASSES = Arrays.asList("XWiki.XWikiComments", "XWiki.TagClass",
+        "XWiki.XWikiRights");
+
+    /**
+     * The events supported by this converter.
+     */
+    private static final Set<Class< ? extends Event>> EVENTS = new HashSet<Class< ? extends Event>>(Arrays.asList(
+        DocumentCreatedEvent.class, DocumentUpdatedEvent.class, DocumentDeletedEvent.class));
+
+    /**
+     * xwiki.properties file configurations.
+     */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /**
+     * Used to compare the classes of the objects with the configuration.
+     */
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    @Override
+    public int getPriority()
+    {
+        // Before DocumentEventConverter
+        return 900;
+    }
+
+    @Override
+    public boolean toRemote(LocalEventData localEvent, RemoteEventData remoteEvent)
+    {
+        if (EVENTS.contains(localEvent.getEvent().getClass())
+            && this.configuration.getProperty(PROPNAME_ENABLED, false)) {
+            XWikiDocument document = (XWikiDocument) localEvent.getSource();
+
+            if (isInvalidationEnough(document) && isInvalidationEnough(document.getOriginalDocument())
+                && !hasAttachmentChanges(document, document.getOriginalDocument())) {
+                remoteEvent.setEvent(new DocumentInvalidatedEvent(document.getDocumentReference()));
+                remoteEvent.setSource(document.getLanguage());
+                if (!(localEvent.getEvent() instanceof DocumentDeletedEvent)) {
+                    remoteEvent.setData(document.getVersion());
+                }
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param document the document
+     * @return true if the other members of the cluster don't need to load the document to take its modification into
+     *         account
+     */
+    private boolean isInvalidationEnough(XWikiDocument document)
+    {
+        if (document == null) {
+            return true;
+        }
+
+        if (!document.getXClass().getPropertyList().isEmpty()) {
+            return false;
+        }
+
+        List<String> classes = this.configuration.getProperty(PROPNAME_CLASSES, PROPVALUE_CLASSES);
+        for (Map.Entry<DocumentReference, List<BaseObject>> entry : document.getXObjects().entrySet()) {
+            if (!classes.contains(this.localSerializer.serialize(entry.getKey()))) {
+                for (BaseObject xobject : entry.getValue()) {
+                    if (xobject != null) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param document the new version of the document
+     * @param originalDocument the previous version of the document
+     * @return true if attachments have been added, removed or updated
+     */
+    private boolean hasAttachmentChanges(XWikiDocument document, XWikiDocument originalDocument)
+    {
+        List<XWikiAttachment> attachments = document.getAttachmentList();
+        List<XWikiAttachment> originalAttachments =
+            originalDocument != null ? originalDocument.getAttachmentList() : Collections.<XWikiAttachment>emptyList();
+
+        if (attachments.size() != originalAttachments.size()) {
+            return true;
+        }
+
+        for (XWikiAttachment attachment : attachments) {
+            XWikiAttachment originalAttachment = originalDocument.getAttachment(attachment.getFilename());
+            if (originalAttachment == null
+                || !StringUtils.equals(attachment.getVersion(), originalAttachment.getVersion())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public boolean fromRemote(RemoteEventData remoteEvent, LocalEventData localEvent)
+    {
+        if (remoteEvent.getEvent() instanceof DocumentInvalidatedEvent) {
+            DocumentInvalidatedEvent event = (DocumentInvalidatedEvent) remoteEvent.getEvent();
+
+            // Only the reference and the language are needed to find the document in the caches
+            XWikiDocument document = new XWikiDocument(this.resolver.resolve(event.getEventFilter().getFilter()));
+            document.setLanguage((String) remoteEvent.getSource());
+
+            // Make sure the listeners which have to load the document (the indexes) find a XWiki context
+            XWikiContext xcontext = getXWikiStubContext();
+            if (xcontext != null) {
+                xcontext.setDatabase(document.getDocumentReference().getWikiReference().getName());
+            }
+
+            localEvent.setEvent(event);
+            localEvent.setSource(document);
+            localEvent.setData(remoteEvent.getData());
+
+            return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.internal.store;
+
+import com.xpn.xwiki.store.XWikiCacheStore;
+
+/**
+ * Expose the statistics of a {@link XWikiCacheStore} through JMX.
+ * 
+ * @version $Id$
+ * @since 5.4M1
+ */
+public class DocumentCacheStatistics implements DocumentCacheStatisticsMBean
+{
+    /**
+     * The name under which the statistics are registered against the JMX server.
+     */
+    public static final String OBJECT_NAME = "org.xwiki:type=DocumentCache";
+
+    /**
+     * The document cache.
+     */
+    private final XWikiCacheStore store;
+
+    /**
+     * @param store the document cache
+     */
+    public DocumentCacheStatistics(XWikiCacheStore store)
+    {
+        this.store = store;
+    }
+
+    @Override
+    public long getHitCount()
+    {
+        return this.store.getCacheHitCount();
+    }
+
+    @Override
+    public long getMissCount()
+    {
+        return this.store.getCacheMissCount();
+    }
+
+    @Override
+    public long getEvictionCount()
+    {
+        return this.store.getCacheEvictionCount();
+    }
+
+    @Override
+    public long getCoalescedLoadCount()
+    {
+        return this.store.getCoalescedLoadCount();
+    }
+
+    @Override
+    public long getOffHeapHitCount()
+    {
+        return this.store.getOffHeapCacheHitCount();
+    }
+
+    @Override
+    public int getSize()
+    {
+        return this.store.getCacheSize();
+    }
+
+    @Override
+    public long getMemory()
+    {
+        return this.store.getCacheMemory();
+    }
+
+    @Override
+    public long getMaxMemory()
+    {
+        return this.store.getCacheMaxMemory();
+    }
+
+    @Override
+    public long getExistenceFilterNegativeCount()
+    {
+        return this.store.getExistenceFilterNegativeCount();
+    }
+
+    @Override
+    public double getExistenceFilterFalsePositiveRate()
+    {
+        return this.store.getExistenceFilterFalsePositiveRate();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.internal.store;
+
+/**
+ * Statistics of the document cache, exposed through JMX.
+ * 
+ * @version $Id$
+ * @since 5.4M1
+ */
+public interface DocumentCacheStatisticsMBean
+{
+    /**
+     * @return the number of documents found in the document cache
+     */
+    long getHitCount();
+
+    /**
+     * @return the number of documents not found in the document cache
+     */
+    long getMissCount();
+
+    /**
+     * @return the number of documents removed from the document cache because the maximum memory was exceeded
+     */
+    long getEvictionCount();
+
+    /**
+     * @return the number of documents not found in the document cache for which a load already in progress has been
+     *         waited for
+     */
+    long getCoalescedLoadCount();
+
+    /**
+     * @return the number of documents not found in the document cache but rebuilt from the off-heap cache
+     */
+    long getOffHeapHitCount();
+
+    /**
+     * @return the number of documents in the document cache
+     */
+    int getSize();
+
+    /**
+     * @return the estimated memory (in bytes) used by the documents in the document cache
+     */
+    long getMemory();
+
+    /**
+     * @return the maximum memory (in bytes) used by the documents in the document cache, 0 if there's no limit
+     */
+    long getMaxMemory();
+
+    /**
+     * @return the number of missing documents detected by the filters of existing documents without asking the store
+     */
+    long getExistenceFilterNegativeCount();
+
+    /**
+     * @return the proportion of missing documents the filters of existing documents failed to detect
+     */
+    double getExistenceFilterFalsePositiveRate();
+}
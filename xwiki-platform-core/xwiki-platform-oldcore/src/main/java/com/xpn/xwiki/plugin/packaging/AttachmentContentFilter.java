@@ -0,0 +1,172 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.plugin.packaging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Base64OutputStream;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiAttachmentContent;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Decodes the content of the attachments of a document XML while it's parsed, instead of letting the XML parser keep
+ * the whole base64 encoded content in memory. The content is written in the attachment storage as it's read and the
+ * {@code content} elements are removed from the XML passed on to the parser. Call {@link #setContents(XWikiDocument)}
+ * once the document has been parsed to set the content of its attachments.
+ * 
+ * @version $Id$
+ * @since 5.4M1
+ */
+class AttachmentContentFilter extends XMLFilterImpl
+{
+    /** The element holding an attachment, right under the root element. */
+    private static final String ATTACHMENT = "attachment";
+
+    /** The element holding the name of an attachment. */
+    private static final String FILENAME = "filename";
+
+    /** The element holding the base64 encoded content of an attachment. */
+    private static final String CONTENT = "content";
+
+    /** The depth of the children of an attachment element. */
+    private static final int ATTACHMENT_CHILD_DEPTH = 3;
+
+    /** The decoded contents, indexed by attachment name. */
+    private final Map<String, XWikiAttachmentContent> contents = new HashMap<String, XWikiAttachmentContent>();
+
+    /** The depth of the current element, 1 for the root element. */
+    private int depth;
+
+    /** True when inside an attachment element. */
+    private boolean inAttachment;
+
+    /** The name of the current attachment, null until its filename element has been read. */
+    private StringBuilder filename;
+
+    /** True when inside the filename element of an attachment. */
+    private boolean inFilename;
+
+    /** The content of the current attachment, null until its content element has been read. */
+    private XWikiAttachmentContent content;
+
+    /** Where the content being read is decoded, null when outside the content element of an attachment. */
+    private OutputStream contentOutput;
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException
+    {
+        this.depth++;
+
+        if (this.depth == 2 && ATTACHMENT.equals(qName)) {
+            this.inAttachment = true;
+            this.filename = null;
+            this.content = null;
+        } else if (this.inAttachment && this.depth == ATTACHMENT_CHILD_DEPTH) {
+            if (FILENAME.equals(qName)) {
+                this.inFilename = true;
+                this.filename = new StringBuilder();
+            } else if (CONTENT.equals(qName)) {
+                this.content = new XWikiAttachmentContent();
+                this.contentOutput = new Base64OutputStream(this.content.getContentOutputStream(), false);
+
+                // Don't let the parser see the content
+                return;
+            }
+        }
+
+        super.startElement(uri, localName, qName, atts);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException
+    {
+        if (this.contentOutput != null) {
+            // Base64 only uses ASCII characters
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = (byte) ch[start + i];
+            }
+            try {
+                this.contentOutput.write(bytes);
+            } catch (IOException e) {
+                throw new SAXException("Failed to write the content of an attachment", e);
+            }
+        } else {
+            if (this.inFilename) {
+                this.filename.append(ch, start, length);
+            }
+
+            super.characters(ch, start, length);
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException
+    {
+        this.depth--;
+
+        if (this.contentOutput != null) {
+            try {
+                this.contentOutput.close();
+            } catch (IOException e) {
+                throw new SAXException("Failed to write the content of an attachment", e);
+            }
+            this.contentOutput = null;
+
+            return;
+        } else if (this.inFilename) {
+            this.inFilename = false;
+        } else if (this.inAttachment && this.depth == 1) {
+            this.inAttachment = false;
+            if (this.filename != null && this.content != null) {
+                this.contents.put(this.filename.toString(), this.content);
+            }
+        }
+
+        super.endElement(uri, localName, qName);
+    }
+
+    /**
+     * Set the content of the attachments of the parsed document.
+     * 
+     * @param doc the document parsed from the filtered XML
+     */
+    void setContents(XWikiDocument doc)
+    {
+        for (XWikiAttachment attachment : doc.getAttachmentList()) {
+            XWikiAttachmentContent attachmentContent = this.contents.get(attachment.getFilename());
+            if (attachmentContent != null) {
+                attachmentContent.setAttachment(attachment);
+                attachment.setAttachment_content(attachmentContent);
+                attachment.setFilesize(attachmentContent.getSize());
+                // Loaded from XML, like in XWikiAttachment#fromXML(Element)
+                attachment.setMetaDataDirty(false);
+            }
+        }
+    }
+}
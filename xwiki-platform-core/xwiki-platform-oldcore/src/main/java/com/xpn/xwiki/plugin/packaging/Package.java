@@ -31,9 +31,12 @@
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -43,8 +46,10 @@
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.input.CloseShieldInputStream;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
 import org.dom4j.Element;
@@ -54,6 +59,7 @@
 import org.dom4j.io.SAXReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xwiki.environment.Environment;
 import org.xwiki.extension.Extension;
 import org.xwiki.extension.ExtensionId;
 import org.xwiki.extension.InstalledExtension;
@@ -62,6 +68,8 @@
 import org.xwiki.extension.repository.ExtensionRepositoryManager;
 import org.xwiki.extension.repository.InstalledExtensionRepository;
 import org.xwiki.extension.repository.LocalExtensionRepository;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.model.reference.SpaceReference;
 import org.xwiki.observation.ObservationManager;
 import org.xwiki.query.QueryException;
@@ -398,12 +406,14 @@ public String export(OutputStream os, XWikiContext context) throws IOException,
         // and the filenames will be correctly converted to the character set of the local
         // file system.
         zos.setCreateUnicodeExtraFields(ZipArchiveOutputStream.UnicodeExtraFieldPolicy.ALWAYS);
+        // Write the package definition first so that the package can be installed while it's read, see
+        // #importAndInstall(InputStream, XWikiContext)
+        addInfosToZip(zos, context);
         for (int i = 0; i < this.files.size(); i++) {
             DocumentInfo docinfo = this.files.get(i);
             XWikiDocument doc = docinfo.getDoc();
             addToZip(doc, zos, this.withVersions, context);
         }
-        addInfosToZip(zos, context);
         zos.finish();
         zos.flush();
 
@@ -531,6 +541,342 @@ public String Import(InputStream file, XWikiContext context) throws IOException,
         return "";
     }
 
+    /**
+     * State of a package being installed while it's read by {@link #importAndInstall(InputStream, XWikiContext)}.
+     */
+    private static class StreamedInstall
+    {
+        /** True if the current user is admin of the wiki. */
+        private final boolean isAdmin;
+
+        /** The actions to apply to the documents listed in the package definition, null until it's read. */
+        private Map<String, Integer> actions;
+
+        /** True if the authors of the package should be preserved. */
+        private boolean backup;
+
+        /** False once the whole package has been read and the deferred documents can't wait anymore. */
+        private boolean deferring = true;
+
+        /** The documents of the package (name and language) which have been read and not deferred so far. */
+        private final Set<String> processed = new HashSet<String>();
+
+        /** The deferred documents holding a class definition, waiting for a class they use. */
+        private final Map<File, String> deferredClasses = new LinkedHashMap<File, String>();
+
+        /** The other deferred documents, waiting for a class they use. */
+        private final Map<File, String> deferredDocuments = new LinkedHashMap<File, String>();
+
+        /**
+         * @param isAdmin true if the current user is admin of the wiki
+         */
+        StreamedInstall(boolean isAdmin)
+        {
+            this.isAdmin = isAdmin;
+        }
+    }
+
+    /**
+     * Install the documents of a package while reading it, instead of loading the whole package in memory first like
+     * {@link #Import(InputStream, XWikiContext)} followed by {@link #install(XWikiContext)} do. Each document is saved
+     * as soon as it's parsed and released right after, so the memory used does not depend on the size of the package.
+     * The documents found before the package definition ({@code package.xml}) are kept in temporary files until it's
+     * found.
+     * <p>
+     * The documents are installed in the order they are found in the package, using the actions defined in the
+     * package definition, and they are not listed in {@link #getFiles()}. Like with {@link #install(XWikiContext)},
+     * the class definitions are installed before the documents using them: a document having objects of a class
+     * defined by a document of the package which has not been read yet is kept in a temporary file and installed once
+     * the whole package has been read (documents holding a class definition first).
+     * <p>
+     * The content of the attachments is decoded to the attachment storage while the XML of their document is read, so
+     * the memory used is bounded by the size of the largest document without its attachments.
+     * 
+     * @param file an InputStream of a zipped package file
+     * @param context current XWikiContext
+     * @return the status of the installation, see {@link #getStatus(XWikiContext)}
+     * @throws IOException while reading the ZipFile
+     * @throws XWikiException when package content is broken
+     * @since 5.4M1
+     */
+    public int importAndInstall(InputStream file, XWikiContext context) throws IOException, XWikiException
+    {
+        return importAndInstall(file, null, context);
+    }
+
+    /**
+     * Same as {@link #importAndInstall(InputStream, XWikiContext)} but using the provided actions instead of the ones
+     * of the package definition. The documents without an action are skipped.
+     * 
+     * @param file an InputStream of a zipped package file
+     * @param documentActions the actions to apply to the documents to install (see {@link DocumentInfo}), indexed by
+     *            document full name and language separated by a colon ({@code Space.Page:} for the default language),
+     *            null to use the actions of the package definition
+     * @param context current XWikiContext
+     * @return the status of the installation, see {@link #getStatus(XWikiContext)}
+     * @throws IOException while reading the ZipFile
+     * @throws XWikiException when package content is broken
+     * @since 5.4M1
+     */
+    public int importAndInstall(InputStream file, Map<String, Integer> documentActions, XWikiContext context)
+        throws IOException, XWikiException
+    {
+        StreamedInstall install =
+            new StreamedInstall(context.getWiki().getRightService().hasWikiAdminRights(context));
+        int status = DocumentInfo.INSTALL_OK;
+
+        Map<File, String> pendingFiles = new LinkedHashMap<File, String>();
+
+        ObservationManager om = Utils.getComponent(ObservationManager.class);
+        om.notify(new XARImportingEvent(), null, context);
+
+        try {
+            ZipArchiveInputStream zis = new ZipArchiveInputStream(file, XAR_FILENAME_ENCODING, false);
+            ArchiveEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                if (entry.isDirectory() || (entry.getName().indexOf("META-INF") != -1)) {
+                    // The entry is either a directory or is something inside of the META-INF dir.
+                    continue;
+                } else if (entry.getName().compareTo(DefaultPackageFileName) == 0) {
+                    Map<String, Integer> packageActions = getDocumentActions(fromXml(new CloseShieldInputStream(zis)));
+                    install.actions = documentActions != null ? documentActions : packageActions;
+                    // Only farm admins are allowed to preserve the authors of the package, see #install
+                    install.backup = this.backupPack && isFarmAdmin(context);
+
+                    // Install the documents found before the package definition
+                    status = Math.max(status, installFiles(pendingFiles, install, context));
+                } else if (install.actions == null) {
+                    // We don't know yet which documents should be installed, keep the document out of the memory
+                    pendingFiles.put(createTemporaryFile(zis), entry.getName());
+                } else {
+                    status =
+                        Math.max(status, installDocument(entry.getName(), new CloseShieldInputStream(zis), install,
+                            context));
+                }
+            }
+
+            // Make sure a manifest was included in the package...
+            if (install.actions == null) {
+                throw new PackageException(XWikiException.ERROR_XWIKI_UNKNOWN, "Could not find the package definition");
+            }
+
+            // All the classes of the package are now installed (or being installed)
+            install.deferring = false;
+            status = Math.max(status, installFiles(install.deferredClasses, install, context));
+            status = Math.max(status, installFiles(install.deferredDocuments, install, context));
+
+            setStatus(status, context);
+        } catch (DocumentException e) {
+            throw new PackageException(XWikiException.ERROR_XWIKI_UNKNOWN, "Error when reading the XML");
+        } finally {
+            for (File pendingFile : pendingFiles.keySet()) {
+                pendingFile.delete();
+            }
+            for (File pendingFile : install.deferredClasses.keySet()) {
+                pendingFile.delete();
+            }
+            for (File pendingFile : install.deferredDocuments.keySet()) {
+                pendingFile.delete();
+            }
+
+            om.notify(new XARImportedEvent(), null, context);
+
+            if (install.actions != null) {
+                registerExtension(context);
+            }
+        }
+
+        return status;
+    }
+
+    /**
+     * @param is the content to write in the temporary file
+     * @return a temporary file containing the provided content
+     * @throws IOException when failing to write the file
+     */
+    private File createTemporaryFile(InputStream is) throws IOException
+    {
+        File temporaryFile = File.createTempFile("xar", ".xml", getTemporaryDirectory());
+        OutputStream os = new FileOutputStream(temporaryFile);
+        try {
+            IOUtils.copy(is, os);
+        } finally {
+            os.close();
+        }
+
+        return temporaryFile;
+    }
+
+    /**
+     * Install the documents kept in temporary files, and delete the files.
+     * 
+     * @param files the temporary files containing the documents, and the name of the package entries they come from
+     * @param install the state of the installation
+     * @param context current XWikiContext
+     * @return the status of the installation of the documents
+     * @throws IOException when failing to read a file
+     * @throws XWikiException when failing to install a document
+     */
+    private int installFiles(Map<File, String> files, StreamedInstall install, XWikiContext context)
+        throws IOException, XWikiException
+    {
+        int status = DocumentInfo.INSTALL_OK;
+
+        for (Map.Entry<File, String> file : files.entrySet()) {
+            InputStream is = new FileInputStream(file.getKey());
+            try {
+                status = Math.max(status, installDocument(file.getValue(), is, install, context));
+            } finally {
+                is.close();
+                file.getKey().delete();
+            }
+        }
+        files.clear();
+
+        return status;
+    }
+
+    /**
+     * @return the directory where to store the documents waiting for the package definition
+     */
+    private File getTemporaryDirectory()
+    {
+        File dir = new File(Utils.getComponent(Environment.class).getTemporaryDirectory(), "packaging");
+        dir.mkdirs();
+
+        return dir;
+    }
+
+    /**
+     * @param xml the package definition
+     * @return the actions to apply to the documents listed in the package definition, indexed by document name and
+     *         language
+     */
+    private Map<String, Integer> getDocumentActions(Document xml)
+    {
+        Map<String, Integer> actions = new HashMap<String, Integer>();
+
+        @SuppressWarnings("unchecked")
+        List<Element> fileList = xml.getRootElement().element("files").elements("file");
+        for (Element el : fileList) {
+            String language = el.attributeValue("language");
+            if (language == null) {
+                language = "";
+            }
+            actions.put(el.getStringValue() + ':' + language,
+                NumberUtils.toInt(el.attributeValue("defaultAction"), DocumentInfo.ACTION_NOT_DEFINED));
+        }
+
+        return actions;
+    }
+
+    /**
+     * Parse and install a document of the package being read by {@link #importAndInstall(InputStream, XWikiContext)},
+     * or keep it in a temporary file if it uses a class which is not installed yet.
+     * 
+     * @param entryName the name of the package entry containing the document
+     * @param is the XML of the document
+     * @param install the state of the installation
+     * @param context current XWikiContext
+     * @return the status of the installation of the document
+     * @throws IOException when failing to write the temporary file of a deferred document
+     * @throws XWikiException when failing to install the document
+     */
+    private int installDocument(String entryName, InputStream is, StreamedInstall install, XWikiContext context)
+        throws IOException, XWikiException
+    {
+        XWikiDocument doc;
+        try {
+            doc = readFromXML(is);
+        } catch (Throwable ex) {
+            LOGGER.warn("Failed to parse document [" + entryName + "] from XML during import, thus it will not be "
+                + "installed. The error was: " + ex.getMessage());
+            // It will be listed in the "failed documents" section after the import.
+            addToErrors(entryName.replaceAll("/", "."), context);
+
+            return DocumentInfo.INSTALL_ERROR;
+        }
+
+        String key = doc.getFullName() + ':' + doc.getLanguage();
+        BaseClass bclass = doc.getXClass();
+
+        if (install.deferring && usesPendingClass(doc, key, install)) {
+            File deferredFile = File.createTempFile("xar", ".xml", getTemporaryDirectory());
+            OutputStream os = new FileOutputStream(deferredFile);
+            try {
+                // Only the history read from the package, if any
+                doc.toXML(os, true, false, true, this.withVersions && doc.getDocumentArchive() != null, context);
+            } finally {
+                os.close();
+            }
+            if (bclass.getFieldList().isEmpty()) {
+                install.deferredDocuments.put(deferredFile, entryName);
+            } else {
+                install.deferredClasses.put(deferredFile, entryName);
+            }
+
+            return DocumentInfo.INSTALL_OK;
+        }
+        install.processed.add(key);
+
+        try {
+            this.filter(doc, context);
+        } catch (ExcludeDocumentException e) {
+            LOGGER.info("Skip the document '" + doc.getDocumentReference() + "'");
+
+            return DocumentInfo.INSTALL_OK;
+        }
+
+        Integer action = install.actions.get(key);
+        if (action == null) {
+            LOGGER.warn("document " + doc.getDocumentReference() + " does not exist in package definition."
+                + " It will not be installed.");
+            // It will be listed in the "skipped documents" section after the import.
+            addToSkipped(doc.getFullName(), context);
+
+            return DocumentInfo.INSTALL_OK;
+        }
+
+        if (!context.getWiki().checkAccess("edit", doc, context)) {
+            addToSkipped(doc.getFullName() + ":" + doc.getLanguage(), context);
+
+            return DocumentInfo.INSTALL_OK;
+        }
+
+        DocumentInfo docInfo = new DocumentInfo(doc);
+        docInfo.setAction(action);
+
+        if (bclass.getCustomMapping() != null && context.getWiki().getStore().injectCustomMapping(bclass, context)) {
+            context.getWiki().getStore().injectUpdatedCustomMappings(context);
+        }
+
+        return installDocument(docInfo, install.isAdmin, install.backup, context);
+    }
+
+    /**
+     * @param doc a document of the package being installed
+     * @param key the name and language of the document
+     * @param install the state of the installation
+     * @return true if the document has objects of a class defined by a document of the package which has not been read
+     *         yet
+     */
+    private boolean usesPendingClass(XWikiDocument doc, String key, StreamedInstall install)
+    {
+        EntityReferenceSerializer<String> serializer =
+            Utils.getComponent(EntityReferenceSerializer.TYPE_STRING, "local");
+
+        for (DocumentReference classReference : doc.getXObjects().keySet()) {
+            // Class definitions are always in the default language
+            String classKey = serializer.serialize(classReference) + ':';
+            if (!classKey.equals(key) && install.actions.containsKey(classKey)
+                && !install.processed.contains(classKey)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     private boolean documentExistInPackageFile(String docName, String language, Document xml)
     {
         Element docFiles = xml.getRootElement();
@@ -970,7 +1316,8 @@ public int getStatus(XWikiContext context)
     }
 
     /**
-     * Create a {@link XWikiDocument} from xml stream.
+     * Create a {@link XWikiDocument} from xml stream. The content of the attachments is decoded to the attachment
+     * storage while the XML is read, so it's never held in memory (see {@link AttachmentContentFilter}).
      * 
      * @param is the xml stream.
      * @return the {@link XWikiDocument}.
@@ -978,9 +1325,20 @@ public int getStatus(XWikiContext context)
      */
     private XWikiDocument readFromXML(InputStream is) throws XWikiException
     {
-        XWikiDocument doc = new XWikiDocument();
+        AttachmentContentFilter attachmentContentFilter = new AttachmentContentFilter();
+        SAXReader reader = new SAXReader();
+        reader.setXMLFilter(attachmentContentFilter);
+
+        Document domDoc;
+        try {
+            domDoc = reader.read(is);
+        } catch (DocumentException e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_DOC, XWikiException.ERROR_DOC_XML_PARSING,
+                "Error parsing xml", e, null);
+        }
 
-        doc.fromXML(is, this.withVersions);
+        XWikiDocument doc = readFromXML(domDoc);
+        attachmentContentFilter.setContents(doc);
 
         return doc;
     }
@@ -23,6 +23,7 @@
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import net.sf.json.JSONObject;
 
@@ -310,6 +311,40 @@ public int install() throws XWikiException
         return this.pack.install(getXWikiContext());
     }
 
+    /**
+     * Install the documents of a package while reading it, without loading the whole package in memory.
+     * 
+     * @param file is an InputStream of a zipped package file
+     * @return the status of the installation
+     * @throws IOException while reading the ZipFile
+     * @throws XWikiException when package content is broken
+     * @see Package#importAndInstall(InputStream, XWikiContext)
+     * @since 5.4M1
+     */
+    public int importAndInstall(InputStream file) throws IOException, XWikiException
+    {
+        return this.pack.importAndInstall(file, getXWikiContext());
+    }
+
+    /**
+     * Install the documents of a package while reading it, using the provided actions instead of the ones of the
+     * package definition.
+     * 
+     * @param file is an InputStream of a zipped package file
+     * @param documentActions the actions to apply to the documents to install, indexed by document full name and
+     *            language separated by a colon, null to use the actions of the package definition
+     * @return the status of the installation
+     * @throws IOException while reading the ZipFile
+     * @throws XWikiException when package content is broken
+     * @see Package#importAndInstall(InputStream, Map, XWikiContext)
+     * @since 5.4M1
+     */
+    public int importAndInstall(InputStream file, Map<String, Integer> documentActions) throws IOException,
+        XWikiException
+    {
+        return this.pack.importAndInstall(file, documentActions, getXWikiContext());
+    }
+
     public List<String> getErrors()
     {
         return this.pack.getErrors(getXWikiContext());
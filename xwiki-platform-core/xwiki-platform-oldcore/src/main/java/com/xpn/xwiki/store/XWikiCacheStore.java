@@ -19,9 +19,38 @@
  */
 package com.xpn.xwiki.store;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xwiki.bridge.event.DocumentCreatedEvent;
@@ -32,7 +61,11 @@
 import org.xwiki.cache.CacheException;
 import org.xwiki.cache.CacheFactory;
 import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.event.CacheEntryEvent;
+import org.xwiki.cache.event.CacheEntryListener;
 import org.xwiki.cache.eviction.LRUEvictionConfiguration;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.observation.EventListener;
 import org.xwiki.observation.ObservationManager;
@@ -42,10 +75,18 @@
 
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiAttachment;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.doc.XWikiLink;
 import com.xpn.xwiki.doc.XWikiLock;
+import com.xpn.xwiki.internal.cache.BloomFilter;
+import com.xpn.xwiki.internal.event.DocumentInvalidatedEvent;
+import com.xpn.xwiki.internal.store.DocumentCacheStatistics;
+import com.xpn.xwiki.objects.BaseCollection;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.BaseProperty;
 import com.xpn.xwiki.objects.classes.BaseClass;
+import com.xpn.xwiki.util.AbstractXWikiRunnable;
 import com.xpn.xwiki.web.Utils;
 
 /**
@@ -58,6 +99,296 @@ public class XWikiCacheStore implements XWikiCacheStoreInterface, EventListener
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(XWikiCacheStore.class);
 
+    /**
+     * The estimated memory (in bytes) used by a document, not counting its content, objects and attachments.
+     */
+    private static final int DOCUMENT_MEMORY = 2048;
+
+    /**
+     * The estimated memory (in bytes) used by an object or a class, not counting its properties.
+     */
+    private static final int OBJECT_MEMORY = 256;
+
+    /**
+     * The estimated memory (in bytes) used by a property, not counting its value.
+     */
+    private static final int PROPERTY_MEMORY = 128;
+
+    /**
+     * The estimated memory (in bytes) used by the metadata of an attachment.
+     */
+    private static final int ATTACHMENT_MEMORY = 512;
+
+    /**
+     * The number of document names to read at once when building the filter of existing documents.
+     */
+    private static final int EXISTENCE_FILTER_BATCH_SIZE = 10000;
+
+    /**
+     * The minimum number of documents which can be created in a wiki before the false positive probability of its
+     * filter of existing documents starts to exceed the configured one.
+     */
+    private static final int EXISTENCE_FILTER_HEADROOM = 10000;
+
+    /**
+     * The default maximum time (in milliseconds) to wait for a document being loaded by another thread.
+     */
+    private static final long DEFAULT_LOAD_WAIT_TIMEOUT = 10000;
+
+    /**
+     * A load of a document which is not in the cache, shared by the threads asking for the same document meanwhile.
+     * 
+     * @version $Id$
+     */
+    private static final class InFlightLoad extends FutureTask<XWikiDocument>
+    {
+        /**
+         * The thread loading the document.
+         */
+        private final Thread owner = Thread.currentThread();
+
+        /**
+         * @param callable the load of the document
+         */
+        private InFlightLoad(Callable<XWikiDocument> callable)
+        {
+            super(callable);
+        }
+
+        /**
+         * Create a load completed by a load of several documents.
+         */
+        private InFlightLoad()
+        {
+            super(new Callable<XWikiDocument>()
+            {
+                @Override
+                public XWikiDocument call() throws Exception
+                {
+                    throw new IllegalStateException("The document is loaded with other documents");
+                }
+            });
+        }
+
+        /**
+         * @param document the loaded document
+         */
+        private void complete(XWikiDocument document)
+        {
+            set(document);
+        }
+
+        /**
+         * @param error the reason why the document could not be loaded
+         */
+        private void fail(Throwable error)
+        {
+            setException(error);
+        }
+    }
+
+    /**
+     * Filter of the documents existing in a wiki. Documents created while the filter is being built are remembered and
+     * added when it's ready.
+     * 
+     * @version $Id$
+     */
+    private static final class ExistenceFilter
+    {
+        /**
+         * The bloom filter of the documents full names, null while it's being built.
+         */
+        private volatile BloomFilter bloomFilter;
+
+        /**
+         * The full names of the documents created while the filter is being built.
+         */
+        private final Set<String> pending = new HashSet<String>();
+
+        /**
+         * @return true if the filter is ready to be used
+         */
+        private boolean isReady()
+        {
+            return this.bloomFilter != null;
+        }
+
+        /**
+         * @param fullName the full name of the document
+         * @return false if the document definitely doesn't exist
+         */
+        private boolean mightContain(String fullName)
+        {
+            BloomFilter filter = this.bloomFilter;
+
+            return filter == null || filter.mightContain(fullName);
+        }
+
+        /**
+         * @param fullName the full name of an existing document
+         */
+        private synchronized void put(String fullName)
+        {
+            if (this.bloomFilter != null) {
+                this.bloomFilter.put(fullName);
+            } else {
+                this.pending.add(fullName);
+            }
+        }
+
+        /**
+         * @param filter the built bloom filter
+         */
+        private synchronized void setBloomFilter(BloomFilter filter)
+        {
+            for (String fullName : this.pending) {
+                filter.put(fullName);
+            }
+            this.pending.clear();
+
+            this.bloomFilter = filter;
+        }
+    }
+
+    /**
+     * Build the filter of the documents existing in a wiki in the background.
+     * 
+     * @version $Id$
+     */
+    private final class ExistenceFilterBuilder extends AbstractXWikiRunnable
+    {
+        /**
+         * The wiki.
+         */
+        private final String wiki;
+
+        /**
+         * The filter to build.
+         */
+        private final ExistenceFilter filter;
+
+        /**
+         * The XWiki context used to query the store.
+         */
+        private final XWikiContext xwikiContext;
+
+        /**
+         * @param wiki the wiki
+         * @param filter the filter to build
+         * @param context the XWiki context of the request asking for the filter
+         */
+        private ExistenceFilterBuilder(String wiki, ExistenceFilter filter, XWikiContext context)
+        {
+            this.wiki = wiki;
+            this.filter = filter;
+
+            this.xwikiContext = context.clone();
+            // Don't share the database session of the request
+            this.xwikiContext.remove("hibsession");
+            this.xwikiContext.remove("hibtransaction");
+        }
+
+        @Override
+        protected void declareProperties(ExecutionContext executionContext)
+        {
+            this.xwikiContext.declareInExecutionContext(executionContext);
+        }
+
+        @Override
+        protected void runInternal()
+        {
+            buildExistenceFilter(this.wiki, this.filter, this.xwikiContext);
+        }
+    }
+
+    /**
+     * The estimated memory used by a cached document.
+     * 
+     * @version $Id$
+     */
+    private static final class CachedDocumentMemory
+    {
+        /**
+         * The cached document, used to know if a document removed from the cache is the one which is accounted.
+         */
+        private final WeakReference<XWikiDocument> document;
+
+        /**
+         * The key of the cached document.
+         */
+        private final String key;
+
+        /**
+         * The estimated memory (in bytes) used by the document.
+         */
+        private final long memory;
+
+        /**
+         * The last time (as returned by {@link System#nanoTime()}) the document was found in the cache. Not updated
+         * atomically with the other cache changes since it's only used to approximate the least recently used
+         * documents.
+         */
+        private volatile long lastAccess = System.nanoTime();
+
+        /**
+         * The value of {@link #lastAccess} when the cached documents are sorted, since it can change during the sort.
+         */
+        private long sortedLastAccess;
+
+        /**
+         * @param key the key of the cached document
+         * @param document the cached document
+         * @param memory the estimated memory (in bytes) used by the document
+         */
+        private CachedDocumentMemory(String key, XWikiDocument document, long memory)
+        {
+            this.key = key;
+            this.document = new WeakReference<XWikiDocument>(document);
+            this.memory = memory;
+        }
+    }
+
+    /**
+     * Order the cached documents from the least recently used.
+     */
+    private static final Comparator<CachedDocumentMemory> LEAST_RECENTLY_USED_FIRST =
+        new Comparator<CachedDocumentMemory>()
+        {
+            @Override
+            public int compare(CachedDocumentMemory memory1, CachedDocumentMemory memory2)
+            {
+                return memory1.sortedLastAccess < memory2.sortedLastAccess ? -1
+                    : (memory1.sortedLastAccess == memory2.sortedLastAccess ? 0 : 1);
+            }
+        };
+
+    /**
+     * Keep the memory accounting of the document cache up to date when documents are removed from it.
+     * 
+     * @version $Id$
+     */
+    private class CacheMemoryListener implements CacheEntryListener<XWikiDocument>
+    {
+        @Override
+        public void cacheEntryAdded(CacheEntryEvent<XWikiDocument> event)
+        {
+            // Accounted when the document is put in the cache
+        }
+
+        @Override
+        public void cacheEntryRemoved(CacheEntryEvent<XWikiDocument> event)
+        {
+            forgetCacheMemory(event.getEntry().getKey(), event.getEntry().getValue());
+            evictOffHeapDocument(event.getEntry().getKey(), event.getEntry().getValue());
+        }
+
+        @Override
+        public void cacheEntryModified(CacheEntryEvent<XWikiDocument> event)
+        {
+            // Accounted when the document is put in the cache
+        }
+    }
+
     private XWikiStoreInterface store;
 
     private Cache<XWikiDocument> cache;
@@ -68,6 +399,125 @@ public class XWikiCacheStore implements XWikiCacheStoreInterface, EventListener
 
     private int pageExistCacheCapacity = 10000;
 
+    /**
+     * The maximum memory (in bytes) used by the documents in the cache, 0 means no limit. A quarter of the maximum heap
+     * size by default.
+     */
+    private long cacheMaxMemory = Runtime.getRuntime().maxMemory() / 4;
+
+    /**
+     * The estimated memory used by each cached document. It's not locked so it only approximates the cache content
+     * when documents are concurrently put in and removed from the cache.
+     */
+    private final ConcurrentMap<String, CachedDocumentMemory> cacheMemoryUsage =
+        new ConcurrentHashMap<String, CachedDocumentMemory>();
+
+    /**
+     * The estimated memory (in bytes) used by all the cached documents.
+     */
+    private final AtomicLong cacheMemory = new AtomicLong();
+
+    /**
+     * Held by the thread removing the least recently used documents when the maximum memory is exceeded, the other
+     * threads don't wait for it.
+     */
+    private final Lock cacheTrimLock = new ReentrantLock();
+
+    /**
+     * The number of documents found in the cache.
+     */
+    private final AtomicLong cacheHitCount = new AtomicLong();
+
+    /**
+     * The number of documents not found in the cache.
+     */
+    private final AtomicLong cacheMissCount = new AtomicLong();
+
+    /**
+     * The number of documents removed from the cache because the maximum memory was exceeded.
+     */
+    private final AtomicLong cacheEvictionCount = new AtomicLong();
+
+    /**
+     * The documents currently being loaded because they were not found in the cache. Concurrent requests for the same
+     * document wait for the load in progress instead of loading it again.
+     */
+    private final ConcurrentMap<String, InFlightLoad> inFlightLoads = new ConcurrentHashMap<String, InFlightLoad>();
+
+    /**
+     * The loads in progress each thread is waiting for, used to detect threads waiting for each other.
+     */
+    private final ConcurrentMap<Thread, InFlightLoad> waitedLoads = new ConcurrentHashMap<Thread, InFlightLoad>();
+
+    /**
+     * The maximum time (in milliseconds) to wait for a document being loaded by another thread before loading it
+     * directly.
+     */
+    private long loadWaitTimeout = DEFAULT_LOAD_WAIT_TIMEOUT;
+
+    /**
+     * The number of documents not found in the cache for which a load already in progress has been waited for.
+     */
+    private final AtomicLong coalescedLoadCount = new AtomicLong();
+
+    /**
+     * The filters of the existing documents, indexed by wiki.
+     */
+    private final ConcurrentMap<String, ExistenceFilter> existenceFilters =
+        new ConcurrentHashMap<String, ExistenceFilter>();
+
+    /**
+     * Build the filters of the existing documents in the background, one wiki at a time.
+     */
+    private final ThreadPoolExecutor existenceFilterExecutor;
+
+    /**
+     * Indicate if the filters of the existing documents are used.
+     */
+    private boolean existenceFilterEnabled = true;
+
+    /**
+     * The wanted probability that the filters of existing documents answer that a missing document may exist.
+     */
+    private double existenceFilterFalsePositiveProbability = 0.01;
+
+    /**
+     * The number of missing documents detected by the filters of existing documents without asking the store.
+     */
+    private final AtomicLong existenceFilterNegativeCount = new AtomicLong();
+
+    /**
+     * The number of missing documents the filters of existing documents failed to detect.
+     */
+    private final AtomicLong existenceFilterFalsePositiveCount = new AtomicLong();
+
+    /**
+     * Second level cache storing the documents serialized outside of the Java heap, null when disabled.
+     */
+    private Cache<byte[]> offHeapCache;
+
+    /**
+     * The maximum number of documents in the second level cache, 0 means that it's disabled.
+     */
+    private int offHeapCacheCapacity;
+
+    /**
+     * The maximum memory (in bytes) used by the serialized documents in the second level cache, 0 means no limit.
+     */
+    private long offHeapCacheMaxMemory;
+
+    /**
+     * The number of documents not found in the cache but found in the second level cache.
+     */
+    private final AtomicLong offHeapCacheHitCount = new AtomicLong();
+
+    /**
+     * Incremented at the beginning and at the end of each removal of an outdated document from the caches (so it is odd
+     * while a removal is in progress). Used to make sure that a document evicted from the cache and being moved to the
+     * second level cache is not an outdated one.
+     */
+    private final AtomicLong invalidationSequence = new AtomicLong();
+
     /**
      * Used to know if a received event is a local or remote one.
      */
@@ -83,12 +533,42 @@ public XWikiCacheStore(XWikiStoreInterface store, XWikiContext context) throws X
         setStore(store);
         initCache(context);
 
+        BasicThreadFactory factory =
+            new BasicThreadFactory.Builder().namingPattern("XWiki document existence filter builder").daemon(true)
+                .priority(Thread.MIN_PRIORITY).build();
+        this.existenceFilterExecutor =
+            new ThreadPoolExecutor(1, 1, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(), factory);
+        // Don't keep an idle thread once the filters are built
+        this.existenceFilterExecutor.allowCoreThreadTimeOut(true);
+
+        // Start building the filter of the main wiki right away
+        getExistenceFilter(context.getMainXWiki(), context);
+
+        registerStatistics();
+
         // register XWikiCacheStore as listener to remote document events
         this.remoteObservationManagerContext = Utils.getComponent(RemoteObservationManagerContext.class);
         this.observationManager = Utils.getComponent(ObservationManager.class);
         this.observationManager.addListener(this);
     }
 
+    /**
+     * Expose the statistics of the cache through JMX, replacing the ones of a previous instance.
+     */
+    private void registerStatistics()
+    {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(DocumentCacheStatistics.OBJECT_NAME);
+            if (mbs.isRegistered(name)) {
+                mbs.unregisterMBean(name);
+            }
+            mbs.registerMBean(new DocumentCacheStatistics(this), name);
+        } catch (Exception e) {
+            LOGGER.warn("Failed to register the document cache statistics against the JMX server", e);
+        }
+    }
+
     @Override
     public String getName()
     {
@@ -99,7 +579,7 @@ public String getName()
     public List<Event> getEvents()
     {
         return Arrays.<Event> asList(new DocumentCreatedEvent(), new DocumentUpdatedEvent(),
-            new DocumentDeletedEvent(), new WikiDeletedEvent());
+            new DocumentDeletedEvent(), new DocumentInvalidatedEvent(), new WikiDeletedEvent());
     }
 
     public synchronized void initCache(XWikiContext context) throws XWikiException
@@ -119,6 +599,42 @@ public synchronized void initCache(XWikiContext context) throws XWikiException
                 }
             } catch (Exception e) {
             }
+            try {
+                String maxMemory = context.getWiki().Param("xwiki.store.cache.maxMemory");
+                if (maxMemory != null) {
+                    this.cacheMaxMemory = Long.parseLong(maxMemory);
+                }
+            } catch (Exception e) {
+            }
+            try {
+                String timeout = context.getWiki().Param("xwiki.store.cache.loadWaitTimeout");
+                if (timeout != null) {
+                    this.loadWaitTimeout = Long.parseLong(timeout);
+                }
+            } catch (Exception e) {
+            }
+            this.existenceFilterEnabled = !"0".equals(context.getWiki().Param("xwiki.store.cache.existfilter"));
+            try {
+                String probability = context.getWiki().Param("xwiki.store.cache.existfilter.fpp");
+                if (probability != null) {
+                    this.existenceFilterFalsePositiveProbability = Double.parseDouble(probability);
+                }
+            } catch (Exception e) {
+            }
+            try {
+                String capacity = context.getWiki().Param("xwiki.store.cache.offheap.capacity");
+                if (capacity != null) {
+                    this.offHeapCacheCapacity = Integer.parseInt(capacity);
+                }
+            } catch (Exception e) {
+            }
+            try {
+                String maxMemory = context.getWiki().Param("xwiki.store.cache.offheap.maxMemory");
+                if (maxMemory != null) {
+                    this.offHeapCacheMaxMemory = Long.parseLong(maxMemory);
+                }
+            } catch (Exception e) {
+            }
             initCache(this.cacheCapacity, this.pageExistCacheCapacity, context);
         }
     }
@@ -135,172 +651,989 @@ public void initCache(int capacity, int pageExistCacheCapacity, XWikiContext con
             lru.setMaxEntries(capacity);
             cacheConfiguration.put(LRUEvictionConfiguration.CONFIGURATIONID, lru);
 
-            Cache<XWikiDocument> pageCache = cacheFactory.newCache(cacheConfiguration);
-            setCache(pageCache);
+            Cache<XWikiDocument> pageCache = cacheFactory.newCache(cacheConfiguration);
+            pageCache.addCacheEntryListener(new CacheMemoryListener());
+            setCache(pageCache);
+
+            cacheConfiguration = new CacheConfiguration();
+            cacheConfiguration.setConfigurationId("xwiki.store.pageexistcache");
+            lru = new LRUEvictionConfiguration();
+            lru.setMaxEntries(pageExistCacheCapacity);
+            cacheConfiguration.put(LRUEvictionConfiguration.CONFIGURATIONID, lru);
+
+            Cache<Boolean> pageExistcache = cacheFactory.newCache(cacheConfiguration);
+            setPageExistCache(pageExistcache);
+
+            initOffHeapCache();
+        } catch (CacheException e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_CACHE, XWikiException.ERROR_CACHE_INITIALIZING,
+                "Failed to initialize cache", e);
+        }
+    }
+
+    /**
+     * Create the second level cache if it's enabled.
+     * 
+     * @throws CacheException when failing to create the cache
+     */
+    private void initOffHeapCache() throws CacheException
+    {
+        if (this.offHeapCacheCapacity > 0 && this.offHeapCache == null) {
+            CacheFactory offHeapCacheFactory;
+            try {
+                offHeapCacheFactory = Utils.getComponent(CacheFactory.class, "offheap");
+            } catch (RuntimeException e) {
+                LOGGER.warn("The off-heap document cache is enabled but no off-heap cache implementation is available",
+                    e);
+
+                return;
+            }
+
+            CacheConfiguration cacheConfiguration = new CacheConfiguration();
+            cacheConfiguration.setConfigurationId("xwiki.store.pagecache.offheap");
+            LRUEvictionConfiguration lru = new LRUEvictionConfiguration();
+            lru.setMaxEntries(this.offHeapCacheCapacity);
+            lru.setMaxMemory(this.offHeapCacheMaxMemory);
+            cacheConfiguration.put(LRUEvictionConfiguration.CONFIGURATIONID, lru);
+
+            this.offHeapCache = offHeapCacheFactory.newCache(cacheConfiguration);
+        }
+    }
+
+    @Override
+    public XWikiStoreInterface getStore()
+    {
+        return this.store;
+    }
+
+    @Override
+    public void setStore(XWikiStoreInterface store)
+    {
+        this.store = store;
+    }
+
+    @Override
+    public void saveXWikiDoc(XWikiDocument doc, XWikiContext context) throws XWikiException
+    {
+        saveXWikiDoc(doc, context, true);
+    }
+
+    @Override
+    public void saveXWikiDoc(XWikiDocument doc, XWikiContext context, boolean bTransaction) throws XWikiException
+    {
+        String key = doc.getKey();
+        // Before saving so that the document is never reported as missing once it exists, and after saving in case
+        // the filter started to be built in between
+        addToExistenceFilter(doc);
+        this.store.saveXWikiDoc(doc, context, bTransaction);
+        addToExistenceFilter(doc);
+        doc.setStore(this.store);
+        // Make sure cache is initialized
+        initCache(context);
+
+        // We need to flush so that caches
+        // on the cluster are informed about the change
+        removeCachedDocument(key);
+        getPageExistCache().remove(key);
+        // Don't give the document being loaded before the save to the threads asking for it from now
+        this.inFlightLoads.remove(key);
+
+        /*
+         * We do not want to save the document in the cache at this time. If we did, this would introduce the
+         * possibility for cache incoherence if the document is not saved in the database properly. In addition, the
+         * attachments uploaded to the document stay with it so we want the document in it's current form to be garbage
+         * collected as soon as the request is complete.
+         */
+    }
+
+    @Override
+    public void flushCache()
+    {
+        if (this.cache != null) {
+            this.cache.dispose();
+            this.cache = null;
+        }
+
+        this.cacheMemoryUsage.clear();
+        this.cacheMemory.set(0);
+
+        if (this.pageExistCache != null) {
+            this.pageExistCache.dispose();
+            this.pageExistCache = null;
+        }
+
+        if (this.offHeapCache != null) {
+            this.offHeapCache.dispose();
+            this.offHeapCache = null;
+        }
+
+        this.existenceFilters.clear();
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        // Documents can be created without going through this store (or on another cluster member)
+        if (event instanceof DocumentCreatedEvent
+            || (event instanceof DocumentInvalidatedEvent && data != null)) {
+            addToExistenceFilter((XWikiDocument) source);
+        }
+
+        // only react to remote events since local actions are already taken into account
+        if (this.remoteObservationManagerContext.isRemoteState()) {
+            if (event instanceof WikiDeletedEvent) {
+                flushCache();
+            } else {
+                XWikiDocument doc = (XWikiDocument) source;
+
+                String key = doc.getKey();
+
+                removeCachedDocument(key);
+                if (getPageExistCache() != null) {
+                    getPageExistCache().remove(key);
+                }
+                this.inFlightLoads.remove(key);
+            }
+        }
+    }
+
+    @Deprecated
+    public String getKey(XWikiDocument doc)
+    {
+        return doc.getKey();
+    }
+
+    /**
+     * @deprecated since 4.0M1 use {@link com.xpn.xwiki.doc.XWikiDocument#getKey()}
+     */
+    @Deprecated
+    public String getKey(XWikiDocument doc, XWikiContext context)
+    {
+        return doc.getKey();
+    }
+
+    /**
+     * @deprecated since 4.0M1 use {@link com.xpn.xwiki.doc.XWikiDocument#getKey()}
+     */
+    @Deprecated
+    public String getKey(String fullName, String language, XWikiContext context)
+    {
+        XWikiDocument doc = new XWikiDocument(null, fullName);
+        doc.setLanguage(language);
+        return doc.getKey();
+    }
+
+    /**
+     * @deprecated since 4.0M1 use {@link com.xpn.xwiki.doc.XWikiDocument#getKey()}
+     */
+    @Deprecated
+    public String getKey(final String wiki, final String fullName, final String language)
+    {
+        XWikiDocument doc = new XWikiDocument(wiki, null, fullName);
+        doc.setLanguage(language);
+        return doc.getKey();
+    }
+
+    @Override
+    public XWikiDocument loadXWikiDoc(XWikiDocument doc, XWikiContext context) throws XWikiException
+    {
+        String key = doc.getKey();
+
+        LOGGER.debug("Cache: begin for doc {} in cache", key);
+
+        // Make sure cache is initialized
+        initCache(context);
+
+        LOGGER.debug("Cache: Trying to get doc {} from cache", key);
+
+        XWikiDocument cachedoc = getCache().get(key);
+
+        if (cachedoc != null) {
+            doc = cachedoc;
+            doc.setFromCache(true);
+            touchCacheMemory(key);
+
+            LOGGER.debug("Cache: got doc {} from cache", key);
+        } else {
+            this.cacheMissCount.incrementAndGet();
+
+            if (isMissing(doc, context)) {
+                doc = newMissingXWikiDoc(doc);
+            } else {
+                doc = loadMissingXWikiDoc(key, doc, context);
+            }
+        }
+
+        LOGGER.debug("Cache: end for doc {} in cache", key);
+
+        return doc;
+    }
+
+    /**
+     * Load a document which is not in the cache. Only one thread loads a given document at a time, the other threads
+     * asking for the same document wait for the result of this load.
+     * 
+     * @param key the key of the document
+     * @param doc the document to load
+     * @param context the XWiki context
+     * @return the loaded document
+     * @throws XWikiException when failing to load the document
+     */
+    private XWikiDocument loadMissingXWikiDoc(final String key, final XWikiDocument doc, final XWikiContext context)
+        throws XWikiException
+    {
+        InFlightLoad load = new InFlightLoad(new Callable<XWikiDocument>()
+        {
+            @Override
+            public XWikiDocument call() throws Exception
+            {
+                return loadAndCacheXWikiDoc(key, doc, context);
+            }
+        });
+
+        InFlightLoad inFlightLoad = this.inFlightLoads.putIfAbsent(key, load);
+        if (inFlightLoad == null) {
+            try {
+                load.run();
+            } finally {
+                this.inFlightLoads.remove(key, load);
+            }
+
+            try {
+                // Already done
+                return getLoadedXWikiDoc(key, load, 0);
+            } catch (TimeoutException e) {
+                // Can't happen since the load is done
+                return loadAndCacheXWikiDoc(key, doc, context);
+            }
+        } else {
+            XWikiDocument loadedDoc = waitForLoadedXWikiDoc(key, inFlightLoad);
+
+            if (loadedDoc == null) {
+                return loadAndCacheXWikiDoc(key, doc, context);
+            }
+
+            loadedDoc.setFromCache(true);
+
+            return loadedDoc;
+        }
+    }
+
+    /**
+     * Wait for a document being loaded by another thread. Give up when the other thread is itself (directly or not)
+     * waiting for the current thread, when the load takes too long or when it ends without the document, in which
+     * case the caller is expected to load the document directly.
+     * 
+     * @param key the key of the document
+     * @param load the load of the document in progress
+     * @return the loaded document or null if the document should be loaded directly
+     * @throws XWikiException when the load failed
+     */
+    private XWikiDocument waitForLoadedXWikiDoc(String key, InFlightLoad load) throws XWikiException
+    {
+        Thread thread = Thread.currentThread();
+
+        // Registered before looking for a cycle so that, out of two threads waiting for each other, at least one sees
+        // the cycle
+        this.waitedLoads.put(thread, load);
+        try {
+            if (!load.isDone() && isWaitingFor(load, thread)) {
+                LOGGER.debug("Cache: not waiting for doc {} being loaded by a thread waiting for the current thread",
+                    key);
+
+                return null;
+            }
+
+            this.coalescedLoadCount.incrementAndGet();
+            waitingForLoad(key);
+
+            LOGGER.debug("Cache: waiting for doc {} being loaded by another thread", key);
+
+            return getLoadedXWikiDoc(key, load, this.loadWaitTimeout);
+        } catch (CancellationException e) {
+            LOGGER.debug("Cache: doc {} was not returned by the load of several documents waited for", key);
+
+            return null;
+        } catch (TimeoutException e) {
+            LOGGER.warn("Gave up waiting for document [{}] being loaded by thread [{}] after [{}] ms, loading it again",
+                key, load.owner.getName(), this.loadWaitTimeout);
+
+            return null;
+        } finally {
+            this.waitedLoads.remove(thread);
+        }
+    }
+
+    /**
+     * Called when the current thread starts waiting for a document loaded by another thread. Does nothing, it only
+     * gives the tests a synchronization point.
+     * 
+     * @param key the key of the document
+     */
+    void waitingForLoad(String key)
+    {
+        // Nothing to do
+    }
+
+    /**
+     * @param load a load in progress
+     * @param thread a thread
+     * @return true if the passed load can't complete before the passed thread stops waiting
+     */
+    private boolean isWaitingFor(InFlightLoad load, Thread thread)
+    {
+        // Follow the chain of owners waiting for other loads
+        Set<Thread> owners = new HashSet<Thread>();
+        InFlightLoad next = load;
+        while (next != null && owners.add(next.owner)) {
+            if (next.owner == thread) {
+                return true;
+            }
+            next = this.waitedLoads.get(next.owner);
+        }
+
+        return false;
+    }
+
+    /**
+     * @param key the key of the document
+     * @param load the load of the document
+     * @param timeout the maximum time (in milliseconds) to wait for the load to complete
+     * @return the loaded document
+     * @throws XWikiException when the load failed
+     * @throws TimeoutException when the load didn't complete in time
+     */
+    private XWikiDocument getLoadedXWikiDoc(String key, FutureTask<XWikiDocument> load, long timeout)
+        throws XWikiException, TimeoutException
+    {
+        try {
+            return load.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+                XWikiException.ERROR_XWIKI_STORE_HIBERNATE_READING_DOC, "Interrupted while loading document [" + key
+                    + "]", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof XWikiException) {
+                throw (XWikiException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+                XWikiException.ERROR_XWIKI_STORE_HIBERNATE_READING_DOC, "Failed to load document [" + key + "]",
+                cause);
+        }
+    }
+
+    /**
+     * Load a document from the second level cache or the underlying store and put it in the cache.
+     * 
+     * @param key the key of the document
+     * @param doc the document to load
+     * @param context the XWiki context
+     * @return the loaded document
+     * @throws XWikiException when failing to load the document
+     */
+    private XWikiDocument loadAndCacheXWikiDoc(String key, XWikiDocument doc, XWikiContext context)
+        throws XWikiException
+    {
+        XWikiDocument loadedDoc = getOffHeapDocument(key, doc, context);
+
+        if (loadedDoc != null) {
+            LOGGER.debug("Cache: got doc {} from off-heap cache", key);
+        } else {
+            LOGGER.debug("Cache: Trying to get doc {} from persistent storage", key);
+
+            loadedDoc = this.store.loadXWikiDoc(doc, context);
+
+            LOGGER.debug("Cache: Got doc {} from storage", key);
+        }
+        loadedDoc.setStore(this.store);
+
+        setCachedDocument(key, loadedDoc);
+        getPageExistCache().set(key, new Boolean(!loadedDoc.isNew()));
+
+        LOGGER.debug("Cache: put doc {} in cache", key);
+
+        return loadedDoc;
+    }
+
+    @Override
+    public List<XWikiDocument> loadXWikiDocs(Collection<DocumentReference> documentReferences, XWikiContext context)
+        throws XWikiException
+    {
+        // Make sure cache is initialized
+        initCache(context);
+
+        List<XWikiDocument> documents = new ArrayList<XWikiDocument>(documentReferences.size());
+
+        // Only ask the persistent storage for the documents which are not in the cache and not already being loaded
+        List<DocumentReference> missingReferences = new ArrayList<DocumentReference>();
+        List<Integer> missingIndexes = new ArrayList<Integer>();
+        List<String> missingKeys = new ArrayList<String>();
+        List<InFlightLoad> missingLoads = new ArrayList<InFlightLoad>();
+        List<Integer> coalescedIndexes = new ArrayList<Integer>();
+        List<XWikiDocument> coalescedDocuments = new ArrayList<XWikiDocument>();
+        List<InFlightLoad> coalescedLoads = new ArrayList<InFlightLoad>();
+        for (DocumentReference documentReference : documentReferences) {
+            XWikiDocument doc = new XWikiDocument(documentReference.getLocale() != null ? new DocumentReference(
+                documentReference, (Locale) null) : documentReference);
+            doc.setLocale(documentReference.getLocale());
+
+            String key = doc.getKey();
+            XWikiDocument cachedoc = getCache().get(key);
+            if (cachedoc != null) {
+                cachedoc.setFromCache(true);
+                touchCacheMemory(key);
+            } else {
+                this.cacheMissCount.incrementAndGet();
+
+                if (isMissing(doc, context)) {
+                    cachedoc = newMissingXWikiDoc(doc);
+                } else {
+                    cachedoc = getOffHeapDocument(key, doc, context);
+                    if (cachedoc != null) {
+                        cachedoc.setStore(this.store);
+                        setCachedDocument(key, cachedoc);
+                        getPageExistCache().set(key, Boolean.TRUE);
+                    } else {
+                        InFlightLoad load = new InFlightLoad();
+                        InFlightLoad inFlightLoad = this.inFlightLoads.putIfAbsent(key, load);
+                        if (inFlightLoad == null) {
+                            missingReferences.add(documentReference);
+                            missingIndexes.add(documents.size());
+                            missingKeys.add(key);
+                            missingLoads.add(load);
+                        } else {
+                            coalescedIndexes.add(documents.size());
+                            coalescedDocuments.add(doc);
+                            coalescedLoads.add(inFlightLoad);
+                        }
+                    }
+                }
+            }
+            documents.add(cachedoc);
+        }
+
+        LOGGER.debug("Cache: got [{}] documents from cache, trying to get [{}] from persistent storage and waiting for"
+            + " [{}] being loaded by other threads", documents.size() - missingReferences.size()
+            - coalescedIndexes.size(), missingReferences.size(), coalescedIndexes.size());
+
+        if (!missingReferences.isEmpty()) {
+            List<XWikiDocument> loadedDocuments =
+                loadMissingXWikiDocs(missingReferences, missingKeys, missingLoads, context);
+            for (int i = 0; i < loadedDocuments.size(); ++i) {
+                documents.set(missingIndexes.get(i), loadedDocuments.get(i));
+            }
+        }
+
+        // Wait for the documents being loaded by other threads once ours are loaded, so that none of them waits for us
+        for (int i = 0; i < coalescedLoads.size(); ++i) {
+            String key = coalescedDocuments.get(i).getKey();
+
+            XWikiDocument doc = waitForLoadedXWikiDoc(key, coalescedLoads.get(i));
+            if (doc == null) {
+                doc = loadAndCacheXWikiDoc(key, coalescedDocuments.get(i), context);
+            } else {
+                doc.setFromCache(true);
+            }
+
+            documents.set(coalescedIndexes.get(i), doc);
+        }
+
+        return documents;
+    }
+
+    /**
+     * Load several documents from the underlying store, put them in the cache and give them to the threads waiting for
+     * them.
+     * 
+     * @param references the references of the documents to load
+     * @param keys the keys of the documents to load
+     * @param loads the loads of the documents, registered as in progress
+     * @param context the XWiki context
+     * @return the loaded documents
+     * @throws XWikiException when failing to load the documents
+     */
+    private List<XWikiDocument> loadMissingXWikiDocs(List<DocumentReference> references, List<String> keys,
+        List<InFlightLoad> loads, XWikiContext context) throws XWikiException
+    {
+        try {
+            List<XWikiDocument> loadedDocuments = this.store.loadXWikiDocs(references, context);
+            for (int i = 0; i < loadedDocuments.size(); ++i) {
+                XWikiDocument doc = loadedDocuments.get(i);
+                doc.setStore(this.store);
+
+                String key = keys.get(i);
+                setCachedDocument(key, doc);
+                getPageExistCache().set(key, new Boolean(!doc.isNew()));
+
+                loads.get(i).complete(doc);
+            }
+
+            return loadedDocuments;
+        } catch (XWikiException e) {
+            failXWikiDocLoads(loads, e);
+
+            throw e;
+        } catch (RuntimeException e) {
+            failXWikiDocLoads(loads, e);
+
+            throw e;
+        } finally {
+            for (int i = 0; i < loads.size(); ++i) {
+                // Let the threads waiting for a document the store didn't return load it themselves
+                loads.get(i).cancel(false);
+
+                this.inFlightLoads.remove(keys.get(i), loads.get(i));
+            }
+        }
+    }
+
+    /**
+     * @param loads the loads which failed
+     * @param error the reason of the failure, given to the threads waiting for the loads
+     */
+    private void failXWikiDocLoads(List<InFlightLoad> loads, Throwable error)
+    {
+        for (InFlightLoad load : loads) {
+            if (!load.isDone()) {
+                load.fail(error);
+            }
+        }
+    }
+
+    /**
+     * Rebuild a document from its serialized version stored in the second level cache.
+     * 
+     * @param key the key of the document
+     * @param doc the document to load
+     * @param context the XWiki context
+     * @return the document or null if it's not in the second level cache
+     */
+    private XWikiDocument getOffHeapDocument(String key, XWikiDocument doc, XWikiContext context)
+    {
+        Cache<byte[]> l2cache = this.offHeapCache;
+
+        if (l2cache == null) {
+            return null;
+        }
+
+        byte[] xml = l2cache.get(key);
+
+        if (xml == null) {
+            return null;
+        }
+
+        // The document reference is resolved against the current wiki
+        String currentWiki = context.getDatabase();
+        try {
+            context.setDatabase(doc.getDatabase());
+
+            XWikiDocument offHeapDoc = new XWikiDocument(doc.getDocumentReference());
+            offHeapDoc.fromXML(new ByteArrayInputStream(xml), false);
+            offHeapDoc.setDatabase(doc.getDatabase());
+            restoreCustomObjects(offHeapDoc, context);
+            offHeapDoc.setNew(false);
+            offHeapDoc.setMostRecent(true);
+            offHeapDoc.setContentDirty(false);
+            offHeapDoc.setMetaDataDirty(false);
+            offHeapDoc.setOriginalDocument(offHeapDoc.clone());
+
+            this.offHeapCacheHitCount.incrementAndGet();
+
+            return offHeapDoc;
+        } catch (Exception e) {
+            LOGGER.warn("Failed to read document [{}] from the off-heap cache", key, e);
+
+            l2cache.remove(key);
+
+            return null;
+        } finally {
+            context.setDatabase(currentWiki);
+        }
+    }
+
+    /**
+     * Parsing the XML of a document only creates plain {@link BaseObject}s so replace the objects whose class declares a
+     * custom implementation the same way the underlying store does when loading them.
+     * 
+     * @param doc the document rebuilt from the second level cache
+     * @param context the XWiki context
+     * @throws XWikiException when failing to get the class of an object
+     */
+    private void restoreCustomObjects(XWikiDocument doc, XWikiContext context) throws XWikiException
+    {
+        for (List<BaseObject> objects : new ArrayList<List<BaseObject>>(doc.getXObjects().values())) {
+            for (BaseObject object : new ArrayList<BaseObject>(objects)) {
+                if (object == null) {
+                    continue;
+                }
+
+                DocumentReference classReference = object.getXClassReference();
+                BaseObject customObject;
+                if (classReference.equals(doc.getDocumentReference())) {
+                    customObject = doc.getXClass().newCustomClassInstance(context);
+                } else {
+                    customObject = BaseClass.newCustomClassInstance(classReference, context);
+                }
+
+                if (customObject.getClass() != object.getClass()) {
+                    customObject.setDocumentReference(object.getDocumentReference());
+                    customObject.setXClassReference(object.getRelativeXClassReference());
+                    customObject.setGuid(object.getGuid());
+                    for (String name : object.getPropertyList()) {
+                        customObject.safeput(name, object.safeget(name));
+                    }
+
+                    doc.setXObject(object.getNumber(), customObject);
+                }
+            }
+        }
+    }
+
+    /**
+     * Move a document evicted from the cache to the second level cache, so that the documents are only serialized when
+     * they leave the cache. Nothing is done for a document removed from the cache because it's outdated.
+     * 
+     * @param key the key of the document removed from the cache
+     * @param doc the document removed from the cache, null if unknown
+     */
+    private void evictOffHeapDocument(String key, XWikiDocument doc)
+    {
+        Cache<byte[]> l2cache = this.offHeapCache;
+        Cache<XWikiDocument> l1cache = getCache();
+
+        if (l2cache == null || doc == null || doc.isNew()) {
+            return;
+        }
+
+        long sequence = this.invalidationSequence.get();
+        // Skip outdated documents, documents which have already been replaced in the cache and documents which are
+        // still in the second level cache since they were read from it
+        if ((sequence & 1) != 0 || (l1cache != null && l1cache.get(key) != null) || l2cache.get(key) != null) {
+            return;
+        }
+
+        XWikiContext context = getXWikiContext();
+        if (context == null) {
+            LOGGER.debug("Cache: no context to serialize evicted doc {}", key);
+
+            return;
+        }
+
+        setOffHeapDocument(key, doc, context);
+
+        // The document has been invalidated while it was serialized
+        if (this.invalidationSequence.get() != sequence) {
+            l2cache.remove(key);
+        }
+    }
+
+    /**
+     * Store a serialized version of the document in the second level cache. Attachments content and archives are not
+     * included since they are lazily loaded from the store.
+     * 
+     * @param key the key of the document
+     * @param doc the document to store
+     * @param context the XWiki context
+     */
+    private void setOffHeapDocument(String key, XWikiDocument doc, XWikiContext context)
+    {
+        Cache<byte[]> l2cache = this.offHeapCache;
+
+        if (l2cache != null && !doc.isNew()) {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                doc.toXML(out, true, false, false, false, context);
 
-            cacheConfiguration = new CacheConfiguration();
-            cacheConfiguration.setConfigurationId("xwiki.store.pageexistcache");
-            lru = new LRUEvictionConfiguration();
-            lru.setMaxEntries(pageExistCacheCapacity);
-            cacheConfiguration.put(LRUEvictionConfiguration.CONFIGURATIONID, lru);
+                l2cache.set(key, out.toByteArray());
+            } catch (Exception e) {
+                LOGGER.warn("Failed to store document [{}] in the off-heap cache", key, e);
+            }
+        }
+    }
 
-            Cache<Boolean> pageExistcache = cacheFactory.newCache(cacheConfiguration);
-            setPageExistCache(pageExistcache);
-        } catch (CacheException e) {
-            throw new XWikiException(XWikiException.MODULE_XWIKI_CACHE, XWikiException.ERROR_CACHE_INITIALIZING,
-                "Failed to initialize cache", e);
+    /**
+     * Remove an outdated document from the cache and from the second level cache. Unlike an evicted document, it's not
+     * moved to the second level cache.
+     * 
+     * @param key the key of the document to remove
+     */
+    private void removeCachedDocument(String key)
+    {
+        this.invalidationSequence.incrementAndGet();
+        try {
+            Cache<XWikiDocument> l1cache = getCache();
+            if (l1cache != null) {
+                l1cache.remove(key);
+            }
+            removeOffHeapDocument(key);
+        } finally {
+            this.invalidationSequence.incrementAndGet();
         }
     }
 
-    @Override
-    public XWikiStoreInterface getStore()
+    /**
+     * @return the XWiki context of the current thread, null if there is none
+     */
+    private XWikiContext getXWikiContext()
     {
-        return this.store;
+        ExecutionContext executionContext = Utils.getComponent(Execution.class).getContext();
+
+        return executionContext != null ? (XWikiContext) executionContext.getProperty(
+            XWikiContext.EXECUTIONCONTEXT_KEY) : null;
     }
 
-    @Override
-    public void setStore(XWikiStoreInterface store)
+    /**
+     * @param key the key of the document to remove from the second level cache
+     */
+    private void removeOffHeapDocument(String key)
     {
-        this.store = store;
+        Cache<byte[]> l2cache = this.offHeapCache;
+
+        if (l2cache != null) {
+            l2cache.remove(key);
+        }
     }
 
-    @Override
-    public void saveXWikiDoc(XWikiDocument doc, XWikiContext context) throws XWikiException
+    /**
+     * Put a document in the cache and remove the least recently used documents if the maximum memory is exceeded.
+     * 
+     * @param key the key of the document
+     * @param doc the document to cache
+     */
+    private void setCachedDocument(String key, XWikiDocument doc)
     {
-        saveXWikiDoc(doc, context, true);
+        long memory = getMemory(doc);
+
+        getCache().set(key, doc);
+
+        CachedDocumentMemory previous =
+            this.cacheMemoryUsage.put(key, new CachedDocumentMemory(key, doc, memory));
+        if (previous != null) {
+            memory -= previous.memory;
+        }
+
+        if (this.cacheMemory.addAndGet(memory) > this.cacheMaxMemory && this.cacheMaxMemory > 0) {
+            trimCacheMemory();
+        }
     }
 
-    @Override
-    public void saveXWikiDoc(XWikiDocument doc, XWikiContext context, boolean bTransaction) throws XWikiException
+    /**
+     * Remove the least recently used documents from the cache until the memory they use is back under 90% of the
+     * maximum memory, so that the (costly) sort of the cached documents is not done each time a document is added.
+     * Skipped when another thread is already doing it.
+     */
+    private void trimCacheMemory()
     {
-        String key = doc.getKey();
-        this.store.saveXWikiDoc(doc, context, bTransaction);
-        doc.setStore(this.store);
-        // Make sure cache is initialized
-        initCache(context);
+        if (this.cacheTrimLock.tryLock()) {
+            try {
+                long targetMemory = this.cacheMaxMemory - this.cacheMaxMemory / 10;
+                if (this.cacheMemory.get() <= targetMemory) {
+                    return;
+                }
 
-        // We need to flush so that caches
-        // on the cluster are informed about the change
-        getCache().remove(key);
-        getPageExistCache().remove(key);
+                List<CachedDocumentMemory> usage = new ArrayList<CachedDocumentMemory>(this.cacheMemoryUsage.values());
+                for (CachedDocumentMemory cachedDocumentMemory : usage) {
+                    cachedDocumentMemory.sortedLastAccess = cachedDocumentMemory.lastAccess;
+                }
+                Collections.sort(usage, LEAST_RECENTLY_USED_FIRST);
 
-        /*
-         * We do not want to save the document in the cache at this time. If we did, this would introduce the
-         * possibility for cache incoherence if the document is not saved in the database properly. In addition, the
-         * attachments uploaded to the document stay with it so we want the document in it's current form to be garbage
-         * collected as soon as the request is complete.
-         */
+                for (Iterator<CachedDocumentMemory> it = usage.iterator(); this.cacheMemory.get() > targetMemory
+                    && it.hasNext();) {
+                    CachedDocumentMemory leastRecentlyUsed = it.next();
+                    if (this.cacheMemoryUsage.remove(leastRecentlyUsed.key, leastRecentlyUsed)) {
+                        this.cacheMemory.addAndGet(-leastRecentlyUsed.memory);
+                        this.cacheEvictionCount.incrementAndGet();
+
+                        getCache().remove(leastRecentlyUsed.key);
+                    }
+                }
+            } finally {
+                this.cacheTrimLock.unlock();
+            }
+        }
     }
 
-    @Override
-    public void flushCache()
+    /**
+     * Count a cache hit and mark the document as recently used.
+     * 
+     * @param key the key of the document found in the cache
+     */
+    private void touchCacheMemory(String key)
     {
-        if (this.cache != null) {
-            this.cache.dispose();
-            this.cache = null;
+        this.cacheHitCount.incrementAndGet();
+
+        // The usage order only matters when the memory is limited
+        if (this.cacheMaxMemory > 0) {
+            CachedDocumentMemory cachedDocumentMemory = this.cacheMemoryUsage.get(key);
+            if (cachedDocumentMemory != null) {
+                cachedDocumentMemory.lastAccess = System.nanoTime();
+            }
         }
+    }
 
-        if (this.pageExistCache != null) {
-            this.pageExistCache.dispose();
-            this.pageExistCache = null;
+    /**
+     * Stop accounting for the memory of a document removed from the cache.
+     * 
+     * @param key the key of the document removed from the cache
+     * @param doc the document removed from the cache, null if unknown
+     */
+    private void forgetCacheMemory(String key, XWikiDocument doc)
+    {
+        CachedDocumentMemory cachedDocumentMemory = this.cacheMemoryUsage.get(key);
+        if (cachedDocumentMemory != null) {
+            XWikiDocument cachedDocument = cachedDocumentMemory.document.get();
+            // The removed document might have already been replaced by another one in the cache
+            if ((doc == null || cachedDocument == null || cachedDocument == doc)
+                && this.cacheMemoryUsage.remove(key, cachedDocumentMemory)) {
+                this.cacheMemory.addAndGet(-cachedDocumentMemory.memory);
+            }
         }
     }
 
-    @Override
-    public void onEvent(Event event, Object source, Object data)
+    /**
+     * Estimate the memory retained by a document: its content, objects, class and attachments metadata.
+     * 
+     * @param doc the document
+     * @return the estimated memory (in bytes)
+     */
+    private long getMemory(XWikiDocument doc)
     {
-        // only react to remote events since local actions are already taken into account
-        if (this.remoteObservationManagerContext.isRemoteState()) {
-            if (event instanceof WikiDeletedEvent) {
-                flushCache();
-            } else {
-                XWikiDocument doc = (XWikiDocument) source;
+        long memory = DOCUMENT_MEMORY + getMemory(doc.getContent());
 
-                String key = doc.getKey();
-
-                if (getCache() != null) {
-                    getCache().remove(key);
+        for (List<BaseObject> objects : doc.getXObjects().values()) {
+            for (BaseObject object : objects) {
+                // Deleted objects leave null entries
+                if (object != null) {
+                    memory += getMemory(object);
                 }
-                if (getPageExistCache() != null) {
-                    getPageExistCache().remove(key);
+            }
+        }
+
+        memory += getMemory(doc.getXClass());
+
+        for (XWikiAttachment attachment : doc.getAttachmentList()) {
+            memory += ATTACHMENT_MEMORY;
+            if (attachment.getAttachment_content() != null) {
+                memory += attachment.getAttachment_content().getSize();
+            }
+        }
+
+        return memory;
+    }
+
+    /**
+     * @param collection an object or a class
+     * @return the estimated memory (in bytes) used by the object or class
+     */
+    private long getMemory(BaseCollection collection)
+    {
+        long memory = OBJECT_MEMORY;
+
+        for (Object field : collection.getFieldList()) {
+            memory += PROPERTY_MEMORY;
+            if (field instanceof BaseProperty) {
+                Object value = ((BaseProperty) field).getValue();
+                if (value instanceof Collection) {
+                    for (Object item : (Collection< ? >) value) {
+                        memory += PROPERTY_MEMORY + getMemory(String.valueOf(item));
+                    }
+                } else if (value instanceof String) {
+                    memory += getMemory((String) value);
                 }
             }
         }
+
+        return memory;
     }
 
-    @Deprecated
-    public String getKey(XWikiDocument doc)
+    /**
+     * @param str a string
+     * @return the memory (in bytes) used by the string characters
+     */
+    private long getMemory(String str)
     {
-        return doc.getKey();
+        return str != null ? 2L * str.length() : 0;
     }
 
     /**
-     * @deprecated since 4.0M1 use {@link com.xpn.xwiki.doc.XWikiDocument#getKey()}
+     * @return the number of documents found in the document cache
+     * @since 5.4M1
      */
-    @Deprecated
-    public String getKey(XWikiDocument doc, XWikiContext context)
+    public long getCacheHitCount()
     {
-        return doc.getKey();
+        return this.cacheHitCount.get();
     }
 
     /**
-     * @deprecated since 4.0M1 use {@link com.xpn.xwiki.doc.XWikiDocument#getKey()}
+     * @return the number of documents not found in the document cache and loaded from the underlying store
+     * @since 5.4M1
      */
-    @Deprecated
-    public String getKey(String fullName, String language, XWikiContext context)
+    public long getCacheMissCount()
     {
-        XWikiDocument doc = new XWikiDocument(null, fullName);
-        doc.setLanguage(language);
-        return doc.getKey();
+        return this.cacheMissCount.get();
     }
 
     /**
-     * @deprecated since 4.0M1 use {@link com.xpn.xwiki.doc.XWikiDocument#getKey()}
+     * @return the number of documents removed from the document cache because the maximum memory was exceeded
+     * @since 5.4M1
      */
-    @Deprecated
-    public String getKey(final String wiki, final String fullName, final String language)
+    public long getCacheEvictionCount()
     {
-        XWikiDocument doc = new XWikiDocument(wiki, null, fullName);
-        doc.setLanguage(language);
-        return doc.getKey();
+        return this.cacheEvictionCount.get();
     }
 
-    @Override
-    public XWikiDocument loadXWikiDoc(XWikiDocument doc, XWikiContext context) throws XWikiException
+    /**
+     * @return the number of documents not found in the document cache which have been obtained from a load of the same
+     *         document already in progress in another thread
+     * @since 5.4M1
+     */
+    public long getCoalescedLoadCount()
     {
-        String key = doc.getKey();
-
-        LOGGER.debug("Cache: begin for doc {} in cache", key);
-
-        // Make sure cache is initialized
-        initCache(context);
-
-        LOGGER.debug("Cache: Trying to get doc {} from cache", key);
-
-        XWikiDocument cachedoc = getCache().get(key);
-
-        if (cachedoc != null) {
-            doc = cachedoc;
-            doc.setFromCache(true);
-
-            LOGGER.debug("Cache: got doc {} from cache", key);
-        } else {
-            LOGGER.debug("Cache: Trying to get doc {} from persistent storage", key);
-
-            doc = this.store.loadXWikiDoc(doc, context);
-            doc.setStore(this.store);
-
-            LOGGER.debug("Cache: Got doc {} from storage", key);
+        return this.coalescedLoadCount.get();
+    }
 
-            getCache().set(key, doc);
-            getPageExistCache().set(key, new Boolean(!doc.isNew()));
+    /**
+     * @return the number of documents not found in the document cache but rebuilt from the off-heap cache
+     * @since 5.4M1
+     */
+    public long getOffHeapCacheHitCount()
+    {
+        return this.offHeapCacheHitCount.get();
+    }
 
-            LOGGER.debug("Cache: put doc {} in cache", key);
-        }
+    /**
+     * @return the number of documents in the document cache
+     * @since 5.4M1
+     */
+    public int getCacheSize()
+    {
+        return this.cacheMemoryUsage.size();
+    }
 
-        LOGGER.debug("Cache: end for doc {} in cache", key);
+    /**
+     * @return the estimated memory (in bytes) used by the documents in the document cache
+     * @since 5.4M1
+     */
+    public long getCacheMemory()
+    {
+        return this.cacheMemory.get();
+    }
 
-        return doc;
+    /**
+     * @return the maximum memory (in bytes) used by the documents in the document cache, 0 if there's no limit
+     * @since 5.4M1
+     */
+    public long getCacheMaxMemory()
+    {
+        return this.cacheMaxMemory;
     }
 
     @Override
@@ -313,9 +1646,10 @@ public void deleteXWikiDoc(XWikiDocument doc, XWikiContext context) throws XWiki
         // Make sure cache is initialized
         initCache(context);
 
-        getCache().remove(key);
+        removeCachedDocument(key);
         getPageExistCache().remove(key);
         getPageExistCache().set(key, new Boolean(false));
+        this.inFlightLoads.remove(key);
     }
 
     @Override
@@ -632,12 +1966,190 @@ public boolean exists(XWikiDocument doc, XWikiContext context) throws XWikiExcep
         } catch (Exception e) {
         }
 
+        ExistenceFilter filter = getExistenceFilter(doc.getDatabase(), context);
+        if (filter != null && !filter.mightContain(doc.getFullName())) {
+            this.existenceFilterNegativeCount.incrementAndGet();
+
+            return false;
+        }
+
         boolean result = this.store.exists(doc, context);
         getPageExistCache().set(key, new Boolean(result));
 
+        // A missing translation of an existing document is not a mistake of the filter
+        if (!result && filter != null && Locale.ROOT.equals(doc.getLocale())) {
+            this.existenceFilterFalsePositiveCount.incrementAndGet();
+        }
+
         return result;
     }
 
+    /**
+     * Get the filter of the documents existing in the passed wiki, starting to build it in the background if needed.
+     * 
+     * @param wiki the wiki
+     * @param context the XWiki context
+     * @return the filter or null if it's disabled or not ready, in which case the existence of a document is unknown
+     */
+    private ExistenceFilter getExistenceFilter(String wiki, XWikiContext context)
+    {
+        if (!this.existenceFilterEnabled || wiki == null) {
+            return null;
+        }
+
+        ExistenceFilter filter = this.existenceFilters.get(wiki);
+
+        if (filter == null) {
+            filter = new ExistenceFilter();
+            if (this.existenceFilters.putIfAbsent(wiki, filter) == null) {
+                // Scanning all the documents of a big wiki takes time, don't make the current request wait for it
+                this.existenceFilterExecutor.execute(new ExistenceFilterBuilder(wiki, filter, context));
+            }
+
+            // Not ready yet
+            return null;
+        }
+
+        return filter.isReady() ? filter : null;
+    }
+
+    /**
+     * @param doc a document
+     * @param context the XWiki context
+     * @return true if the filter of the existing documents knows that the document doesn't exist, false if it's unknown
+     */
+    private boolean isMissing(XWikiDocument doc, XWikiContext context)
+    {
+        ExistenceFilter filter = getExistenceFilter(doc.getDatabase(), context);
+
+        if (filter != null && !filter.mightContain(doc.getFullName())) {
+            this.existenceFilterNegativeCount.incrementAndGet();
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @param doc a document which doesn't exist
+     * @return the passed document initialized like the underlying store does for a document it can't find
+     */
+    private XWikiDocument newMissingXWikiDoc(XWikiDocument doc)
+    {
+        doc.setNew(true);
+        doc.setOriginalDocument(new XWikiDocument(doc.getDocumentReference()));
+        doc.setStore(this.store);
+
+        return doc;
+    }
+
+    /**
+     * Fill the filter with the full names of all the documents of the passed wiki.
+     * 
+     * @param wiki the wiki
+     * @param filter the filter to build
+     * @param context the XWiki context
+     */
+    private void buildExistenceFilter(String wiki, ExistenceFilter filter, XWikiContext context)
+    {
+        String currentWiki = context.getDatabase();
+        try {
+            context.setDatabase(wiki);
+
+            int count = this.store.countDocuments("", context);
+            BloomFilter bloomFilter = new BloomFilter(Math.max(2L * count, count + EXISTENCE_FILTER_HEADROOM),
+                this.existenceFilterFalsePositiveProbability);
+
+            // Keyset pagination on the full name to avoid slower and slower offset queries
+            String select = "select distinct doc.fullName from XWikiDocument as doc";
+            String order = " order by doc.fullName";
+            List<String> fullNames = this.store.search(select + order, EXISTENCE_FILTER_BATCH_SIZE, 0, context);
+            while (!fullNames.isEmpty()) {
+                for (String fullName : fullNames) {
+                    bloomFilter.put(fullName);
+                }
+
+                if (fullNames.size() < EXISTENCE_FILTER_BATCH_SIZE) {
+                    break;
+                }
+
+                fullNames = this.store.search(select + " where doc.fullName > ?" + order,
+                    EXISTENCE_FILTER_BATCH_SIZE, 0, Arrays.asList(fullNames.get(fullNames.size() - 1)), context);
+            }
+
+            filter.setBloomFilter(bloomFilter);
+            existenceFilterBuilt(wiki);
+
+            LOGGER.debug("Built the filter of the [{}] existing documents of wiki [{}]", count, wiki);
+        } catch (Exception e) {
+            LOGGER.warn("Failed to build the filter of the existing documents of wiki [{}]", wiki, e);
+
+            // Try again later
+            this.existenceFilters.remove(wiki, filter);
+        } finally {
+            context.setDatabase(currentWiki);
+        }
+    }
+
+    /**
+     * Called once the filter of the documents existing in a wiki is ready. Does nothing, it only gives the tests a
+     * synchronization point.
+     * 
+     * @param wiki the wiki
+     */
+    void existenceFilterBuilt(String wiki)
+    {
+        // Nothing to do
+    }
+
+    /**
+     * Remember that the passed document exists.
+     * 
+     * @param doc the document
+     */
+    private void addToExistenceFilter(XWikiDocument doc)
+    {
+        String wiki = doc.getDatabase();
+
+        if (wiki != null) {
+            ExistenceFilter filter = this.existenceFilters.get(wiki);
+            if (filter != null) {
+                filter.put(doc.getFullName());
+            }
+        }
+    }
+
+    /**
+     * @return the number of missing documents detected by the filters of existing documents without asking the store
+     * @since 5.4M1
+     */
+    public long getExistenceFilterNegativeCount()
+    {
+        return this.existenceFilterNegativeCount.get();
+    }
+
+    /**
+     * @return the number of missing documents the filters of existing documents failed to detect
+     * @since 5.4M1
+     */
+    public long getExistenceFilterFalsePositiveCount()
+    {
+        return this.existenceFilterFalsePositiveCount.get();
+    }
+
+    /**
+     * @return the proportion of missing documents the filters of existing documents failed to detect
+     * @since 5.4M1
+     */
+    public double getExistenceFilterFalsePositiveRate()
+    {
+        long falsePositives = this.existenceFilterFalsePositiveCount.get();
+        long total = falsePositives + this.existenceFilterNegativeCount.get();
+
+        return total > 0 ? (double) falsePositives / total : 0;
+    }
+
     public Cache<XWikiDocument> getCache()
     {
         return this.cache;
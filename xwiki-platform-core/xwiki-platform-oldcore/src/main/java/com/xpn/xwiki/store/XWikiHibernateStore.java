@@ -30,7 +30,9 @@
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -164,6 +166,11 @@ public class XWikiHibernateStore extends XWikiHibernateBaseStore implements XWik
     @Named("local")
     private EntityReferenceSerializer<String> localEntityReferenceSerializer;
 
+    /**
+     * The maximum number of values passed to a single {@code in} clause, some databases (like Oracle) limit it to 1000.
+     */
+    private static final int MAX_IN_LIST_SIZE = 500;
+
     private Map<String, String[]> validTypesMap = new HashMap<String, String[]>();
 
     /**
@@ -849,6 +856,8 @@ public XWikiDocument loadXWikiDoc(XWikiDocument doc, XWikiContext context) throw
                 DocumentReference groupsDocumentReference = new DocumentReference(context.getDatabase(),
                     localGroupEntityReference.getParent().getName(), localGroupEntityReference.getName());
 
+                boolean batchLoad = isBatchLoadEnabled(context);
+                List<BaseObject> objects = new ArrayList<BaseObject>();
                 boolean hasGroups = false;
                 while (it.hasNext()) {
                     BaseObject object = it.next();
@@ -864,52 +873,30 @@ public XWikiDocument loadXWikiDoc(XWikiDocument doc, XWikiContext context) throw
                         continue;
                     }
 
-                    BaseObject newobject;
-                    if (classReference.equals(doc.getDocumentReference())) {
-                        newobject = bclass.newCustomClassInstance(context);
-                    } else {
-                        newobject = BaseClass.newCustomClassInstance(classReference, context);
-                    }
-                    if (newobject != null) {
-                        newobject.setId(object.getId());
-                        newobject.setXClassReference(object.getRelativeXClassReference());
-                        newobject.setDocumentReference(object.getDocumentReference());
-                        newobject.setNumber(object.getNumber());
-                        newobject.setGuid(object.getGuid());
-                        object = newobject;
-                    }
+                    object = newXWikiObject(object, doc, bclass, context);
 
                     if (classReference.equals(groupsDocumentReference)) {
                         // Groups objects are handled differently.
                         hasGroups = true;
+                    } else if (batchLoad) {
+                        objects.add(object);
                     } else {
                         loadXWikiCollectionInternal(object, doc, context, false, true);
                     }
                     doc.setXObject(object.getNumber(), object);
                 }
 
+                if (!objects.isEmpty()) {
+                    loadXWikiCollectionsInternal(objects,
+                        Collections.singletonMap(doc.getDocumentReference(), doc), context);
+                }
+
                 // AFAICT this was added as an emergency patch because loading of objects has proven
                 // too slow and the objects which cause the most overhead are the XWikiGroups objects
                 // as each group object (each group member) would otherwise cost 2 database queries.
                 // This will do every group member in a single query.
                 if (hasGroups) {
-                    Query query2 = session.createQuery("select bobject.number, prop.value from StringProperty as prop,"
-                        + "BaseObject as bobject where bobject.name = :name and bobject.className='XWiki.XWikiGroups' "
-                        + "and bobject.id=prop.id.id and prop.id.name='member' order by bobject.number");
-                    query2.setText("name", doc.getFullName());
-                    @SuppressWarnings("unchecked")
-                    Iterator<Object[]> it2 = query2.list().iterator();
-                    while (it2.hasNext()) {
-                        Object[] result = it2.next();
-                        Integer number = (Integer) result[0];
-                        String member = (String) result[1];
-                        BaseObject obj = BaseClass.newCustomClassInstance(groupsDocumentReference, context);
-                        obj.setDocumentReference(doc.getDocumentReference());
-                        obj.setXClassReference(localGroupEntityReference);
-                        obj.setNumber(number.intValue());
-                        obj.setStringValue("member", member);
-                        doc.setXObject(obj.getNumber(), obj);
-                    }
+                    loadXWikiGroupsObjects(Collections.singletonList(doc), session, context);
                 }
             }
 
@@ -946,6 +933,340 @@ public XWikiDocument loadXWikiDoc(XWikiDocument doc, XWikiContext context) throw
         return doc;
     }
 
+    /**
+     * @param context the XWiki context
+     * @return {@code true} if the properties of the objects of a document should be loaded with a few set based queries
+     *         instead of a few queries per object, {@code false} otherwise
+     */
+    private boolean isBatchLoadEnabled(XWikiContext context)
+    {
+        return !"0".equals(context.getWiki().Param("xwiki.store.hibernate.batchload", "1"));
+    }
+
+    @Override
+    public List<XWikiDocument> loadXWikiDocs(Collection<DocumentReference> documentReferences, XWikiContext context)
+        throws XWikiException
+    {
+        List<XWikiDocument> documents = new ArrayList<XWikiDocument>(documentReferences.size());
+
+        // Each wiki has its own database so documents are loaded wiki by wiki
+        Map<String, List<XWikiDocument>> documentsByWiki = new LinkedHashMap<String, List<XWikiDocument>>();
+        for (DocumentReference documentReference : documentReferences) {
+            XWikiDocument document = new XWikiDocument(documentReference.getLocale() != null
+                ? new DocumentReference(documentReference, (Locale) null) : documentReference);
+            document.setLocale(documentReference.getLocale());
+            documents.add(document);
+
+            String wiki = documentReference.getWikiReference().getName();
+            List<XWikiDocument> wikiDocuments = documentsByWiki.get(wiki);
+            if (wikiDocuments == null) {
+                wikiDocuments = new ArrayList<XWikiDocument>();
+                documentsByWiki.put(wiki, wikiDocuments);
+            }
+            wikiDocuments.add(document);
+        }
+
+        Map<XWikiDocument, XWikiDocument> loadedDocuments = new IdentityHashMap<XWikiDocument, XWikiDocument>();
+        String currentWiki = context.getDatabase();
+        try {
+            for (Map.Entry<String, List<XWikiDocument>> entry : documentsByWiki.entrySet()) {
+                context.setDatabase(entry.getKey());
+
+                List<XWikiDocument> wikiDocuments = entry.getValue();
+                if (context.getWiki().hasDynamicCustomMappings() || !isBatchLoadEnabled(context)) {
+                    // Dynamic custom mappings require a dedicated session factory for each document
+                    for (XWikiDocument document : wikiDocuments) {
+                        loadedDocuments.put(document, loadXWikiDoc(document, context));
+                    }
+                } else {
+                    for (int i = 0; i < wikiDocuments.size(); i += MAX_IN_LIST_SIZE) {
+                        loadedDocuments.putAll(loadXWikiDocsInternal(
+                            wikiDocuments.subList(i, Math.min(wikiDocuments.size(), i + MAX_IN_LIST_SIZE)), context));
+                    }
+                }
+            }
+        } finally {
+            context.setDatabase(currentWiki);
+        }
+
+        List<XWikiDocument> result = new ArrayList<XWikiDocument>(documents.size());
+        for (XWikiDocument document : documents) {
+            result.add(loadedDocuments.get(document));
+        }
+
+        return result;
+    }
+
+    /**
+     * Loads several documents of the current wiki with a fixed number of set based queries.
+     * 
+     * @param documents the documents to load, their number must not exceed {@link #MAX_IN_LIST_SIZE}
+     * @param context the XWiki context
+     * @return the loaded documents indexed by the passed documents, documents which don't exist in the database are
+     *         returned as new documents
+     * @throws XWikiException when failing to load the documents
+     */
+    private Map<XWikiDocument, XWikiDocument> loadXWikiDocsInternal(List<XWikiDocument> documents,
+        XWikiContext context) throws XWikiException
+    {
+        Map<XWikiDocument, XWikiDocument> result = new IdentityHashMap<XWikiDocument, XWikiDocument>();
+
+        boolean bTransaction = true;
+        MonitorPlugin monitor = Util.getMonitorPlugin(context);
+        try {
+            // Start monitoring timer
+            if (monitor != null) {
+                monitor.startTimer("hibernate");
+            }
+            checkHibernate(context);
+
+            bTransaction = bTransaction && beginTransaction(false, context);
+            Session session = getSession(context);
+            session.setFlushMode(FlushMode.MANUAL);
+
+            Map<Long, XWikiDocument> documentsById = new LinkedHashMap<Long, XWikiDocument>();
+            for (XWikiDocument document : documents) {
+                documentsById.put(document.getId(), document);
+            }
+
+            Query query = session.createQuery("from XWikiDocument as doc where doc.id in (:ids)");
+            query.setParameterList("ids", documentsById.keySet());
+            Map<Long, XWikiDocument> loadedById = new HashMap<Long, XWikiDocument>();
+            for (XWikiDocument doc : (List<XWikiDocument>) query.list()) {
+                doc.setStore(this);
+                doc.setDatabase(context.getDatabase());
+                doc.setNew(false);
+                doc.setMostRecent(true);
+                // Fix for XWIKI-1651
+                doc.setDate(new Date(doc.getDate().getTime()));
+                doc.setCreationDate(new Date(doc.getCreationDate().getTime()));
+                doc.setContentUpdateDate(new Date(doc.getContentUpdateDate().getTime()));
+                loadedById.put(doc.getId(), doc);
+            }
+
+            for (XWikiDocument document : documents) {
+                XWikiDocument doc = loadedById.get(document.getId());
+                if (doc == null) {
+                    // No document
+                    document.setStore(this);
+                    document.setNew(true);
+
+                    // Make sure to always return a document with an original version, even for one that does not
+                    // exist. Allow writing more generic code.
+                    document.setOriginalDocument(new XWikiDocument(document.getDocumentReference()));
+                    doc = document;
+                }
+                result.put(document, doc);
+            }
+
+            Collection<XWikiDocument> loadedDocuments = loadedById.values();
+
+            // Load the attachment lists of all the documents at once
+            Map<Long, XWikiDocument> documentsWithAttachments = new HashMap<Long, XWikiDocument>();
+            for (XWikiDocument doc : loadedDocuments) {
+                if (doc.hasElement(XWikiDocument.HAS_ATTACHMENTS)) {
+                    doc.setAttachmentList(new ArrayList<XWikiAttachment>());
+                    documentsWithAttachments.put(doc.getId(), doc);
+                }
+            }
+            if (!documentsWithAttachments.isEmpty()) {
+                // The document identifier is selected explicitly since the attachment is not yet bound to its document
+                Query attachmentQuery = session.createQuery("select attach, attach.docId from XWikiAttachment as attach"
+                    + " where attach.docId in (:docids)");
+                attachmentQuery.setParameterList("docids", documentsWithAttachments.keySet());
+                for (Object[] attachmentResult : (List<Object[]>) attachmentQuery.list()) {
+                    XWikiAttachment attachment = (XWikiAttachment) attachmentResult[0];
+                    XWikiDocument doc = documentsWithAttachments.get(attachmentResult[1]);
+                    attachment.setDoc(doc);
+                    attachment.setMetaDataDirty(false);
+                    doc.getAttachmentList().add(attachment);
+                }
+            }
+
+            // Load the classes
+            Map<XWikiDocument, BaseClass> classes = new IdentityHashMap<XWikiDocument, BaseClass>();
+            Map<String, XWikiDocument> documentsWithObjects = new HashMap<String, XWikiDocument>();
+            for (XWikiDocument doc : loadedDocuments) {
+                BaseClass bclass = new BaseClass();
+                String cxml = doc.getXClassXML();
+                if (cxml != null) {
+                    bclass.fromXML(cxml);
+                    doc.setXClass(bclass);
+                    bclass.setDirty(false);
+                }
+                classes.put(doc, bclass);
+
+                // Store this XWikiClass in the context so that we can use it in case of recursive usage of classes
+                context.addBaseClass(bclass);
+
+                if (doc.hasElement(XWikiDocument.HAS_OBJECTS)) {
+                    documentsWithObjects.put(doc.getFullName(), doc);
+                }
+            }
+
+            // Load the objects of all the documents at once
+            if (!documentsWithObjects.isEmpty()) {
+                Query objectQuery = session.createQuery("from BaseObject as bobject where bobject.name in (:names) "
+                    + "order by bobject.number");
+                objectQuery.setParameterList("names", documentsWithObjects.keySet());
+
+                DocumentReference groupsDocumentReference =
+                    new DocumentReference(context.getDatabase(), "XWiki", "XWikiGroups");
+
+                List<BaseObject> objects = new ArrayList<BaseObject>();
+                Map<DocumentReference, XWikiDocument> documentsByReference =
+                    new HashMap<DocumentReference, XWikiDocument>();
+                List<XWikiDocument> documentsWithGroups = new ArrayList<XWikiDocument>();
+                for (BaseObject object : (List<BaseObject>) objectQuery.list()) {
+                    DocumentReference classReference = object.getXClassReference();
+
+                    if (classReference == null) {
+                        continue;
+                    }
+
+                    // The search might be case insensitive so make sure the object really belongs to the document
+                    XWikiDocument doc = documentsWithObjects.get(object.getName());
+                    if (doc == null || !object.getDocumentReference().equals(doc.getDocumentReference())) {
+                        continue;
+                    }
+
+                    object = newXWikiObject(object, doc, classes.get(doc), context);
+
+                    if (classReference.equals(groupsDocumentReference)) {
+                        // Groups objects are handled differently.
+                        if (!documentsWithGroups.contains(doc)) {
+                            documentsWithGroups.add(doc);
+                        }
+                    } else {
+                        objects.add(object);
+                        documentsByReference.put(doc.getDocumentReference(), doc);
+                    }
+                    doc.setXObject(object.getNumber(), object);
+                }
+
+                if (!objects.isEmpty()) {
+                    loadXWikiCollectionsInternal(objects, documentsByReference, context);
+                }
+
+                if (!documentsWithGroups.isEmpty()) {
+                    loadXWikiGroupsObjects(documentsWithGroups, session, context);
+                }
+            }
+
+            for (XWikiDocument doc : loadedDocuments) {
+                doc.setContentDirty(false);
+                doc.setMetaDataDirty(false);
+
+                // We need to ensure that the loaded document becomes the original document
+                doc.setOriginalDocument(doc.clone());
+            }
+
+            if (bTransaction) {
+                endTransaction(context, false, false);
+            }
+        } catch (Exception e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+                XWikiException.ERROR_XWIKI_STORE_HIBERNATE_READING_DOC, "Exception while reading documents [{0}]", e,
+                new Object[] {documents});
+        } finally {
+            try {
+                if (bTransaction) {
+                    endTransaction(context, false, false);
+                }
+            } catch (Exception e) {
+            }
+
+            // End monitoring timer
+            if (monitor != null) {
+                monitor.endTimer("hibernate");
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Replaces a raw object loaded from the database with an instance of the custom class declared by its XClass, if
+     * any.
+     * 
+     * @param object the object loaded from the database
+     * @param doc the document holding the object
+     * @param documentClass the XClass defined in the document holding the object
+     * @param context the XWiki context
+     * @return the object to put in the document
+     * @throws XWikiException when failing to create the custom class instance
+     */
+    private BaseObject newXWikiObject(BaseObject object, XWikiDocument doc, BaseClass documentClass,
+        XWikiContext context) throws XWikiException
+    {
+        DocumentReference classReference = object.getXClassReference();
+
+        BaseObject newobject;
+        if (classReference.equals(doc.getDocumentReference())) {
+            newobject = documentClass.newCustomClassInstance(context);
+        } else {
+            newobject = BaseClass.newCustomClassInstance(classReference, context);
+        }
+        if (newobject != null) {
+            newobject.setId(object.getId());
+            newobject.setXClassReference(object.getRelativeXClassReference());
+            newobject.setDocumentReference(object.getDocumentReference());
+            newobject.setNumber(object.getNumber());
+            newobject.setGuid(object.getGuid());
+            return newobject;
+        }
+
+        return object;
+    }
+
+    /**
+     * Loads the XWikiGroups objects of the passed documents with a single query.
+     * <p>
+     * AFAICT this was added as an emergency patch because loading of objects has proven too slow and the objects which
+     * cause the most overhead are the XWikiGroups objects as each group object (each group member) would otherwise cost
+     * 2 database queries. This will do every group member in a single query.
+     * 
+     * @param documents the documents holding XWikiGroups objects, all from the current wiki
+     * @param session the Hibernate session
+     * @param context the XWiki context
+     * @throws XWikiException when failing to create the group objects
+     */
+    private void loadXWikiGroupsObjects(Collection<XWikiDocument> documents, Session session, XWikiContext context)
+        throws XWikiException
+    {
+        EntityReference localGroupEntityReference = new EntityReference("XWikiGroups", EntityType.DOCUMENT,
+            new EntityReference("XWiki", EntityType.SPACE));
+        DocumentReference groupsDocumentReference = new DocumentReference(context.getDatabase(),
+            localGroupEntityReference.getParent().getName(), localGroupEntityReference.getName());
+
+        Map<String, XWikiDocument> documentsByName = new HashMap<String, XWikiDocument>();
+        for (XWikiDocument doc : documents) {
+            documentsByName.put(doc.getFullName(), doc);
+        }
+
+        Query query = session.createQuery("select bobject.name, bobject.number, prop.value from StringProperty as prop,"
+            + "BaseObject as bobject where bobject.name in (:names) and bobject.className='XWiki.XWikiGroups' "
+            + "and bobject.id=prop.id.id and prop.id.name='member' order by bobject.number");
+        query.setParameterList("names", documentsByName.keySet());
+        @SuppressWarnings("unchecked")
+        Iterator<Object[]> it = query.list().iterator();
+        while (it.hasNext()) {
+            Object[] result = it.next();
+            XWikiDocument doc = documentsByName.get(result[0]);
+            if (doc == null) {
+                continue;
+            }
+            Integer number = (Integer) result[1];
+            String member = (String) result[2];
+            BaseObject obj = BaseClass.newCustomClassInstance(groupsDocumentReference, context);
+            obj.setDocumentReference(doc.getDocumentReference());
+            obj.setXClassReference(localGroupEntityReference);
+            obj.setNumber(number.intValue());
+            obj.setStringValue("member", member);
+            doc.setXObject(obj.getNumber(), obj);
+        }
+    }
+
     @Override
     public void deleteXWikiDoc(XWikiDocument doc, XWikiContext context) throws XWikiException
     {
@@ -1240,55 +1561,8 @@ private void loadXWikiCollectionInternal(BaseCollection object1, XWikiDocument d
                         continue;
                     }
                     String classType = (String) result[1];
-                    BaseProperty property = null;
 
-                    try {
-                        property = (BaseProperty) Class.forName(classType).newInstance();
-                        property.setObject(object);
-                        property.setName(name);
-                        loadXWikiProperty(property, context, false);
-                    } catch (Exception e) {
-                        // WORKAROUND IN CASE OF MIXMATCH BETWEEN STRING AND LARGESTRING
-                        try {
-                            if (property instanceof StringProperty) {
-                                LargeStringProperty property2 = new LargeStringProperty();
-                                property2.setObject(object);
-                                property2.setName(name);
-                                loadXWikiProperty(property2, context, false);
-                                property.setValue(property2.getValue());
-
-                                if (bclass != null) {
-                                    if (bclass.get(name) instanceof TextAreaClass) {
-                                        property = property2;
-                                    }
-                                }
-
-                            } else if (property instanceof LargeStringProperty) {
-                                StringProperty property2 = new StringProperty();
-                                property2.setObject(object);
-                                property2.setName(name);
-                                loadXWikiProperty(property2, context, false);
-                                property.setValue(property2.getValue());
-
-                                if (bclass != null) {
-                                    if (bclass.get(name) instanceof StringClass) {
-                                        property = property2;
-                                    }
-                                }
-                            } else {
-                                throw e;
-                            }
-                        } catch (Throwable e2) {
-                            Object[] args =
-                                {object.getName(), object.getClass(), Integer.valueOf(object.getNumber() + ""), name};
-                            throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
-                                XWikiException.ERROR_XWIKI_STORE_HIBERNATE_LOADING_OBJECT,
-                                "Exception while loading object '{0}' of class '{1}', number '{2}' and property '{3}'",
-                                e, args);
-                        }
-                    }
-
-                    object.addField(name, property);
+                    object.addField(name, loadXWikiProperty(object, bclass, name, classType, context));
                 }
             }
 
@@ -1312,6 +1586,229 @@ private void loadXWikiCollectionInternal(BaseCollection object1, XWikiDocument d
 
     }
 
+    /**
+     * Loads the properties of several objects using a fixed number of set based queries: one query to list the
+     * properties of the objects and one query per property type, instead of a few queries for each object and
+     * property. Objects whose class uses a custom mapping are still loaded one by one.
+     * 
+     * @param objects the objects to load, already filled with their meta data (id, class, number, etc.)
+     * @param documents the documents being loaded, used to find the class of objects which are instances of the class
+     *            defined in their own document
+     * @param context the XWiki context
+     * @throws XWikiException when failing to load the properties
+     */
+    private void loadXWikiCollectionsInternal(Collection<BaseObject> objects,
+        Map<DocumentReference, XWikiDocument> documents, XWikiContext context) throws XWikiException
+    {
+        Map<Long, BaseObject> objectsById = new LinkedHashMap<Long, BaseObject>();
+        Map<Long, BaseClass> classesById = new HashMap<Long, BaseClass>();
+
+        for (BaseObject object : objects) {
+            DocumentReference classReference = object.getXClassReference();
+
+            // If the class reference is null in the loaded object then skip loading properties
+            if (classReference == null) {
+                continue;
+            }
+
+            BaseClass bclass;
+            XWikiDocument document = documents.get(object.getDocumentReference());
+            if (!classReference.equals(object.getDocumentReference())) {
+                bclass = object.getXClass(context);
+            } else {
+                // We need to get it from the document otherwise we will go in an endless loop
+                bclass = document != null ? document.getXClass() : null;
+            }
+
+            if ((bclass != null) && (bclass.hasCustomMapping()) && context.getWiki().hasCustomMappings()) {
+                loadXWikiCollectionInternal(object, document, context, false, true);
+            } else {
+                objectsById.put(object.getId(), object);
+                classesById.put(object.getId(), bclass);
+            }
+        }
+
+        List<Long> ids = new ArrayList<Long>(objectsById.keySet());
+        for (int i = 0; i < ids.size(); i += MAX_IN_LIST_SIZE) {
+            List<Long> batch = ids.subList(i, Math.min(ids.size(), i + MAX_IN_LIST_SIZE));
+            try {
+                loadXWikiPropertiesBatch(batch, objectsById, classesById, context);
+            } catch (XWikiException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+                    XWikiException.ERROR_XWIKI_STORE_HIBERNATE_LOADING_OBJECT,
+                    "Exception while loading the properties of objects " + batch, e);
+            }
+        }
+    }
+
+    /**
+     * Loads the properties of a batch of objects.
+     * 
+     * @param ids the identifiers of the objects to load, the size must not exceed {@link #MAX_IN_LIST_SIZE}
+     * @param objects the objects to fill, indexed by identifier
+     * @param classes the classes of the objects, indexed by object identifier
+     * @param context the XWiki context
+     * @throws XWikiException when failing to load a property
+     */
+    private void loadXWikiPropertiesBatch(List<Long> ids, Map<Long, BaseObject> objects, Map<Long, BaseClass> classes,
+        XWikiContext context) throws XWikiException
+    {
+        Session session = getSession(context);
+
+        // Find the name and type of all the properties of the objects at once
+        Query query = session.createQuery(
+            "select prop.id.id, prop.name, prop.classType from BaseProperty as prop where prop.id.id in (:ids)");
+        query.setParameterList("ids", ids);
+        Map<String, List<Object[]>> propertiesByType = new LinkedHashMap<String, List<Object[]>>();
+        for (Object[] result : (List<Object[]>) query.list()) {
+            String classType = (String) result[2];
+            List<Object[]> properties = propertiesByType.get(classType);
+            if (properties == null) {
+                properties = new ArrayList<Object[]>();
+                propertiesByType.put(classType, properties);
+            }
+            properties.add(result);
+        }
+
+        // Then load the values with one query per property type
+        for (Map.Entry<String, List<Object[]>> entry : propertiesByType.entrySet()) {
+            String classType = entry.getKey();
+            Map<Long, Map<String, BaseProperty>> loadedProperties = loadXWikiPropertiesOfType(classType, ids, session);
+
+            for (Object[] result : entry.getValue()) {
+                Long id = (Long) result[0];
+                String name = (String) result[1];
+                BaseObject object = objects.get(id);
+
+                BaseProperty property = null;
+                Map<String, BaseProperty> objectProperties = loadedProperties.get(id);
+                if (objectProperties != null) {
+                    property = objectProperties.get(name);
+                }
+
+                if (property != null) {
+                    // In Oracle, empty string are converted to NULL. Since an undefined property is not found at all,
+                    // it is safe to assume that a retrieved NULL value should actually be an empty string.
+                    if (property instanceof BaseStringProperty && ((BaseStringProperty) property).getValue() == null) {
+                        ((BaseStringProperty) property).setValue("");
+                    }
+                    if (property instanceof ListProperty) {
+                        ((ListProperty) property).getList();
+                    }
+                    property.setObject(object);
+                    property.setValueDirty(false);
+                } else {
+                    // The value is not stored where its type says it should be (e.g. a String/LargeString mismatch):
+                    // fall back on loading this property alone.
+                    property = loadXWikiProperty(object, classes.get(id), name, classType, context);
+                }
+
+                object.addField(name, property);
+            }
+        }
+    }
+
+    /**
+     * Loads all the properties of the passed type belonging to the passed objects.
+     * 
+     * @param classType the name of the property class, as stored in the properties table
+     * @param ids the identifiers of the objects
+     * @param session the Hibernate session
+     * @return the loaded properties, indexed by object identifier and property name
+     */
+    private Map<Long, Map<String, BaseProperty>> loadXWikiPropertiesOfType(String classType, List<Long> ids,
+        Session session)
+    {
+        Map<Long, Map<String, BaseProperty>> properties = new HashMap<Long, Map<String, BaseProperty>>();
+
+        // Only mapped property types can be queried, the others are loaded one by one
+        if (classType == null || session.getSessionFactory().getClassMetadata(classType) == null) {
+            return properties;
+        }
+
+        // Filtering on the class type makes sure we don't load under the wrong type a value stored in a table shared
+        // by several property types (e.g. LargeStringProperty and StringListProperty)
+        Query query = session.createQuery("from " + classType
+            + " as prop where prop.id.id in (:ids) and prop.classType = :classType");
+        query.setParameterList("ids", ids);
+        query.setString("classType", classType);
+        for (BaseProperty property : (List<BaseProperty>) query.list()) {
+            Map<String, BaseProperty> objectProperties = properties.get(property.getId());
+            if (objectProperties == null) {
+                objectProperties = new HashMap<String, BaseProperty>();
+                properties.put(property.getId(), objectProperties);
+            }
+            objectProperties.put(property.getName(), property);
+        }
+
+        return properties;
+    }
+
+    /**
+     * Loads a single property of an object, working around a String/LargeString type mismatch.
+     * 
+     * @param object the object owning the property
+     * @param bclass the class of the object, can be {@code null}
+     * @param name the name of the property
+     * @param classType the name of the property class, as stored in the properties table
+     * @param context the XWiki context
+     * @return the loaded property
+     * @throws XWikiException when failing to load the property
+     */
+    private BaseProperty loadXWikiProperty(BaseCollection object, BaseClass bclass, String name, String classType,
+        XWikiContext context) throws XWikiException
+    {
+        BaseProperty property = null;
+
+        try {
+            property = (BaseProperty) Class.forName(classType).newInstance();
+            property.setObject(object);
+            property.setName(name);
+            loadXWikiProperty(property, context, false);
+        } catch (Exception e) {
+            // WORKAROUND IN CASE OF MIXMATCH BETWEEN STRING AND LARGESTRING
+            try {
+                if (property instanceof StringProperty) {
+                    LargeStringProperty property2 = new LargeStringProperty();
+                    property2.setObject(object);
+                    property2.setName(name);
+                    loadXWikiProperty(property2, context, false);
+                    property.setValue(property2.getValue());
+
+                    if (bclass != null) {
+                        if (bclass.get(name) instanceof TextAreaClass) {
+                            property = property2;
+                        }
+                    }
+
+                } else if (property instanceof LargeStringProperty) {
+                    StringProperty property2 = new StringProperty();
+                    property2.setObject(object);
+                    property2.setName(name);
+                    loadXWikiProperty(property2, context, false);
+                    property.setValue(property2.getValue());
+
+                    if (bclass != null) {
+                        if (bclass.get(name) instanceof StringClass) {
+                            property = property2;
+                        }
+                    }
+                } else {
+                    throw e;
+                }
+            } catch (Throwable e2) {
+                Object[] args = {object.getName(), object.getClass(), Integer.valueOf(object.getNumber() + ""), name};
+                throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+                    XWikiException.ERROR_XWIKI_STORE_HIBERNATE_LOADING_OBJECT,
+                    "Exception while loading object '{0}' of class '{1}', number '{2}' and property '{3}'", e, args);
+            }
+        }
+
+        return property;
+    }
+
     /**
      * @deprecated This is internal to XWikiHibernateStore and may be removed in the future.
      */
@@ -2525,7 +3022,8 @@ public List<XWikiDocument> searchDocuments(String wheresql, boolean distinctbyla
 
         // Resolve documents. We use two separated sessions because rights service could need to switch database to
         // check rights
-        List<XWikiDocument> documents = new ArrayList<XWikiDocument>();
+        List<DocumentReference> documentReferences = new ArrayList<DocumentReference>(documentDatas.size());
+        List<String> languages = new ArrayList<String>(documentDatas.size());
         for (Object[] result : documentDatas) {
             XWikiDocument doc =
                 new XWikiDocument(new DocumentReference(context.getDatabase(), (String) result[0], (String) result[1]));
@@ -2536,17 +3034,16 @@ public List<XWikiDocument> searchDocuments(String wheresql, boolean distinctbyla
                 }
             }
 
-            DocumentReference documentReference = doc.getDocumentReference();
-            if (distinctbylanguage) {
-                String language = (String) result[2];
-                XWikiDocument document = context.getWiki().getDocument(documentReference, context);
-                if ((language == null) || (language.equals(""))) {
-                    documents.add(document);
-                } else {
-                    documents.add(document.getTranslatedDocument(language, context));
-                }
-            } else {
-                documents.add(context.getWiki().getDocument(documentReference, context));
+            documentReferences.add(doc.getDocumentReference());
+            languages.add(distinctbylanguage ? (String) result[2] : null);
+        }
+
+        // Load all the documents at once
+        List<XWikiDocument> documents = context.getWiki().getDocuments(documentReferences, context);
+        for (int i = 0; i < documents.size(); ++i) {
+            String language = languages.get(i);
+            if ((language != null) && (!language.equals(""))) {
+                documents.set(i, documents.get(i).getTranslatedDocument(language, context));
             }
         }
 
@@ -19,6 +19,7 @@
  */
 package com.xpn.xwiki.store;
 
+import java.util.Collection;
 import java.util.List;
 
 import org.xwiki.component.annotation.Role;
@@ -41,6 +42,22 @@
 
     XWikiDocument loadXWikiDoc(XWikiDocument doc, XWikiContext context) throws XWikiException;
 
+    /**
+     * Load several documents at once. This is more efficient than calling
+     * {@link #loadXWikiDoc(XWikiDocument, XWikiContext)} for each document since stores can group the work, for
+     * example by using a few database queries for all the documents.
+     * 
+     * @param documentReferences the references of the documents to load, the locale of a reference indicates the
+     *            translation to load
+     * @param context the XWiki context
+     * @return the loaded documents, in the same order as the passed references; documents which don't exist are
+     *         returned as new documents, like {@link #loadXWikiDoc(XWikiDocument, XWikiContext)} does
+     * @throws XWikiException when failing to load the documents
+     * @since 5.4M1
+     */
+    List<XWikiDocument> loadXWikiDocs(Collection<DocumentReference> documentReferences, XWikiContext context)
+        throws XWikiException;
+
     void deleteXWikiDoc(XWikiDocument doc, XWikiContext context) throws XWikiException;
 
     List<String> getClassList(XWikiContext context) throws XWikiException;
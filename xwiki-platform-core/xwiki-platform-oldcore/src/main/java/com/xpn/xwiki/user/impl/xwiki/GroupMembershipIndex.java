@@ -0,0 +1,337 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.user.impl.xwiki;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Group membership of a wiki: the direct member/group relations declared by the {@code XWiki.XWikiGroups} objects and
+ * their transitive closure in both directions.
+ * <p>
+ * The direct relations are updated incrementally each time a group document is modified. The closure of a member or
+ * a group is computed the first time it is asked and kept until one of the groups it went through is modified, so
+ * that answering "all groups of X" or "all members of G" is a single map lookup most of the time.
+ * 
+ * @version $Id$
+ * @since 5.4M1
+ */
+public class GroupMembershipIndex
+{
+    /**
+     * The direct groups of each member.
+     */
+    private final Map<DocumentReference, Set<DocumentReference>> groupsByMember =
+        new HashMap<DocumentReference, Set<DocumentReference>>();
+
+    /**
+     * The direct members of each group.
+     */
+    private final Map<DocumentReference, Set<DocumentReference>> membersByGroup =
+        new HashMap<DocumentReference, Set<DocumentReference>>();
+
+    /**
+     * The already computed transitive groups of a member.
+     */
+    private final Map<DocumentReference, Set<DocumentReference>> allGroupsByMember =
+        new ConcurrentHashMap<DocumentReference, Set<DocumentReference>>();
+
+    /**
+     * The already computed transitive members of a group.
+     */
+    private final Map<DocumentReference, Set<DocumentReference>> allMembersByGroup =
+        new ConcurrentHashMap<DocumentReference, Set<DocumentReference>>();
+
+    /**
+     * Protect the direct relations: the closures are computed under the read lock and the updates are done under the
+     * write lock.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * @param member the user or group
+     * @return the groups directly containing the provided member
+     */
+    public Set<DocumentReference> getGroups(DocumentReference member)
+    {
+        this.lock.readLock().lock();
+        try {
+            return copy(this.groupsByMember.get(member));
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param group the group
+     * @return the users and groups directly contained in the provided group
+     */
+    public Set<DocumentReference> getMembers(DocumentReference group)
+    {
+        this.lock.readLock().lock();
+        try {
+            return copy(this.membersByGroup.get(group));
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param member the user or group
+     * @return the groups containing the provided member, directly or through other groups
+     */
+    public Set<DocumentReference> getAllGroups(DocumentReference member)
+    {
+        Set<DocumentReference> groups = this.allGroupsByMember.get(member);
+
+        if (groups == null) {
+            this.lock.readLock().lock();
+            try {
+                groups = Collections.unmodifiableSet(walk(member, this.groupsByMember));
+                this.allGroupsByMember.put(member, groups);
+            } finally {
+                this.lock.readLock().unlock();
+            }
+        }
+
+        return groups;
+    }
+
+    /**
+     * @param group the group
+     * @return the users and groups contained in the provided group, directly or through other groups
+     */
+    public Set<DocumentReference> getAllMembers(DocumentReference group)
+    {
+        Set<DocumentReference> members = this.allMembersByGroup.get(group);
+
+        if (members == null) {
+            this.lock.readLock().lock();
+            try {
+                members = Collections.unmodifiableSet(walk(group, this.membersByGroup));
+                this.allMembersByGroup.put(group, members);
+            } finally {
+                this.lock.readLock().unlock();
+            }
+        }
+
+        return members;
+    }
+
+    /**
+     * Replace the direct members of a group.
+     * 
+     * @param group the group
+     * @param members the new direct members of the group, empty if the group has been removed
+     * @return the members which have been added to or removed from the group
+     */
+    public Set<DocumentReference> setMembers(DocumentReference group, Collection<DocumentReference> members)
+    {
+        Set<DocumentReference> newMembers = new HashSet<DocumentReference>(members);
+        newMembers.remove(group);
+
+        this.lock.writeLock().lock();
+        try {
+            Set<DocumentReference> oldMembers = this.membersByGroup.get(group);
+            if (oldMembers == null) {
+                oldMembers = Collections.emptySet();
+            }
+
+            Set<DocumentReference> changed = new HashSet<DocumentReference>();
+            for (DocumentReference member : oldMembers) {
+                if (!newMembers.contains(member)) {
+                    changed.add(member);
+                }
+            }
+            for (DocumentReference member : newMembers) {
+                if (!oldMembers.contains(member)) {
+                    changed.add(member);
+                }
+            }
+
+            if (!changed.isEmpty()) {
+                // Forget the closures going through the group before and after the change
+                invalidate(group);
+
+                for (DocumentReference member : changed) {
+                    if (newMembers.contains(member)) {
+                        add(this.groupsByMember, member, group);
+                    } else {
+                        remove(this.groupsByMember, member, group);
+                    }
+                }
+
+                if (newMembers.isEmpty()) {
+                    this.membersByGroup.remove(group);
+                } else {
+                    this.membersByGroup.put(group, newMembers);
+                }
+
+                invalidate(group);
+            }
+
+            return changed;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add a member to a group.
+     * 
+     * @param group the group
+     * @param member the user or group to add
+     */
+    public void addMember(DocumentReference group, DocumentReference member)
+    {
+        if (group.equals(member)) {
+            return;
+        }
+
+        this.lock.writeLock().lock();
+        try {
+            if (add(this.membersByGroup, group, member)) {
+                add(this.groupsByMember, member, group);
+
+                invalidate(group);
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forget everything.
+     */
+    public void clear()
+    {
+        this.lock.writeLock().lock();
+        try {
+            this.groupsByMember.clear();
+            this.membersByGroup.clear();
+            this.allGroupsByMember.clear();
+            this.allMembersByGroup.clear();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the closures which may go through the provided group: the groups of every transitive member of the group
+     * and the members of every transitive group of the group.
+     * 
+     * @param group the modified group
+     */
+    private void invalidate(DocumentReference group)
+    {
+        this.allGroupsByMember.remove(group);
+        for (DocumentReference member : walk(group, this.membersByGroup)) {
+            this.allGroupsByMember.remove(member);
+        }
+
+        this.allMembersByGroup.remove(group);
+        for (DocumentReference parent : walk(group, this.groupsByMember)) {
+            this.allMembersByGroup.remove(parent);
+        }
+    }
+
+    /**
+     * Breadth first traversal of the provided relation, protected against cycles.
+     * 
+     * @param start the entry point
+     * @param relation the relation to follow
+     * @return all the references reachable from the entry point, not including the entry point itself
+     */
+    private static Set<DocumentReference> walk(DocumentReference start,
+        Map<DocumentReference, Set<DocumentReference>> relation)
+    {
+        Set<DocumentReference> result = new HashSet<DocumentReference>();
+
+        Deque<DocumentReference> queue = new ArrayDeque<DocumentReference>();
+        queue.add(start);
+        while (!queue.isEmpty()) {
+            Set<DocumentReference> next = relation.get(queue.poll());
+            if (next != null) {
+                for (DocumentReference reference : next) {
+                    if (!reference.equals(start) && result.add(reference)) {
+                        queue.add(reference);
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @param relation the relation to modify
+     * @param key the key
+     * @param value the value to associate to the key
+     * @return true if the relation has been modified
+     */
+    private static boolean add(Map<DocumentReference, Set<DocumentReference>> relation, DocumentReference key,
+        DocumentReference value)
+    {
+        Set<DocumentReference> values = relation.get(key);
+        if (values == null) {
+            values = new HashSet<DocumentReference>();
+            relation.put(key, values);
+        }
+
+        return values.add(value);
+    }
+
+    /**
+     * @param relation the relation to modify
+     * @param key the key
+     * @param value the value to dissociate from the key
+     */
+    private static void remove(Map<DocumentReference, Set<DocumentReference>> relation, DocumentReference key,
+        DocumentReference value)
+    {
+        Set<DocumentReference> values = relation.get(key);
+        if (values != null) {
+            values.remove(value);
+            if (values.isEmpty()) {
+                relation.remove(key);
+            }
+        }
+    }
+
+    /**
+     * @param references the set to copy, can be null
+     * @return a copy of the provided set
+     */
+    private static Set<DocumentReference> copy(Set<DocumentReference> references)
+    {
+        return references != null ? new HashSet<DocumentReference>(references) : new HashSet<DocumentReference>();
+    }
+}
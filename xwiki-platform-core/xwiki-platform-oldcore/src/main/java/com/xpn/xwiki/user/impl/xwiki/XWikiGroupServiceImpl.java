@@ -25,6 +25,8 @@
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -42,6 +44,7 @@
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.SpaceReference;
 import org.xwiki.model.reference.WikiReference;
 import org.xwiki.observation.EventListener;
 import org.xwiki.observation.ObservationManager;
@@ -133,17 +136,24 @@ public class XWikiGroupServiceImpl implements XWikiGroupService, EventListener
         }
     };
 
+    /**
+     * @deprecated since 5.4M1 the groups of a member are taken from the {@link GroupMembershipIndex} of the wiki
+     */
+    @Deprecated
     protected Cache<Collection<DocumentReference>> memberGroupsCache;
 
+    /**
+     * The group membership of each wiki, loaded the first time it's needed.
+     */
+    private final Map<String, GroupMembershipIndex> membershipIndexes =
+        new ConcurrentHashMap<String, GroupMembershipIndex>();
+
     /**
      * Used to convert a string into a proper Document Reference.
      */
     private DocumentReferenceResolver<String> currentMixedDocumentReferenceResolver = Utils.getComponent(
         DocumentReferenceResolver.TYPE_STRING, "currentmixed");
 
-    private EntityReferenceSerializer<String> entityReferenceSerializer = Utils
-        .getComponent(EntityReferenceSerializer.TYPE_STRING);
-
     private EntityReferenceSerializer<String> localWikiEntityReferenceSerializer = Utils.getComponent(
         EntityReferenceSerializer.TYPE_STRING, "local");
 
@@ -192,6 +202,125 @@ public void flushCache()
         if (this.memberGroupsCache != null) {
             this.memberGroupsCache.removeAll();
         }
+
+        this.membershipIndexes.clear();
+    }
+
+    /**
+     * Get the group membership of the provided wiki, loading it with one query the first time.
+     * 
+     * @param wiki the wiki containing the groups
+     * @param context the XWiki context
+     * @return the group membership of the wiki
+     * @throws XWikiException when failing to load the groups
+     * @since 5.4M1
+     */
+    protected GroupMembershipIndex getMembershipIndex(String wiki, XWikiContext context) throws XWikiException
+    {
+        GroupMembershipIndex index = this.membershipIndexes.get(wiki);
+
+        if (index == null) {
+            synchronized (this.membershipIndexes) {
+                index = this.membershipIndexes.get(wiki);
+
+                if (index == null) {
+                    index = loadMembershipIndex(wiki, context);
+
+                    this.membershipIndexes.put(wiki, index);
+                }
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * @param wiki the wiki containing the groups
+     * @param context the XWiki context
+     * @return the group membership of the wiki
+     * @throws XWikiException when failing to load the groups
+     */
+    private GroupMembershipIndex loadMembershipIndex(String wiki, XWikiContext context) throws XWikiException
+    {
+        List<Object[]> rows;
+        try {
+            Query query = context.getWiki().getStore().getQueryManager().getNamedQuery("listGroupsMembers");
+            query.setWiki(wiki);
+
+            rows = query.execute();
+        } catch (QueryException ex) {
+            throw new XWikiException(0, 0, ex.getMessage(), ex);
+        }
+
+        WikiReference wikiReference = new WikiReference(wiki);
+
+        Map<DocumentReference, Collection<DocumentReference>> members =
+            new HashMap<DocumentReference, Collection<DocumentReference>>();
+        for (Object[] row : rows) {
+            DocumentReference member = resolveMember((String) row[1], wikiReference);
+
+            if (member != null) {
+                DocumentReference group =
+                    this.currentMixedDocumentReferenceResolver.resolve((String) row[0], wikiReference);
+
+                Collection<DocumentReference> groupMembers = members.get(group);
+                if (groupMembers == null) {
+                    groupMembers = new ArrayList<DocumentReference>();
+                    members.put(group, groupMembers);
+                }
+                groupMembers.add(member);
+            }
+        }
+
+        GroupMembershipIndex index = new GroupMembershipIndex();
+        for (Map.Entry<DocumentReference, Collection<DocumentReference>> entry : members.entrySet()) {
+            index.setMembers(entry.getKey(), entry.getValue());
+        }
+
+        return index;
+    }
+
+    /**
+     * Resolve the member name stored in a XWiki.XWikiGroups object. Members without space are located in the XWiki
+     * space and members without wiki in the wiki of the group.
+     * 
+     * @param member the member name found in the XWiki.XWikiGroups object
+     * @param groupWiki the wiki of the group
+     * @return the reference of the member, null if the member name is empty
+     */
+    private DocumentReference resolveMember(String member, WikiReference groupWiki)
+    {
+        if (StringUtils.isBlank(member)) {
+            return null;
+        }
+
+        return this.currentMixedDocumentReferenceResolver.resolve(member, new SpaceReference(DEFAULT_MEMBER_SPACE,
+            groupWiki));
+    }
+
+    /**
+     * @param groupDocument the group document
+     * @return the members listed in the XWiki.XWikiGroups objects of the document
+     */
+    private Collection<DocumentReference> getMembers(XWikiDocument groupDocument)
+    {
+        Collection<DocumentReference> members = new ArrayList<DocumentReference>();
+
+        List<BaseObject> groups = groupDocument.getXObjects(GROUPCLASS_REFERENCE);
+        if (groups != null) {
+            for (BaseObject bobj : groups) {
+                if (bobj != null) {
+                    DocumentReference member =
+                        resolveMember(bobj.getStringValue(FIELD_XWIKIGROUPS_MEMBER), groupDocument
+                            .getDocumentReference().getWikiReference());
+                    if (member != null) {
+                        members.add(member);
+                    }
+                }
+            }
+        }
+
+        return members;
     }
 
     /**
@@ -219,21 +348,17 @@ public Collection<String> listGroupsForUser(String member, XWikiContext context)
     public void addUserToGroup(String username, String database, String group, XWikiContext context)
         throws XWikiException
     {
-        String shortname = Util.getName(username);
-        String key = database + "/" + database + ":" + shortname;
+        GroupMembershipIndex index = this.membershipIndexes.get(database);
 
-        if (this.memberGroupsCache == null) {
-            initCache(context);
-        }
+        // The index is loaded from the database (and thus already contains the saved group) when it's first needed
+        if (index != null) {
+            WikiReference wikiReference = new WikiReference(database);
+            DocumentReference member = resolveMember(username, wikiReference);
 
-        Collection<DocumentReference> list = this.memberGroupsCache.get(key);
-
-        if (list == null) {
-            list = new ArrayList<DocumentReference>();
-            this.memberGroupsCache.set(key, list);
+            if (member != null) {
+                index.addMember(this.currentMixedDocumentReferenceResolver.resolve(group, wikiReference), member);
+            }
         }
-
-        list.add(this.currentMixedDocumentReferenceResolver.resolve(group, new WikiReference(database)));
     }
 
     /**
@@ -406,9 +531,19 @@ public void onEvent(Event event, Object source, Object data)
         XWikiDocument document = (XWikiDocument) source;
         XWikiDocument oldDocument = document.getOriginalDocument();
 
-        // if there is any chance some group changed, flush the group cache
-        if (document.getXObject(GROUPCLASS_REFERENCE) != null || oldDocument.getXObject(GROUPCLASS_REFERENCE) != null) {
-            flushCache();
+        // if there is any chance some group changed, update the group membership of the wiki
+        if (document.getXObject(GROUPCLASS_REFERENCE) != null
+            || (oldDocument != null && oldDocument.getXObject(GROUPCLASS_REFERENCE) != null)) {
+            // Synchronized with the loading so that a modification saved during the loading is not lost
+            synchronized (this.membershipIndexes) {
+                GroupMembershipIndex index =
+                    this.membershipIndexes.get(document.getDocumentReference().getWikiReference().getName());
+
+                // Not loaded yet, it will be up to date when loaded
+                if (index != null) {
+                    index.setMembers(document.getDocumentReference(), getMembers(document));
+                }
+            }
         }
     }
 
@@ -720,80 +855,102 @@ public Collection<String> getAllGroupsNamesForMember(String member, int nb, int
     public Collection<DocumentReference> getAllGroupsReferencesForMember(DocumentReference memberReference, int limit,
         int offset, XWikiContext context) throws XWikiException
     {
-        Collection<DocumentReference> groupReferences = null;
+        GroupMembershipIndex index = getMembershipIndex(context.getDatabase(), context);
 
-        String prefixedFullName = this.entityReferenceSerializer.serialize(memberReference);
+        Collection<DocumentReference> groupReferences = index.getGroups(getIndexedMember(memberReference, context));
 
-        String key = context.getDatabase() + "/" + prefixedFullName;
-        synchronized (key) {
-            if (this.memberGroupsCache == null) {
-                initCache(context);
-            }
+        if (limit > 0 || offset > 0) {
+            List<DocumentReference> groupList = new ArrayList<DocumentReference>(groupReferences);
+            int fromIndex = Math.min(Math.max(offset, 0), groupList.size());
+            int toIndex = limit > 0 ? Math.min(fromIndex + limit, groupList.size()) : groupList.size();
+            groupReferences = new HashSet<DocumentReference>(groupList.subList(fromIndex, toIndex));
+        }
 
-            // TODO: add cache support for customized limit/offset ?
-            boolean supportCache = limit <= 0 && offset <= 0;
+        addImplicitAllGroup(memberReference, groupReferences, context);
 
-            if (supportCache) {
-                groupReferences = this.memberGroupsCache.get(key);
-            }
+        return groupReferences;
+    }
 
-            if (groupReferences == null) {
-                List<String> groupNames;
-                try {
-                    Query query;
-                    if (memberReference.getWikiReference().getName().equals(context.getDatabase())
-                        || (memberReference.getLastSpaceReference().getName().equals("XWiki") && memberReference
-                            .getName().equals(XWikiRightService.GUEST_USER))) {
-                        query =
-                            context
-                                .getWiki()
-                                .getStore()
-                                .getQueryManager()
-                                .getNamedQuery("listGroupsForUser")
-                                .bindValue("username", prefixedFullName)
-                                .bindValue("shortname",
-                                    this.localWikiEntityReferenceSerializer.serialize(memberReference))
-                                .bindValue("veryshortname", memberReference.getName());
-                    } else {
-                        query =
-                            context.getWiki().getStore().getQueryManager()
-                                .getNamedQuery("listGroupsForUserInOtherWiki")
-                                .bindValue("prefixedmembername", prefixedFullName);
-                    }
+    /**
+     * Get all groups containing provided member in the current wiki, directly or through other groups.
+     * 
+     * @param memberReference the member, can be either user or group
+     * @param context the XWiki context
+     * @return the references of the groups
+     * @throws XWikiException error when loading groups
+     * @since 5.4M1
+     */
+    public Collection<DocumentReference> getAllNestedGroupsReferencesForMember(DocumentReference memberReference,
+        XWikiContext context) throws XWikiException
+    {
+        GroupMembershipIndex index = getMembershipIndex(context.getDatabase(), context);
 
-                    query.setOffset(offset);
-                    query.setLimit(limit);
+        Set<DocumentReference> groupReferences =
+            new HashSet<DocumentReference>(index.getAllGroups(getIndexedMember(memberReference, context)));
 
-                    groupNames = query.execute();
-                } catch (QueryException ex) {
-                    throw new XWikiException(0, 0, ex.getMessage(), ex);
-                }
+        addImplicitAllGroup(memberReference, groupReferences, context);
 
-                groupReferences = new HashSet<DocumentReference>(groupNames.size());
-                for (String groupName : groupNames) {
-                    groupReferences.add(this.currentMixedDocumentReferenceResolver.resolve(groupName));
-                }
+        return groupReferences;
+    }
 
-                // If the 'XWiki.XWikiAllGroup' is implicit, all users/groups except XWikiGuest and XWikiAllGroup
-                // itself are part of it.
-                if (isAllGroupImplicit(context)
-                    && memberReference.getWikiReference().getName().equals(context.getDatabase())
-                    && !memberReference.getName().equals(XWikiRightService.GUEST_USER)) {
-                    DocumentReference currentXWikiAllGroup =
-                        new DocumentReference(context.getDatabase(), "XWiki", XWikiRightService.ALLGROUP_GROUP);
+    /**
+     * Get all users and groups contained in provided group, directly or through other groups.
+     * <p>
+     * The members implicitly contained in XWikiAllGroup (see {@link #isAllGroupImplicit(XWikiContext)}) are not
+     * listed.
+     * 
+     * @param groupReference the group
+     * @param context the XWiki context
+     * @return the references of the members
+     * @throws XWikiException error when loading groups
+     * @since 5.4M1
+     */
+    public Collection<DocumentReference> getAllNestedMembersReferencesForGroup(DocumentReference groupReference,
+        XWikiContext context) throws XWikiException
+    {
+        GroupMembershipIndex index = getMembershipIndex(groupReference.getWikiReference().getName(), context);
 
-                    if (!currentXWikiAllGroup.equals(memberReference)) {
-                        groupReferences.add(currentXWikiAllGroup);
-                    }
-                }
+        return index.getAllMembers(groupReference);
+    }
 
-                if (supportCache) {
-                    this.memberGroupsCache.set(key, groupReferences);
-                }
-            }
+    /**
+     * XWikiGuest is searched in the current wiki whatever its actual wiki.
+     * 
+     * @param memberReference the member
+     * @param context the XWiki context
+     * @return the reference of the member as stored in the group membership index of the current wiki
+     */
+    private DocumentReference getIndexedMember(DocumentReference memberReference, XWikiContext context)
+    {
+        if (!memberReference.getWikiReference().getName().equals(context.getDatabase())
+            && memberReference.getLastSpaceReference().getName().equals(DEFAULT_MEMBER_SPACE)
+            && memberReference.getName().equals(XWikiRightService.GUEST_USER)) {
+            return new DocumentReference(context.getDatabase(), DEFAULT_MEMBER_SPACE, XWikiRightService.GUEST_USER);
         }
 
-        return groupReferences;
+        return memberReference;
+    }
+
+    /**
+     * If the 'XWiki.XWikiAllGroup' is implicit, all users/groups except XWikiGuest and XWikiAllGroup itself are part
+     * of it.
+     * 
+     * @param memberReference the member
+     * @param groupReferences the groups of the member
+     * @param context the XWiki context
+     */
+    private void addImplicitAllGroup(DocumentReference memberReference, Collection<DocumentReference> groupReferences,
+        XWikiContext context)
+    {
+        if (isAllGroupImplicit(context) && memberReference.getWikiReference().getName().equals(context.getDatabase())
+            && !memberReference.getName().equals(XWikiRightService.GUEST_USER)) {
+            DocumentReference currentXWikiAllGroup =
+                new DocumentReference(context.getDatabase(), DEFAULT_MEMBER_SPACE, XWikiRightService.ALLGROUP_GROUP);
+
+            if (!currentXWikiAllGroup.equals(memberReference)) {
+                groupReferences.add(currentXWikiAllGroup);
+            }
+        }
     }
 
     @Override
@@ -22,7 +22,9 @@
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Type;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.tika.mime.MediaType;
@@ -141,21 +143,7 @@ private String importPackage(XWikiAttachment packFile, XWikiRequest request, XWi
 
                     for (String pageName : pages) {
                         String language = Util.normalizeLanguage(request.get("language_" + pageName));
-                        String actionName = "action_" + pageName;
-                        if (!StringUtils.isBlank(language)) {
-                            actionName += ("_" + language);
-                        }
-                        String defaultAction = request.get(actionName);
-                        int iAction;
-                        if (StringUtils.isBlank(defaultAction)) {
-                            iAction = DocumentInfo.ACTION_OVERWRITE;
-                        } else {
-                            try {
-                                iAction = Integer.parseInt(defaultAction);
-                            } catch (Exception e) {
-                                iAction = DocumentInfo.ACTION_SKIP;
-                            }
-                        }
+                        int iAction = getDocumentAction(request, pageName, language);
 
                         String docName = pageName.replaceAll(":[^:]*$", "");
                         if (iAction == DocumentInfo.ACTION_SKIP) {
@@ -215,36 +203,37 @@ private String importPackage(XWikiAttachment packFile, XWikiRequest request, XWi
                     observation.notify(new XARImportedEvent(), null, context);
                 }
             } else {
-                importer.Import(packFile.getContentInputStream(context));
-                if (pages != null) {
-                    List<DocumentInfoAPI> filelist = importer.getFiles();
-                    for (DocumentInfoAPI dia : filelist) {
-                        dia.setAction(DocumentInfo.ACTION_SKIP);
-                    }
-
-                    for (String pageName : pages) {
-                        String language = Util.normalizeLanguage(request.get("language_" + pageName));
-                        String actionName = "action_" + pageName;
-                        if (!StringUtils.isBlank(language)) {
-                            actionName += ("_" + language);
+                boolean streaming = context.getWiki().ParamAsLong("xwiki.action.import.xar.streaming", 0) == 1;
+                Map<String, Integer> documentActions = null;
+                if (streaming) {
+                    // The documents are installed while the package is read
+                    if (pages != null) {
+                        documentActions = new HashMap<String, Integer>();
+                        for (String pageName : pages) {
+                            String language = Util.normalizeLanguage(request.get("language_" + pageName));
+                            String docName = pageName.replaceAll(":[^:]*$", "");
+                            documentActions.put(docName + ':' + StringUtils.defaultString(language),
+                                getDocumentAction(request, pageName, language));
                         }
-                        String defaultAction = request.get(actionName);
-                        int iAction;
-                        if (StringUtils.isBlank(defaultAction)) {
-                            iAction = DocumentInfo.ACTION_OVERWRITE;
-                        } else {
-                            try {
-                                iAction = Integer.parseInt(defaultAction);
-                            } catch (Exception e) {
-                                iAction = DocumentInfo.ACTION_SKIP;
-                            }
+                    }
+                } else {
+                    importer.Import(packFile.getContentInputStream(context));
+                    if (pages != null) {
+                        List<DocumentInfoAPI> filelist = importer.getFiles();
+                        for (DocumentInfoAPI dia : filelist) {
+                            dia.setAction(DocumentInfo.ACTION_SKIP);
                         }
 
-                        String docName = pageName.replaceAll(":[^:]*$", "");
-                        if (language == null) {
-                            importer.setDocumentAction(docName, iAction);
-                        } else {
-                            importer.setDocumentAction(docName, language, iAction);
+                        for (String pageName : pages) {
+                            String language = Util.normalizeLanguage(request.get("language_" + pageName));
+                            int iAction = getDocumentAction(request, pageName, language);
+
+                            String docName = pageName.replaceAll(":[^:]*$", "");
+                            if (language == null) {
+                                importer.setDocumentAction(docName, iAction);
+                            } else {
+                                importer.setDocumentAction(docName, language, iAction);
+                            }
                         }
                     }
                 }
@@ -269,7 +258,16 @@ private String importPackage(XWikiAttachment packFile, XWikiRequest request, XWi
                 }
 
                 // Import files
-                importer.install();
+                if (streaming) {
+                    InputStream source = packFile.getContentInputStream(context);
+                    try {
+                        importer.importAndInstall(source, documentActions);
+                    } finally {
+                        source.close();
+                    }
+                } else {
+                    importer.install();
+                }
             }
 
             if (!StringUtils.isBlank(request.getParameter("ajax"))) {
@@ -284,4 +282,31 @@ private String importPackage(XWikiAttachment packFile, XWikiRequest request, XWi
 
         return null;
     }
+
+    /**
+     * @param request the import request
+     * @param pageName the name of a selected page
+     * @param language the language of the selected page, null for the default language
+     * @return the action to apply to the selected page, see {@link DocumentInfo}
+     */
+    private int getDocumentAction(XWikiRequest request, String pageName, String language)
+    {
+        String actionName = "action_" + pageName;
+        if (!StringUtils.isBlank(language)) {
+            actionName += ("_" + language);
+        }
+        String defaultAction = request.get(actionName);
+        int iAction;
+        if (StringUtils.isBlank(defaultAction)) {
+            iAction = DocumentInfo.ACTION_OVERWRITE;
+        } else {
+            try {
+                iAction = Integer.parseInt(defaultAction);
+            } catch (Exception e) {
+                iAction = DocumentInfo.ACTION_SKIP;
+            }
+        }
+
+        return iAction;
+    }
 }
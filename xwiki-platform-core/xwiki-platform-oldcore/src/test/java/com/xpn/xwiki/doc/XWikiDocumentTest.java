@@ -716,6 +716,25 @@ public void testGetContentOfSection() throws XWikiException
         assertEquals("== header 4 ==\n\nheader 4 content", content4);
     }
 
+    /**
+     * Verify that reading the sections does not modify the XDOM cached by the document.
+     */
+    public void testGetContentOfSectionDoesNotModifyCachedXDOM() throws XWikiException
+    {
+        this.document.setContent("= header 1=\nheader 1 content\n" + "== header 2==\nheader 2 content\n"
+            + "= header 3=\nheader 3 content");
+        this.document.setSyntax(Syntax.XWIKI_2_0);
+
+        String content1 = this.document.getContentOfSection(1);
+        List<DocumentSection> sections = this.document.getSections();
+
+        assertEquals(3, sections.size());
+        assertEquals("header 3", sections.get(2).getSectionTitle());
+        assertEquals(content1, this.document.getContentOfSection(1));
+        assertEquals("= header 1 =\n\nheader 1 content\n\n== header 2 ==\n\nheader 2 content\n\n"
+            + "= header 3 =\n\nheader 3 content", XWikiDocument.renderXDOM(this.document.getXDOM(), Syntax.XWIKI_2_0));
+    }
+
     public void testSectionSplit10() throws XWikiException
     {
         List<DocumentSection> sections;
@@ -0,0 +1,69 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.internal.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link BloomFilter}.
+ * 
+ * @version $Id$
+ * @since 5.4M1
+ */
+public class BloomFilterTest
+{
+    @Test
+    public void putAndMightContain()
+    {
+        BloomFilter filter = new BloomFilter(1000, 0.01);
+
+        for (int i = 0; i < 1000; ++i) {
+            filter.put("Space.Page" + i);
+        }
+
+        // No false negative
+        for (int i = 0; i < 1000; ++i) {
+            Assert.assertTrue(filter.mightContain("Space.Page" + i));
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; ++i) {
+            if (filter.mightContain("Other.Page" + i)) {
+                ++falsePositives;
+            }
+        }
+
+        // Leave some margin over the expected 1%
+        Assert.assertTrue("Too many false positives: " + falsePositives, falsePositives < 300);
+    }
+
+    @Test
+    public void empty()
+    {
+        BloomFilter filter = new BloomFilter(0, 0.01);
+
+        Assert.assertFalse(filter.mightContain("Space.Page"));
+
+        filter.put("Space.Page");
+
+        Assert.assertTrue(filter.mightContain("Space.Page"));
+    }
+}
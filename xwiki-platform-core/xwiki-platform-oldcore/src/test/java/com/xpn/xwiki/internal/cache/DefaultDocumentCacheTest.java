@@ -19,6 +19,8 @@
  */
 package com.xpn.xwiki.internal.cache;
 
+import java.util.Arrays;
+
 import org.junit.Assert;
 
 import org.jmock.Expectations;
@@ -102,4 +104,62 @@ public void testEventBasedCleanup() throws Exception
         Assert.assertNull(this.cache.get(this.document.getDocumentReference()));
         Assert.assertNull(this.cache.get(this.document.getDocumentReference(), "ext1", "ext2"));
     }
+
+    @Test
+    public void testDependencyBasedCleanup() throws Exception
+    {
+        DocumentReference dependency = new DocumentReference("wiki", "space", "dependency");
+        this.cache.set("data", Arrays.asList(dependency), this.document.getDocumentReference(), "ext");
+
+        ObservationManager observationManager = getComponentManager().getInstance(ObservationManager.class);
+        observationManager.notify(new DocumentUpdatedEvent(dependency), null, getContext());
+
+        Assert.assertNull(this.cache.get(this.document.getDocumentReference(), "ext"));
+    }
+
+    @Test
+    public void testCleanupWithMoreDependenciesThanEntries() throws Exception
+    {
+        DefaultDocumentCache<String> smallCache =
+            (DefaultDocumentCache<String>) getComponentManager().getInstance(DocumentCache.class);
+
+        CacheConfiguration cacheConfiguration = new CacheConfiguration();
+        cacheConfiguration.setConfigurationId("documentcachetest.small");
+        LRUEvictionConfiguration lru = new LRUEvictionConfiguration();
+        lru.setMaxEntries(2);
+        cacheConfiguration.put(LRUEvictionConfiguration.CONFIGURATIONID, lru);
+        smallCache.create(cacheConfiguration);
+
+        try {
+            DocumentReference dependency1 = new DocumentReference("wiki", "space", "dependency1");
+            DocumentReference dependency2 = new DocumentReference("wiki", "space", "dependency2");
+            DocumentReference dependency3 = new DocumentReference("wiki", "space", "dependency3");
+            smallCache.set("data", Arrays.asList(dependency1, dependency2, dependency3),
+                this.document.getDocumentReference());
+
+            // More documents are mapped than the cache can hold entries: the mappings must not be evicted
+            ObservationManager observationManager = getComponentManager().getInstance(ObservationManager.class);
+            observationManager.notify(new DocumentUpdatedEvent(dependency1), null, getContext());
+
+            Assert.assertNull(smallCache.get(this.document.getDocumentReference()));
+        } finally {
+            smallCache.dispose();
+        }
+    }
+
+    @Test
+    public void testRemoveForgetsDependencies() throws Exception
+    {
+        DocumentReference dependency = new DocumentReference("wiki", "space", "dependency");
+        this.cache.set("data", Arrays.asList(dependency), this.document.getDocumentReference(), "ext");
+        this.cache.remove("data", this.document.getDocumentReference(), "ext");
+
+        // Set again without the dependency: modifying the former dependency must not remove it anymore
+        this.cache.set("data", this.document.getDocumentReference(), "ext");
+
+        ObservationManager observationManager = getComponentManager().getInstance(ObservationManager.class);
+        observationManager.notify(new DocumentUpdatedEvent(dependency), null, getContext());
+
+        Assert.assertEquals("data", this.cache.get(this.document.getDocumentReference(), "ext"));
+    }
 }
@@ -19,6 +19,8 @@
  */
 package com.xpn.xwiki.internal.cache.rendering;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -34,6 +36,7 @@
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.test.AbstractBridgedComponentTestCase;
+import com.xpn.xwiki.user.api.XWikiGroupService;
 import com.xpn.xwiki.web.XWikiServletRequestStub;
 
 /**
@@ -120,4 +123,93 @@ public void testGetSetRenderedContent() throws Exception
         Assert.assertNull(this.renderingCache.getRenderedContent(this.document.getDocumentReference(), "source",
             getContext()));
     }
+
+    @Test
+    public void testDependencies() throws Exception
+    {
+        getConfigurationSource().setProperty("core.renderingcache.documents",
+            Collections.singletonList(this.document.getPrefixedFullName()));
+
+        DocumentReference includedReference = new DocumentReference("wiki", "space", "included");
+
+        Assert.assertNull(this.renderingCache.getRenderedContent(this.document.getDocumentReference(), "source",
+            getContext()));
+
+        // Simulate the loading of a document during the rendering
+        this.renderingCache.addDependency(includedReference, getContext());
+        Map<Object, Collection<DocumentReference>> dependencies =
+            (Map<Object, Collection<DocumentReference>>) getContext().get(RenderingCache.CONTEXT_DEPENDENCIES);
+        Assert.assertEquals(Collections.singleton(includedReference), dependencies.values().iterator().next());
+
+        this.renderingCache.setRenderedContent(this.document.getDocumentReference(), "source", "renderedContent",
+            getContext());
+
+        Assert.assertTrue(dependencies.isEmpty());
+        Assert.assertEquals("renderedContent",
+            this.renderingCache.getRenderedContent(this.document.getDocumentReference(), "source", getContext()));
+
+        ObservationManager observationManager = getComponentManager().getInstance(ObservationManager.class);
+        observationManager.notify(new DocumentUpdatedEvent(includedReference), this.document, getContext());
+
+        Assert.assertNull(this.renderingCache.getRenderedContent(this.document.getDocumentReference(), "source",
+            getContext()));
+    }
+
+    @Test
+    public void testMaxMemory() throws Exception
+    {
+        getConfigurationSource().setProperty("core.renderingcache.documents",
+            Collections.singletonList(this.document.getPrefixedFullName()));
+        // Room for 10 characters
+        getConfigurationSource().setProperty("core.renderingcache.maxMemory", 20L);
+
+        this.renderingCache.setRenderedContent(this.document.getDocumentReference(), "source1", "0123456789",
+            getContext());
+        this.renderingCache.setRenderedContent(this.document.getDocumentReference(), "source2", "0123456789",
+            getContext());
+
+        Assert.assertNull(this.renderingCache.getRenderedContent(this.document.getDocumentReference(), "source1",
+            getContext()));
+        Assert.assertEquals("0123456789",
+            this.renderingCache.getRenderedContent(this.document.getDocumentReference(), "source2", getContext()));
+    }
+
+    @Test
+    public void testNotSharedBetweenUsers() throws Exception
+    {
+        getConfigurationSource().setProperty("core.renderingcache.documents",
+            Collections.singletonList(this.document.getPrefixedFullName()));
+
+        final XWikiGroupService groupService = getMockery().mock(XWikiGroupService.class);
+        final DocumentReference user1 = new DocumentReference("wiki", "XWiki", "user1");
+        final DocumentReference user2 = new DocumentReference("wiki", "XWiki", "user2");
+        final DocumentReference group1 = new DocumentReference("wiki", "XWiki", "group1");
+        final DocumentReference group2 = new DocumentReference("wiki", "XWiki", "group2");
+
+        // @formatter:off
+        getMockery().checking(new Expectations() {{
+            allowing(mockXWiki).getGroupService(getContext()); will(returnValue(groupService));
+            allowing(groupService).getAllGroupsReferencesForMember(user1, 0, 0, getContext());
+                will(returnValue(Arrays.asList(group1, group2)));
+            allowing(groupService).getAllGroupsReferencesForMember(user2, 0, 0, getContext());
+                will(returnValue(Arrays.asList(group2, group1)));
+        }});
+        //@formatter:on
+
+        getContext().setUserReference(user1);
+        this.renderingCache.setRenderedContent(this.document.getDocumentReference(), "source", "renderedContent",
+            getContext());
+
+        Assert.assertEquals("renderedContent",
+            this.renderingCache.getRenderedContent(this.document.getDocumentReference(), "source", getContext()));
+
+        // Same groups but the rights can be granted directly to the user and the content can be specific to the user
+        getContext().setUserReference(user2);
+        Assert.assertNull(this.renderingCache.getRenderedContent(this.document.getDocumentReference(), "source",
+            getContext()));
+
+        getContext().setUserReference(null);
+        Assert.assertNull(this.renderingCache.getRenderedContent(this.document.getDocumentReference(), "source",
+            getContext()));
+    }
 }
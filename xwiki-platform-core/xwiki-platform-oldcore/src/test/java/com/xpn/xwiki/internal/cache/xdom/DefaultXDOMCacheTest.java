@@ -0,0 +1,94 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.internal.cache.xdom;
+
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.XDOM;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.test.AbstractBridgedComponentTestCase;
+
+/**
+ * Unit test for {@link DefaultXDOMCache}.
+ * 
+ * @version $Id$
+ * @since 5.4M1
+ */
+public class DefaultXDOMCacheTest extends AbstractBridgedComponentTestCase
+{
+    private XWikiDocument document;
+
+    private XDOMCache xdomCache;
+
+    @Override
+    public void setUp() throws Exception
+    {
+        super.setUp();
+
+        this.document = new XWikiDocument(new DocumentReference("wiki", "space", "page"));
+        this.document.setContent("content");
+
+        this.xdomCache = getComponentManager().getInstance(XDOMCache.class);
+    }
+
+    @Override
+    protected void registerComponents() throws Exception
+    {
+        super.registerComponents();
+
+        getConfigurationSource().setProperty("core.xdomcache.enabled", true);
+    }
+
+    @Test
+    public void testGetSet() throws Exception
+    {
+        XDOM xdom = new XDOM(Collections.<Block> emptyList());
+
+        Assert.assertNull(this.xdomCache.get(this.document));
+
+        this.xdomCache.set(this.document, xdom);
+
+        Assert.assertSame(xdom, this.xdomCache.get(this.document));
+        Assert.assertSame(xdom, this.xdomCache.get(this.document.clone()));
+
+        XWikiDocument modifiedDocument = this.document.clone();
+        modifiedDocument.setContent("modified content");
+
+        Assert.assertNull(this.xdomCache.get(modifiedDocument));
+
+        XWikiDocument otherVersion = this.document.clone();
+        otherVersion.setVersion("2.1");
+
+        Assert.assertNull(this.xdomCache.get(otherVersion));
+
+        ObservationManager observationManager = getComponentManager().getInstance(ObservationManager.class);
+        observationManager.notify(new DocumentUpdatedEvent(this.document.getDocumentReference()), this.document,
+            getContext());
+
+        Assert.assertNull(this.xdomCache.get(this.document));
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.internal.observation.remote.converter;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.remote.LocalEventData;
+import org.xwiki.observation.remote.RemoteEventData;
+import org.xwiki.observation.remote.converter.EventConverterManager;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.internal.event.DocumentInvalidatedEvent;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.test.AbstractBridgedComponentTestCase;
+
+/**
+ * Validate {@link DocumentInvalidationEventConverter}.
+ * 
+ * @version $Id$
+ */
+public class DocumentInvalidationEventConverterTest extends AbstractBridgedComponentTestCase
+{
+    private static final DocumentReference REFERENCE = new DocumentReference("wiki", "space", "page");
+
+    private EventConverterManager eventConverterManager;
+
+    @Override
+    public void setUp() throws Exception
+    {
+        super.setUp();
+
+        getConfigurationSource().setProperty("observation.remote.invalidation.enabled", true);
+
+        this.eventConverterManager = getComponentManager().getInstance(EventConverterManager.class);
+    }
+
+    private RemoteEventData toRemote(XWikiDocument document)
+    {
+        return this.eventConverterManager.createRemoteEventData(new LocalEventData(
+            new DocumentUpdatedEvent(document.getDocumentReference()), document, getContext()));
+    }
+
+    @Test
+    public void testConvertUpdate() throws Exception
+    {
+        XWikiDocument document = new XWikiDocument(REFERENCE);
+        document.setLanguage("fr");
+        document.setVersion("2.1");
+
+        RemoteEventData remoteEvent = toRemote(document);
+
+        Assert.assertEquals(new DocumentInvalidatedEvent(REFERENCE), remoteEvent.getEvent());
+        Assert.assertEquals("fr", remoteEvent.getSource());
+        Assert.assertEquals("2.1", remoteEvent.getData());
+
+        LocalEventData localEvent = this.eventConverterManager.createLocalEventData(remoteEvent);
+
+        Assert.assertEquals(new DocumentInvalidatedEvent(REFERENCE), localEvent.getEvent());
+        Assert.assertEquals(REFERENCE, ((XWikiDocument) localEvent.getSource()).getDocumentReference());
+        Assert.assertEquals(document.getKey(), ((XWikiDocument) localEvent.getSource()).getKey());
+        Assert.assertEquals("2.1", localEvent.getData());
+    }
+
+    @Test
+    public void testConvertDelete() throws Exception
+    {
+        XWikiDocument document = new XWikiDocument(REFERENCE);
+
+        RemoteEventData remoteEvent =
+            this.eventConverterManager.createRemoteEventData(new LocalEventData(new DocumentDeletedEvent(REFERENCE),
+                document, getContext()));
+
+        Assert.assertTrue(remoteEvent.getEvent() instanceof DocumentInvalidatedEvent);
+        Assert.assertNull(remoteEvent.getData());
+    }
+
+    @Test
+    public void testDocumentWithObjectsIsNotInvalidated() throws Exception
+    {
+        XWikiDocument document = new XWikiDocument(REFERENCE);
+        BaseObject xobject = new BaseObject();
+        xobject.setXClassReference(new DocumentReference("wiki", "XWiki", "XWikiGroups"));
+        document.addXObject(xobject);
+
+        Assert.assertTrue(toRemote(document).getEvent() instanceof DocumentUpdatedEvent);
+
+        // Allowed classes don't prevent invalidation
+        XWikiDocument commentedDocument = new XWikiDocument(REFERENCE);
+        BaseObject comment = new BaseObject();
+        comment.setXClassReference(new DocumentReference("wiki", "XWiki", "XWikiComments"));
+        commentedDocument.addXObject(comment);
+
+        Assert.assertTrue(toRemote(commentedDocument).getEvent() instanceof DocumentInvalidatedEvent);
+    }
+
+    @Test
+    public void testDisabled() throws Exception
+    {
+        getConfigurationSource().setProperty("observation.remote.invalidation.enabled", false);
+
+        Assert.assertTrue(toRemote(new XWikiDocument(REFERENCE)).getEvent() instanceof DocumentUpdatedEvent);
+    }
+}
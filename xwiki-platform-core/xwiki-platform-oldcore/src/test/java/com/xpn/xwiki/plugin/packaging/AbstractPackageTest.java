@@ -26,6 +26,7 @@
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 
+import java.util.Arrays;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -54,6 +55,40 @@ public abstract class AbstractPackageTest extends AbstractBridgedXWikiComponentT
      * @return the XAR file as a byte array.
      */
     protected byte[] createZipFile(XWikiDocument docs[], String[] encodings, String packageXmlEncoding) throws Exception
+    {
+        return createZipFile(docs, encodings, packageXmlEncoding, false, false);
+    }
+
+    /**
+     * Create a XAR file using java.util.zip, including the objects and the class definitions of the documents.
+     *
+     * @param docs The documents to include.
+     * @return the XAR file as a byte array.
+     */
+    protected byte[] createZipFileWithObjects(XWikiDocument docs[]) throws Exception
+    {
+        String[] encodings = new String[docs.length];
+        Arrays.fill(encodings, "ISO-8859-1");
+
+        return createZipFile(docs, encodings, "ISO-8859-1", true, false);
+    }
+
+    /**
+     * Create a XAR file using java.util.zip, including the content of the attachments of the documents.
+     *
+     * @param docs The documents to include.
+     * @return the XAR file as a byte array.
+     */
+    protected byte[] createZipFileWithAttachments(XWikiDocument docs[]) throws Exception
+    {
+        String[] encodings = new String[docs.length];
+        Arrays.fill(encodings, "ISO-8859-1");
+
+        return createZipFile(docs, encodings, "ISO-8859-1", false, true);
+    }
+
+    private byte[] createZipFile(XWikiDocument docs[], String[] encodings, String packageXmlEncoding,
+        boolean withObjects, boolean withAttachments) throws Exception
     {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         ZipOutputStream zos = new ZipOutputStream(baos);
@@ -67,7 +102,7 @@ protected byte[] createZipFile(XWikiDocument docs[], String[] encodings, String
             }
             ZipEntry zipe = new ZipEntry(zipEntryName);
             zos.putNextEntry(zipe);
-            String xmlCode = docs[i].toXML(false, false, false, false, getContext());
+            String xmlCode = docs[i].toXML(withObjects, false, withAttachments, false, getContext());
             zos.write(getEncodedByteArray(xmlCode, encodings[i]));
         }
         zos.finish();
@@ -20,13 +20,16 @@
 
 package com.xpn.xwiki.plugin.packaging;
 
+import java.io.ByteArrayInputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
+import org.apache.commons.io.IOUtils;
 import org.jmock.Mock;
 import org.jmock.core.Invocation;
 import org.jmock.core.stub.CustomStub;
@@ -37,7 +40,9 @@
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiConfig;
 import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiAttachment;
 import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
 import com.xpn.xwiki.store.XWikiHibernateRecycleBinStore;
 import com.xpn.xwiki.store.XWikiHibernateStore;
 import com.xpn.xwiki.store.XWikiHibernateVersioningStore;
@@ -61,6 +66,8 @@ public class ImportTest extends AbstractPackageTest
 
     private Map<String, XWikiDocument> docs = new HashMap<String, XWikiDocument>();
 
+    private List<String> savedDocuments = new ArrayList<String>();
+
     @Override
     protected void setUp() throws Exception
     {
@@ -111,6 +118,7 @@ public Object invoke(Invocation invocation) throws Throwable
                         documentKey += "." + document.getLanguage();
                     }
                     docs.put(documentKey, document);
+                    savedDocuments.add(documentKey);
                     return null;
                 }
             });
@@ -212,6 +220,123 @@ public void testImportDocument() throws Exception
         assertNotSame(foundDocument, foundTranslationDocument);
     }
 
+    /**
+     * Test installing the documents while reading the package.
+     * 
+     * @throws Exception
+     */
+    public void testImportAndInstallDocument() throws Exception
+    {
+        XWikiDocument doc1 = new XWikiDocument(new DocumentReference("Test", "Test", "DocImport"));
+        doc1.setDefaultLanguage("en");
+        XWikiDocument doc2 = new XWikiDocument(new DocumentReference("Test", "Test", "DocImport2"));
+        doc2.setDefaultLanguage("en");
+
+        byte[] zipFile =
+            this.createZipFile(new XWikiDocument[] {doc1, doc2}, new String[] {"ISO-8859-1", "ISO-8859-1"});
+
+        this.pack = new Package();
+        assertEquals(DocumentInfo.INSTALL_OK,
+            this.pack.importAndInstall(new ByteArrayInputStream(zipFile), getContext()));
+
+        assertFalse(this.xwiki.getDocument(new DocumentReference("Test", "Test", "DocImport"), getContext()).isNew());
+        assertFalse(this.xwiki.getDocument(new DocumentReference("Test", "Test", "DocImport2"), getContext())
+            .isNew());
+        assertTrue(this.pack.getFiles().isEmpty());
+    }
+
+    /**
+     * Test that the class definitions are installed before the documents using them even when they come after them in
+     * the package read while installing it.
+     * 
+     * @throws Exception
+     */
+    public void testImportAndInstallClassAfterItsUsers() throws Exception
+    {
+        DocumentReference classReference = new DocumentReference("Test", "Test", "TestClass");
+        XWikiDocument classDocument = new XWikiDocument(classReference);
+        classDocument.getXClass().addTextField("prop", "Prop", 30);
+
+        XWikiDocument user = new XWikiDocument(new DocumentReference("Test", "Test", "ClassUser"));
+        BaseObject object = new BaseObject();
+        object.setXClassReference(classReference);
+        object.setStringValue("prop", "value");
+        user.addXObject(object);
+
+        XWikiDocument other = new XWikiDocument(new DocumentReference("Test", "Test", "Other"));
+
+        byte[] zipFile = this.createZipFileWithObjects(new XWikiDocument[] {user, other, classDocument});
+
+        this.pack = new Package();
+        assertEquals(DocumentInfo.INSTALL_OK,
+            this.pack.importAndInstall(new ByteArrayInputStream(zipFile), getContext()));
+
+        // The document using the class is installed once the class is
+        assertEquals(3, this.savedDocuments.size());
+        assertEquals("Test.Other", this.savedDocuments.get(0));
+        assertEquals("Test.TestClass", this.savedDocuments.get(1));
+        assertEquals("Test.ClassUser", this.savedDocuments.get(2));
+
+        XWikiDocument foundUser =
+            this.xwiki.getDocument(new DocumentReference("Test", "Test", "ClassUser"), getContext());
+        assertEquals("value", foundUser.getXObject(classReference).getStringValue("prop"));
+        assertFalse(this.xwiki.getDocument(classReference, getContext()).getXClass().getFieldList().isEmpty());
+    }
+
+    /**
+     * Test that the content of the attachments is decoded while the package is read.
+     * 
+     * @throws Exception
+     */
+    public void testImportAndInstallAttachment() throws Exception
+    {
+        byte[] content = new byte[100000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+
+        XWikiDocument doc = new XWikiDocument(new DocumentReference("Test", "Test", "WithAttachment"));
+        XWikiAttachment attachment = new XWikiAttachment(doc, "data.bin");
+        attachment.setContent(new ByteArrayInputStream(content));
+        doc.getAttachmentList().add(attachment);
+
+        byte[] zipFile = this.createZipFileWithAttachments(new XWikiDocument[] {doc});
+
+        this.pack = new Package();
+        assertEquals(DocumentInfo.INSTALL_OK,
+            this.pack.importAndInstall(new ByteArrayInputStream(zipFile), getContext()));
+
+        XWikiDocument foundDocument =
+            this.xwiki.getDocument(new DocumentReference("Test", "Test", "WithAttachment"), getContext());
+        XWikiAttachment foundAttachment = foundDocument.getAttachment("data.bin");
+        assertEquals(content.length, foundAttachment.getFilesize());
+        assertTrue(Arrays.equals(content, IOUtils.toByteArray(foundAttachment.getContentInputStream(getContext()))));
+    }
+
+    /**
+     * Test installing the documents while reading the package, using other actions than the ones of the package.
+     * 
+     * @throws Exception
+     */
+    public void testImportAndInstallSelectedDocuments() throws Exception
+    {
+        XWikiDocument doc1 = new XWikiDocument(new DocumentReference("Test", "Test", "DocImport"));
+        XWikiDocument doc2 = new XWikiDocument(new DocumentReference("Test", "Test", "DocImport2"));
+
+        byte[] zipFile =
+            this.createZipFile(new XWikiDocument[] {doc1, doc2}, new String[] {"ISO-8859-1", "ISO-8859-1"});
+
+        Map<String, Integer> documentActions = new HashMap<String, Integer>();
+        documentActions.put("Test.DocImport:", DocumentInfo.ACTION_OVERWRITE);
+
+        this.pack = new Package();
+        assertEquals(DocumentInfo.INSTALL_OK,
+            this.pack.importAndInstall(new ByteArrayInputStream(zipFile), documentActions, getContext()));
+
+        assertFalse(this.xwiki.getDocument(new DocumentReference("Test", "Test", "DocImport"), getContext()).isNew());
+        assertTrue(this.xwiki.getDocument(new DocumentReference("Test", "Test", "DocImport2"), getContext()).isNew());
+    }
+
     /**
      * Test the regular document import with non-ascii document title.
      * 
@@ -0,0 +1,871 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.store;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheEntry;
+import org.xwiki.cache.CacheFactory;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.event.CacheEntryEvent;
+import org.xwiki.cache.util.AbstractCache;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.remote.RemoteObservationManagerContext;
+import org.xwiki.test.annotation.AllComponents;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.internal.event.DocumentInvalidatedEvent;
+import com.xpn.xwiki.internal.store.DocumentCacheStatistics;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.BaseProperty;
+import com.xpn.xwiki.objects.classes.BaseClass;
+import com.xpn.xwiki.test.MockitoOldcoreRule;
+
+/**
+ * Unit tests for {@link XWikiCacheStore}.
+ * 
+ * @version $Id$
+ */
+@AllComponents
+public class XWikiCacheStoreTest
+{
+    /**
+     * A simple unbounded cache sending the events the document cache relies on.
+     * 
+     * @param <T> the type of the cached values
+     * @version $Id$
+     */
+    private static class MemoryCache<T> extends AbstractCache<T>
+    {
+        private final Map<String, T> values = new ConcurrentHashMap<String, T>();
+
+        @Override
+        public void set(String key, T value)
+        {
+            if (this.values.put(key, value) == null) {
+                sendEntryAddedEvent(new MemoryCacheEntryEvent<T>(this, key, value));
+            } else {
+                sendEntryModifiedEvent(new MemoryCacheEntryEvent<T>(this, key, value));
+            }
+        }
+
+        @Override
+        public T get(String key)
+        {
+            return this.values.get(key);
+        }
+
+        @Override
+        public void remove(String key)
+        {
+            T value = this.values.remove(key);
+            if (value != null) {
+                sendEntryRemovedEvent(new MemoryCacheEntryEvent<T>(this, key, value));
+            }
+        }
+
+        @Override
+        public void removeAll()
+        {
+            for (String key : new ArrayList<String>(this.values.keySet())) {
+                remove(key);
+            }
+        }
+
+        /**
+         * Simulate an event received late, after the entry has been changed again.
+         */
+        void sendLateEntryRemovedEvent(String key, T value)
+        {
+            sendEntryRemovedEvent(new MemoryCacheEntryEvent<T>(this, key, value));
+        }
+    }
+
+    /**
+     * An event of {@link MemoryCache}.
+     * 
+     * @param <T> the type of the cached values
+     * @version $Id$
+     */
+    private static class MemoryCacheEntryEvent<T> implements CacheEntryEvent<T>, CacheEntry<T>
+    {
+        private final Cache<T> cache;
+
+        private final String key;
+
+        private final T value;
+
+        MemoryCacheEntryEvent(Cache<T> cache, String key, T value)
+        {
+            this.cache = cache;
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public Cache<T> getCache()
+        {
+            return this.cache;
+        }
+
+        @Override
+        public CacheEntry<T> getEntry()
+        {
+            return this;
+        }
+
+        @Override
+        public String getKey()
+        {
+            return this.key;
+        }
+
+        @Override
+        public T getValue()
+        {
+            return this.value;
+        }
+    }
+
+    /**
+     * Custom implementation of the objects of {@link #CLASS}.
+     */
+    public static class CustomObject extends BaseObject
+    {
+    }
+
+    /**
+     * Lets the tests wait for the cache store to reach its synchronization points instead of polling it.
+     */
+    private static class ObservedCacheStore extends XWikiCacheStore
+    {
+        /**
+         * Counted down each time a thread starts waiting for a document loaded by another thread.
+         */
+        private volatile CountDownLatch waitingThreads = new CountDownLatch(0);
+
+        /**
+         * Released once an existence filter is ready. Not final since the filter can be built while the parent
+         * constructor runs.
+         */
+        private volatile CountDownLatch existenceFilterBuilt;
+
+        ObservedCacheStore(XWikiStoreInterface store, XWikiContext context) throws XWikiException
+        {
+            super(store, context);
+        }
+
+        /**
+         * @param count the number of threads expected to wait for a document loaded by another thread
+         */
+        void expectWaitingThreads(int count)
+        {
+            this.waitingThreads = new CountDownLatch(count);
+        }
+
+        /**
+         * @return true if the expected threads are waiting for a document loaded by another thread
+         */
+        boolean awaitWaitingThreads() throws InterruptedException
+        {
+            return this.waitingThreads.await(10, TimeUnit.SECONDS);
+        }
+
+        /**
+         * @return true if an existence filter has been built
+         */
+        boolean awaitExistenceFilter() throws InterruptedException
+        {
+            synchronized (this) {
+                if (this.existenceFilterBuilt == null) {
+                    this.existenceFilterBuilt = new CountDownLatch(1);
+                }
+            }
+
+            return this.existenceFilterBuilt.await(10, TimeUnit.SECONDS);
+        }
+
+        @Override
+        void waitingForLoad(String key)
+        {
+            this.waitingThreads.countDown();
+        }
+
+        @Override
+        void existenceFilterBuilt(String wiki)
+        {
+            synchronized (this) {
+                if (this.existenceFilterBuilt == null) {
+                    this.existenceFilterBuilt = new CountDownLatch(1);
+                }
+            }
+
+            this.existenceFilterBuilt.countDown();
+        }
+    }
+
+    private static final DocumentReference CLASS = new DocumentReference("xwiki", "Space", "Class");
+
+    private static final DocumentReference DOCUMENT_A = new DocumentReference("xwiki", "Space", "A");
+
+    private static final DocumentReference DOCUMENT_B = new DocumentReference("xwiki", "Space", "B");
+
+    private static final int THREADS = 5;
+
+    private static final Answer<XWikiDocument> LOADED = new Answer<XWikiDocument>()
+    {
+        @Override
+        public XWikiDocument answer(InvocationOnMock invocation) throws Throwable
+        {
+            return loaded(invocation);
+        }
+    };
+
+    @Rule
+    public MockitoOldcoreRule oldcore = new MockitoOldcoreRule();
+
+    private XWikiStoreInterface store;
+
+    private XWikiContext context;
+
+    private ObservedCacheStore cacheStore;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.context = this.oldcore.getXWikiContext();
+        this.store = this.oldcore.getMockStore();
+
+        CacheFactory cacheFactory = Mockito.mock(CacheFactory.class);
+        when(cacheFactory.newCache(any(CacheConfiguration.class))).thenAnswer(new Answer<Cache<Object>>()
+        {
+            @Override
+            public Cache<Object> answer(InvocationOnMock invocation) throws Throwable
+            {
+                return new MemoryCache<Object>();
+            }
+        });
+        when(this.oldcore.getMockXWiki().getCacheFactory()).thenReturn(cacheFactory);
+        this.oldcore.getMocker().registerComponent(CacheFactory.class, "offheap", cacheFactory);
+
+        // Long enough to make sure that a test relying on the detection of threads waiting for each other would fail
+        when(this.oldcore.getMockXWiki().Param("xwiki.store.cache.loadWaitTimeout")).thenReturn("60000");
+        // Tested separately
+        when(this.oldcore.getMockXWiki().Param("xwiki.store.cache.existfilter")).thenReturn("0");
+
+        this.cacheStore = new ObservedCacheStore(this.store, this.context);
+
+        this.executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        this.executor.shutdownNow();
+    }
+
+    private Callable<XWikiDocument> load(final XWikiCacheStore cacheStore, final DocumentReference reference)
+    {
+        return new Callable<XWikiDocument>()
+        {
+            @Override
+            public XWikiDocument call() throws Exception
+            {
+                return cacheStore.loadXWikiDoc(new XWikiDocument(reference), context);
+            }
+        };
+    }
+
+    private static XWikiDocument loaded(InvocationOnMock invocation)
+    {
+        XWikiDocument document = (XWikiDocument) invocation.getArguments()[0];
+        document.setNew(false);
+
+        return document;
+    }
+
+    private static Answer<List<XWikiDocument>> batchLoaded(final CountDownLatch loading, final CountDownLatch release)
+    {
+        return new Answer<List<XWikiDocument>>()
+        {
+            @Override
+            public List<XWikiDocument> answer(InvocationOnMock invocation) throws Throwable
+            {
+                loading.countDown();
+                release.await(10, TimeUnit.SECONDS);
+
+                List<XWikiDocument> documents = new ArrayList<XWikiDocument>();
+                for (Object reference : (Collection< ? >) invocation.getArguments()[0]) {
+                    XWikiDocument document = new XWikiDocument((DocumentReference) reference);
+                    document.setNew(false);
+                    documents.add(document);
+                }
+
+                return documents;
+            }
+        };
+    }
+
+    @Test
+    public void concurrentMissesAreCoalesced() throws Exception
+    {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(this.store.loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class))).thenAnswer(
+            new Answer<XWikiDocument>()
+            {
+                @Override
+                public XWikiDocument answer(InvocationOnMock invocation) throws Throwable
+                {
+                    loading.countDown();
+                    release.await(10, TimeUnit.SECONDS);
+
+                    return loaded(invocation);
+                }
+            });
+
+        this.cacheStore.expectWaitingThreads(THREADS - 1);
+        List<Future<XWikiDocument>> loads = new ArrayList<Future<XWikiDocument>>();
+        for (int i = 0; i < THREADS; ++i) {
+            loads.add(this.executor.submit(load(this.cacheStore, DOCUMENT_A)));
+        }
+
+        Assert.assertTrue(loading.await(10, TimeUnit.SECONDS));
+
+        // Wait for all the other threads to wait for the load in progress
+        Assert.assertTrue(this.cacheStore.awaitWaitingThreads());
+        Assert.assertEquals(THREADS - 1, this.cacheStore.getCoalescedLoadCount());
+
+        release.countDown();
+
+        XWikiDocument document = loads.get(0).get(10, TimeUnit.SECONDS);
+        for (Future<XWikiDocument> load : loads) {
+            Assert.assertSame(document, load.get(10, TimeUnit.SECONDS));
+        }
+
+        verify(this.store, times(1)).loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class));
+
+        // Now in the cache
+        Assert.assertSame(document, this.cacheStore.loadXWikiDoc(new XWikiDocument(DOCUMENT_A), this.context));
+        verify(this.store, times(1)).loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class));
+    }
+
+    @Test
+    public void loadsWaitingForEachOtherDontDeadlock() throws Exception
+    {
+        // Each document needs the other one to be loaded, like classes referring to each other
+        final CyclicBarrier bothLoading = new CyclicBarrier(2);
+        final Set<DocumentReference> loading = Collections.synchronizedSet(new HashSet<DocumentReference>());
+        when(this.store.loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class))).thenAnswer(
+            new Answer<XWikiDocument>()
+            {
+                @Override
+                public XWikiDocument answer(InvocationOnMock invocation) throws Throwable
+                {
+                    XWikiDocument document = (XWikiDocument) invocation.getArguments()[0];
+                    if (loading.add(document.getDocumentReference())) {
+                        bothLoading.await(10, TimeUnit.SECONDS);
+
+                        DocumentReference other =
+                            DOCUMENT_A.equals(document.getDocumentReference()) ? DOCUMENT_B : DOCUMENT_A;
+                        cacheStore.loadXWikiDoc(new XWikiDocument(other), context);
+                    }
+
+                    return loaded(invocation);
+                }
+            });
+
+        Future<XWikiDocument> loadA = this.executor.submit(load(this.cacheStore, DOCUMENT_A));
+        Future<XWikiDocument> loadB = this.executor.submit(load(this.cacheStore, DOCUMENT_B));
+
+        // Much shorter than the configured wait timeout
+        Assert.assertEquals(DOCUMENT_A, loadA.get(5, TimeUnit.SECONDS).getDocumentReference());
+        Assert.assertEquals(DOCUMENT_B, loadB.get(5, TimeUnit.SECONDS).getDocumentReference());
+
+        // One of the two documents is loaded a second time by the thread which detected the cycle
+        verify(this.store, times(3)).loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class));
+    }
+
+    @Test
+    public void slowLoadIsNotWaitedForeverFor() throws Exception
+    {
+        when(this.oldcore.getMockXWiki().Param("xwiki.store.cache.loadWaitTimeout")).thenReturn("100");
+        XWikiCacheStore cacheStore = new XWikiCacheStore(this.store, this.context);
+
+        final AtomicBoolean first = new AtomicBoolean(true);
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(this.store.loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class))).thenAnswer(
+            new Answer<XWikiDocument>()
+            {
+                @Override
+                public XWikiDocument answer(InvocationOnMock invocation) throws Throwable
+                {
+                    if (first.getAndSet(false)) {
+                        loading.countDown();
+                        release.await(10, TimeUnit.SECONDS);
+                    }
+
+                    return loaded(invocation);
+                }
+            });
+
+        Future<XWikiDocument> slowLoad = this.executor.submit(load(cacheStore, DOCUMENT_A));
+        Assert.assertTrue(loading.await(10, TimeUnit.SECONDS));
+
+        XWikiDocument document = cacheStore.loadXWikiDoc(new XWikiDocument(DOCUMENT_A), this.context);
+        Assert.assertFalse(document.isNew());
+        Assert.assertFalse(slowLoad.isDone());
+
+        release.countDown();
+        slowLoad.get(10, TimeUnit.SECONDS);
+
+        verify(this.store, times(2)).loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class));
+    }
+
+    @Test
+    public void existenceFilterIsBuiltInTheBackground() throws Exception
+    {
+        when(this.oldcore.getMockXWiki().Param("xwiki.store.cache.existfilter")).thenReturn("1");
+
+        final CountDownLatch release = new CountDownLatch(1);
+        when(this.store.countDocuments("", this.context)).thenReturn(1);
+        when(this.store.<String> search(anyString(), anyInt(), anyInt(), any(XWikiContext.class))).thenAnswer(
+            new Answer<List<String>>()
+            {
+                @Override
+                public List<String> answer(InvocationOnMock invocation) throws Throwable
+                {
+                    release.await(10, TimeUnit.SECONDS);
+
+                    return Arrays.asList("Space.A");
+                }
+            });
+        when(this.store.loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class))).thenAnswer(LOADED);
+
+        // The filter of the main wiki starts to be built without blocking
+        ObservedCacheStore cacheStore = new ObservedCacheStore(this.store, this.context);
+
+        // Unknown until the filter is ready
+        Assert.assertFalse(cacheStore.exists(new XWikiDocument(DOCUMENT_B), this.context));
+        verify(this.store).exists(any(XWikiDocument.class), any(XWikiContext.class));
+
+        release.countDown();
+        Assert.assertTrue(cacheStore.awaitExistenceFilter());
+
+        Assert.assertFalse(cacheStore.exists(new XWikiDocument(DOCUMENT_B), this.context));
+        Assert.assertEquals(1, cacheStore.getExistenceFilterNegativeCount());
+        verify(this.store).exists(any(XWikiDocument.class), any(XWikiContext.class));
+
+        // Missing documents are not loaded from the store anymore
+        DocumentReference missingReference = new DocumentReference("xwiki", "Other", "Missing");
+        Assert.assertTrue(cacheStore.loadXWikiDoc(new XWikiDocument(missingReference), this.context).isNew());
+        verify(this.store, never()).loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class));
+
+        // While existing ones are
+        Assert.assertFalse(cacheStore.loadXWikiDoc(new XWikiDocument(DOCUMENT_A), this.context).isNew());
+        verify(this.store).loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class));
+
+        List<XWikiDocument> documents =
+            cacheStore.loadXWikiDocs(Arrays.asList(missingReference, DOCUMENT_A), this.context);
+        Assert.assertTrue(documents.get(0).isNew());
+        Assert.assertFalse(documents.get(1).isNew());
+        verify(this.store, never()).loadXWikiDocs(anyCollectionOf(DocumentReference.class), any(XWikiContext.class));
+    }
+
+    @Test
+    public void batchLoadOnlyLoadsMissingDocuments() throws Exception
+    {
+        CountDownLatch done = new CountDownLatch(0);
+        when(this.store.loadXWikiDocs(anyCollectionOf(DocumentReference.class), any(XWikiContext.class))).thenAnswer(
+            batchLoaded(done, done));
+        when(this.store.loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class))).thenAnswer(LOADED);
+
+        XWikiDocument documentA = this.cacheStore.loadXWikiDoc(new XWikiDocument(DOCUMENT_A), this.context);
+
+        DocumentReference documentC = new DocumentReference("xwiki", "Space", "C");
+        List<XWikiDocument> documents =
+            this.cacheStore.loadXWikiDocs(Arrays.asList(DOCUMENT_B, DOCUMENT_A, documentC), this.context);
+
+        Assert.assertEquals(3, documents.size());
+        Assert.assertEquals(DOCUMENT_B, documents.get(0).getDocumentReference());
+        Assert.assertSame(documentA, documents.get(1));
+        Assert.assertEquals(documentC, documents.get(2).getDocumentReference());
+        verify(this.store).loadXWikiDocs(Arrays.asList(DOCUMENT_B, documentC), this.context);
+
+        // All in the cache now
+        List<XWikiDocument> cachedDocuments =
+            this.cacheStore.loadXWikiDocs(Arrays.asList(documentC, DOCUMENT_B), this.context);
+        Assert.assertSame(documents.get(2), cachedDocuments.get(0));
+        Assert.assertSame(documents.get(0), cachedDocuments.get(1));
+        verify(this.store, times(1)).loadXWikiDocs(anyCollectionOf(DocumentReference.class), any(XWikiContext.class));
+        Assert.assertSame(documents.get(0), this.cacheStore.loadXWikiDoc(new XWikiDocument(DOCUMENT_B), this.context));
+        verify(this.store, times(1)).loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class));
+    }
+
+    @Test
+    public void batchLoadWaitsForSingleLoadInProgress() throws Exception
+    {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(this.store.loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class))).thenAnswer(
+            new Answer<XWikiDocument>()
+            {
+                @Override
+                public XWikiDocument answer(InvocationOnMock invocation) throws Throwable
+                {
+                    loading.countDown();
+                    release.await(10, TimeUnit.SECONDS);
+
+                    return loaded(invocation);
+                }
+            });
+        CountDownLatch done = new CountDownLatch(0);
+        when(this.store.loadXWikiDocs(anyCollectionOf(DocumentReference.class), any(XWikiContext.class))).thenAnswer(
+            batchLoaded(done, done));
+
+        Future<XWikiDocument> singleLoad = this.executor.submit(load(this.cacheStore, DOCUMENT_A));
+        Assert.assertTrue(loading.await(10, TimeUnit.SECONDS));
+
+        this.cacheStore.expectWaitingThreads(1);
+        Future<List<XWikiDocument>> batchLoad = this.executor.submit(new Callable<List<XWikiDocument>>()
+        {
+            @Override
+            public List<XWikiDocument> call() throws Exception
+            {
+                return cacheStore.loadXWikiDocs(Arrays.asList(DOCUMENT_A, DOCUMENT_B), context);
+            }
+        });
+
+        Assert.assertTrue(this.cacheStore.awaitWaitingThreads());
+        Assert.assertFalse(batchLoad.isDone());
+
+        release.countDown();
+
+        List<XWikiDocument> documents = batchLoad.get(10, TimeUnit.SECONDS);
+        Assert.assertSame(singleLoad.get(10, TimeUnit.SECONDS), documents.get(0));
+        Assert.assertEquals(DOCUMENT_B, documents.get(1).getDocumentReference());
+
+        verify(this.store).loadXWikiDocs(Arrays.asList(DOCUMENT_B), this.context);
+        verify(this.store, times(1)).loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class));
+    }
+
+    @Test
+    public void singleLoadWaitsForBatchLoadInProgress() throws Exception
+    {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(this.store.loadXWikiDocs(anyCollectionOf(DocumentReference.class), any(XWikiContext.class))).thenAnswer(
+            batchLoaded(loading, release));
+
+        Future<List<XWikiDocument>> batchLoad = this.executor.submit(new Callable<List<XWikiDocument>>()
+        {
+            @Override
+            public List<XWikiDocument> call() throws Exception
+            {
+                return cacheStore.loadXWikiDocs(Arrays.asList(DOCUMENT_A, DOCUMENT_B), context);
+            }
+        });
+        Assert.assertTrue(loading.await(10, TimeUnit.SECONDS));
+
+        this.cacheStore.expectWaitingThreads(1);
+        Future<XWikiDocument> singleLoad = this.executor.submit(load(this.cacheStore, DOCUMENT_B));
+
+        Assert.assertTrue(this.cacheStore.awaitWaitingThreads());
+        Assert.assertFalse(singleLoad.isDone());
+
+        release.countDown();
+
+        Assert.assertSame(batchLoad.get(10, TimeUnit.SECONDS).get(1), singleLoad.get(10, TimeUnit.SECONDS));
+        verify(this.store, never()).loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class));
+    }
+
+    @Test
+    public void failedBatchLoadIsReportedToWaitingThreads() throws Exception
+    {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final XWikiException error = new XWikiException();
+        when(this.store.loadXWikiDocs(anyCollectionOf(DocumentReference.class), any(XWikiContext.class))).thenAnswer(
+            new Answer<List<XWikiDocument>>()
+            {
+                @Override
+                public List<XWikiDocument> answer(InvocationOnMock invocation) throws Throwable
+                {
+                    loading.countDown();
+                    release.await(10, TimeUnit.SECONDS);
+
+                    throw error;
+                }
+            });
+
+        Future<List<XWikiDocument>> batchLoad = this.executor.submit(new Callable<List<XWikiDocument>>()
+        {
+            @Override
+            public List<XWikiDocument> call() throws Exception
+            {
+                return cacheStore.loadXWikiDocs(Arrays.asList(DOCUMENT_A), context);
+            }
+        });
+        Assert.assertTrue(loading.await(10, TimeUnit.SECONDS));
+
+        this.cacheStore.expectWaitingThreads(1);
+        Future<XWikiDocument> singleLoad = this.executor.submit(load(this.cacheStore, DOCUMENT_A));
+
+        Assert.assertTrue(this.cacheStore.awaitWaitingThreads());
+
+        release.countDown();
+
+        try {
+            batchLoad.get(10, TimeUnit.SECONDS);
+            Assert.fail("Should have failed");
+        } catch (ExecutionException e) {
+            Assert.assertSame(error, e.getCause());
+        }
+        try {
+            singleLoad.get(10, TimeUnit.SECONDS);
+            Assert.fail("Should have failed");
+        } catch (ExecutionException e) {
+            Assert.assertSame(error, e.getCause());
+        }
+
+        // Not loading anymore
+        when(this.store.loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class))).thenAnswer(LOADED);
+        Assert.assertFalse(this.cacheStore.loadXWikiDoc(new XWikiDocument(DOCUMENT_A), this.context).isNew());
+    }
+
+    @Test
+    public void memoryLimitEvictsLeastRecentlyUsedDocuments() throws Exception
+    {
+        when(this.store.loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class))).thenAnswer(LOADED);
+
+        // Measure the memory of a document similar to the ones used in the test
+        this.cacheStore.loadXWikiDoc(new XWikiDocument(new DocumentReference("xwiki", "Space", "X")), this.context);
+        long documentMemory = this.cacheStore.getCacheMemory();
+        Assert.assertTrue(documentMemory > 0);
+
+        // Room for two documents
+        when(this.oldcore.getMockXWiki().Param("xwiki.store.cache.maxMemory")).thenReturn(
+            String.valueOf(documentMemory * 5 / 2));
+        XWikiCacheStore cacheStore = new XWikiCacheStore(this.store, this.context);
+        Assert.assertEquals(documentMemory * 5 / 2, cacheStore.getCacheMaxMemory());
+
+        XWikiDocument documentA = cacheStore.loadXWikiDoc(new XWikiDocument(DOCUMENT_A), this.context);
+        cacheStore.loadXWikiDoc(new XWikiDocument(DOCUMENT_B), this.context);
+        // A becomes the most recently used document
+        Assert.assertSame(documentA, cacheStore.loadXWikiDoc(new XWikiDocument(DOCUMENT_A), this.context));
+        cacheStore.loadXWikiDoc(new XWikiDocument(new DocumentReference("xwiki", "Space", "C")), this.context);
+
+        Assert.assertEquals(1, cacheStore.getCacheEvictionCount());
+        Assert.assertEquals(2, cacheStore.getCacheSize());
+        Assert.assertEquals(2 * documentMemory, cacheStore.getCacheMemory());
+        Assert.assertEquals(1, cacheStore.getCacheHitCount());
+        Assert.assertEquals(3, cacheStore.getCacheMissCount());
+
+        // B has been evicted
+        Assert.assertSame(documentA, cacheStore.loadXWikiDoc(new XWikiDocument(DOCUMENT_A), this.context));
+        Assert.assertNotNull(cacheStore.getCache().get(documentA.getKey()));
+        Assert.assertNull(cacheStore.getCache().get(new XWikiDocument(DOCUMENT_B).getKey()));
+    }
+
+    @Test
+    public void memoryAccountingFollowsTheCacheContent() throws Exception
+    {
+        when(this.store.loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class))).thenAnswer(LOADED);
+
+        XWikiDocument documentA = this.cacheStore.loadXWikiDoc(new XWikiDocument(DOCUMENT_A), this.context);
+        long documentMemory = this.cacheStore.getCacheMemory();
+        Assert.assertEquals(1, this.cacheStore.getCacheSize());
+
+        // The removal of a document which has since been replaced in the cache is ignored
+        @SuppressWarnings("unchecked")
+        MemoryCache<XWikiDocument> cache = (MemoryCache<XWikiDocument>) this.cacheStore.getCache();
+        cache.sendLateEntryRemovedEvent(documentA.getKey(), new XWikiDocument(DOCUMENT_A));
+        Assert.assertEquals(1, this.cacheStore.getCacheSize());
+        Assert.assertEquals(documentMemory, this.cacheStore.getCacheMemory());
+
+        // Documents removed from the cache are not accounted anymore
+        this.cacheStore.saveXWikiDoc(documentA, this.context);
+        Assert.assertEquals(0, this.cacheStore.getCacheSize());
+        Assert.assertEquals(0, this.cacheStore.getCacheMemory());
+    }
+
+    @Test
+    public void statisticsAreExposedThroughJMX() throws Exception
+    {
+        when(this.store.loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class))).thenAnswer(LOADED);
+
+        this.cacheStore.loadXWikiDoc(new XWikiDocument(DOCUMENT_A), this.context);
+        this.cacheStore.loadXWikiDoc(new XWikiDocument(DOCUMENT_A), this.context);
+
+        ObjectName name = new ObjectName(DocumentCacheStatistics.OBJECT_NAME);
+        Assert.assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "HitCount"));
+        Assert.assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "MissCount"));
+        Assert.assertEquals(1, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Size"));
+        Assert.assertEquals(this.cacheStore.getCacheMemory(),
+            ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Memory"));
+    }
+
+    @Test
+    public void evictedDocumentIsReloadedFromTheOffHeapCache() throws Exception
+    {
+        BaseClass xclass = new BaseClass();
+        xclass.setDocumentReference(CLASS);
+        xclass.addTextField("name", "Name", 30);
+        xclass.setCustomClass(CustomObject.class.getName());
+        when(this.oldcore.getMockXWiki().getXClass(CLASS, this.context)).thenReturn(xclass);
+
+        when(this.store.loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class))).thenAnswer(
+            new Answer<XWikiDocument>()
+            {
+                @Override
+                public XWikiDocument answer(InvocationOnMock invocation) throws Throwable
+                {
+                    XWikiDocument document = loaded(invocation);
+                    document.setContent("content");
+                    BaseObject object = new CustomObject();
+                    object.setXClassReference(CLASS);
+                    object.setStringValue("name", "value");
+                    document.addXObject(object);
+
+                    return document;
+                }
+            });
+
+        when(this.oldcore.getMockXWiki().Param("xwiki.store.cache.offheap.capacity")).thenReturn("10");
+        XWikiCacheStore cacheStore = new XWikiCacheStore(this.store, this.context);
+
+        XWikiDocument document = cacheStore.loadXWikiDoc(new XWikiDocument(DOCUMENT_A), this.context);
+        cacheStore.getCache().remove(document.getKey());
+
+        XWikiDocument offHeapDocument = cacheStore.loadXWikiDoc(new XWikiDocument(DOCUMENT_A), this.context);
+
+        verify(this.store).loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class));
+        Assert.assertEquals(1, cacheStore.getOffHeapCacheHitCount());
+        Assert.assertNotSame(document, offHeapDocument);
+        Assert.assertFalse(offHeapDocument.isNew());
+        Assert.assertEquals("content", offHeapDocument.getContent());
+
+        BaseObject object = offHeapDocument.getXObject(CLASS);
+        Assert.assertTrue(object instanceof CustomObject);
+        Assert.assertEquals("value", object.getStringValue("name"));
+        Assert.assertSame(object, ((BaseProperty) object.getField("name")).getObject());
+        Assert.assertEquals(document.getXObject(CLASS).getGuid(), object.getGuid());
+    }
+
+    @Test
+    public void onlyEvictedDocumentsAreStoredOffHeap() throws Exception
+    {
+        MemoryCache<Object> offHeapCache = new MemoryCache<Object>();
+        CacheFactory offHeapCacheFactory = Mockito.mock(CacheFactory.class);
+        when(offHeapCacheFactory.newCache(any(CacheConfiguration.class))).thenReturn(offHeapCache);
+        this.oldcore.getMocker().registerComponent(CacheFactory.class, "offheap", offHeapCacheFactory);
+
+        when(this.store.loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class))).thenAnswer(LOADED);
+
+        when(this.oldcore.getMockXWiki().Param("xwiki.store.cache.offheap.capacity")).thenReturn("10");
+        XWikiCacheStore cacheStore = new XWikiCacheStore(this.store, this.context);
+
+        // Not serialized as long as it's in the cache
+        XWikiDocument document = cacheStore.loadXWikiDoc(new XWikiDocument(DOCUMENT_A), this.context);
+        String key = document.getKey();
+        Assert.assertNull(offHeapCache.get(key));
+
+        // Serialized when evicted
+        cacheStore.getCache().remove(key);
+        Assert.assertNotNull(offHeapCache.get(key));
+
+        document = cacheStore.loadXWikiDoc(new XWikiDocument(DOCUMENT_A), this.context);
+        Assert.assertEquals(1, cacheStore.getOffHeapCacheHitCount());
+
+        // Outdated documents are not moved to the off-heap cache and the off-heap copy is removed
+        cacheStore.saveXWikiDoc(document, this.context);
+        Assert.assertNull(cacheStore.getCache().get(key));
+        Assert.assertNull(offHeapCache.get(key));
+
+        verify(this.store).loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class));
+    }
+
+    @Test
+    public void onlyRemoteInvalidationsEvictTheDocument() throws Exception
+    {
+        RemoteObservationManagerContext remoteContext = Mockito.mock(RemoteObservationManagerContext.class);
+        this.oldcore.getMocker().registerComponent(RemoteObservationManagerContext.class, "default", remoteContext);
+        XWikiCacheStore cacheStore = new XWikiCacheStore(this.store, this.context);
+
+        when(this.store.loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class))).thenAnswer(LOADED);
+
+        XWikiDocument document = cacheStore.loadXWikiDoc(new XWikiDocument(DOCUMENT_A), this.context);
+
+        // Local invalidations are already taken into account by the save itself
+        cacheStore.onEvent(new DocumentInvalidatedEvent(DOCUMENT_A), new XWikiDocument(DOCUMENT_A), "2.1");
+        Assert.assertSame(document, cacheStore.loadXWikiDoc(new XWikiDocument(DOCUMENT_A), this.context));
+        verify(this.store, times(1)).loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class));
+
+        when(remoteContext.isRemoteState()).thenReturn(true);
+        cacheStore.onEvent(new DocumentInvalidatedEvent(DOCUMENT_A), new XWikiDocument(DOCUMENT_A), "2.1");
+        when(remoteContext.isRemoteState()).thenReturn(false);
+
+        Assert.assertNotSame(document, cacheStore.loadXWikiDoc(new XWikiDocument(DOCUMENT_A), this.context));
+        verify(this.store, times(2)).loadXWikiDoc(any(XWikiDocument.class), any(XWikiContext.class));
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.store;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.metadata.ClassMetadata;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.query.QueryManager;
+import org.xwiki.test.annotation.AllComponents;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.IntegerProperty;
+import com.xpn.xwiki.objects.StringProperty;
+import com.xpn.xwiki.store.hibernate.HibernateSessionFactory;
+import com.xpn.xwiki.store.migration.DataMigrationManager;
+import com.xpn.xwiki.test.MockitoOldcoreRule;
+
+/**
+ * Unit tests for the loading of several documents at once by {@link XWikiHibernateStore}.
+ * 
+ * @version $Id$
+ */
+@AllComponents
+public class XWikiHibernateStoreBatchLoadTest
+{
+    private static final String DOCUMENTS_QUERY = "from XWikiDocument as doc where doc.id in (:ids)";
+
+    private static final String ATTACHMENTS_QUERY =
+        "select attach, attach.docId from XWikiAttachment as attach where attach.docId in (:docids)";
+
+    private static final String OBJECTS_QUERY =
+        "from BaseObject as bobject where bobject.name in (:names) order by bobject.number";
+
+    private static final String PROPERTIES_QUERY =
+        "select prop.id.id, prop.name, prop.classType from BaseProperty as prop where prop.id.id in (:ids)";
+
+    private static final String STRING_PROPERTY = StringProperty.class.getName();
+
+    private static final String STRING_PROPERTIES_QUERY =
+        "from " + STRING_PROPERTY + " as prop where prop.id.id in (:ids) and prop.classType = :classType";
+
+    private static final String INTEGER_PROPERTY = IntegerProperty.class.getName();
+
+    private static final String INTEGER_PROPERTIES_QUERY =
+        "from " + INTEGER_PROPERTY + " as prop where prop.id.id in (:ids) and prop.classType = :classType";
+
+    private static final String SINGLE_DOCUMENT_OBJECTS_QUERY =
+        "from BaseObject as bobject where bobject.name = :name order by bobject.number";
+
+    private static final String OBJECT_PROPERTIES_QUERY =
+        "select prop.name, prop.classType from BaseProperty as prop where prop.id.id = :id";
+
+    private static final DocumentReference DOCUMENT = new DocumentReference("xwiki", "Space", "Page");
+
+    private static final DocumentReference CLASS = new DocumentReference("xwiki", "Space", "Class");
+
+    @Rule
+    public MockitoOldcoreRule oldcore = new MockitoOldcoreRule();
+
+    private XWikiContext context;
+
+    private Session session;
+
+    private SessionFactory sessionFactory;
+
+    private XWikiStoreInterface store;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.context = this.oldcore.getXWikiContext();
+
+        // Use a session already opened by the caller so that no transaction is started
+        this.session = mock(Session.class);
+        this.context.put("hibsession", this.session);
+        this.context.put("hibtransaction", mock(Transaction.class));
+
+        this.sessionFactory = mock(SessionFactory.class);
+        when(this.session.getSessionFactory()).thenReturn(this.sessionFactory);
+
+        HibernateSessionFactory hibernateSessionFactory =
+            this.oldcore.getMocker().registerMockComponent(HibernateSessionFactory.class);
+        when(hibernateSessionFactory.getSessionFactory()).thenReturn(this.sessionFactory);
+        this.oldcore.getMocker().registerMockComponent(DataMigrationManager.class, "hibernate");
+        this.oldcore.getMocker().registerMockComponent(QueryManager.class);
+
+        this.store = this.oldcore.getMocker().getInstance(XWikiStoreInterface.class, "hibernate");
+    }
+
+    private Query mockQuery(String statement, List< ? > results)
+    {
+        Query query = mock(Query.class, statement);
+        when(this.session.createQuery(statement)).thenReturn(query);
+        when(query.list()).thenReturn(results);
+
+        return query;
+    }
+
+    private XWikiDocument newStoredDocument(DocumentReference reference, int elements)
+    {
+        XWikiDocument document = new XWikiDocument(reference);
+        document.setElements(elements);
+
+        return document;
+    }
+
+    /**
+     * Mock a document with several objects, each having a string and an integer property, as stored in the database.
+     * 
+     * @param objectCount the number of objects of the document
+     * @return the query listing the properties of the objects
+     */
+    private Query mockStoredObjects(int objectCount)
+    {
+        List<BaseObject> storedObjects = new ArrayList<BaseObject>();
+        List<Object[]> storedProperties = new ArrayList<Object[]>();
+        List<StringProperty> storedStrings = new ArrayList<StringProperty>();
+        List<IntegerProperty> storedIntegers = new ArrayList<IntegerProperty>();
+        for (int i = 0; i < objectCount; ++i) {
+            BaseObject storedObject = new BaseObject();
+            storedObject.setDocumentReference(DOCUMENT);
+            storedObject.setXClassReference(CLASS);
+            storedObject.setNumber(i);
+            long objectId = storedObject.getId();
+            storedObjects.add(storedObject);
+
+            storedProperties.add(new Object[] {objectId, "name", STRING_PROPERTY});
+            storedProperties.add(new Object[] {objectId, "age", INTEGER_PROPERTY});
+
+            StringProperty storedString = new StringProperty();
+            storedString.setId(objectId);
+            storedString.setName("name");
+            storedString.setValue("name" + i);
+            storedStrings.add(storedString);
+
+            IntegerProperty storedInteger = new IntegerProperty();
+            storedInteger.setId(objectId);
+            storedInteger.setName("age");
+            storedInteger.setValue(i);
+            storedIntegers.add(storedInteger);
+        }
+
+        mockQuery(SINGLE_DOCUMENT_OBJECTS_QUERY, storedObjects);
+        Query propertiesQuery = mockQuery(PROPERTIES_QUERY, storedProperties);
+        mockQuery(STRING_PROPERTIES_QUERY, storedStrings);
+        mockQuery(INTEGER_PROPERTIES_QUERY, storedIntegers);
+        when(this.sessionFactory.getClassMetadata(STRING_PROPERTY)).thenReturn(mock(ClassMetadata.class));
+        when(this.sessionFactory.getClassMetadata(INTEGER_PROPERTY)).thenReturn(mock(ClassMetadata.class));
+
+        // Used when the batch loading is disabled
+        mockQuery(OBJECT_PROPERTIES_QUERY,
+            Arrays.asList(new Object[] {"name", STRING_PROPERTY}, new Object[] {"age", INTEGER_PROPERTY}));
+
+        return propertiesQuery;
+    }
+
+    @Test
+    public void documentPropertiesAreLoadedWithOneQueryPerPropertyType() throws Exception
+    {
+        Query propertiesQuery = mockStoredObjects(10);
+
+        XWikiDocument document = newStoredDocument(DOCUMENT, XWikiDocument.HAS_OBJECTS);
+        this.store.loadXWikiDoc(document, this.context);
+
+        List<BaseObject> objects = document.getXObjects(CLASS);
+        Assert.assertEquals(10, objects.size());
+        List<Long> objectIds = new ArrayList<Long>();
+        for (int i = 0; i < objects.size(); ++i) {
+            BaseObject object = objects.get(i);
+            objectIds.add(object.getId());
+            Assert.assertEquals("name" + i, object.getStringValue("name"));
+            Assert.assertEquals(i, object.getIntValue("age"));
+            Assert.assertSame(object, ((StringProperty) object.getField("name")).getObject());
+            Assert.assertSame(object, ((IntegerProperty) object.getField("age")).getObject());
+            Assert.assertFalse(((IntegerProperty) object.getField("age")).isValueDirty());
+        }
+        Assert.assertFalse(document.isMetaDataDirty());
+
+        // The properties of all the objects are listed at once and then loaded with one query per property type
+        @SuppressWarnings("rawtypes")
+        ArgumentCaptor<Collection> ids = ArgumentCaptor.forClass(Collection.class);
+        verify(propertiesQuery).setParameterList(eq("ids"), ids.capture());
+        Assert.assertEquals(objectIds, new ArrayList<Object>(ids.getValue()));
+        verify(this.session, never()).createQuery(OBJECT_PROPERTIES_QUERY);
+    }
+
+    /**
+     * Counts the database round trips needed to load a document with many objects, with and without batch loading.
+     * The queries don't reach a database so this measures the number of round trips, which is what dominates the
+     * loading time of documents with many objects on a remote database, not the latency itself.
+     */
+    @Test
+    public void batchLoadingNeedsAConstantNumberOfRoundTrips() throws Exception
+    {
+        int objectCount = 50;
+        mockStoredObjects(objectCount);
+
+        this.store.loadXWikiDoc(newStoredDocument(DOCUMENT, XWikiDocument.HAS_OBJECTS), this.context);
+
+        // 1 query for the objects, 1 for the list of properties and 1 per property type, plus the document itself
+        verify(this.session, times(4)).createQuery(anyString());
+        verify(this.session, times(1)).load(any(Object.class), any(Serializable.class));
+    }
+
+    @Test
+    public void legacyLoadingNeedsRoundTripsPerObjectAndProperty() throws Exception
+    {
+        when(this.oldcore.getMockXWiki().Param("xwiki.store.hibernate.batchload", "1")).thenReturn("0");
+        int objectCount = 50;
+        mockStoredObjects(objectCount);
+
+        XWikiDocument document = newStoredDocument(DOCUMENT, XWikiDocument.HAS_OBJECTS);
+        this.store.loadXWikiDoc(document, this.context);
+
+        Assert.assertEquals(objectCount, document.getXObjects(CLASS).size());
+
+        // 1 query for the objects and 1 per object for its properties, then each property is loaded on its own
+        verify(this.session, times(1 + objectCount)).createQuery(anyString());
+        verify(this.session, times(1 + 2 * objectCount)).load(any(Object.class), any(Serializable.class));
+        verify(this.session, never()).createQuery(PROPERTIES_QUERY);
+    }
+
+    @Test
+    public void missingDocumentsAreLoadedWithOneQueryPerChunk() throws Exception
+    {
+        List<DocumentReference> references = new ArrayList<DocumentReference>();
+        for (int i = 0; i < 501; ++i) {
+            references.add(new DocumentReference("xwiki", "Space", "Page" + i));
+        }
+        Query query = mockQuery(DOCUMENTS_QUERY, Collections.emptyList());
+
+        List<XWikiDocument> documents = this.store.loadXWikiDocs(references, this.context);
+
+        // The IN list size is limited
+        @SuppressWarnings("rawtypes")
+        ArgumentCaptor<Collection> ids = ArgumentCaptor.forClass(Collection.class);
+        verify(query, times(2)).setParameterList(eq("ids"), ids.capture());
+        Assert.assertEquals(500, ids.getAllValues().get(0).size());
+        Assert.assertEquals(1, ids.getAllValues().get(1).size());
+
+        Assert.assertEquals(references.size(), documents.size());
+        for (int i = 0; i < references.size(); ++i) {
+            Assert.assertEquals(references.get(i), documents.get(i).getDocumentReference());
+            Assert.assertTrue(documents.get(i).isNew());
+            Assert.assertNotNull(documents.get(i).getOriginalDocument());
+        }
+    }
+
+    @Test
+    public void objectsAreLoadedWithSetBasedQueries() throws Exception
+    {
+        XWikiDocument storedDocument = newStoredDocument(DOCUMENT, XWikiDocument.HAS_OBJECTS);
+        XWikiDocument otherDocument = newStoredDocument(new DocumentReference("xwiki", "Space", "Other"), 0);
+        mockQuery(DOCUMENTS_QUERY, Arrays.asList(storedDocument, otherDocument));
+
+        BaseObject storedObject = new BaseObject();
+        storedObject.setDocumentReference(DOCUMENT);
+        storedObject.setXClassReference(CLASS);
+        storedObject.setNumber(0);
+        long objectId = storedObject.getId();
+        mockQuery(OBJECTS_QUERY, Arrays.asList(storedObject));
+
+        mockQuery(PROPERTIES_QUERY, Arrays.asList(new Object[] {objectId, "name", STRING_PROPERTY}));
+        when(this.sessionFactory.getClassMetadata(STRING_PROPERTY)).thenReturn(mock(ClassMetadata.class));
+        StringProperty storedProperty = new StringProperty();
+        storedProperty.setId(objectId);
+        storedProperty.setName("name");
+        storedProperty.setValue("value");
+        mockQuery(STRING_PROPERTIES_QUERY, Arrays.asList(storedProperty));
+
+        List<XWikiDocument> documents = this.store.loadXWikiDocs(
+            Arrays.asList(DOCUMENT, otherDocument.getDocumentReference()), this.context);
+
+        Assert.assertSame(storedDocument, documents.get(0));
+        Assert.assertSame(otherDocument, documents.get(1));
+        Assert.assertFalse(documents.get(0).isNew());
+
+        BaseObject object = documents.get(0).getXObject(CLASS);
+        Assert.assertEquals(objectId, object.getId());
+        Assert.assertEquals("value", object.getStringValue("name"));
+        Assert.assertSame(object, ((StringProperty) object.getField("name")).getObject());
+        Assert.assertTrue(documents.get(1).getXObjects().isEmpty());
+
+        // A single query per kind of data, whatever the number of documents and objects
+        verify(this.session).createQuery(OBJECTS_QUERY);
+        verify(this.session).createQuery(PROPERTIES_QUERY);
+        verify(this.session).createQuery(STRING_PROPERTIES_QUERY);
+        verify(this.session, times(4)).createQuery(anyString());
+    }
+
+    @Test
+    public void attachmentsAreLoadedWithASingleQuery() throws Exception
+    {
+        XWikiDocument storedDocument = newStoredDocument(DOCUMENT, XWikiDocument.HAS_ATTACHMENTS);
+        XWikiDocument otherDocument = newStoredDocument(new DocumentReference("xwiki", "Space", "Other"),
+            XWikiDocument.HAS_ATTACHMENTS);
+        mockQuery(DOCUMENTS_QUERY, Arrays.asList(storedDocument, otherDocument));
+
+        XWikiAttachment attachment = new XWikiAttachment();
+        attachment.setFilename("file.txt");
+        XWikiAttachment otherAttachment = new XWikiAttachment();
+        otherAttachment.setFilename("other.txt");
+        Query query = mockQuery(ATTACHMENTS_QUERY, Arrays.asList(new Object[] {attachment, storedDocument.getId()},
+            new Object[] {otherAttachment, otherDocument.getId()}));
+
+        List<XWikiDocument> documents = this.store.loadXWikiDocs(
+            Arrays.asList(DOCUMENT, otherDocument.getDocumentReference()), this.context);
+
+        @SuppressWarnings("rawtypes")
+        ArgumentCaptor<Collection> ids = ArgumentCaptor.forClass(Collection.class);
+        verify(query).setParameterList(eq("docids"), ids.capture());
+        Assert.assertEquals(2, ids.getValue().size());
+
+        Assert.assertEquals(Arrays.asList(attachment), documents.get(0).getAttachmentList());
+        Assert.assertSame(documents.get(0), attachment.getDoc());
+        Assert.assertEquals(Arrays.asList(otherAttachment), documents.get(1).getAttachmentList());
+        Assert.assertSame(documents.get(1), otherAttachment.getDoc());
+    }
+}
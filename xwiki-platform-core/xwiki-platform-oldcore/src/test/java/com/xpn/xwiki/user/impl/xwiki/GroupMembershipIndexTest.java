@@ -0,0 +1,165 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.user.impl.xwiki;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Unit tests for {@link GroupMembershipIndex}.
+ * 
+ * @version $Id$
+ */
+public class GroupMembershipIndexTest
+{
+    private final GroupMembershipIndex index = new GroupMembershipIndex();
+
+    private static DocumentReference ref(String name)
+    {
+        return new DocumentReference("wiki", "XWiki", name);
+    }
+
+    private static Set<DocumentReference> refs(String... names)
+    {
+        Set<DocumentReference> references = new HashSet<DocumentReference>();
+        for (String name : names) {
+            references.add(ref(name));
+        }
+        return references;
+    }
+
+    @Test
+    public void testNestedGroups()
+    {
+        this.index.setMembers(ref("A"), refs("B", "user1"));
+        this.index.setMembers(ref("B"), refs("C", "user2"));
+        this.index.setMembers(ref("C"), refs("user3"));
+
+        Assert.assertEquals(refs("C"), this.index.getGroups(ref("user3")));
+        Assert.assertEquals(refs("A", "B", "C"), this.index.getAllGroups(ref("user3")));
+        Assert.assertEquals(refs("A", "B"), this.index.getAllGroups(ref("user2")));
+        Assert.assertEquals(refs("B", "user1"), this.index.getMembers(ref("A")));
+        Assert.assertEquals(refs("B", "C", "user1", "user2", "user3"), this.index.getAllMembers(ref("A")));
+    }
+
+    @Test
+    public void testUpdateInvalidatesClosures()
+    {
+        this.index.setMembers(ref("A"), refs("B"));
+        this.index.setMembers(ref("B"), refs("user"));
+
+        Assert.assertEquals(refs("A", "B"), this.index.getAllGroups(ref("user")));
+        Assert.assertEquals(refs("B", "user"), this.index.getAllMembers(ref("A")));
+
+        // Replace B by other in A
+        Assert.assertEquals(refs("B", "other"), this.index.setMembers(ref("A"), refs("other")));
+
+        Assert.assertEquals(refs("B"), this.index.getAllGroups(ref("user")));
+        Assert.assertEquals(refs("other"), this.index.getAllMembers(ref("A")));
+
+        // Add C above B
+        this.index.addMember(ref("C"), ref("B"));
+
+        Assert.assertEquals(refs("B", "C"), this.index.getAllGroups(ref("user")));
+        Assert.assertEquals(refs("B", "user"), this.index.getAllMembers(ref("C")));
+
+        // Delete B
+        this.index.setMembers(ref("B"), Collections.<DocumentReference> emptySet());
+
+        Assert.assertEquals(refs(), this.index.getAllGroups(ref("user")));
+        Assert.assertEquals(refs("B"), this.index.getAllMembers(ref("C")));
+    }
+
+    @Test
+    public void testCycle()
+    {
+        this.index.setMembers(ref("A"), refs("B", "A"));
+        this.index.setMembers(ref("B"), refs("A", "user"));
+
+        Assert.assertEquals(refs("A", "B"), this.index.getAllGroups(ref("user")));
+        Assert.assertEquals(refs("B", "user"), this.index.getAllMembers(ref("A")));
+        Assert.assertEquals(refs("B"), this.index.getAllGroups(ref("A")));
+    }
+
+    /**
+     * Compare the incrementally maintained closures with the closures of a freshly built index on a generated
+     * hierarchy.
+     */
+    @Test
+    public void testGeneratedHierarchy()
+    {
+        Random random = new Random(42);
+        int groupCount = 200;
+        int userCount = 2000;
+
+        List<List<DocumentReference>> members = new ArrayList<List<DocumentReference>>();
+        for (int i = 0; i < groupCount; i++) {
+            members.add(new ArrayList<DocumentReference>());
+        }
+        for (int i = 0; i < userCount; i++) {
+            members.get(random.nextInt(groupCount)).add(ref("user" + i));
+        }
+        for (int i = 1; i < groupCount; i++) {
+            // Each group is contained in one of the groups created before it
+            members.get(random.nextInt(i)).add(ref("group" + i));
+        }
+        for (int i = 0; i < groupCount; i++) {
+            this.index.setMembers(ref("group" + i), members.get(i));
+        }
+
+        // Fill the closures and then move some sub trees around
+        for (int i = 0; i < userCount; i++) {
+            this.index.getAllGroups(ref("user" + i));
+        }
+        for (int i = 0; i < groupCount; i++) {
+            this.index.getAllMembers(ref("group" + i));
+        }
+        for (int i = 0; i < 50; i++) {
+            int group = 1 + random.nextInt(groupCount - 1);
+            int from = random.nextInt(groupCount);
+            int to = random.nextInt(groupCount);
+            members.get(from).remove(ref("group" + group));
+            members.get(to).add(ref("group" + group));
+            this.index.setMembers(ref("group" + from), members.get(from));
+            this.index.setMembers(ref("group" + to), members.get(to));
+        }
+
+        GroupMembershipIndex expected = new GroupMembershipIndex();
+        for (int i = 0; i < groupCount; i++) {
+            expected.setMembers(ref("group" + i), members.get(i));
+        }
+
+        for (int i = 0; i < userCount; i++) {
+            Assert.assertEquals(expected.getAllGroups(ref("user" + i)), this.index.getAllGroups(ref("user" + i)));
+        }
+        for (int i = 0; i < groupCount; i++) {
+            Assert.assertEquals(expected.getAllMembers(ref("group" + i)), this.index.getAllMembers(ref("group" + i)));
+            Assert.assertEquals(expected.getAllGroups(ref("group" + i)), this.index.getAllGroups(ref("group" + i)));
+        }
+    }
+}
@@ -19,6 +19,8 @@
  */
 package org.xwiki.query.internal;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -28,12 +30,23 @@
 
 import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.WikiReference;
 import org.xwiki.query.Query;
 import org.xwiki.query.QueryException;
 import org.xwiki.query.QueryExecutorManager;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
 
 /**
  * {@link QueryExecutorManager} with access rights checking.
+ * <p>
+ * Users without programming rights can only execute short form statements, which select document names. The documents
+ * they are not allowed to view are removed from the results, which means that a query can return less results than
+ * its limit (the results are not fetched again to fill the page). The count queries are not filtered so the count of
+ * the documents can be greater than the number of documents the user can actually get, and paginating with the count
+ * can display short or empty pages.
  *
  * @version $Id$
  */
@@ -57,6 +70,19 @@ public class SecureQueryExecutorManager implements QueryExecutorManager
     @Inject
     private DocumentAccessBridge bridge;
 
+    /**
+     * Used to filter out the documents the current user is not allowed to view.
+     */
+    @Inject
+    private AuthorizationManager authorizationManager;
+
+    /**
+     * Used to resolve the document names returned by the queries.
+     */
+    @Inject
+    @Named("current")
+    private DocumentReferenceResolver<String> resolver;
+
     /**
      * @param statement the statement to evaluate.
      * @return true if the statement is complete, false otherwise.
@@ -87,7 +113,80 @@ public <T> List<T> execute(Query query) throws QueryException
         if (!isShortFormStatement(query.getStatement()) && !getBridge().hasProgrammingRights()) {
             throw new QueryException("Full form statements requires programming right", query, null);
         }
-        return getNestedQueryExecutorManager().execute(query);
+
+        List<T> results = getNestedQueryExecutorManager().execute(query);
+
+        if (results != null && !results.isEmpty() && !getBridge().hasProgrammingRights()) {
+            results = filterViewable(results, query.getWiki());
+        }
+
+        return results;
+    }
+
+    /**
+     * Remove the documents the current user is not allowed to view from the results of a short form statement. The
+     * document name is either the result itself or the first column of the result. Results which don't contain any
+     * document name (like the count of the documents) are kept as is.
+     * <p>
+     * The filtered results are not completed with the next results of the query, so there can be less results than the
+     * query limit even when more viewable documents match the query, and they don't match the count of the documents
+     * anymore. Callers paginating the results should use the offset and limit of the query rather than the number of
+     * returned results to compute the next page.
+     *
+     * @param <T> the type of the results
+     * @param results the results of the query
+     * @param wiki the wiki where the query has been executed, null for the current wiki
+     * @return the filtered results
+     */
+    private <T> List<T> filterViewable(List<T> results, String wiki)
+    {
+        List<DocumentReference> references = new ArrayList<DocumentReference>(results.size());
+        for (T result : results) {
+            DocumentReference reference = getDocumentReference(result, wiki);
+            if (reference != null) {
+                references.add(reference);
+            }
+        }
+
+        if (references.isEmpty()) {
+            return results;
+        }
+
+        Set<DocumentReference> viewable = new HashSet<DocumentReference>(this.authorizationManager.filterAccessible(
+            Right.VIEW, getBridge().getCurrentUserReference(), references));
+
+        List<T> filteredResults = new ArrayList<T>(results.size());
+        for (T result : results) {
+            DocumentReference reference = getDocumentReference(result, wiki);
+            if (reference == null || viewable.contains(reference)) {
+                filteredResults.add(result);
+            }
+        }
+
+        return filteredResults;
+    }
+
+    /**
+     * @param result a query result
+     * @param wiki the wiki where the query has been executed, null for the current wiki
+     * @return the reference of the document selected by the result, null if the result doesn't select a document
+     */
+    private DocumentReference getDocumentReference(Object result, String wiki)
+    {
+        Object name = result;
+        if (result instanceof Object[] && ((Object[]) result).length > 0) {
+            name = ((Object[]) result)[0];
+        }
+
+        if (name instanceof String) {
+            if (wiki != null) {
+                return this.resolver.resolve((String) name, new WikiReference(wiki));
+            } else {
+                return this.resolver.resolve((String) name);
+            }
+        }
+
+        return null;
     }
 
     @Override
@@ -19,15 +19,27 @@
  */
 package org.xwiki.query.internal;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
 import org.junit.Before;
 import org.junit.Test;
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.query.Query;
 import org.xwiki.query.QueryException;
 import org.xwiki.query.QueryExecutorManager;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
 import org.xwiki.test.jmock.AbstractMockingComponentTestCase;
 import org.xwiki.test.jmock.annotation.MockingRequirement;
 
@@ -43,6 +55,20 @@ public class SecureQueryExecutorManagerTest extends AbstractMockingComponentTest
 
     private DocumentAccessBridge dab;
 
+    private AuthorizationManager authorizationManager;
+
+    private DocumentReferenceResolver<String> resolver;
+
+    /**
+     * The results returned by the nested query executor manager.
+     */
+    private List<Object> results = new ArrayList<Object>();
+
+    /**
+     * The query passed to the nested query executor manager.
+     */
+    private Query executedQuery;
+
     @Before
     public void configure() throws Exception
     {
@@ -50,9 +76,20 @@ public void configure() throws Exception
             getComponentManager().getInstance(QueryExecutorManager.class);
         getMockery().checking(new Expectations() {{
             allowing(nestedQueryExecutorManager).execute(with(any(Query.class)));
+                will(new CustomAction("return the results")
+                {
+                    @Override
+                    public Object invoke(Invocation invocation) throws Throwable
+                    {
+                        executedQuery = (Query) invocation.getParameter(0);
+                        return results;
+                    }
+                });
         }});
 
         this.dab = getComponentManager().getInstance(DocumentAccessBridge.class);
+        this.authorizationManager = getComponentManager().getInstance(AuthorizationManager.class);
+        this.resolver = getComponentManager().getInstance(DocumentReferenceResolver.TYPE_STRING, "current");
         this.qem = getComponentManager().getInstance(QueryExecutorManager.class, "secure");
     }
 
@@ -74,6 +111,30 @@ private Query createNamedQuery(String name)
         return new DefaultQuery(name, this.qem);
     }
 
+    private DocumentReference resolve(final String name)
+    {
+        final DocumentReference reference = new DocumentReference("wiki", "Space", name);
+
+        getMockery().checking(new Expectations() {{
+            allowing(resolver).resolve("Space." + name);
+                will(returnValue(reference));
+        }});
+
+        return reference;
+    }
+
+    private void setViewable(final List<DocumentReference> checked, final List<DocumentReference> viewable)
+    {
+        final DocumentReference userReference = new DocumentReference("wiki", "XWiki", "user");
+
+        getMockery().checking(new Expectations() {{
+            allowing(dab).getCurrentUserReference();
+                will(returnValue(userReference));
+            oneOf(authorizationManager).filterAccessible(Right.VIEW, userReference, checked);
+                will(returnValue(viewable));
+        }});
+    }
+
     @Test
     public void createWhereXWQLQueryWithProgrammingRights() throws QueryException
     {
@@ -228,4 +289,62 @@ public void setWikiInQueryWithoutProgrammingRights() throws QueryException
         } catch (QueryException expected) {
         }
     }
+
+    @Test
+    public void filterMixedAllowedAndDeniedResultsWithoutProgrammingRights() throws QueryException
+    {
+        setProgrammingRights(false);
+
+        DocumentReference allowed1 = resolve("Allowed1");
+        DocumentReference denied = resolve("Denied");
+        DocumentReference allowed2 = resolve("Allowed2");
+        setViewable(Arrays.asList(allowed1, denied, allowed2), Arrays.asList(allowed1, allowed2));
+
+        Object[] row = new Object[] {"Space.Allowed2", "title"};
+        this.results.addAll(Arrays.asList("Space.Allowed1", "Space.Denied", row, 2L));
+
+        List<Object> filtered = createQuery("where doc.space='Space'", "xwql").execute();
+
+        // The rows without document name (like a count) are kept
+        assertEquals(3, filtered.size());
+        assertEquals("Space.Allowed1", filtered.get(0));
+        assertSame(row, filtered.get(1));
+        assertEquals(2L, filtered.get(2));
+    }
+
+    @Test
+    public void filterResultsAfterOffsetAndLimitWithoutProgrammingRights() throws QueryException
+    {
+        setProgrammingRights(false);
+
+        DocumentReference allowed = resolve("Allowed");
+        DocumentReference denied1 = resolve("Denied1");
+        DocumentReference denied2 = resolve("Denied2");
+        setViewable(Arrays.asList(denied1, allowed, denied2), Arrays.asList(allowed));
+
+        // The page requested to the nested executor
+        this.results.addAll(Arrays.asList("Space.Denied1", "Space.Allowed", "Space.Denied2"));
+
+        List<Object> filtered = createQuery("where doc.space='Space'", "xwql").setOffset(10).setLimit(3).execute();
+
+        // The offset and limit are passed as is and the denied documents are removed from the requested page, so less
+        // results than the limit are returned
+        assertEquals(10, this.executedQuery.getOffset());
+        assertEquals(3, this.executedQuery.getLimit());
+        assertEquals(Arrays.<Object> asList("Space.Allowed"), filtered);
+    }
+
+    @Test
+    public void doNotFilterResultsWithProgrammingRights() throws QueryException
+    {
+        setProgrammingRights(true);
+
+        this.results.addAll(Arrays.asList("Space.Allowed", "Space.Denied"));
+
+        List<Object> filtered = createQuery("where doc.space='Space'", "xwql").setOffset(1).setLimit(2).execute();
+
+        assertEquals(Arrays.<Object> asList("Space.Allowed", "Space.Denied"), filtered);
+        assertEquals(1, this.executedQuery.getOffset());
+        assertEquals(2, this.executedQuery.getLimit());
+    }
 }
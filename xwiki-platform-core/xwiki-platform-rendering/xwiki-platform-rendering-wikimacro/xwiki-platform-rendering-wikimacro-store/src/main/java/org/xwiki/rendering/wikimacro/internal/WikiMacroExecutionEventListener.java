@@ -126,6 +126,9 @@ public void onWikiMacroExecutionStartsEvent(WikiMacro wikiMacro)
         XWikiContext xwikiContext = (XWikiContext) context.getProperty(XWikiContext.EXECUTIONCONTEXT_KEY);
         XWikiDocument contextDoc = xwikiContext.getDoc();
 
+        // The result of the rendering in progress depends on the wiki macro definition
+        xwikiContext.getWiki().addRenderingDependency(wikiMacro.getDocumentReference(), xwikiContext);
+
         // Set context document content author as macro author so that programming right is tested on the right
         // user
         XWikiDocument wikiMacroDocument;
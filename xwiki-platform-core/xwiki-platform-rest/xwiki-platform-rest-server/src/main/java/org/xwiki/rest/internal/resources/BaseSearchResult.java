@@ -22,11 +22,17 @@
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Formatter;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import javax.inject.Inject;
 import javax.ws.rs.core.UriBuilderException;
 
 import org.apache.commons.lang3.StringUtils;
+import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.query.Query;
 import org.xwiki.query.QueryException;
 import org.xwiki.rest.Relations;
@@ -40,11 +46,14 @@
 import org.xwiki.rest.resources.pages.PageResource;
 import org.xwiki.rest.resources.pages.PageTranslationResource;
 import org.xwiki.rest.resources.spaces.SpaceResource;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
 
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.api.Document;
 import com.xpn.xwiki.api.XWiki;
+import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
 import com.xpn.xwiki.plugin.lucene.LucenePlugin;
 import com.xpn.xwiki.plugin.lucene.SearchResults;
@@ -54,6 +63,12 @@
  */
 public class BaseSearchResult extends XWikiResource
 {
+    /**
+     * Used to check at once the rights on all the found documents.
+     */
+    @Inject
+    private AuthorizationManager authorizationManager;
+
     protected static final String SEARCH_TEMPLATE_INFO =
             "q={keywords}(&scope={content|name|title|spaces|objects})*(&number={number})(&start={start})(&orderField={fieldname}(&order={asc|desc}))(&prettyNames={false|true})";
 
@@ -236,6 +251,9 @@ protected List<SearchResult> searchPages(List<SearchScope> searchScopes, String
                     .execute();
             }
 
+            /* Check the rights and load all the found documents at once. */
+            Map<DocumentReference, XWikiDocument> documents = getDocuments(queryResult, wikiName);
+
             for (Object object : queryResult) {
                 Object[] fields = (Object[]) object;
 
@@ -247,8 +265,8 @@ protected List<SearchResult> searchPages(List<SearchScope> searchScopes, String
                 String pageFullName = Utils.getPageFullName(wikiName, spaceName, pageName);
 
                 /* Check if the user has the right to see the found document */
-                if (xwikiApi.hasAccessLevel("view", pageId)) {
-                    Document doc = xwikiApi.getDocument(pageFullName);
+                if (documents.containsKey(new DocumentReference(wikiName, spaceName, pageName))) {
+                    Document doc = getDocument(documents, wikiName, spaceName, pageName);
                     String title = doc.getDisplayTitle();
                     SearchResult searchResult = objectFactory.createSearchResult();
                     searchResult.setType("page");
@@ -338,12 +356,19 @@ protected List<SearchResult> searchSpaces(String keywords, String wikiName, bool
                             .bindValue("keywords", String.format("%%%s%%", keywords.toUpperCase())).setLimit(number)
                             .setOffset(start).execute();
 
+            /* Check at once the rights on the home pages of the found spaces. */
+            List<DocumentReference> spaceHomeReferences = new ArrayList<DocumentReference>(queryResult.size());
+            for (Object object : queryResult) {
+                spaceHomeReferences.add(new DocumentReference(wikiName, (String) object, "WebHome"));
+            }
+            Set<DocumentReference> viewableSpaceHomes = getViewableDocuments(spaceHomeReferences);
+
             for (Object object : queryResult) {
                 String spaceName = (String) object;
-                Document spaceDoc = xwikiApi.getDocument(String.format("%s.WebHome", spaceName));
 
                 /* Check if the user has the right to see the found document */
-                if (xwikiApi.hasAccessLevel("view", spaceDoc.getPrefixedFullName())) {
+                if (viewableSpaceHomes.contains(new DocumentReference(wikiName, spaceName, "WebHome"))) {
+                    Document spaceDoc = xwikiApi.getDocument(String.format("%s.WebHome", spaceName));
                     String title = spaceDoc.getDisplayTitle();
 
                     SearchResult searchResult = objectFactory.createSearchResult();
@@ -363,7 +388,7 @@ protected List<SearchResult> searchSpaces(String keywords, String wikiName, bool
 
                     /* Add a link to the webhome if it exists */
                     String webHomePageId = Utils.getPageId(wikiName, spaceName, "WebHome");
-                    if (xwikiApi.exists(webHomePageId) && xwikiApi.hasAccessLevel("view", webHomePageId)) {
+                    if (xwikiApi.exists(webHomePageId)) {
                         String pageUri =
                             Utils.createURI(uriInfo.getBaseUri(), PageResource.class, wikiName, spaceName, "WebHome")
                                 .toString();
@@ -473,6 +498,9 @@ protected List<SearchResult> searchObjects(String keywords, String wikiName, Str
                                 .execute();
             }
 
+            /* Check the rights and load all the found documents at once. */
+            Map<DocumentReference, XWikiDocument> documents = getDocuments(queryResult, wikiName);
+
             /* Build the result. */
             for (Object object : queryResult) {
                 Object[] fields = (Object[]) object;
@@ -491,8 +519,9 @@ protected List<SearchResult> searchObjects(String keywords, String wikiName, Str
                  * Check if the user has the right to see the found document. We also prevent guest users to access
                  * object data in order to avoid leaking important information such as emails to crawlers.
                  */
-                if (xwikiApi.hasAccessLevel("view", pageId) && xwikiContext.getUserReference() != null) {
-                    Document doc = xwikiApi.getDocument(pageFullName);
+                if (documents.containsKey(new DocumentReference(wikiName, spaceName, pageName))
+                    && xwikiContext.getUserReference() != null) {
+                    Document doc = getDocument(documents, wikiName, spaceName, pageName);
                     String title = doc.getDisplayTitle();
                     SearchResult searchResult = objectFactory.createSearchResult();
                     searchResult.setType("object");
@@ -638,6 +667,9 @@ protected List<SearchResult> searchDatabaseQuery(String query, String queryLangu
 
             queryResult = queryManager.createQuery(squery, queryLanguage).setLimit(number).setOffset(start).execute();
 
+            /* Check the rights and load all the found documents at once. */
+            Map<DocumentReference, XWikiDocument> documents = getDocuments(queryResult, wikiName);
+
             /* Build the result. */
             for (Object object : queryResult) {
                 Object[] fields = (Object[]) object;
@@ -650,8 +682,8 @@ protected List<SearchResult> searchDatabaseQuery(String query, String queryLangu
                 String pageFullName = Utils.getPageFullName(wikiName, spaceName, pageName);
 
                 /* Check if the user has the right to see the found document */
-                if (xwikiApi.hasAccessLevel("view", pageId)) {
-                    Document doc = xwikiApi.getDocument(pageFullName);
+                if (documents.containsKey(new DocumentReference(wikiName, spaceName, pageName))) {
+                    Document doc = getDocument(documents, wikiName, spaceName, pageName);
                     String title = doc.getDisplayTitle();
 
                     SearchResult searchResult = objectFactory.createSearchResult();
@@ -781,6 +813,14 @@ protected List<SearchResult> searchLucene(String query, String defaultWikiName,
                 List<com.xpn.xwiki.plugin.lucene.SearchResult> luceneResults =
                         luceneSearchResults.getResults(start + 1, (number == -1) ? 20 : number);
 
+                /* Check the rights and load all the found documents at once. */
+                List<DocumentReference> references = new ArrayList<DocumentReference>();
+                for (com.xpn.xwiki.plugin.lucene.SearchResult luceneSearchResult : luceneResults) {
+                    references.add(new DocumentReference(luceneSearchResult.getWiki(), luceneSearchResult.getSpace(),
+                        luceneSearchResult.getName()));
+                }
+                Map<DocumentReference, XWikiDocument> documents = getDocuments(references);
+
                 /* Build the result. */
                 for (com.xpn.xwiki.plugin.lucene.SearchResult luceneSearchResult : luceneResults) {
                     String wikiName = luceneSearchResult.getWiki();
@@ -790,8 +830,8 @@ protected List<SearchResult> searchLucene(String query, String defaultWikiName,
                     String pageId = Utils.getPageId(wikiName, spaceName, pageName);
 
                     /* Check if the user has the right to see the found document */
-                    if (xwikiApi.hasAccessLevel("view", pageId)) {
-                        Document doc = xwikiApi.getDocument(pageId);
+                    if (documents.containsKey(new DocumentReference(wikiName, spaceName, pageName))) {
+                        Document doc = getDocument(documents, wikiName, spaceName, pageName);
                         String title = doc.getDisplayTitle();
 
                         SearchResult searchResult = objectFactory.createSearchResult();
@@ -919,4 +959,74 @@ protected QueryType parseQueryType(String queryTypeString)
 
         return null;
     }
+
+    /**
+     * Loads at once all the documents found by a query which the current user is allowed to view, instead of checking
+     * the rights and loading them one by one while building the search results.
+     *
+     * @param queryResult the query results, holding the space and the page name at index 1 and 2
+     * @param wikiName the wiki where the query has been executed
+     * @return the loaded documents, indexed by reference
+     */
+    protected Map<DocumentReference, XWikiDocument> getDocuments(List<Object> queryResult, String wikiName)
+            throws XWikiException
+    {
+        List<DocumentReference> references = new ArrayList<DocumentReference>(queryResult.size());
+        for (Object object : queryResult) {
+            Object[] fields = (Object[]) object;
+            references.add(new DocumentReference(wikiName, (String) fields[1], (String) fields[2]));
+        }
+
+        return getDocuments(references);
+    }
+
+    /**
+     * Loads several documents at once, skipping the documents the current user is not allowed to view.
+     *
+     * @param documentReferences the references of the documents to load
+     * @return the loaded documents, indexed by reference
+     */
+    protected Map<DocumentReference, XWikiDocument> getDocuments(List<DocumentReference> documentReferences)
+            throws XWikiException
+    {
+        List<DocumentReference> references =
+                this.authorizationManager.filterAccessible(Right.VIEW,
+                        Utils.getXWikiContext(componentManager).getUserReference(), documentReferences);
+
+        List<XWikiDocument> documents =
+                Utils.getXWiki(componentManager).getDocuments(references, Utils.getXWikiContext(componentManager));
+
+        Map<DocumentReference, XWikiDocument> result = new HashMap<DocumentReference, XWikiDocument>();
+        for (int i = 0; i < references.size(); i++) {
+            result.put(references.get(i), documents.get(i));
+        }
+
+        return result;
+    }
+
+    /**
+     * @param references the references of the documents to check
+     * @return the documents the current user is allowed to view
+     */
+    protected Set<DocumentReference> getViewableDocuments(List<DocumentReference> references)
+    {
+        return new HashSet<DocumentReference>(this.authorizationManager.filterAccessible(Right.VIEW,
+                Utils.getXWikiContext(componentManager).getUserReference(), references));
+    }
+
+    /**
+     * @param documents the documents loaded with {@link #getDocuments(List)}
+     * @return the public API of the requested document, loaded on demand if it's not part of the passed documents
+     */
+    protected Document getDocument(Map<DocumentReference, XWikiDocument> documents, String wikiName, String spaceName,
+            String pageName) throws XWikiException
+    {
+        DocumentReference reference = new DocumentReference(wikiName, spaceName, pageName);
+        XWikiDocument document = documents.get(reference);
+        if (document != null) {
+            return document.newDocument(Utils.getXWikiContext(componentManager));
+        }
+
+        return Utils.getXWikiApi(componentManager).getDocument(reference);
+    }
 }
@@ -100,6 +100,13 @@ public class LucenePlugin extends XWikiDefaultPlugin
 
     public static final String PROP_MAX_QUEUE_SIZE = "xwiki.plugins.lucene.maxQueueSize";
 
+    /**
+     * The number of threads used to extract the data to index.
+     * 
+     * @since 5.4M1
+     */
+    public static final String PROP_INDEXING_THREADS = "xwiki.plugins.lucene.indexingThreads";
+
     private static final String DEFAULT_ANALYZER = "org.apache.lucene.analysis.standard.StandardAnalyzer";
 
     /**
@@ -125,7 +132,9 @@ public class LucenePlugin extends XWikiDefaultPlugin
 
     /**
      * List of Lucene indexes used for searching. By default there is only one such index for all the wiki. One r
-     * is created for each entry in {@link #indexDirs}.
+     * is created for each entry in {@link #indexDirs}. The reader of the first index, the one maintained by the index
+     * updater, is closed as soon as the index updater provides near real time searchers so that it does not keep the
+     * deleted segments of the index opened.
      */
     private IndexReader[] indexReaders;
 
@@ -285,7 +294,17 @@ public SearchResults getSearchResultsFromIndexes(String query, String sortField,
     public SearchResults getSearchResults(String query, String sortField, String virtualWikiNames, String languages,
         XWikiContext context) throws Exception
     {
-        return search(query, sortField, virtualWikiNames, languages, this.indexReaders, context);
+        IndexSearcher searcher = this.indexUpdater.acquireSearcher();
+        try {
+            IndexReader[] readers = acquireIndexReaders(searcher);
+            try {
+                return search(query, sortField, virtualWikiNames, languages, readers, context);
+            } finally {
+                releaseIndexReaders(readers, searcher);
+            }
+        } finally {
+            this.indexUpdater.releaseSearcher(searcher);
+        }
     }
 
     /**
@@ -305,7 +324,64 @@ public SearchResults getSearchResults(String query, String sortField, String vir
     public SearchResults getSearchResults(String query, String[] sortField, String virtualWikiNames, String languages,
         XWikiContext context) throws Exception
     {
-        return search(query, sortField, virtualWikiNames, languages, this.indexReaders, context);
+        IndexSearcher searcher = this.indexUpdater.acquireSearcher();
+        try {
+            IndexReader[] readers = acquireIndexReaders(searcher);
+            try {
+                return search(query, sortField, virtualWikiNames, languages, readers, context);
+            } finally {
+                releaseIndexReaders(readers, searcher);
+            }
+        } finally {
+            this.indexUpdater.releaseSearcher(searcher);
+        }
+    }
+
+    /**
+     * @param searcher the near real time searcher of the internal index, {@code null} if the index updater does not
+     *            provide any
+     * @return the readers to search: the up to date reader of the internal index followed by the readers of the other
+     *         configured indexes, to be released using {@link #releaseIndexReaders(IndexReader[], IndexSearcher)}
+     * @throws IOException when failing to open the reader of the internal index
+     */
+    private synchronized IndexReader[] acquireIndexReaders(IndexSearcher searcher) throws IOException
+    {
+        if (searcher != null) {
+            // The first configured index is the one maintained by the index updater
+            if (this.indexReaders[0] != null) {
+                destroyIndexReaders(new IndexReader[] {this.indexReaders[0]});
+                this.indexReaders[0] = null;
+            }
+        } else if (this.indexReaders[0] == null) {
+            // The index updater does not provide searchers anymore (e.g. it's being stopped)
+            this.indexReaders[0] = DirectoryReader.open(this.indexUpdater.getDirectory());
+        }
+
+        IndexReader[] readers = this.indexReaders.clone();
+        if (searcher != null) {
+            readers[0] = searcher.getIndexReader();
+        }
+
+        // Make sure the readers are not closed by a refresh while they are searched
+        for (int i = searcher != null ? 1 : 0; i < readers.length; ++i) {
+            readers[i].incRef();
+        }
+
+        return readers;
+    }
+
+    /**
+     * @param readers the readers returned by {@link #acquireIndexReaders(IndexSearcher)}
+     * @param searcher the near real time searcher of the internal index, {@code null} if the index updater does not
+     *            provide any
+     * @throws IOException when failing to close a reader which has been refreshed in the meantime
+     */
+    private void releaseIndexReaders(IndexReader[] readers, IndexSearcher searcher) throws IOException
+    {
+        // The reader of the searcher is released with the searcher
+        for (int i = searcher != null ? 1 : 0; i < readers.length; ++i) {
+            readers[i].decRef();
+        }
     }
 
     /**
@@ -550,7 +626,17 @@ public void init(Directory directory, XWikiContext context)
             maxQueueSize = 1000;
         }
 
-        IndexUpdater indexUpdater = new IndexUpdater(directory, indexingInterval, maxQueueSize, this, context);
+        int indexingThreads;
+        try {
+            indexingThreads =
+                (int) context.getWiki().ParamAsLong(PROP_INDEXING_THREADS, Runtime.getRuntime().availableProcessors());
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Invalid number of indexing threads in configuration.");
+            indexingThreads = Runtime.getRuntime().availableProcessors();
+        }
+
+        IndexUpdater indexUpdater =
+            new IndexUpdater(directory, indexingInterval, maxQueueSize, indexingThreads, this, context);
 
         init(indexUpdater, context);
     }
@@ -703,10 +789,12 @@ public IndexReader[] createIndexReaders(String indexDirs, XWikiContext context)
     private static void destroyIndexReaders(IndexReader [] indexReaders)
     {
         for (IndexReader indexReader : indexReaders) {
-            try {
-                indexReader.close();
-            } catch (IOException e) {
-                LOGGER.error("Failed to close lucene index reader.", e);
+            if (indexReader != null) {
+                try {
+                    indexReader.close();
+                } catch (IOException e) {
+                    LOGGER.error("Failed to close lucene index reader.", e);
+                }
             }
         }
     }
@@ -730,6 +818,30 @@ public synchronized void openIndexReaders(XWikiContext context)
         }
     }
 
+    /**
+     * Reopen the readers of the configured indexes which are not maintained by the index updater (the first one is
+     * searched through the near real time searchers of the index updater), if they have been modified.
+     * 
+     * @since 5.4M1
+     */
+    public synchronized void refreshIndexReaders()
+    {
+        if (this.indexReaders != null) {
+            for (int i = 1; i < this.indexReaders.length; ++i) {
+                try {
+                    DirectoryReader reader = DirectoryReader.openIfChanged((DirectoryReader) this.indexReaders[i]);
+                    if (reader != null) {
+                        // The previous reader is actually closed when the searches using it are finished
+                        destroyIndexReaders(new IndexReader[] {this.indexReaders[i]});
+                        this.indexReaders[i] = reader;
+                    }
+                } catch (IOException e) {
+                    LOGGER.error("Failed to refresh the reader of the lucene index [{}]", i, e);
+                }
+            }
+        }
+    }
+
     public String getIndexDirs()
     {
         return this.indexDirs;
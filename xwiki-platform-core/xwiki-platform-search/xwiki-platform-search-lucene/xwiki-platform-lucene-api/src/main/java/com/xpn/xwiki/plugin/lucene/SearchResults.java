@@ -19,9 +19,11 @@
  */
 package com.xpn.xwiki.plugin.lucene;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.apache.lucene.document.Document;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
@@ -48,10 +50,19 @@ public class SearchResults extends Api
 {
     private final XWiki xwiki;
 
-    private final IndexSearcher searcher;
-
     private final TopDocsCollector< ? extends ScoreDoc> results;
 
+    /**
+     * The top hits.
+     */
+    private final TopDocs topDocs;
+
+    /**
+     * The stored fields of the top hits, loaded right away since the searched readers are released (and can be closed)
+     * as soon as the search is done.
+     */
+    private final Document[] documents;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(SearchResults.class);
 
     private List<SearchResult> relevantResults;
@@ -65,20 +76,29 @@ public SearchResults(TopDocsCollector< ? extends ScoreDoc> results, IndexSearche
         super(context);
 
         this.results = results;
-        this.searcher = searcher;
         this.xwiki = xwiki;
+
+        this.topDocs = results.topDocs();
+        this.documents = new Document[this.topDocs.scoreDocs.length];
+        for (int i = 0; i < this.documents.length; i++) {
+            try {
+                this.documents[i] = searcher.doc(this.topDocs.scoreDocs[i].doc);
+            } catch (IOException e) {
+                LOGGER.error("Error getting search result", e);
+            }
+        }
     }
 
     private List<SearchResult> getRelevantResults()
     {
         if (this.relevantResults == null) {
             this.relevantResults = new ArrayList<SearchResult>();
-            TopDocs docs = this.results.topDocs();
+            TopDocs docs = this.topDocs;
 
             for (int i = 0; i < docs.scoreDocs.length; i++) {
                 try {
                     SearchResult result =
-                        new SearchResult(this.searcher.doc(docs.scoreDocs[i].doc), docs.scoreDocs[i].score, this.xwiki);
+                        new SearchResult(this.documents[i], docs.scoreDocs[i].score, this.xwiki);
 
                     if (result.isWikiContent()) {
                         String prefixedFullName =
@@ -182,15 +202,13 @@ public List<SearchResult> getResults(int beginIndex, int items)
         List<SearchResult> relResults = this.relevantResults;
         if (relResults == null) {
             relResults = new ArrayList<SearchResult>();
-            TopDocs docs = this.results.topDocs();
+            TopDocs docs = this.topDocs;
             String database = this.context.getDatabase();
             try {
                 for (int i = 0; i < docs.scoreDocs.length; i++) {
                     SearchResult result = null;
                     try {
-                        result =
-                            new SearchResult(this.searcher.doc(docs.scoreDocs[i].doc), docs.scoreDocs[i].score,
-                                this.xwiki);
+                        result = new SearchResult(this.documents[i], docs.scoreDocs[i].score, this.xwiki);
 
                         this.context.setDatabase(result.getWiki());
 
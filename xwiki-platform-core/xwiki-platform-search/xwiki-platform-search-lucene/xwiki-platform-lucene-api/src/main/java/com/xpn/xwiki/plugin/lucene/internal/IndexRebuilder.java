@@ -26,15 +26,12 @@
 import java.util.List;
 
 import org.apache.commons.lang3.StringUtils;
-import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.store.Directory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xwiki.context.Execution;
@@ -155,18 +152,7 @@ public synchronized int startIndex(Collection<String> wikis, String hqlFilter, b
                 if (wikis == null) {
                     this.indexUpdater.cleanIndex();
                 } else {
-                    try {
-                        IndexWriter writer = this.indexUpdater.openWriter(false);
-                        try {
-                            for (String wiki : wikis) {
-                                writer.deleteDocuments(new Term(IndexFields.DOCUMENT_WIKI, wiki));
-                            }
-                        } finally {
-                            writer.close();
-                        }
-                    } catch (IOException ex) {
-                        LOGGER.warn("Failed to clean wiki index: {}", ex.getMessage());
-                    }
+                    this.indexUpdater.cleanIndex(wikis);
                 }
             }
 
@@ -297,8 +283,8 @@ protected int indexWiki(String wikiName, XWikiContext context) throws Interrupte
         try {
             context.setDatabase(wikiName);
 
-            // If only not already indexed document has to be indexed create a Searcher to find out
-            IndexSearcher searcher = this.onlyNew ? createSearcher(this.indexUpdater.getDirectory(), context) : null;
+            // If only not already indexed document has to be indexed use a Searcher to find out
+            IndexSearcher searcher = this.onlyNew ? acquireSearcher(context) : null;
 
             try {
                 String hql =
@@ -319,6 +305,8 @@ protected int indexWiki(String wikiName, XWikiContext context) throws Interrupte
                 this.hqlFilter, e.getMessage()});
 
                 return -1;
+            } finally {
+                releaseSearcher(searcher);
             }
         } finally {
             context.setDatabase(database);
@@ -439,16 +427,32 @@ public boolean isIndexed(DocumentReference documentReference, String version, St
         return exists;
     }
 
-    public IndexSearcher createSearcher(Directory directory, XWikiContext context)
+    /**
+     * @param context the XWiki context
+     * @return a near real time searcher on the index, {@code null} if it can't be provided
+     */
+    private IndexSearcher acquireSearcher(XWikiContext context)
     {
         IndexSearcher searcher = null;
-        
+
         try {
-            searcher = new IndexSearcher(DirectoryReader.open(directory));
+            searcher = this.indexUpdater.acquireSearcher(context);
         } catch (Exception e) {
-            LOGGER.error("Faild to create IndexSearcher for Lucene index [{}]", directory, e);
+            LOGGER.error("Failed to acquire IndexSearcher for Lucene index [{}]", this.indexUpdater.getDirectory(), e);
         }
 
         return searcher;
     }
+
+    /**
+     * @param searcher the searcher returned by {@link #acquireSearcher(XWikiContext)}, can be {@code null}
+     */
+    private void releaseSearcher(IndexSearcher searcher)
+    {
+        try {
+            this.indexUpdater.releaseSearcher(searcher);
+        } catch (IOException e) {
+            LOGGER.error("Failed to release IndexSearcher for Lucene index [{}]", this.indexUpdater.getDirectory(), e);
+        }
+    }
 }
@@ -22,16 +22,32 @@
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.LockObtainFailedException;
 import org.apache.lucene.util.Version;
@@ -55,11 +71,17 @@
 import com.xpn.xwiki.internal.event.AttachmentAddedEvent;
 import com.xpn.xwiki.internal.event.AttachmentDeletedEvent;
 import com.xpn.xwiki.internal.event.AttachmentUpdatedEvent;
+import com.xpn.xwiki.internal.event.DocumentInvalidatedEvent;
 import com.xpn.xwiki.plugin.lucene.LucenePlugin;
 import com.xpn.xwiki.util.AbstractXWikiRunnable;
 import com.xpn.xwiki.web.Utils;
 
 /**
+ * Maintains the Lucene index of the wiki. A single long-lived {@link IndexWriter} is fed by a pool of builder threads
+ * which extract the {@link AbstractIndexData} of the queued entities in parallel, and the searchers handed to
+ * {@link LucenePlugin} are refreshed from that writer (near real time) right after each indexing batch so that
+ * modifications are searchable without waiting for the index to be committed.
+ * 
  * @version $Id$
  */
 public class IndexUpdater extends AbstractXWikiRunnable implements EventListener
@@ -72,34 +94,76 @@ public class IndexUpdater extends AbstractXWikiRunnable implements EventListener
     private static final String NAME = "lucene";
 
     /**
-     * The maximum number of milliseconds we have to wait before this thread is safely closed.
+     * The number of milliseconds between two checks of the queue. This is also the maximum delay before a modification
+     * becomes visible in the searches, not counting the indexing time itself.
      */
-    private static final int EXIT_INTERVAL = 3000;
+    private static final int REFRESH_INTERVAL = 500;
+
+    /**
+     * The maximum number of entities submitted to each builder thread before waiting for the batch to be indexed.
+     */
+    private static final int BATCH_SIZE_PER_THREAD = 10;
+
+    /**
+     * The number of seconds an idle builder thread is kept alive.
+     */
+    private static final long BUILDER_KEEP_ALIVE = 60L;
 
     private static final List<Event> EVENTS = Arrays.<Event> asList(new DocumentUpdatedEvent(),
         new DocumentCreatedEvent(), new DocumentDeletedEvent(), new AttachmentAddedEvent(),
-        new AttachmentDeletedEvent(), new AttachmentUpdatedEvent());
+        new AttachmentDeletedEvent(), new AttachmentUpdatedEvent(), new DocumentInvalidatedEvent());
 
     /**
      * Collecting all the fields for using up in search
      */
-    public static final List<String> fields = new ArrayList<String>();
+    public static final List<String> fields = new CopyOnWriteArrayList<String>();
 
     private final LucenePlugin plugin;
 
     /**
-     * Milliseconds of sleep between checks for changed documents.
+     * Milliseconds between two commits of the index. Modifications are visible in the searches before being committed,
+     * the commit only makes them durable.
      */
     private final int indexingInterval;
 
+    /**
+     * The number of threads used to extract the data to index.
+     */
+    private final int indexingThreads;
+
     private final Directory directory;
 
     private final XWikiDocumentQueue queue = new XWikiDocumentQueue();
 
     /**
-     * Milliseconds left till the next check for changed documents.
+     * Protects the long-lived writer and the associated resources.
+     */
+    private final Object writerLock = new Object();
+
+    /**
+     * The long-lived writer, opened when the first batch is indexed and closed when this thread exits.
+     */
+    private IndexWriter writer;
+
+    /**
+     * Provides near real time searchers on top of {@link #writer}.
+     */
+    private volatile SearcherManager searcherManager;
+
+    /**
+     * The threads building the Lucene documents and pushing them to {@link #writer}.
+     */
+    private ExecutorService builders;
+
+    /**
+     * Indicate if {@link #writer} contains modifications which have not been committed yet.
      */
-    private int indexingTimer = 0;
+    private boolean uncommitted;
+
+    /**
+     * The date (in milliseconds) of the last commit of {@link #writer}.
+     */
+    private long lastCommit;
 
     /**
      * Soft threshold after which no more documents will be added to the indexing queue. When the queue size gets larger
@@ -126,6 +190,21 @@ protected void declareProperties(ExecutionContext executionContext)
     }
 
     public IndexUpdater(Directory directory, int indexingInterval, int maxQueueSize, LucenePlugin plugin, XWikiContext context)
+    {
+        this(directory, indexingInterval, maxQueueSize, Runtime.getRuntime().availableProcessors(), plugin, context);
+    }
+
+    /**
+     * @param directory the directory of the index
+     * @param indexingInterval the number of milliseconds between two commits of the index
+     * @param maxQueueSize the soft limit of the indexing queue
+     * @param indexingThreads the number of threads used to extract the data to index
+     * @param plugin the Lucene plugin
+     * @param context the XWiki context
+     * @since 5.4M1
+     */
+    public IndexUpdater(Directory directory, int indexingInterval, int maxQueueSize, int indexingThreads,
+        LucenePlugin plugin, XWikiContext context)
     {
         this.xwikiContext = context.clone();
 
@@ -135,6 +214,7 @@ public IndexUpdater(Directory directory, int indexingInterval, int maxQueueSize,
 
         this.indexingInterval = indexingInterval;
         this.maxQueueSize = maxQueueSize;
+        this.indexingThreads = Math.max(1, indexingThreads);
     }
 
     private XWikiContext getContext()
@@ -173,24 +253,24 @@ protected void runInternal()
      */
     private void runMainLoop()
     {
-        while (!this.exit) {
-            // Check if the indexing interval elapsed.
-            if (this.indexingTimer == 0) {
-                // Reset the indexing timer.
-                this.indexingTimer = this.indexingInterval;
-
+        try {
+            while (!this.exit) {
                 // Poll the queue for documents to be indexed.
                 updateIndex();
-            }
 
-            // Remove the exit interval from the indexing timer.
-            int sleepInterval = Math.min(EXIT_INTERVAL, this.indexingTimer);
-            this.indexingTimer -= sleepInterval;
-            try {
-                Thread.sleep(sleepInterval);
-            } catch (InterruptedException e) {
-                LOGGER.warn("Error while sleeping", e);
+                // Make the indexed documents durable from time to time.
+                commitIndex(false);
+
+                if (this.queue.isEmpty()) {
+                    try {
+                        Thread.sleep(REFRESH_INTERVAL);
+                    } catch (InterruptedException e) {
+                        LOGGER.warn("Error while sleeping", e);
+                    }
+                }
             }
+        } finally {
+            closeWriter();
         }
     }
 
@@ -204,16 +284,96 @@ private void updateIndex()
         } else {
             LOGGER.debug("IndexUpdater: documents in queue, start indexing");
 
-            XWikiContext context = getContext();
-            context.getWiki().getStore().cleanUp(context);
+            synchronized (this.writerLock) {
+                IndexWriter indexWriter = getWriter(getContext());
+
+                int maxBatchSize = this.indexingThreads * BATCH_SIZE_PER_THREAD;
+
+                int nb = 0;
+                List<Future<Boolean>> batch = new ArrayList<Future<Boolean>>(maxBatchSize);
+                try {
+                    // Only index what's currently in the queue so that the searcher is refreshed regularly even when
+                    // the queue is continuously fed (e.g. during a rebuild).
+                    for (int remaining = this.queue.getSize(); remaining > 0 && !this.queue.isEmpty(); --remaining) {
+                        AbstractIndexData data = this.queue.remove();
+
+                        if (data instanceof WikiData) {
+                            // A wiki covers other entities of the queue: make sure it's applied in the queue order.
+                            nb += waitForBatch(batch);
+                            if (new IndexTask(indexWriter, data).call()) {
+                                ++nb;
+                            }
+                        } else {
+                            // The queue contains only one entry per entity so the entities of a batch can be indexed in
+                            // any order.
+                            batch.add(this.builders.submit(new IndexTask(indexWriter, data)));
+                            if (batch.size() >= maxBatchSize) {
+                                nb += waitForBatch(batch);
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    LOGGER.error("error indexing documents", e);
+                } finally {
+                    nb += waitForBatch(batch);
+
+                    this.uncommitted = true;
+                }
+
+                LOGGER.info("indexed [{}] docs to lucene index", nb);
+
+                refreshSearcher();
+            }
+
+            // The other configured indexes are not maintained by this updater but they used to be reopened after each
+            // indexing pass too
+            this.plugin.refreshIndexReaders();
+        }
+    }
 
-            IndexWriter writer;
+    /**
+     * Wait for the passed indexing tasks to be finished.
+     * 
+     * @param batch the indexing tasks, the list is emptied
+     * @return the number of entities successfully indexed
+     */
+    private int waitForBatch(List<Future<Boolean>> batch)
+    {
+        int nb = 0;
+
+        for (Future<Boolean> future : batch) {
+            try {
+                if (future.get()) {
+                    ++nb;
+                }
+            } catch (InterruptedException e) {
+                LOGGER.warn("Interrupted while waiting for the documents to be indexed", e);
+            } catch (ExecutionException e) {
+                LOGGER.error("error indexing document", e.getCause());
+            }
+        }
+
+        batch.clear();
+
+        return nb;
+    }
+
+    /**
+     * Get the long-lived writer, opening it if needed.
+     * 
+     * @param context the XWiki context
+     * @return the writer
+     */
+    private IndexWriter getWriter(XWikiContext context)
+    {
+        if (this.writer == null) {
+            IndexWriter indexWriter;
             RETRY: while (true) {
                 // We will retry after repairing if the index was
                 // corrupt
                 try {
                     try {
-                        writer = openWriter(false);
+                        indexWriter = openWriter(false);
                         break RETRY;
                     } catch (CorruptIndexException e) {
                         this.plugin.handleCorruptIndex(context);
@@ -226,41 +386,159 @@ private void updateIndex()
             }
 
             try {
-                int nb = 0;
-                while (!this.queue.isEmpty()) {
-                    AbstractIndexData data = this.queue.remove();
+                this.searcherManager = new SearcherManager(indexWriter, true, null);
+            } catch (IOException e) {
+                try {
+                    indexWriter.close();
+                } catch (IOException e1) {
+                    LOGGER.error("Failed to close writer.", e1);
+                }
 
-                    try {
-                        if (data.isDeleted()) {
-                            removeFromIndex(writer, data, context);
-                        } else {
-                            addToIndex(writer, data, context);
-                        }
+                LOGGER.error("Failed to open index searcher", e);
 
-                        ++nb;
-                    } catch (Throwable e) {
-                        LOGGER.error("error indexing document [{}]", data, e);
-                    }
+                throw new RuntimeException(e);
+            }
+
+            ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(this.indexingThreads, this.indexingThreads, BUILDER_KEEP_ALIVE, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new BuilderThreadFactory());
+            // Don't keep the builder threads (and their execution context) when nothing is modified
+            executor.allowCoreThreadTimeOut(true);
+            this.builders = executor;
+
+            this.writer = indexWriter;
+            this.lastCommit = System.currentTimeMillis();
+        }
+
+        return this.writer;
+    }
+
+    /**
+     * Make the searchers returned by {@link #acquireSearcher()} see the last modifications of the writer.
+     */
+    private void refreshSearcher()
+    {
+        if (this.searcherManager != null) {
+            try {
+                this.searcherManager.maybeRefresh();
+            } catch (IOException e) {
+                LOGGER.error("Failed to refresh the index searcher", e);
+            }
+        }
+    }
+
+    /**
+     * Commit the modifications of the writer.
+     * 
+     * @param force true to commit even if the indexing interval is not elapsed since the last commit
+     */
+    private void commitIndex(boolean force)
+    {
+        synchronized (this.writerLock) {
+            if (this.writer != null && this.uncommitted
+                && (force || System.currentTimeMillis() - this.lastCommit >= this.indexingInterval)) {
+                try {
+                    this.writer.commit();
+
+                    this.uncommitted = false;
+                    this.lastCommit = System.currentTimeMillis();
+                } catch (IOException e) {
+                    LOGGER.error("Failed to commit the index", e);
                 }
+            }
+        }
+    }
 
-                LOGGER.info("indexed [{}] docs to lucene index", nb);
-            } catch (Exception e) {
-                LOGGER.error("error indexing documents", e);
-            } finally {
+    /**
+     * Close the writer and the associated resources. All the modifications are committed.
+     */
+    private void closeWriter()
+    {
+        synchronized (this.writerLock) {
+            if (this.builders != null) {
+                this.builders.shutdown();
+                this.builders = null;
+            }
+
+            if (this.searcherManager != null) {
                 try {
-                    context.getWiki().getStore().cleanUp(context);
-                } catch (Exception e) {
-                    LOGGER.error("Failed to cleanup hibernate session in lucene index updater.", e);
+                    this.searcherManager.close();
+                } catch (IOException e) {
+                    LOGGER.error("Failed to close the index searcher.", e);
                 }
+                this.searcherManager = null;
+            }
 
+            if (this.writer != null) {
                 try {
-                    writer.close();
+                    this.writer.close();
                 } catch (IOException e) {
                     LOGGER.error("Failed to close writer.", e);
                 }
+                this.writer = null;
+                this.uncommitted = false;
+            }
+        }
+    }
+
+    /**
+     * Return a near real time searcher on the index maintained by this updater. The searcher must be released using
+     * {@link #releaseSearcher(IndexSearcher)}.
+     * 
+     * @return the searcher or {@code null} if the index is not currently opened by this updater
+     * @throws IOException when failing to get the searcher
+     * @since 5.4M1
+     */
+    public IndexSearcher acquireSearcher() throws IOException
+    {
+        SearcherManager manager = this.searcherManager;
+
+        if (manager != null) {
+            try {
+                return manager.acquire();
+            } catch (AlreadyClosedException e) {
+                // The updater has been stopped in the meantime
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Same as {@link #acquireSearcher()} but opens the long-lived writer first if it's not opened yet, for callers which
+     * are about to feed the indexing queue anyway.
+     * 
+     * @param context the XWiki context
+     * @return the searcher or {@code null} if this updater is stopped
+     * @throws IOException when failing to get the searcher
+     * @since 5.4M1
+     */
+    public IndexSearcher acquireSearcher(XWikiContext context) throws IOException
+    {
+        if (this.searcherManager == null) {
+            synchronized (this.writerLock) {
+                // Don't open a writer that nobody would close
+                if (!this.exit) {
+                    getWriter(context);
+                }
             }
+        }
 
-            this.plugin.openIndexReaders(context);
+        return acquireSearcher();
+    }
+
+    /**
+     * Release a searcher returned by {@link #acquireSearcher()}.
+     * 
+     * @param searcher the searcher to release, can be {@code null}
+     * @throws IOException when failing to release the searcher
+     * @since 5.4M1
+     */
+    public void releaseSearcher(IndexSearcher searcher) throws IOException
+    {
+        if (searcher != null) {
+            // Same as SearcherManager#release() but still working when the manager has been closed in the meantime
+            searcher.getIndexReader().decRef();
         }
     }
 
@@ -297,9 +575,7 @@ private void addToIndex(IndexWriter writer, AbstractIndexData data, XWikiContext
 
         // collecting all the fields for using up in search
         for (IndexableField field : luceneDoc.getFields()) {
-            if (!fields.contains(field.name())) {
-                fields.add(field.name());
-            }
+            ((CopyOnWriteArrayList<String>) fields).addIfAbsent(field.name());
         }
 
         writer.updateDocument(data.getTerm(), luceneDoc);
@@ -325,10 +601,50 @@ public void cleanIndex()
     {
         LOGGER.info("trying to clear index for rebuilding");
 
-        try {
-            openWriter(true).close();
-        } catch (IOException e) {
-            LOGGER.error("Failed to clean index", e);
+        synchronized (this.writerLock) {
+            try {
+                if (this.writer != null) {
+                    this.writer.deleteAll();
+                    this.uncommitted = true;
+                    commitIndex(true);
+                    refreshSearcher();
+                } else {
+                    openWriter(true).close();
+                }
+            } catch (IOException e) {
+                LOGGER.error("Failed to clean index", e);
+            }
+        }
+    }
+
+    /**
+     * Remove the entities of the passed wikis from the index.
+     * 
+     * @param wikis the identifiers of the wikis
+     * @since 5.4M1
+     */
+    public void cleanIndex(Collection<String> wikis)
+    {
+        synchronized (this.writerLock) {
+            try {
+                IndexWriter indexWriter = this.writer != null ? this.writer : openWriter(false);
+                try {
+                    for (String wiki : wikis) {
+                        indexWriter.deleteDocuments(new Term(IndexFields.DOCUMENT_WIKI, wiki));
+                    }
+                } finally {
+                    if (indexWriter != this.writer) {
+                        indexWriter.close();
+                    }
+                }
+
+                if (indexWriter == this.writer) {
+                    this.uncommitted = true;
+                    refreshSearcher();
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Failed to clean wiki index: {}", e.getMessage());
+            }
         }
     }
 
@@ -400,6 +716,12 @@ public List<Event> getEvents()
     @Override
     public void onEvent(Event event, Object source, Object data)
     {
+        if (event instanceof DocumentInvalidatedEvent) {
+            onDocumentInvalidated((XWikiDocument) source, data != null);
+
+            return;
+        }
+
         XWikiContext context = (XWikiContext) data;
 
         try {
@@ -420,6 +742,39 @@ public void onEvent(Event event, Object source, Object data)
         }
     }
 
+    /**
+     * Index again a document modified by another member of the cluster which only sent an invalidation.
+     * 
+     * @param invalidatedDocument the document, which only contains its reference and language
+     * @param exists false if the document has been deleted
+     */
+    private void onDocumentInvalidated(XWikiDocument invalidatedDocument, boolean exists)
+    {
+        XWikiContext context = getContext();
+
+        if (context == null) {
+            LOGGER.warn("No XWiki context available to index document [{}]",
+                invalidatedDocument.getDocumentReference());
+
+            return;
+        }
+
+        try {
+            if (exists) {
+                XWikiDocument document =
+                    context.getWiki().getDocument(invalidatedDocument.getDocumentReference(), context);
+                if (StringUtils.isNotEmpty(invalidatedDocument.getLanguage())) {
+                    document = document.getTranslatedDocument(invalidatedDocument.getLanguage(), context);
+                }
+                queueDocument(document, context, false);
+            } else {
+                queueDocument(invalidatedDocument, context, true);
+            }
+        } catch (Exception e) {
+            LOGGER.error("Failed to index invalidated document [{}]", invalidatedDocument.getDocumentReference(), e);
+        }
+    }
+
     /**
      * @return the number of documents in the queue.
      */
@@ -435,15 +790,21 @@ public long getLuceneDocCount()
     {
         int n = -1;
 
-        try {
-            IndexWriter w = openWriter(false);
+        synchronized (this.writerLock) {
             try {
-                n = w.numDocs();
-            } finally {
-                w.close();
+                if (this.writer != null) {
+                    n = this.writer.numDocs();
+                } else {
+                    IndexWriter w = openWriter(false);
+                    try {
+                        n = w.numDocs();
+                    } finally {
+                        w.close();
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.error("Failed to get the number of documents in Lucene index writer", e);
             }
-        } catch (IOException e) {
-            LOGGER.error("Failed to get the number of documents in Lucene index writer", e);
         }
 
         return n;
@@ -453,4 +814,83 @@ public int getMaxQueueSize()
     {
         return this.maxQueueSize;
     }
+
+    /**
+     * Index or remove one entity in a builder thread.
+     * 
+     * @version $Id$
+     */
+    private class IndexTask implements Callable<Boolean>
+    {
+        private final IndexWriter indexWriter;
+
+        private final AbstractIndexData data;
+
+        IndexTask(IndexWriter indexWriter, AbstractIndexData data)
+        {
+            this.indexWriter = indexWriter;
+            this.data = data;
+        }
+
+        @Override
+        public Boolean call()
+        {
+            XWikiContext context = getContext();
+
+            try {
+                if (this.data.isDeleted()) {
+                    removeFromIndex(this.indexWriter, this.data, context);
+                } else {
+                    addToIndex(this.indexWriter, this.data, context);
+                }
+
+                return true;
+            } catch (Throwable e) {
+                LOGGER.error("error indexing document [{}]", this.data, e);
+
+                return false;
+            } finally {
+                try {
+                    context.getWiki().getStore().cleanUp(context);
+                } catch (Exception e) {
+                    LOGGER.error("Failed to cleanup hibernate session in lucene index updater.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create the builder threads, each one with its own execution and XWiki context.
+     * 
+     * @version $Id$
+     */
+    private class BuilderThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable)
+        {
+            Thread thread = new Thread(new AbstractXWikiRunnable()
+            {
+                @Override
+                protected void declareProperties(ExecutionContext executionContext)
+                {
+                    XWikiContext context = xwikiContext.clone();
+                    context.setDatabase(context.getMainXWiki());
+                    context.declareInExecutionContext(executionContext);
+                }
+
+                @Override
+                protected void runInternal()
+                {
+                    runnable.run();
+                }
+            }, "Lucene Index Builder " + this.count.incrementAndGet());
+            // The JVM should be allowed to shutdown while indexing
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    }
 }
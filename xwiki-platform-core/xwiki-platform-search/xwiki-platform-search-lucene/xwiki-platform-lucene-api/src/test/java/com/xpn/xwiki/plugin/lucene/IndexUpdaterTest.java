@@ -276,6 +276,57 @@ public void testIndexUpdater() throws Exception
         assertEquals(1, results.getTotalHitcount());
     }
 
+    public void testNearRealTimeSearch() throws Exception
+    {
+        File f = new File(INDEXDIR);
+        if (!f.exists()) {
+            f.mkdirs();
+        }
+        Directory directory = FSDirectory.open(f);
+
+        TestLucenePlugin plugin = new TestLucenePlugin("Monkey", "Monkey", getContext());
+
+        // Use a long commit interval to make sure the search does not rely on the index being committed.
+        IndexUpdater indexUpdater = new TestIndexUpdater(directory, 3600000, 1000, plugin, getContext());
+        IndexRebuilder indexRebuilder = new TestIndexRebuilder(indexUpdater, getContext());
+
+        indexUpdater.cleanIndex();
+
+        plugin.init(indexUpdater, indexRebuilder, getContext());
+
+        indexUpdater.queueDocument(this.loremIpsum.clone(), getContext(), false);
+
+        Query q = new TermQuery(new Term(IndexFields.DOCUMENT_ID, "wiki:Lorem.Ipsum.default"));
+        int hits = 0;
+        for (int waitAttempts = 50; hits == 0 && waitAttempts > 0; --waitAttempts) {
+            Thread.sleep(100);
+
+            IndexSearcher searcher = indexUpdater.acquireSearcher();
+            if (searcher != null) {
+                try {
+                    hits = searcher.search(q, null, 10).totalHits;
+                } finally {
+                    indexUpdater.releaseSearcher(searcher);
+                }
+            }
+        }
+
+        assertEquals(1, hits);
+
+        // The plugin searches the internal index through the near real time searcher, several times to make sure the
+        // readers are not closed by the first search
+        for (int i = 0; i < 2; ++i) {
+            SearchResults results = plugin.getSearchResults("Ipsum", (String) null, null, null, getContext());
+            assertEquals(1, results.getTotalHitcount());
+        }
+
+        indexUpdater.doExit();
+        plugin.getIndexUpdatedThread().join();
+
+        // The internal index is read directly once the updater is stopped
+        assertEquals(1, plugin.getSearchResults("Ipsum", (String) null, null, null, getContext()).getTotalHitcount());
+    }
+
     public void testLock() throws IOException
     {
         Directory directory;
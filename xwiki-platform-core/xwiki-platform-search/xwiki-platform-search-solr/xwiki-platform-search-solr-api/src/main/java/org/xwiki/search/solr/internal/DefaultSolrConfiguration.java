@@ -114,6 +114,26 @@ public class DefaultSolrConfiguration implements SolrConfiguration
      */
     public static final int SOLR_INDEXER_QUEUE_CAPACITY_DEFAULT = 100000;
 
+    /**
+     * The name of the configuration property containing the number of metadata extraction threads.
+     */
+    public static final String SOLR_INDEXER_THREADS_PROPERTY = "solr.indexer.threads";
+
+    /**
+     * The default number of metadata extraction threads.
+     */
+    public static final int SOLR_INDEXER_THREADS_DEFAULT = 2;
+
+    /**
+     * The name of the configuration property containing the maximum delay before committing the batch.
+     */
+    public static final String SOLR_INDEXER_BATCH_MAXDELAY_PROPERTY = "solr.indexer.batch.maxDelay";
+
+    /**
+     * The default maximum delay (in milliseconds) before committing the batch.
+     */
+    public static final int SOLR_INDEXER_BATCH_MAXDELAY_DEFAULT = 5000;
+
     /**
      * The Solr configuration source.
      */
@@ -181,4 +201,17 @@ public int getIndexerQueueCapacity()
         return this.configuration
             .getProperty(SOLR_INDEXER_QUEUE_CAPACITY_PROPERTY, SOLR_INDEXER_QUEUE_CAPACITY_DEFAULT);
     }
+
+    @Override
+    public int getIndexerThreads()
+    {
+        return this.configuration.getProperty(SOLR_INDEXER_THREADS_PROPERTY, SOLR_INDEXER_THREADS_DEFAULT);
+    }
+
+    @Override
+    public int getIndexerBatchMaxDelay()
+    {
+        return this.configuration
+            .getProperty(SOLR_INDEXER_BATCH_MAXDELAY_PROPERTY, SOLR_INDEXER_BATCH_MAXDELAY_DEFAULT);
+    }
 }
@@ -19,17 +19,28 @@
  */
 package org.xwiki.search.solr.internal;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
 import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.solr.common.SolrInputDocument;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.manager.ComponentLifecycleException;
@@ -59,7 +70,8 @@
  * <p/>
  * This implementation does not directly process the given leaf-references, but adds them to a processing queue, in the
  * order they were received. The {@link Runnable} part of this implementation is the one that sequentially reads and
- * processes the queue.
+ * processes the queue. The metadata of the entities to index is extracted in advance by a pool of threads, but the
+ * resulting documents are still sent to the Solr server in the order of the queue.
  * 
  * @version $Id$
  * @since 5.1M2
@@ -90,6 +102,11 @@ public class DefaultSolrIndexer extends AbstractXWikiRunnable implements SolrInd
          */
         public IndexOperation operation;
 
+        /**
+         * The document being extracted from the entity to index.
+         */
+        public Future<LengthSolrInputDocument> document;
+
         /**
          * @param indexReference the reference of the entity to index.
          * @param operation the indexing operation to perform.
@@ -227,6 +244,54 @@ public void runInternal()
         }
     }
 
+    /**
+     * Extract the metadata of an entity to index.
+     * 
+     * @version $Id$
+     */
+    private class MetadataExtraction implements Callable<LengthSolrInputDocument>
+    {
+        /**
+         * The reference of the entity to index.
+         */
+        private final EntityReference reference;
+
+        /**
+         * @param reference the reference of the entity to index.
+         */
+        public MetadataExtraction(EntityReference reference)
+        {
+            this.reference = reference;
+        }
+
+        @Override
+        public LengthSolrInputDocument call() throws Exception
+        {
+            return getSolrDocument(this.reference);
+        }
+    }
+
+    /**
+     * Create threads with an initialized XWiki execution context, since the metadata extractors need one.
+     * 
+     * @version $Id$
+     */
+    private static class ExtractionThreadFactory implements ThreadFactory
+    {
+        @Override
+        public Thread newThread(final Runnable runnable)
+        {
+            return new Thread(new AbstractXWikiRunnable()
+            {
+                @Override
+                protected void runInternal()
+                {
+                    runnable.run();
+                }
+            });
+        }
+    }
+
     /**
      * Stop resolver thread.
      */
@@ -285,6 +350,31 @@ public void runInternal()
     // TODO: use JobManager instead when it support several threads
     private ExecutorService indexerJobs;
 
+    /**
+     * The threads extracting the metadata of the entities to index.
+     */
+    private ExecutorService extractors;
+
+    /**
+     * The maximum number of index queue entries being processed at the same time by the extraction threads.
+     */
+    private int lookAhead;
+
+    /**
+     * The number of entities added to the index.
+     */
+    private final AtomicLong indexedCount = new AtomicLong();
+
+    /**
+     * The number of delete operations applied to the index.
+     */
+    private final AtomicLong deletedCount = new AtomicLong();
+
+    /**
+     * The time (in nanoseconds) spent processing index queue entries.
+     */
+    private final AtomicLong busyTime = new AtomicLong();
+
     /**
      * Thread in which the indexUpdater will be executed.
      */
@@ -307,6 +397,15 @@ public void initialize() throws InitializationException
         this.resolveQueue = new LinkedBlockingQueue<ResolveQueueEntry>();
         this.indexQueue = new LinkedBlockingQueue<IndexQueueEntry>(this.configuration.getIndexerQueueCapacity());
 
+        // Setup the metadata extraction threads. Keep them a bit ahead of the index thread so that they are never idle.
+        int threads = Math.max(this.configuration.getIndexerThreads(), 1);
+        BasicThreadFactory extractionFactory =
+            new BasicThreadFactory.Builder().wrappedFactory(new ExtractionThreadFactory())
+                .namingPattern("XWiki Solr extraction thread %d").daemon(true).priority(Thread.NORM_PRIORITY - 1)
+                .build();
+        this.extractors = Executors.newFixedThreadPool(threads, extractionFactory);
+        this.lookAhead = threads * 2;
+
         // Launch the resolve thread
         this.resolveThread = new Thread(new Resolver());
         this.resolveThread.setName("XWiki Solr resolve thread");
@@ -371,9 +470,14 @@ protected void runInternal()
             }
 
             // Add to the batch until either the batch size is achieved or the queue gets emptied
-            processBatch(queueEntry);
+            if (!processBatch(queueEntry)) {
+                break;
+            }
         }
 
+        // Stop the metadata extraction threads
+        this.extractors.shutdownNow();
+
         this.logger.debug("Stop SOLR indexer thread");
     }
 
@@ -382,59 +486,155 @@ protected void runInternal()
      * batch when it finishes to process it.
      * 
      * @param queueEntry the batch to process
+     * @return false if the index thread should stop
      */
-    private void processBatch(IndexQueueEntry queueEntry)
+    private boolean processBatch(IndexQueueEntry queueEntry)
     {
+        long start = System.nanoTime();
+
         SolrInstance solrInstance = this.solrInstanceProvider.get();
 
+        List<SolrInputDocument> documents = new ArrayList<SolrInputDocument>();
         int length = 0;
         int size = 0;
+        long uncommittedSince = System.currentTimeMillis();
+
+        boolean stop = false;
+        Deque<IndexQueueEntry> pendingEntries = new ArrayDeque<IndexQueueEntry>(this.lookAhead);
+        pendingEntries.add(startExtraction(queueEntry));
+
+        while (!pendingEntries.isEmpty()) {
+            // Look ahead in the queue so that the extraction threads are kept busy
+            while (pendingEntries.size() < this.lookAhead) {
+                IndexQueueEntry nextEntry = this.indexQueue.poll();
+                if (nextEntry == null) {
+                    break;
+                } else if (nextEntry == INDEX_QUEUE_ENTRY_STOP) {
+                    // Forget about the entries that are still waiting to be processed.
+                    stop = true;
+                    cancelExtractions(pendingEntries);
+                    break;
+                }
+                pendingEntries.add(startExtraction(nextEntry));
+            }
 
-        for (IndexQueueEntry batchEntry = queueEntry; batchEntry != null; batchEntry = this.indexQueue.poll()) {
-            IndexOperation operation = batchEntry.operation;
+            IndexQueueEntry batchEntry = pendingEntries.poll();
+            if (batchEntry == null) {
+                break;
+            }
 
             // For the current contiguous operations queue, group the changes
             try {
-                if (IndexOperation.INDEX.equals(operation)) {
-                    LengthSolrInputDocument solrDocument = getSolrDocument(batchEntry.reference);
+                if (IndexOperation.INDEX.equals(batchEntry.operation)) {
+                    LengthSolrInputDocument solrDocument = batchEntry.document.get();
                     if (solrDocument != null) {
-                        solrInstance.add(solrDocument);
+                        documents.add(solrDocument);
                         length += solrDocument.getLength();
                         ++size;
                     }
-                } else if (IndexOperation.DELETE.equals(operation)) {
+                } else if (IndexOperation.DELETE.equals(batchEntry.operation)) {
+                    // Make sure the operations are applied in the order of the queue
+                    send(documents);
+
                     if (batchEntry.reference == null) {
                         solrInstance.deleteByQuery(batchEntry.deleteQuery);
                     } else {
                         solrInstance.delete(this.solrRefereceResolver.getId(batchEntry.reference));
                     }
 
+                    this.deletedCount.incrementAndGet();
                     ++size;
                 }
+            } catch (ExecutionException e) {
+                this.logger.error("Failed to process entry [{}]", batchEntry, e.getCause());
+            } catch (InterruptedException e) {
+                this.logger.warn("The SOLR index thread has been interrupted", e);
+
+                stop = true;
+                cancelExtractions(pendingEntries);
             } catch (Throwable e) {
                 this.logger.error("Failed to process entry [{}]", batchEntry, e);
             }
 
             // Commit the index changes so that they become available to queries. This is a costly operation and that is
             // the reason why we perform it at the end of the batch.
-            if (shouldCommit(length, size)) {
-                commit();
+            if (shouldCommit(length, size, uncommittedSince)) {
+                commit(documents);
                 length = 0;
                 size = 0;
+                uncommittedSince = System.currentTimeMillis();
             }
         }
 
         // Commit what's left
         if (size > 0) {
-            commit();
+            commit(documents);
         }
+
+        this.busyTime.addAndGet(System.nanoTime() - start);
+
+        return !stop;
     }
 
     /**
-     * Commit.
+     * Start extracting the metadata of the entity to index in the extraction threads.
+     * 
+     * @param queueEntry the index queue entry
+     * @return the passed entry
      */
-    private void commit()
+    private IndexQueueEntry startExtraction(IndexQueueEntry queueEntry)
     {
+        if (IndexOperation.INDEX.equals(queueEntry.operation)) {
+            queueEntry.document = this.extractors.submit(new MetadataExtraction(queueEntry.reference));
+        }
+
+        return queueEntry;
+    }
+
+    /**
+     * Cancel the metadata extractions of the passed entries and remove them.
+     * 
+     * @param queueEntries the index queue entries to forget
+     */
+    private void cancelExtractions(Deque<IndexQueueEntry> queueEntries)
+    {
+        for (IndexQueueEntry queueEntry : queueEntries) {
+            if (queueEntry.document != null) {
+                queueEntry.document.cancel(true);
+            }
+        }
+
+        queueEntries.clear();
+    }
+
+    /**
+     * Send the pending documents to the Solr server.
+     * 
+     * @param documents the documents to send, the list is emptied
+     */
+    private void send(List<SolrInputDocument> documents)
+    {
+        if (!documents.isEmpty()) {
+            try {
+                this.solrInstanceProvider.get().add(documents);
+                this.indexedCount.addAndGet(documents.size());
+            } catch (Exception e) {
+                this.logger.error("Failed to send [{}] documents to the Solr server.", documents.size(), e);
+            }
+
+            documents.clear();
+        }
+    }
+
+    /**
+     * Send the pending documents and commit.
+     * 
+     * @param documents the documents to send before the commit, the list is emptied
+     */
+    private void commit(List<SolrInputDocument> documents)
+    {
+        send(documents);
+
         SolrInstance solrInstance = this.solrInstanceProvider.get();
 
         try {
@@ -456,9 +656,10 @@ private void commit()
      * 
      * @param length the current length
      * @param size the current size
+     * @param uncommittedSince the date (in milliseconds) of the previous commit
      * @return true if the batch should be sent
      */
-    private boolean shouldCommit(int length, int size)
+    private boolean shouldCommit(int length, int size, long uncommittedSince)
     {
         // If the length is above the configured maximum
         if (length >= this.configuration.getIndexerBatchMaxLengh()) {
@@ -466,7 +667,13 @@ private boolean shouldCommit(int length, int size)
         }
 
         // If the size is above the configured maximum
-        return size >= this.configuration.getIndexerBatchSize();
+        if (size >= this.configuration.getIndexerBatchSize()) {
+            return true;
+        }
+
+        // If the changes are waiting for too long
+        return size > 0
+            && System.currentTimeMillis() - uncommittedSince >= this.configuration.getIndexerBatchMaxDelay();
     }
 
     /**
@@ -538,6 +745,26 @@ public int getQueueSize()
         return this.indexQueue.size() + this.resolveQueue.size();
     }
 
+    @Override
+    public long getIndexedCount()
+    {
+        return this.indexedCount.get();
+    }
+
+    @Override
+    public long getDeletedCount()
+    {
+        return this.deletedCount.get();
+    }
+
+    @Override
+    public double getIndexRate()
+    {
+        long time = this.busyTime.get();
+
+        return time > 0 ? (double) this.indexedCount.get() * TimeUnit.SECONDS.toNanos(1) / time : 0;
+    }
+
     @Override
     public IndexerJob startIndex(IndexerRequest request) throws SolrIndexerException
     {
@@ -46,6 +46,7 @@
 import com.xpn.xwiki.internal.event.AttachmentAddedEvent;
 import com.xpn.xwiki.internal.event.AttachmentDeletedEvent;
 import com.xpn.xwiki.internal.event.AttachmentUpdatedEvent;
+import com.xpn.xwiki.internal.event.DocumentInvalidatedEvent;
 import com.xpn.xwiki.internal.event.EntityEvent;
 import com.xpn.xwiki.internal.event.XObjectAddedEvent;
 import com.xpn.xwiki.internal.event.XObjectDeletedEvent;
@@ -72,7 +73,7 @@ public class SolrIndexEventListener implements EventListener
         new DocumentCreatedEvent(), new DocumentDeletedEvent(), new AttachmentAddedEvent(),
         new AttachmentDeletedEvent(), new AttachmentUpdatedEvent(), new XObjectAddedEvent(), new XObjectDeletedEvent(),
         new XObjectUpdatedEvent(), new XObjectPropertyAddedEvent(), new XObjectPropertyDeletedEvent(),
-        new XObjectPropertyUpdatedEvent(), new WikiDeletedEvent());
+        new XObjectPropertyUpdatedEvent(), new WikiDeletedEvent(), new DocumentInvalidatedEvent());
 
     /**
      * Logging framework.
@@ -151,6 +152,16 @@ public void onEvent(Event event, Object source, Object data)
                 EntityEvent entityEvent = (EntityEvent) event;
 
                 this.solrIndexer.get().delete(entityEvent.getReference(), false);
+            } else if (event instanceof DocumentInvalidatedEvent) {
+                // Modified by another member of the cluster which only sent an invalidation: the modified objects and
+                // attachments are not known so the whole document is indexed again
+                XWikiDocument document = (XWikiDocument) source;
+
+                if (data != null) {
+                    this.solrIndexer.get().index(document.getDocumentReferenceWithLocale(), true);
+                } else {
+                    this.solrIndexer.get().delete(document.getDocumentReferenceWithLocale(), true);
+                }
             } else if (event instanceof WikiDeletedEvent) {
                 String wikiName = (String) source;
                 WikiReference wikiReference = new WikiReference(wikiName);
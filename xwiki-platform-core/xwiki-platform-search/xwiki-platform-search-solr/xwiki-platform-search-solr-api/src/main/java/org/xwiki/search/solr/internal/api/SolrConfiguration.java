@@ -75,4 +75,16 @@
      * @since 5.1M2
      */
     int getIndexerQueueCapacity();
+
+    /**
+     * @return the number of threads used to extract the metadata of the entities to index
+     * @since 5.4M1
+     */
+    int getIndexerThreads();
+
+    /**
+     * @return the maximum time in milliseconds the index changes can stay uncommitted
+     * @since 5.4M1
+     */
+    int getIndexerBatchMaxDelay();
 }
@@ -62,6 +62,25 @@
      */
     int getQueueSize();
 
+    /**
+     * @return the number of entities added to the index since the indexer was started
+     * @since 5.4M1
+     */
+    long getIndexedCount();
+
+    /**
+     * @return the number of delete operations applied to the index since the indexer was started
+     * @since 5.4M1
+     */
+    long getDeletedCount();
+
+    /**
+     * @return the average number of entities added to the index per second, not counting the time during which the
+     *         indexer was waiting for something to index
+     * @since 5.4M1
+     */
+    double getIndexRate();
+
     /**
      * Start an indexing with specific criteria.
      * 
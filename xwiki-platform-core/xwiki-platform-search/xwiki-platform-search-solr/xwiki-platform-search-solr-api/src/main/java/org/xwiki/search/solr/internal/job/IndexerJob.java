@@ -19,7 +19,12 @@
  */
 package org.xwiki.search.solr.internal.job;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -27,8 +32,8 @@
 
 import org.apache.commons.lang3.LocaleUtils;
 import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrQuery.ORDER;
 import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
@@ -69,6 +74,21 @@ public class IndexerJob extends AbstractJob<IndexerRequest, DefaultJobStatus<Ind
      */
     public static final String JOBTYPE = "solr.indexer";
 
+    /**
+     * The number of documents compared at once between the database and the Solr index.
+     */
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * The Solr OR operator.
+     */
+    private static final String SOLR_OR = " OR ";
+
+    /**
+     * The HQL OR operator.
+     */
+    private static final String HQL_OR = " or ";
+
     /**
      * Used to resolve Solr document id from reference.
      */
@@ -142,12 +162,17 @@ protected void runInternal() throws Exception
 
     /**
      * Remove Solr documents not in the database anymore.
+     * <p>
+     * The Solr documents are listed by batches (ordered by id) and the existence of each batch is checked with a single
+     * database query.
      * 
      * @throws SolrIndexerException when failing to clean the Solr index
      * @throws SolrServerException when failing to clean the Solr index
      * @throws IllegalArgumentException when failing to clean the Solr index
+     * @throws QueryException when failing to clean the Solr index
      */
-    private void removeMissing() throws SolrIndexerException, SolrServerException, IllegalArgumentException
+    private void removeMissing() throws SolrIndexerException, SolrServerException, IllegalArgumentException,
+        QueryException
     {
         this.logger.info("Remove Solr documents not in the database anymore");
 
@@ -155,36 +180,106 @@ private void removeMissing() throws SolrIndexerException, SolrServerException, I
 
         // Clean existing index
         SolrQuery solrQuery = new SolrQuery(this.solrResolver.getQuery(getRequest().getRootReference()));
-        solrQuery.setFields(FieldUtils.NAME, FieldUtils.SPACE, FieldUtils.WIKI, FieldUtils.DOCUMENT_LOCALE);
+        solrQuery.setFields(FieldUtils.ID, FieldUtils.NAME, FieldUtils.SPACE, FieldUtils.WIKI,
+            FieldUtils.DOCUMENT_LOCALE);
         solrQuery.addFilterQuery(FieldUtils.TYPE + ':' + EntityType.DOCUMENT.name());
+        solrQuery.addSortField(FieldUtils.ID, ORDER.asc);
+        solrQuery.setRows(BATCH_SIZE);
 
-        // TODO: be nicer with the memory when there is a lot of indexed documents and do smaller batches or stream the
-        // results
-        QueryResponse response = solrInstance.query(solrQuery);
-
-        SolrDocumentList results = response.getResults();
+        SolrDocumentList results = solrInstance.query(solrQuery).getResults();
 
         notifyPushLevelProgress((int) results.getNumFound());
 
-        XWikiContext xcontext = xcontextProvider.get();
-
         try {
-            for (SolrDocument solrDocument : results) {
-                DocumentReference reference =
-                    createDocumentReference((String) solrDocument.get(FieldUtils.WIKI),
-                        (String) solrDocument.get(FieldUtils.SPACE), (String) solrDocument.get(FieldUtils.NAME),
-                        (String) solrDocument.get(FieldUtils.DOCUMENT_LOCALE));
-                if (!xcontext.getWiki().exists(reference, xcontext)) {
+            while (!results.isEmpty()) {
+                removeMissing(results);
+
+                // Get the next batch. The Solr documents are listed in the order of their identifiers, starting after
+                // the last identifier of the previous batch, so that the deleted documents don't affect the listing.
+                String lastId = (String) results.get(results.size() - 1).get(FieldUtils.ID);
+                SolrQuery nextQuery = solrQuery.getCopy();
+                nextQuery.addFilterQuery(FieldUtils.ID + ":{" + ClientUtils.escapeQueryChars(lastId) + " TO *]");
+
+                results = solrInstance.query(nextQuery).getResults();
+            }
+        } finally {
+            notifyPopLevelProgress();
+        }
+    }
+
+    /**
+     * Remove the passed Solr documents if they are not in the database anymore.
+     * 
+     * @param solrDocuments the batch of Solr documents to check
+     * @throws QueryException when failing to check which documents exist in the database
+     */
+    private void removeMissing(SolrDocumentList solrDocuments) throws QueryException
+    {
+        // Group the document references by wiki
+        Map<String, List<DocumentReference>> referencesByWiki = new HashMap<String, List<DocumentReference>>();
+        for (SolrDocument solrDocument : solrDocuments) {
+            String wiki = (String) solrDocument.get(FieldUtils.WIKI);
+            DocumentReference reference =
+                createDocumentReference(wiki, (String) solrDocument.get(FieldUtils.SPACE),
+                    (String) solrDocument.get(FieldUtils.NAME),
+                    (String) solrDocument.get(FieldUtils.DOCUMENT_LOCALE));
+
+            List<DocumentReference> references = referencesByWiki.get(wiki);
+            if (references == null) {
+                references = new ArrayList<DocumentReference>();
+                referencesByWiki.put(wiki, references);
+            }
+            references.add(reference);
+        }
+
+        for (Map.Entry<String, List<DocumentReference>> entry : referencesByWiki.entrySet()) {
+            Set<DocumentReference> existingReferences = getExistingDocuments(entry.getKey(), entry.getValue());
+
+            for (DocumentReference reference : entry.getValue()) {
+                if (!existingReferences.contains(reference)) {
                     this.indexer.delete(reference, true);
                 }
 
                 notifyStepPropress();
             }
-        } finally {
-            notifyPopLevelProgress();
         }
     }
 
+    /**
+     * @param wiki the wiki where the documents are located
+     * @param references the references of the documents to check
+     * @return the passed references which exist in the database
+     * @throws QueryException when failing to query the database
+     */
+    private Set<DocumentReference> getExistingDocuments(String wiki, List<DocumentReference> references)
+        throws QueryException
+    {
+        StringBuilder statement =
+            new StringBuilder("select doc.space, doc.name, doc.language from XWikiDocument doc where ");
+        for (int i = 0; i < references.size(); ++i) {
+            if (i > 0) {
+                statement.append(HQL_OR);
+            }
+            statement.append("(doc.space = :space").append(i).append(" and doc.name = :name").append(i).append(')');
+        }
+
+        Query query = this.queryManager.createQuery(statement.toString(), Query.HQL);
+        query.setWiki(wiki);
+        for (int i = 0; i < references.size(); ++i) {
+            DocumentReference reference = references.get(i);
+            query.bindValue("space" + i, reference.getLastSpaceReference().getName());
+            query.bindValue("name" + i, reference.getName());
+        }
+
+        Set<DocumentReference> existingReferences = new HashSet<DocumentReference>();
+        for (Object[] document : query.<Object[]> execute()) {
+            existingReferences.add(createDocumentReference(wiki, (String) document[0], (String) document[1],
+                (String) document[2]));
+        }
+
+        return existingReferences;
+    }
+
     /**
      * @param wiki the wiki part of the reference
      * @param space the space part of the reference
@@ -244,6 +339,10 @@ private void addMissing() throws QueryException, XWikiException, SolrIndexerExce
 
     /**
      * Index document (versions) not yet indexed in the passed wiki.
+     * <p>
+     * The documents are listed from the database by batches (ordered by id) and each batch is compared to the Solr index
+     * with a single Solr query, so that only the documents missing from the index or indexed with a different version
+     * are sent to the indexer.
      * 
      * @param wiki the wiki where to search for documents to index
      * @throws QueryException when failing to index new documents
@@ -270,16 +369,55 @@ private void addMissing(String wiki) throws QueryException, SolrIndexerException
             documentReference = null;
         }
 
-        String q = "select doc.name, doc.space, doc.language, doc.version from Document doc";
+        String where = "";
         if (spaceReference != null) {
-            q += " where doc.space=:space";
+            where += " and doc.space=:space";
         }
         if (documentReference != null) {
-            q += ", doc.name=:name";
+            where += " and doc.name=:name";
         }
 
-        // TODO: be nicer with the memory when there is a lot of documents and do smaller batches
-        Query query = this.queryManager.createQuery(q, Query.XWQL);
+        Query countQuery = createDocumentQuery("select count(doc.id) from XWikiDocument doc where 1=1" + where, wiki,
+            spaceReference, documentReference);
+        notifyPushLevelProgress(((Number) countQuery.execute().get(0)).intValue());
+
+        try {
+            Long lastId = null;
+            List<Object[]> documents;
+            do {
+                String statement = "select doc.name, doc.space, doc.language, doc.version, doc.id from XWikiDocument doc"
+                    + " where " + (lastId != null ? "doc.id > :lastId" : "1=1") + where + " order by doc.id";
+                Query query = createDocumentQuery(statement, wiki, spaceReference, documentReference);
+                if (lastId != null) {
+                    query.bindValue("lastId", lastId);
+                }
+                query.setLimit(BATCH_SIZE);
+
+                documents = query.<Object[]> execute();
+
+                if (!documents.isEmpty()) {
+                    addMissing(wiki, documents, solrInstance);
+
+                    lastId = (Long) documents.get(documents.size() - 1)[4];
+                }
+            } while (documents.size() == BATCH_SIZE);
+        } finally {
+            notifyPopLevelProgress();
+        }
+    }
+
+    /**
+     * @param statement the HQL statement
+     * @param wiki the wiki where to execute the query
+     * @param spaceReference the space to filter, null if none
+     * @param documentReference the document to filter, null if none
+     * @return the query
+     * @throws QueryException when failing to create the query
+     */
+    private Query createDocumentQuery(String statement, String wiki, EntityReference spaceReference,
+        EntityReference documentReference) throws QueryException
+    {
+        Query query = this.queryManager.createQuery(statement, Query.HQL);
         query.setWiki(wiki);
         if (spaceReference != null) {
             query.bindValue("space", spaceReference.getName());
@@ -288,49 +426,63 @@ private void addMissing(String wiki) throws QueryException, SolrIndexerException
             query.bindValue("name", documentReference.getName());
         }
 
-        List<Object[]> documents = query.<Object[]> execute();
-
-        notifyPushLevelProgress(documents.size());
-
-        try {
-            for (Object[] document : documents) {
-                addMissing(wiki, document, solrInstance);
-
-                notifyStepPropress();
-            }
-        } finally {
-            notifyPopLevelProgress();
-        }
+        return query;
     }
 
     /**
-     * Index document (versions) not yet indexed in the passed wiki.
+     * Index the passed documents (versions) if not yet indexed.
      * 
      * @param wiki the wiki where to search for documents to index
-     * @param document the document found
-     * @param solrInstance used to start indexing of a document
+     * @param documents the batch of documents found in the database
+     * @param solrInstance used to compare with the indexed documents
      * @throws SolrIndexerException when failing to index new documents
      * @throws IllegalArgumentException when failing to index new documents
      * @throws SolrServerException when failing to index new documents
      */
-    private void addMissing(String wiki, Object[] document, SolrInstance solrInstance) throws SolrIndexerException,
-        IllegalArgumentException, SolrServerException
+    private void addMissing(String wiki, List<Object[]> documents, SolrInstance solrInstance)
+        throws SolrIndexerException, IllegalArgumentException, SolrServerException
     {
-        String name = (String) document[0];
-        String space = (String) document[1];
-        String localeString = (String) document[2];
-        String version = (String) document[3];
-
-        DocumentReference reference = createDocumentReference(wiki, space, name, localeString);
+        Map<String, DocumentReference> references = new HashMap<String, DocumentReference>();
+        Map<String, String> versions = new HashMap<String, String>();
+        StringBuilder ids = new StringBuilder();
+        for (Object[] document : documents) {
+            String name = (String) document[0];
+            String space = (String) document[1];
+            String localeString = (String) document[2];
+            String version = (String) document[3];
+
+            DocumentReference reference = createDocumentReference(wiki, space, name, localeString);
+            String id = this.solrResolver.getId(reference);
+
+            references.put(id, reference);
+            versions.put(id, version);
+
+            if (ids.length() > 0) {
+                ids.append(SOLR_OR);
+            }
+            ids.append(ClientUtils.escapeQueryChars(id));
+        }
 
-        SolrQuery solrQuery =
-            new SolrQuery(FieldUtils.ID + ':' + ClientUtils.escapeQueryChars(this.solrResolver.getId(reference)));
-        solrQuery.addFilterQuery(FieldUtils.VERSION + ':' + ClientUtils.escapeQueryChars(version));
-        solrQuery.setFields(FieldUtils.ID);
+        // Get the indexed version of all the documents of the batch at once
+        SolrQuery solrQuery = new SolrQuery(FieldUtils.ID + ":(" + ids + ')');
+        solrQuery.setFields(FieldUtils.ID, FieldUtils.VERSION);
+        solrQuery.setRows(documents.size());
+
+        for (SolrDocument solrDocument : solrInstance.query(solrQuery).getResults()) {
+            String id = (String) solrDocument.get(FieldUtils.ID);
+            String version = versions.get(id);
+            if (version != null && version.equals(solrDocument.get(FieldUtils.VERSION))) {
+                // Already indexed
+                references.remove(id);
+            }
+        }
 
-        QueryResponse response = solrInstance.query(solrQuery);
-        if (response.getResults().getNumFound() == 0) {
+        for (DocumentReference reference : references.values()) {
             this.indexer.index(reference, true);
         }
+
+        for (int i = 0; i < documents.size(); ++i) {
+            notifyStepPropress();
+        }
     }
 }
@@ -173,6 +173,34 @@ public int getQueueSize()
         return this.solrIndexer.getQueueSize();
     }
 
+    /**
+     * @return the number of entities added to the index since the indexer was started
+     * @since 5.4M1
+     */
+    public long getIndexedCount()
+    {
+        return this.solrIndexer.getIndexedCount();
+    }
+
+    /**
+     * @return the number of delete operations applied to the index since the indexer was started
+     * @since 5.4M1
+     */
+    public long getDeletedCount()
+    {
+        return this.solrIndexer.getDeletedCount();
+    }
+
+    /**
+     * @return the average number of entities added to the index per second, not counting the time during which the
+     *         indexer was idle
+     * @since 5.4M1
+     */
+    public double getIndexRate()
+    {
+        return this.solrIndexer.getIndexRate();
+    }
+
     /**
      * Log exception and store the exception in the context.
      * 
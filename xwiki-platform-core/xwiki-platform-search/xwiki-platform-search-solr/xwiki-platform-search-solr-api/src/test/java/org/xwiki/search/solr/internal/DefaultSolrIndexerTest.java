@@ -19,21 +19,50 @@
  */
 package org.xwiki.search.solr.internal;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
+import javax.inject.Provider;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.context.ExecutionContextManager;
 import org.xwiki.context.internal.DefaultExecution;
 import org.xwiki.model.internal.DefaultModelConfiguration;
 import org.xwiki.model.internal.DefaultModelContext;
 import org.xwiki.model.internal.reference.DefaultEntityReferenceValueProvider;
 import org.xwiki.model.internal.reference.LocalStringEntityReferenceSerializer;
 import org.xwiki.model.internal.reference.RelativeStringEntityReferenceResolver;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.SpaceReference;
 import org.xwiki.model.reference.WikiReference;
+import org.xwiki.search.solr.internal.api.SolrConfiguration;
 import org.xwiki.search.solr.internal.api.SolrIndexer;
+import org.xwiki.search.solr.internal.api.SolrInstance;
+import org.xwiki.search.solr.internal.metadata.LengthSolrInputDocument;
+import org.xwiki.search.solr.internal.metadata.SolrMetadataExtractor;
+import org.xwiki.search.solr.internal.reference.SolrReferenceResolver;
 import org.xwiki.test.annotation.ComponentList;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
@@ -63,10 +92,34 @@
     public final MockitoComponentMockingRule<SolrIndexer> mocker = new MockitoComponentMockingRule<SolrIndexer>(
         DefaultSolrIndexer.class);
 
+    /**
+     * Reference whose resolution marks the end of the operations queued by a test.
+     */
+    private static final DocumentReference END = new DocumentReference("wiki", "Space", "End");
+
     private XWikiContext xcontext;
 
     private XWiki xwiki;
 
+    private SolrConfiguration configuration;
+
+    private SolrInstance solrInstance;
+
+    /**
+     * The operations applied to the Solr instance, in order.
+     */
+    private final List<String> operations = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * Released when all the operations queued by a test have reached the index queue.
+     */
+    private final CountDownLatch resolved = new CountDownLatch(1);
+
+    /**
+     * Released after each commit.
+     */
+    private final Semaphore commits = new Semaphore(0);
+
     @Before
     public void configure() throws Exception
     {
@@ -84,6 +137,192 @@ public void configure() throws Exception
 
         URL url = this.getClass().getClassLoader().getResource("solrhome");
         System.setProperty(EmbeddedSolrInstance.SOLR_HOME_SYSTEM_PROPERTY, url.getPath());
+
+        this.mocker.registerMockComponent(ExecutionContextManager.class);
+
+        this.configuration = this.mocker.getInstance(SolrConfiguration.class);
+        when(this.configuration.getIndexerQueueCapacity()).thenReturn(100);
+        when(this.configuration.getIndexerThreads()).thenReturn(2);
+        when(this.configuration.getIndexerBatchSize()).thenReturn(100);
+        when(this.configuration.getIndexerBatchMaxLengh()).thenReturn(Integer.MAX_VALUE);
+        when(this.configuration.getIndexerBatchMaxDelay()).thenReturn(Integer.MAX_VALUE);
+
+        // The Solr document of an entity only holds its name, as identifier
+        SolrMetadataExtractor extractor = mock(SolrMetadataExtractor.class);
+        when(extractor.getSolrDocument(any(EntityReference.class))).thenAnswer(new Answer<LengthSolrInputDocument>()
+        {
+            @Override
+            public LengthSolrInputDocument answer(InvocationOnMock invocation) throws Throwable
+            {
+                LengthSolrInputDocument document = new LengthSolrInputDocument();
+                document.setField("id", ((EntityReference) invocation.getArguments()[0]).getName());
+                return document;
+            }
+        });
+        ComponentManager componentManager = this.mocker.getInstance(ComponentManager.class);
+        when(componentManager.getInstance(SolrMetadataExtractor.class, "document")).thenReturn(extractor);
+
+        SolrReferenceResolver resolver = this.mocker.getInstance(SolrReferenceResolver.class);
+        when(resolver.getId(any(EntityReference.class))).thenAnswer(new Answer<String>()
+        {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable
+            {
+                return ((EntityReference) invocation.getArguments()[0]).getName();
+            }
+        });
+        when(resolver.getQuery(any(EntityReference.class))).thenAnswer(new Answer<String>()
+        {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable
+            {
+                return "space:" + ((EntityReference) invocation.getArguments()[0]).getName();
+            }
+        });
+        // The resolve thread handles the operations in order so all the previous ones are in the index queue
+        when(resolver.getReferences(END)).thenAnswer(new Answer<Iterable<EntityReference>>()
+        {
+            @Override
+            public Iterable<EntityReference> answer(InvocationOnMock invocation) throws Throwable
+            {
+                resolved.countDown();
+                return Collections.emptyList();
+            }
+        });
+
+        // Hold the index thread until all the operations of the test are queued so that they are processed at once
+        this.solrInstance = mock(SolrInstance.class);
+        Provider<SolrInstance> solrInstanceProvider =
+            this.mocker.getInstance(new DefaultParameterizedType(null, Provider.class, SolrInstance.class));
+        when(solrInstanceProvider.get()).thenAnswer(new Answer<SolrInstance>()
+        {
+            @Override
+            public SolrInstance answer(InvocationOnMock invocation) throws Throwable
+            {
+                resolved.await();
+                return solrInstance;
+            }
+        });
+
+        Answer<Void> record = new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable
+            {
+                StringBuilder operation = new StringBuilder(invocation.getMethod().getName());
+                for (Object argument : invocation.getArguments()) {
+                    operation.append(' ');
+                    if (argument instanceof List) {
+                        List<Object> ids = new ArrayList<Object>();
+                        for (Object document : (List< ? >) argument) {
+                            ids.add(((SolrInputDocument) document).getFieldValue("id"));
+                        }
+                        operation.append(ids);
+                    } else {
+                        operation.append(argument);
+                    }
+                }
+                operations.add(operation.toString());
+                return null;
+            }
+        };
+        doAnswer(record).when(this.solrInstance).add(anyListOf(SolrInputDocument.class));
+        doAnswer(record).when(this.solrInstance).delete(anyString());
+        doAnswer(record).when(this.solrInstance).deleteByQuery(anyString());
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable
+            {
+                operations.add("commit");
+                commits.release();
+                return null;
+            }
+        }).when(this.solrInstance).commit();
+    }
+
+    /**
+     * Wait for the operations queued by the test to be applied.
+     * 
+     * @param indexer the indexer
+     * @param commitCount the number of expected commits
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void waitForOperations(SolrIndexer indexer, int commitCount) throws InterruptedException
+    {
+        indexer.index(END, true);
+
+        Assert.assertTrue(this.commits.tryAcquire(commitCount, 10, TimeUnit.SECONDS));
+    }
+
+    private DocumentReference document(String name)
+    {
+        return new DocumentReference("wiki", "Space", name);
+    }
+
+    @Test
+    public void deletesAreAppliedInQueueOrder() throws Exception
+    {
+        SolrIndexer indexer = this.mocker.getComponentUnderTest();
+
+        indexer.index(document("A"), false);
+        indexer.index(document("B"), false);
+        indexer.delete(document("C"), false);
+        indexer.index(document("D"), false);
+        indexer.delete(new SpaceReference("Other", new WikiReference("wiki")), true);
+        indexer.index(document("E"), false);
+        waitForOperations(indexer, 1);
+
+        // The documents waiting to be sent are sent before each delete
+        Assert.assertEquals(Arrays.asList("add [A, B]", "delete C", "add [D]", "deleteByQuery space:Other",
+            "add [E]", "commit"), this.operations);
+        Assert.assertEquals(5, indexer.getIndexedCount());
+        Assert.assertEquals(2, indexer.getDeletedCount());
+    }
+
+    @Test
+    public void operationsOnTheSameEntityAreAppliedInQueueOrder() throws Exception
+    {
+        SolrIndexer indexer = this.mocker.getComponentUnderTest();
+
+        indexer.delete(document("A"), false);
+        indexer.index(document("A"), false);
+        indexer.index(document("B"), false);
+        indexer.delete(document("B"), false);
+        waitForOperations(indexer, 1);
+
+        Assert.assertEquals(Arrays.asList("delete A", "add [A, B]", "delete B", "commit"), this.operations);
+    }
+
+    @Test
+    public void documentsAreSentInBatchesOfTheConfiguredSize() throws Exception
+    {
+        when(this.configuration.getIndexerBatchSize()).thenReturn(2);
+        SolrIndexer indexer = this.mocker.getComponentUnderTest();
+
+        for (String name : Arrays.asList("A", "B", "C", "D", "E")) {
+            indexer.index(document(name), false);
+        }
+        waitForOperations(indexer, 3);
+
+        Assert.assertEquals(Arrays.asList("add [A, B]", "commit", "add [C, D]", "commit", "add [E]", "commit"),
+            this.operations);
+        Assert.assertEquals(5, indexer.getIndexedCount());
+    }
+
+    @Test
+    public void documentsAreSentWhenTheBatchIsTooLong() throws Exception
+    {
+        // Each document is 1 character long
+        when(this.configuration.getIndexerBatchMaxLengh()).thenReturn(3);
+        SolrIndexer indexer = this.mocker.getComponentUnderTest();
+
+        for (String name : Arrays.asList("A", "B", "C", "D")) {
+            indexer.index(document(name), false);
+        }
+        waitForOperations(indexer, 2);
+
+        Assert.assertEquals(Arrays.asList("add [A, B, C]", "commit", "add [D]", "commit"), this.operations);
     }
 
     @Test
@@ -0,0 +1,408 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.search.solr.internal.job;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.inject.Provider;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.SolrParams;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.xwiki.component.util.DefaultParameterizedType;
+import org.xwiki.job.Job;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.search.solr.internal.api.FieldUtils;
+import org.xwiki.search.solr.internal.api.SolrIndexer;
+import org.xwiki.search.solr.internal.api.SolrInstance;
+import org.xwiki.search.solr.internal.reference.SolrReferenceResolver;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+/**
+ * Unit tests for the reconciliation of the Solr index with the database done by {@link IndexerJob}.
+ * 
+ * @version $Id$
+ */
+public class IndexerJobTest
+{
+    private static final String WIKI = "wiki";
+
+    private static final String SPACE = "Space";
+
+    private static final String DOCUMENTS_STATEMENT =
+        "select doc.name, doc.space, doc.language, doc.version, doc.id from XWikiDocument doc";
+
+    private static final String EXISTING_DOCUMENTS_STATEMENT =
+        "select doc.space, doc.name, doc.language from XWikiDocument doc";
+
+    @Rule
+    public final MockitoComponentMockingRule<Job> mocker = new MockitoComponentMockingRule<Job>(IndexerJob.class);
+
+    /**
+     * The versions of the documents in the database, indexed by document id.
+     */
+    private final SortedMap<Long, String> database = new TreeMap<Long, String>();
+
+    /**
+     * The versions of the indexed documents, indexed by Solr document id.
+     */
+    private final SortedMap<String, String> index = new TreeMap<String, String>();
+
+    /**
+     * The keys bound to each database page query, {@code null} for the first page.
+     */
+    private final List<Object> databasePages = new ArrayList<Object>();
+
+    /**
+     * The number of documents checked by each database existence query.
+     */
+    private final List<Integer> existenceChecks = new ArrayList<Integer>();
+
+    /**
+     * The number of documents whose version is asked by each Solr query.
+     */
+    private final List<Integer> versionQueries = new ArrayList<Integer>();
+
+    /**
+     * The id after which each Solr listing query starts, {@code null} for the first page.
+     */
+    private final List<String> indexPages = new ArrayList<String>();
+
+    private SolrIndexer indexer;
+
+    @Before
+    public void configure() throws Exception
+    {
+        this.indexer = this.mocker.getInstance(SolrIndexer.class);
+
+        SolrReferenceResolver resolver = this.mocker.getInstance(SolrReferenceResolver.class);
+        when(resolver.getId(any(EntityReference.class))).thenAnswer(new Answer<String>()
+        {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable
+            {
+                return getId(((EntityReference) invocation.getArguments()[0]).getName());
+            }
+        });
+        when(resolver.getQuery(any(EntityReference.class))).thenReturn("wiki:wiki");
+
+        QueryManager queryManager = this.mocker.getInstance(QueryManager.class);
+        when(queryManager.createQuery(anyString(), eq(Query.HQL))).thenAnswer(new Answer<Query>()
+        {
+            @Override
+            public Query answer(InvocationOnMock invocation) throws Throwable
+            {
+                return newDatabaseQuery((String) invocation.getArguments()[0]);
+            }
+        });
+
+        final SolrInstance solrInstance = mock(SolrInstance.class);
+        Provider<SolrInstance> solrInstanceProvider =
+            this.mocker.getInstance(new DefaultParameterizedType(null, Provider.class, SolrInstance.class));
+        when(solrInstanceProvider.get()).thenReturn(solrInstance);
+        when(solrInstance.query(any(SolrParams.class))).thenAnswer(new Answer<QueryResponse>()
+        {
+            @Override
+            public QueryResponse answer(InvocationOnMock invocation) throws Throwable
+            {
+                QueryResponse response = mock(QueryResponse.class);
+                SolrDocumentList results = querySolr((SolrQuery) invocation.getArguments()[0]);
+                when(response.getResults()).thenReturn(results);
+                return response;
+            }
+        });
+    }
+
+    private String getName(long id)
+    {
+        return String.format("Page%03d", id);
+    }
+
+    private String getId(String name)
+    {
+        return WIKI + ':' + SPACE + '.' + name;
+    }
+
+    /**
+     * Emulate the database queries done by the job.
+     * 
+     * @param statement the HQL statement
+     * @return the query
+     * @throws QueryException never
+     */
+    private Query newDatabaseQuery(final String statement) throws QueryException
+    {
+        final Map<String, Object> values = new HashMap<String, Object>();
+        final int[] limit = new int[1];
+
+        final Query query = mock(Query.class, statement);
+        when(query.setWiki(anyString())).thenReturn(query);
+        when(query.bindValue(anyString(), any())).thenAnswer(new Answer<Query>()
+        {
+            @Override
+            public Query answer(InvocationOnMock invocation) throws Throwable
+            {
+                values.put((String) invocation.getArguments()[0], invocation.getArguments()[1]);
+                return query;
+            }
+        });
+        when(query.setLimit(anyInt())).thenAnswer(new Answer<Query>()
+        {
+            @Override
+            public Query answer(InvocationOnMock invocation) throws Throwable
+            {
+                limit[0] = (Integer) invocation.getArguments()[0];
+                return query;
+            }
+        });
+        when(query.execute()).thenAnswer(new Answer<List<Object>>()
+        {
+            @Override
+            public List<Object> answer(InvocationOnMock invocation) throws Throwable
+            {
+                return executeDatabaseQuery(statement, values, limit[0]);
+            }
+        });
+
+        return query;
+    }
+
+    private List<Object> executeDatabaseQuery(String statement, Map<String, Object> values, int limit)
+    {
+        List<Object> results = new ArrayList<Object>();
+
+        if (statement.startsWith("select count(doc.id)")) {
+            results.add(Long.valueOf(this.database.size()));
+        } else if (statement.startsWith(DOCUMENTS_STATEMENT)) {
+            Long lastId = (Long) values.get("lastId");
+            this.databasePages.add(lastId);
+            SortedMap<Long, String> documents =
+                lastId != null ? this.database.tailMap(lastId + 1) : this.database;
+            for (Map.Entry<Long, String> document : documents.entrySet()) {
+                if (results.size() == limit) {
+                    break;
+                }
+                results.add(new Object[] {getName(document.getKey()), SPACE, "", document.getValue(),
+                    document.getKey()});
+            }
+        } else if (statement.startsWith(EXISTING_DOCUMENTS_STATEMENT)) {
+            Set<String> existingNames = new HashSet<String>();
+            for (Long id : this.database.keySet()) {
+                existingNames.add(getName(id));
+            }
+            int count = 0;
+            for (Map.Entry<String, Object> value : values.entrySet()) {
+                if (value.getKey().startsWith("name")) {
+                    ++count;
+                    if (existingNames.contains(value.getValue())) {
+                        results.add(new Object[] {SPACE, value.getValue(), ""});
+                    }
+                }
+            }
+            this.existenceChecks.add(count);
+        } else {
+            Assert.fail("Unexpected query [" + statement + "]");
+        }
+
+        return results;
+    }
+
+    /**
+     * Emulate the Solr queries done by the job.
+     * 
+     * @param solrQuery the Solr query
+     * @return the matching Solr documents
+     */
+    private SolrDocumentList querySolr(SolrQuery solrQuery)
+    {
+        SolrDocumentList results = new SolrDocumentList();
+
+        String query = solrQuery.getQuery();
+        if (query.startsWith(FieldUtils.ID + ":(")) {
+            // Versions of a batch of documents
+            List<String> ids = Arrays.asList(query.substring(4, query.length() - 1).split(" OR "));
+            this.versionQueries.add(ids.size());
+            Assert.assertEquals(ids.size(), solrQuery.getRows().intValue());
+            for (String id : ids) {
+                String version = this.index.get(id.replace("\\", ""));
+                if (version != null) {
+                    SolrDocument document = new SolrDocument();
+                    document.setField(FieldUtils.ID, id.replace("\\", ""));
+                    document.setField(FieldUtils.VERSION, version);
+                    results.add(document);
+                }
+            }
+        } else {
+            // Listing of the indexed documents, starting after the last id of the previous page
+            String lastId = null;
+            if (solrQuery.getFilterQueries() != null) {
+                for (String filterQuery : solrQuery.getFilterQueries()) {
+                    if (filterQuery.startsWith(FieldUtils.ID + ":{")) {
+                        lastId = filterQuery.substring(4, filterQuery.indexOf(" TO *]")).replace("\\", "");
+                    }
+                }
+            }
+            this.indexPages.add(lastId);
+            SortedMap<String, String> documents = lastId != null ? this.index.tailMap(lastId + '\0') : this.index;
+            for (String id : documents.keySet()) {
+                if (results.size() == solrQuery.getRows()) {
+                    break;
+                }
+                SolrDocument document = new SolrDocument();
+                document.setField(FieldUtils.ID, id);
+                document.setField(FieldUtils.WIKI, WIKI);
+                document.setField(FieldUtils.SPACE, SPACE);
+                document.setField(FieldUtils.NAME, id.substring(id.lastIndexOf('.') + 1));
+                results.add(document);
+            }
+            results.setNumFound(this.index.size());
+        }
+
+        return results;
+    }
+
+    private void runJob(boolean removeMissing) throws Exception
+    {
+        IndexerRequest request = new IndexerRequest();
+        request.setRootReference(new WikiReference(WIKI));
+        request.setRemoveMissing(removeMissing);
+
+        Job job = this.mocker.getComponentUnderTest();
+        job.initialize(request);
+        job.run();
+    }
+
+    private DocumentReference getReference(long id)
+    {
+        return new DocumentReference(WIKI, SPACE, getName(id));
+    }
+
+    @Test
+    public void documentsAreComparedWithTheIndexByBatches() throws Exception
+    {
+        for (long id = 1; id <= 250; ++id) {
+            this.database.put(id, "1.1");
+            if (id % 3 == 0) {
+                // Indexed, and up to date unless the version changed since then
+                this.index.put(getId(getName(id)), id % 5 == 0 ? "1.0" : "1.1");
+            }
+        }
+
+        runJob(false);
+
+        // The database is listed by keyset pagination and each page is checked against the index with one query
+        Assert.assertEquals(Arrays.<Object> asList(null, 100L, 200L), this.databasePages);
+        Assert.assertEquals(Arrays.asList(100, 100, 50), this.versionQueries);
+
+        for (long id = 1; id <= 250; ++id) {
+            if (id % 3 != 0 || id % 5 == 0) {
+                verify(this.indexer).index(getReference(id), true);
+            } else {
+                verify(this.indexer, never()).index(getReference(id), true);
+            }
+        }
+    }
+
+    @Test
+    public void lastFullBatchIsFollowedByAnEmptyOne() throws Exception
+    {
+        for (long id = 1; id <= 200; ++id) {
+            this.database.put(id, "1.1");
+        }
+
+        runJob(false);
+
+        // There is no Solr query for the empty page
+        Assert.assertEquals(Arrays.<Object> asList(null, 100L, 200L), this.databasePages);
+        Assert.assertEquals(Arrays.asList(100, 100), this.versionQueries);
+    }
+
+    @Test
+    public void indexedDocumentsAreCheckedByBatches() throws Exception
+    {
+        for (long id = 1; id <= 250; ++id) {
+            if (id <= 150) {
+                this.database.put(id, "1.1");
+            }
+            this.index.put(getId(getName(id)), "1.1");
+        }
+
+        runJob(true);
+
+        // The index is listed starting after the last id of the previous page, so the deletions don't shift the pages
+        Assert.assertEquals(Arrays.asList(null, getId("Page100"), getId("Page200"), getId("Page250")),
+            this.indexPages);
+        Assert.assertEquals(Arrays.asList(100, 100, 50), this.existenceChecks);
+
+        for (long id = 1; id <= 250; ++id) {
+            if (id > 150) {
+                verify(this.indexer).delete(getReference(id), true);
+            } else {
+                verify(this.indexer, never()).delete(getReference(id), true);
+            }
+        }
+
+        // All the documents of the database are up to date in the index
+        verify(this.indexer, never()).index(any(EntityReference.class), eq(true));
+        Assert.assertEquals(Arrays.asList(100, 50), this.versionQueries);
+    }
+
+    @Test
+    public void nothingIsDoneOnAnEmptyWiki() throws Exception
+    {
+        runJob(true);
+
+        Assert.assertEquals(Collections.<Object> singletonList(null), this.databasePages);
+        Assert.assertEquals(Collections.singletonList(null), this.indexPages);
+        Assert.assertTrue(this.existenceChecks.isEmpty());
+        Assert.assertTrue(this.versionQueries.isEmpty());
+    }
+}
@@ -19,6 +19,14 @@
  */
 package org.xwiki.security.authorization;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
@@ -33,6 +41,7 @@
 import org.xwiki.security.UserSecurityReference;
 import org.xwiki.security.authorization.cache.SecurityCache;
 import org.xwiki.security.authorization.cache.SecurityCacheLoader;
+import org.xwiki.security.authorization.cache.internal.SecurityCacheLoadHistory;
 import org.xwiki.security.internal.XWikiBridge;
 
 /**
@@ -57,6 +66,10 @@ public class DefaultAuthorizationManager implements AuthorizationManager
     @Inject
     private SecurityCacheLoader securityCacheLoader;
 
+    /** Count the accesses to warm up the cache after a restart. */
+    @Inject
+    private SecurityCacheLoadHistory loadHistory;
+
     /** The security reference factory. */
     @Inject
     private SecurityReferenceFactory securityReferenceFactory;
@@ -115,6 +128,99 @@ public boolean hasAccess(Right right, DocumentReference userReference, EntityRef
         }
     }
 
+    @Override
+    public <T extends EntityReference> List<T> filterAccessible(Right right, DocumentReference userReference,
+        Collection<T> entityReferences)
+    {
+        List<T> accessible = new ArrayList<T>(entityReferences.size());
+
+        if (isSuperAdmin(userReference)) {
+            accessible.addAll(entityReferences);
+            return accessible;
+        }
+
+        if (right == null || right == Right.ILLEGAL || (!right.isReadOnly() && xwikiBridge.isWikiReadOnly())) {
+            return accessible;
+        }
+
+        UserSecurityReference user = securityReferenceFactory.newUserReference(userReference);
+
+        // The rights which, when granted or denied by a rule, affect the requested right
+        Set<Right> relevantRights = getRelevantRights(right);
+
+        // The access settled on the parents of the entities having no rules about the requested right
+        Map<SecurityReference, SecurityAccess> parentAccesses = new HashMap<SecurityReference, SecurityAccess>();
+
+        for (T entityReference : entityReferences) {
+            try {
+                SecurityReference entity = securityReferenceFactory.newEntityReference(entityReference);
+                SecurityReference parent = entity.getParentSecurityReference();
+                SecurityRuleEntry entry = securityCache.get(entity);
+
+                SecurityAccess access;
+                if (parent != null && entry != null && !hasRelevantRule(entry, relevantRights)) {
+                    access = parentAccesses.get(parent);
+                    if (access == null) {
+                        access = getAccess(user, parent);
+                        parentAccesses.put(parent, access);
+                    }
+                } else {
+                    access = getAccess(user, entity);
+                }
+
+                RuleState state = access.get(right);
+                logAccess(state, userReference, entityReference, right, "bulk access inquiry", true);
+                if (state == RuleState.ALLOW) {
+                    accessible.add(entityReference);
+                }
+            } catch (Exception e) {
+                this.logger.error(String.format("Failed to load rights for user [%s] on [%s].",
+                    (userReference == null) ? AuthorizationException.NULL_USER : userReference, entityReference), e);
+            }
+        }
+
+        return accessible;
+    }
+
+    /**
+     * @param right the requested right
+     * @return the requested right and the rights implying it
+     */
+    private Set<Right> getRelevantRights(Right right)
+    {
+        Set<Right> rights = new HashSet<Right>();
+        rights.add(right);
+        for (Right impliedBy : Right.values()) {
+            Set<Right> impliedRights = impliedBy.getImpliedRights();
+            if (impliedRights != null && impliedRights.contains(right)) {
+                rights.add(impliedBy);
+            }
+        }
+
+        return rights;
+    }
+
+    /**
+     * An entry without rules about the requested right (like the implied creator rule of any existing document when
+     * the view right is requested) doesn't change the access settled on its parent.
+     *
+     * @param entry the security rules of an entity
+     * @param relevantRights the requested right and the rights implying it
+     * @return {@code true} if one of the rules of the entry grants or denies one of the provided rights
+     */
+    private boolean hasRelevantRule(SecurityRuleEntry entry, Set<Right> relevantRights)
+    {
+        for (SecurityRule rule : entry.getRules()) {
+            for (Right relevantRight : relevantRights) {
+                if (rule.match(relevantRight)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
     /**
      * Verifies if the user identified by {@code userReference} has the access identified by {@code right} on the
      * entity identified by {@code entityReference}. Note that some rights may be checked higher in hierarchy of the
@@ -212,6 +318,8 @@ private SecurityAccess getAccess(UserSecurityReference user, SecurityReference e
                 } else {
                     SecurityAccess access = accessEntry.getAccess();
 
+                    loadHistory.record(user.getOriginalReference(), entity.getOriginalReference());
+
                     logger.debug("3. Got entry for user {} on {} from cache: [{}]", user, entity, access);
 
                     return access;
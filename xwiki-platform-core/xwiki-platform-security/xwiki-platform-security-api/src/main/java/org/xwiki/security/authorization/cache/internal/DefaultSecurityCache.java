@@ -22,6 +22,7 @@
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -79,6 +80,13 @@ public class DefaultSecurityCache implements SecurityCache, Initializable
     /** Fair write lock. */
     private final Lock writeLock = readWriteLock.writeLock();
 
+    /**
+     * Sequence incremented at the beginning and at the end of each invalidation (so it is odd while an invalidation is
+     * in progress). Readers use it to access the cache without locking, and only fall back on the read lock when an
+     * invalidation is in progress or has happened during their read, so they never see a partially invalidated cache.
+     */
+    private final AtomicLong invalidationSequence = new AtomicLong();
+
     /** The keys in the cache are generated from instances of {@link org.xwiki.model.reference.EntityReference}. */
     @Inject
     private EntityReferenceSerializer<String> keySerializer;
@@ -125,7 +133,7 @@ public void initialize() throws InitializationException
         /**
          * The cached security entry.
          */
-        private SecurityEntry entry;
+        private final SecurityEntry entry;
 
         /**
          * Parents of this cached entry.
@@ -462,19 +470,38 @@ private String getEntryKey(SecurityAccessEntry entry)
     }
 
     /**
-     * @param reference the reference requested.
-     * @return a security cache entry corresponding to given reference, null if none is available in the cache.
+     * Get an entry from the cache, without locking unless an invalidation is concurrently in progress.
+     * @param key the key of the cache slot to read.
+     * @return the security cache entry stored in that slot, null if none is available in the cache.
      */
-    private SecurityCacheEntry getEntry(SecurityReference reference)
+    private SecurityCacheEntry getEntry(String key)
     {
+        long sequence = invalidationSequence.get();
+        if ((sequence & 1) == 0) {
+            SecurityCacheEntry entry = cache.get(key);
+            if (invalidationSequence.get() == sequence) {
+                return entry;
+            }
+        }
+
+        // An invalidation is in progress, wait for it to be finished.
         readLock.lock();
         try {
-            return cache.get(getEntryKey(reference));
+            return cache.get(key);
         } finally {
             readLock.unlock();
         }
     }
 
+    /**
+     * @param reference the reference requested.
+     * @return a security cache entry corresponding to given reference, null if none is available in the cache.
+     */
+    private SecurityCacheEntry getEntry(SecurityReference reference)
+    {
+        return getEntry(getEntryKey(reference));
+    }
+
     /**
      * @param userReference the user reference requested.
      * @param reference the reference requested.
@@ -483,12 +510,7 @@ private SecurityCacheEntry getEntry(SecurityReference reference)
      */
     private SecurityCacheEntry getEntry(UserSecurityReference userReference, SecurityReference reference)
     {
-        readLock.lock();
-        try {
-            return cache.get(getEntryKey(userReference, reference));
-        } finally {
-            readLock.unlock();
-        }
+        return getEntry(getEntryKey(userReference, reference));
     }
 
     /**
@@ -499,12 +521,7 @@ private SecurityCacheEntry getEntry(UserSecurityReference userReference, Securit
      */
     private SecurityCacheEntry getShadowEntry(SecurityReference userReference, SecurityReference wiki)
     {
-        readLock.lock();
-        try {
-            return cache.get(getShadowEntryKey(userReference, wiki));
-        } finally {
-            readLock.unlock();
-        }
+        return getEntry(getShadowEntryKey(userReference, wiki));
     }
 
     /**
@@ -699,9 +716,7 @@ public void remove(UserSecurityReference user, SecurityReference entity)
                 if (logger.isDebugEnabled()) {
                     logger.debug("Remove outdated access entry for [{}].", getEntryKey(user, entity));
                 }
-                if (entry.dispose()) {
-                    this.cache.remove(entry.getKey());
-                }
+                invalidate(entry);
             }
         } finally {
             writeLock.unlock();
@@ -718,15 +733,30 @@ public void remove(SecurityReference entity)
                 if (logger.isDebugEnabled()) {
                     logger.debug("Remove outdated rule entry for [{}].", getEntryKey(entity));
                 }
-                if (entry.dispose()) {
-                    this.cache.remove(entry.getKey());
-                }
+                invalidate(entry);
             }
         } finally {
             writeLock.unlock();
         }
     }
 
+    /**
+     * Dispose an entry and all its children, and remove it from the cache. Lock free readers will wait for the end of
+     * the invalidation before reading the cache. This method should be called with the write lock held.
+     * @param entry the entry to invalidate.
+     */
+    private void invalidate(SecurityCacheEntry entry)
+    {
+        invalidationSequence.incrementAndGet();
+        try {
+            if (entry.dispose()) {
+                this.cache.remove(entry.getKey());
+            }
+        } finally {
+            invalidationSequence.incrementAndGet();
+        }
+    }
+
     /**
      * Listener for cache events, to properly dispose entries removed.
      */
@@ -88,6 +88,10 @@ public class DefaultSecurityCacheLoader implements SecurityCacheLoader
     @Inject
     private Provider<AuthorizationSettler> authorizationSettlerProvider;
 
+    /** Remember the loaded entries to warm up the cache after a restart. */
+    @Inject
+    private SecurityCacheLoadHistory loadHistory;
+
     @Override
     public SecurityAccessEntry load(UserSecurityReference user, SecurityReference entity)
         throws AuthorizationException
@@ -99,7 +103,11 @@ public SecurityAccessEntry load(UserSecurityReference user, SecurityReference en
 
             try {
                 retries++;
-                return loadRequiredEntries(user, entity);
+                SecurityAccessEntry accessEntry = loadRequiredEntries(user, entity);
+                if (entity != null) {
+                    loadHistory.record(user.getOriginalReference(), entity.getOriginalReference());
+                }
+                return accessEntry;
             } catch (ParentEntryEvictedException e) {
                 if (retries < MAX_RETRIES) {
                     this.logger.debug("The parent entry was evicted. Have tried {} times.  Trying again...", retries);
@@ -0,0 +1,226 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.security.authorization.cache.internal;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+
+/**
+ * Count how often the access of each couple of user and entity is asked to the security cache, whether it was already
+ * cached or not. It's used to warm up the security cache after a restart by loading again the most frequently accessed
+ * entries.
+ *
+ * @version $Id$
+ * @since 5.4M1
+ */
+@Component(roles = SecurityCacheLoadHistory.class)
+@Singleton
+public class SecurityCacheLoadHistory
+{
+    /**
+     * The maximum number of couples returned by {@link #getEntries()}.
+     */
+    private static final int MAX_ENTRIES = 1000;
+
+    /**
+     * The number of counted couples above which the least frequently accessed ones are forgotten.
+     */
+    private static final int MAX_COUNTED_ENTRIES = MAX_ENTRIES * 10;
+
+    /**
+     * Sort the counted couples, most frequently accessed first.
+     */
+    private static final Comparator<Map.Entry<Entry, Long>> FREQUENCY_COMPARATOR =
+        new Comparator<Map.Entry<Entry, Long>>()
+        {
+            @Override
+            public int compare(Map.Entry<Entry, Long> entry1, Map.Entry<Entry, Long> entry2)
+            {
+                return entry2.getValue().compareTo(entry1.getValue());
+            }
+        };
+
+    /**
+     * A couple of user and entity loaded into the security cache.
+     *
+     * @version $Id$
+     */
+    public static class Entry
+    {
+        /**
+         * The user, null for guest.
+         */
+        private final DocumentReference user;
+
+        /**
+         * The entity.
+         */
+        private final EntityReference entity;
+
+        /**
+         * @param user the user, null for guest
+         * @param entity the entity
+         */
+        public Entry(DocumentReference user, EntityReference entity)
+        {
+            this.user = user;
+            this.entity = entity;
+        }
+
+        /**
+         * @return the user, null for guest
+         */
+        public DocumentReference getUser()
+        {
+            return this.user;
+        }
+
+        /**
+         * @return the entity
+         */
+        public EntityReference getEntity()
+        {
+            return this.entity;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (obj == this) {
+                return true;
+            }
+
+            if (obj instanceof Entry) {
+                Entry other = (Entry) obj;
+                return (this.user == null ? other.user == null : this.user.equals(other.user))
+                    && this.entity.equals(other.entity);
+            }
+
+            return false;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (this.user != null ? this.user.hashCode() * 31 : 0) + this.entity.hashCode();
+        }
+    }
+
+    /**
+     * The number of accesses of each counted couple.
+     */
+    private final ConcurrentMap<Entry, AtomicLong> counts = new ConcurrentHashMap<Entry, AtomicLong>();
+
+    /**
+     * Remember that the access of a user on an entity has been asked to the cache, either loaded or found there.
+     *
+     * @param user the user, null for guest
+     * @param entity the entity
+     */
+    public void record(DocumentReference user, EntityReference entity)
+    {
+        if (entity != null) {
+            Entry entry = new Entry(user, entity);
+
+            AtomicLong count = this.counts.get(entry);
+            if (count == null) {
+                count = new AtomicLong();
+                AtomicLong existingCount = this.counts.putIfAbsent(entry, count);
+                if (existingCount != null) {
+                    count = existingCount;
+                }
+
+                if (this.counts.size() > MAX_COUNTED_ENTRIES) {
+                    prune();
+                }
+            }
+
+            count.incrementAndGet();
+        }
+    }
+
+    /**
+     * Forget the least frequently accessed couples and halve the count of the others so that the couples which are
+     * not accessed anymore can eventually be replaced by new ones.
+     */
+    private synchronized void prune()
+    {
+        if (this.counts.size() > MAX_COUNTED_ENTRIES) {
+            List<Map.Entry<Entry, Long>> sorted = getSortedCounts();
+
+            for (Map.Entry<Entry, Long> entry : sorted.subList(MAX_ENTRIES, sorted.size())) {
+                this.counts.remove(entry.getKey());
+            }
+            for (Map.Entry<Entry, Long> entry : sorted.subList(0, MAX_ENTRIES)) {
+                AtomicLong count = this.counts.get(entry.getKey());
+                if (count != null) {
+                    count.set(count.get() / 2);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a snapshot of the counted couples, most frequently accessed first
+     */
+    private List<Map.Entry<Entry, Long>> getSortedCounts()
+    {
+        // Snapshot the counts since they keep changing while sorting
+        List<Map.Entry<Entry, Long>> sorted = new ArrayList<Map.Entry<Entry, Long>>(this.counts.size());
+        for (Map.Entry<Entry, AtomicLong> entry : this.counts.entrySet()) {
+            sorted.add(new AbstractMap.SimpleImmutableEntry<Entry, Long>(entry.getKey(), entry.getValue().get()));
+        }
+
+        Collections.sort(sorted, FREQUENCY_COMPARATOR);
+
+        return sorted;
+    }
+
+    /**
+     * @return the most frequently accessed couples, most frequently accessed first
+     */
+    public List<Entry> getEntries()
+    {
+        List<Map.Entry<Entry, Long>> sorted = getSortedCounts();
+
+        List<Entry> result = new ArrayList<Entry>(Math.min(sorted.size(), MAX_ENTRIES));
+        for (Map.Entry<Entry, Long> entry : sorted) {
+            if (result.size() == MAX_ENTRIES) {
+                break;
+            }
+            result.add(entry.getKey());
+        }
+
+        return result;
+    }
+}
@@ -21,8 +21,10 @@
 package org.xwiki.security.authorization;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -47,6 +49,7 @@
 import org.xwiki.security.authorization.cache.SecurityCacheRulesInvalidator;
 import org.xwiki.security.authorization.cache.internal.DefaultSecurityCache;
 import org.xwiki.security.authorization.cache.internal.DefaultSecurityCacheLoader;
+import org.xwiki.security.authorization.cache.internal.SecurityCacheLoadHistory;
 import org.xwiki.security.authorization.cache.internal.TestCache;
 import org.xwiki.security.authorization.internal.DefaultAuthorizationSettler;
 import org.xwiki.security.authorization.testwikis.SecureTestEntity;
@@ -89,7 +92,7 @@
 @ComponentList({DefaultSecurityCache.class, DefaultStringEntityReferenceResolver.class,
     DefaultStringEntityReferenceSerializer.class, DefaultEntityReferenceValueProvider.class,
     DefaultModelConfiguration.class, AuthorizationManagerConfiguration.class,
-    DefaultSecurityReferenceFactory.class, DefaultSecurityCacheLoader.class,
+    DefaultSecurityReferenceFactory.class, DefaultSecurityCacheLoader.class, SecurityCacheLoadHistory.class,
     DefaultAuthorizationSettler.class, DefaultAuthorizationManager.class})
 public class DefaultAuthorizationManagerIntegrationTest extends AbstractAuthorizationTestCase
 {
@@ -565,6 +568,67 @@ public void testGroupAccess() throws Exception
         assertAccess(ALL_RIGHTS_EXCEPT_ADMIN_AND_CREATE_WIKI,       getXUser("userA"), getDoc("docAllowGroupC", "any space", "subwiki"));
     }
 
+    @Test
+    public void testFilterAccessible() throws Exception
+    {
+        initialiseWikiMock("inheritancePolicyForGlobalFullWikiAccess");
+
+        List<EntityReference> entities = Arrays.<EntityReference> asList(
+            getXDoc("any document", "any space"),
+            getXDoc("any document", "spaceAllowA"),
+            getXDoc("other document", "spaceAllowA"),
+            getXDoc("docDenyA", "spaceAllowA"),
+            getXDoc("docAllowA", "any space"),
+            getDoc("any document", "any space", "wikiAllowA"),
+            getDoc("docDenyA", "any space", "wikiAllowA"));
+
+        for (Right right : Arrays.asList(VIEW, EDIT, ADMIN, PROGRAM)) {
+            List<EntityReference> expected = new ArrayList<EntityReference>();
+            for (EntityReference entity : entities) {
+                if (authorizationManager.hasAccess(right, getXUser("userA"), entity)) {
+                    expected.add(entity);
+                }
+            }
+
+            Assert.assertEquals(expected, authorizationManager.filterAccessible(right, getXUser("userA"), entities));
+        }
+
+        Assert.assertEquals(entities,
+            authorizationManager.filterAccessible(PROGRAM, new DocumentReference("wiki", "XWiki", "superadmin"),
+                entities));
+        Assert.assertEquals(Collections.emptyList(),
+            authorizationManager.filterAccessible(ILLEGAL, getXUser("userA"), entities));
+    }
+
+    @Test
+    public void testFilterAccessibleOnExistingDocuments() throws Exception
+    {
+        initialiseWikiMock("documentCreator");
+
+        // Existing documents always have an implied creator rule
+        List<EntityReference> entities = Arrays.<EntityReference> asList(
+            getXDoc("userAdoc", "space"),
+            getXDoc("userBdoc", "space"),
+            getXDoc("any document", "space"));
+
+        for (DocumentReference user : Arrays.asList(getXUser("userA"), getXUser("userB"))) {
+            for (Right right : Arrays.asList(VIEW, EDIT, DELETE, CREATOR)) {
+                List<EntityReference> expected = new ArrayList<EntityReference>();
+                for (EntityReference entity : entities) {
+                    if (authorizationManager.hasAccess(right, user, entity)) {
+                        expected.add(entity);
+                    }
+                }
+
+                Assert.assertEquals(expected, authorizationManager.filterAccessible(right, user, entities));
+            }
+        }
+
+        Assert.assertEquals(entities, authorizationManager.filterAccessible(VIEW, getXUser("userA"), entities));
+        Assert.assertEquals(Arrays.<EntityReference> asList(getXDoc("userAdoc", "space")),
+            authorizationManager.filterAccessible(DELETE, getXUser("userA"), entities));
+    }
+
     @Test
     public void testCheckAccess() throws Exception
     {
@@ -60,7 +60,8 @@
  * 
  * @version $Id$
  */
-@ComponentList({DefaultSecurityCacheLoader.class, DefaultSecurityReferenceFactory.class})
+@ComponentList({DefaultSecurityCacheLoader.class, DefaultSecurityReferenceFactory.class,
+    SecurityCacheLoadHistory.class})
 public class DefaultSecurityCacheLoaderTest
 {
     @Rule
@@ -26,6 +26,8 @@
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -59,6 +61,7 @@
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.mock;
@@ -805,4 +808,157 @@ public boolean keepAccess(SecurityAccessEntry entry) {
             }
         });
     }
+
+    /**
+     * @param entity the entity to look up
+     * @param result where to store the result of the lookup
+     * @return a thread looking up the rule entry of the entity in the security cache
+     */
+    private Thread newReader(final SecurityReference entity, final AtomicReference<SecurityRuleEntry> result)
+    {
+        return new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                result.set(securityCache.get(entity));
+            }
+        });
+    }
+
+    @Test(timeout = 10000)
+    public void testInvalidationDuringLookup() throws Exception
+    {
+        securityCache.add(mockSecurityRuleEntry(xwikiRef));
+        securityCache.add(mockSecurityRuleEntry(xspaceRef));
+
+        // Pause a lookup just after it has read the space entry, still valid at that time
+        AtomicReference<SecurityRuleEntry> result = new AtomicReference<SecurityRuleEntry>();
+        Thread reader = newReader(xspaceRef, result);
+        cache.pauseNextRead(reader);
+        reader.start();
+        cache.awaitPaused();
+
+        // Invalidate the space entry while the lookup is in progress, lookups don't prevent invalidations
+        securityCache.remove(xwikiRef);
+        assertThat(securityCache.get(xspaceRef), nullValue());
+
+        // The lookup detects the invalidation and doesn't return the invalidated entry
+        cache.resume();
+        reader.join();
+        assertThat(result.get(), nullValue());
+    }
+
+    @Test(timeout = 10000)
+    public void testLookupDuringInvalidation() throws Exception
+    {
+        securityCache.add(mockSecurityRuleEntry(xwikiRef));
+        securityCache.add(mockSecurityRuleEntry(xspaceRef));
+
+        // Pause an invalidation when the space entry is removed but the wiki entry is not yet
+        Thread invalidator = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                securityCache.remove(xwikiRef);
+            }
+        });
+        cache.pauseNextRemove(invalidator);
+        invalidator.start();
+        cache.awaitPaused();
+
+        // A lookup of the partially invalidated wiki entry waits for the end of the invalidation
+        AtomicReference<SecurityRuleEntry> result = new AtomicReference<SecurityRuleEntry>();
+        Thread reader = newReader(xwikiRef, result);
+        reader.start();
+        reader.join(100);
+        assertTrue(reader.isAlive());
+
+        cache.resume();
+        invalidator.join();
+        reader.join();
+        assertThat(result.get(), nullValue());
+    }
+
+    @Test(timeout = 10000)
+    public void testLookupsAreNotBlockedByASlowLookup() throws Exception
+    {
+        SecurityRuleEntry wikiEntry = mockSecurityRuleEntry(xwikiRef);
+        securityCache.add(wikiEntry);
+
+        AtomicReference<SecurityRuleEntry> result = new AtomicReference<SecurityRuleEntry>();
+        Thread reader = newReader(xwikiRef, result);
+        cache.pauseNextRead(reader);
+        reader.start();
+        cache.awaitPaused();
+
+        // With a fair read write lock, the insertion would wait for the slow lookup and the next lookup would wait
+        // for the insertion
+        SecurityRuleEntry spaceEntry = mockSecurityRuleEntry(xspaceRef);
+        securityCache.add(spaceEntry);
+        assertThat(securityCache.get(xspaceRef), sameInstance(spaceEntry));
+
+        cache.resume();
+        reader.join();
+        assertThat(result.get(), sameInstance(wikiEntry));
+    }
+
+    /**
+     * Look up entries from several threads while they are repeatedly invalidated and inserted again. Lookups must only
+     * return the inserted entries or nothing, whatever the interleaving.
+     */
+    @Test(timeout = 60000)
+    public void testConcurrentLookupsAndInvalidations() throws Exception
+    {
+        final SecurityRuleEntry wikiEntry = mockSecurityRuleEntry(xwikiRef);
+        final SecurityRuleEntry spaceEntry = mockSecurityRuleEntry(xspaceRef);
+        final SecurityRuleEntry docEntry = mockSecurityRuleEntry(xdocRef);
+        final Map<SecurityReference, SecurityRuleEntry> entries = new HashMap<SecurityReference, SecurityRuleEntry>();
+        entries.put(xwikiRef, wikiEntry);
+        entries.put(xspaceRef, spaceEntry);
+        entries.put(xdocRef, docEntry);
+
+        final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+        final int lookups = 100000;
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int i = 0; i < 4; ++i) {
+            readers.add(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        for (int j = 0; j < lookups; ++j) {
+                            for (Map.Entry<SecurityReference, SecurityRuleEntry> entry : entries.entrySet()) {
+                                SecurityRuleEntry result = securityCache.get(entry.getKey());
+                                if (result != null && result != entry.getValue()) {
+                                    throw new AssertionError("Unexpected entry [" + result + "] for ["
+                                        + entry.getKey() + "]");
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread reader : readers) {
+            reader.start();
+        }
+
+        for (int i = 0; i < 1000; ++i) {
+            securityCache.add(wikiEntry);
+            securityCache.add(spaceEntry);
+            securityCache.add(docEntry);
+            securityCache.remove(xwikiRef);
+        }
+
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertTrue(String.valueOf(errors.peek()), errors.isEmpty());
+        assertThat(securityCache.get(xdocRef), nullValue());
+    }
 }
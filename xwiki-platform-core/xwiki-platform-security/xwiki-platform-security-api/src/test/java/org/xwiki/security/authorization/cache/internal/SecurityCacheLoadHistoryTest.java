@@ -0,0 +1,82 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.security.authorization.cache.internal;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.model.reference.WikiReference;
+
+/**
+ * Unit tests for {@link SecurityCacheLoadHistory}.
+ *
+ * @version $Id$
+ */
+public class SecurityCacheLoadHistoryTest
+{
+    private final SecurityCacheLoadHistory history = new SecurityCacheLoadHistory();
+
+    private final DocumentReference user = new DocumentReference("wiki", "XWiki", "user");
+
+    @Test
+    public void mostFrequentlyAccessedEntriesComeFirst()
+    {
+        DocumentReference rare = new DocumentReference("wiki", "Space", "Rare");
+        DocumentReference frequent = new DocumentReference("wiki", "Space", "Frequent");
+        SpaceReference space = new SpaceReference("Space", new WikiReference("wiki"));
+
+        this.history.record(this.user, rare);
+        this.history.record(this.user, space);
+        this.history.record(this.user, space);
+        for (int i = 0; i < 3; i++) {
+            this.history.record(this.user, frequent);
+        }
+        this.history.record(null, frequent);
+        this.history.record(this.user, null);
+
+        List<SecurityCacheLoadHistory.Entry> entries = this.history.getEntries();
+
+        Assert.assertEquals(Arrays.asList(new SecurityCacheLoadHistory.Entry(this.user, frequent),
+            new SecurityCacheLoadHistory.Entry(this.user, space)), entries.subList(0, 2));
+        Assert.assertEquals(4, entries.size());
+    }
+
+    @Test
+    public void leastFrequentlyAccessedEntriesAreForgotten()
+    {
+        DocumentReference frequent = new DocumentReference("wiki", "Space", "Frequent");
+        for (int i = 0; i < 10; i++) {
+            this.history.record(this.user, frequent);
+        }
+
+        for (int i = 0; i < 20000; i++) {
+            this.history.record(this.user, new DocumentReference("wiki", "Space", "Page" + i));
+        }
+
+        List<SecurityCacheLoadHistory.Entry> entries = this.history.getEntries();
+
+        Assert.assertEquals(1000, entries.size());
+        Assert.assertEquals(new SecurityCacheLoadHistory.Entry(this.user, frequent), entries.get(0));
+    }
+}
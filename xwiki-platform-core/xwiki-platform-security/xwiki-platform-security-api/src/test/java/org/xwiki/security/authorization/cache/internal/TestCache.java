@@ -20,8 +20,10 @@
 
 package org.xwiki.security.authorization.cache.internal;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.xwiki.cache.Cache;
 import org.xwiki.cache.CacheEntry;
@@ -42,10 +44,15 @@
  */
 public class TestCache<T> implements Cache<T>
 {
-    private Map<String, T> cache = new HashMap<String, T>();
+    private Map<String, T> cache = new ConcurrentHashMap<String, T>();
     private CacheEntryListener<T> listener;
     private String lastInsertedKey;
 
+    private final AtomicReference<Thread> pausedReader = new AtomicReference<Thread>();
+    private final AtomicReference<Thread> pausedRemover = new AtomicReference<Thread>();
+    private final CountDownLatch paused = new CountDownLatch(1);
+    private final CountDownLatch resumed = new CountDownLatch(1);
+
     class TestCacheEntry implements CacheEntry<T>
     {
         private final String key;
@@ -110,18 +117,33 @@ public void set(String key, T value)
     @Override
     public T get(String key)
     {
-        return cache.get(key);
+        T value = cache.get(key);
+        pauseIfRequested(pausedReader);
+        return value;
     }
 
     @Override
     public void remove(String key)
     {
         T value = cache.remove(key);
+        pauseIfRequested(pausedRemover);
         if (listener != null) {
             listener.cacheEntryRemoved(getEvent(key, value));
         }
     }
 
+    private void pauseIfRequested(AtomicReference<Thread> pausedThread)
+    {
+        if (pausedThread.compareAndSet(Thread.currentThread(), null)) {
+            paused.countDown();
+            try {
+                resumed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     @Override
     public void removeAll()
     {
@@ -150,4 +172,42 @@ public String getLastInsertedKey()
     {
         return lastInsertedKey;
     }
+
+    /**
+     * Pause the given thread just after its next read in the cache, until {@link #resume()} is called.
+     *
+     * @param thread the thread to pause
+     */
+    public void pauseNextRead(Thread thread)
+    {
+        pausedReader.set(thread);
+    }
+
+    /**
+     * Pause the given thread just after its next removal from the cache, until {@link #resume()} is called.
+     *
+     * @param thread the thread to pause
+     */
+    public void pauseNextRemove(Thread thread)
+    {
+        pausedRemover.set(thread);
+    }
+
+    /**
+     * Wait for the thread passed to {@link #pauseNextRead(Thread)} or {@link #pauseNextRemove(Thread)} to be paused.
+     *
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public void awaitPaused() throws InterruptedException
+    {
+        paused.await();
+    }
+
+    /**
+     * Resume the paused thread.
+     */
+    public void resume()
+    {
+        resumed.countDown();
+    }
 }
@@ -50,6 +50,7 @@
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.internal.event.DocumentInvalidatedEvent;
 import com.xpn.xwiki.user.api.XWikiGroupService;
 
 /**
@@ -129,6 +130,8 @@ public List<Event> getEvents()
             new DocumentCreatedEvent(),
             new DocumentUpdatedEvent(),
             new DocumentDeletedEvent(),
+            // Group documents are never sent as invalidations so there's no group members to invalidate
+            new DocumentInvalidatedEvent(),
         };
         return Arrays.asList(events);
     }
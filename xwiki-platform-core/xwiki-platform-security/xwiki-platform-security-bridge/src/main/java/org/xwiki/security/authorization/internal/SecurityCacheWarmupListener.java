@@ -0,0 +1,289 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.security.authorization.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.bridge.event.ApplicationReadyEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.ApplicationStoppedEvent;
+import org.xwiki.observation.event.Event;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.security.authorization.cache.internal.SecurityCacheLoadHistory;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.util.AbstractXWikiRunnable;
+
+/**
+ * Warm up the security cache after a restart.
+ * <p>
+ * The couples of user and entity most frequently accessed in the security cache are saved when the application stops
+ * and loaded again in the background when the application is ready. Only the references are saved: the rules are read
+ * again from the current version of the documents, so the snapshot can never grant an access which has been removed
+ * in the meantime.
+ *
+ * @version $Id$
+ * @since 5.4M1
+ */
+@Component
+@Named("security.cache.warmup")
+@Singleton
+public class SecurityCacheWarmupListener implements EventListener
+{
+    /** Name of the property indicating if the cache should be warmed up at startup. */
+    private static final String PROPNAME_ENABLED = "security.cache.warmup.enabled";
+
+    /** The events to listen to. */
+    private static final List<Event> EVENTS =
+        Arrays.<Event>asList(new ApplicationReadyEvent(), new ApplicationStoppedEvent());
+
+    /** Separator of the fields of a line of the snapshot. */
+    private static final String SEPARATOR = "\t";
+
+    /** Logger. */
+    @Inject
+    private Logger logger;
+
+    /** Obtain configuration from the xwiki.properties file. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** Used to get the permanent directory. */
+    @Inject
+    private Environment environment;
+
+    /** The couples most frequently accessed in the cache. */
+    @Inject
+    private SecurityCacheLoadHistory loadHistory;
+
+    /** Used to load the entries into the cache. */
+    @Inject
+    private AuthorizationManager authorizationManager;
+
+    /** Used to save the references. */
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    /** Used to read the saved references. */
+    @Inject
+    private EntityReferenceResolver<String> resolver;
+
+    /** The warm up in progress, if any. */
+    private volatile WarmupRunnable warmup;
+
+    /**
+     * Load the saved entries into the cache.
+     *
+     * @version $Id$
+     */
+    private class WarmupRunnable extends AbstractXWikiRunnable
+    {
+        /** The context of the thread which started the warm up. */
+        private final XWikiContext xcontext;
+
+        /** The entries to load. */
+        private final List<SecurityCacheLoadHistory.Entry> entries;
+
+        /** True when the warm up should be stopped. */
+        private volatile boolean stopped;
+
+        /**
+         * @param xcontext the context of the thread which started the warm up
+         * @param entries the entries to load
+         */
+        WarmupRunnable(XWikiContext xcontext, List<SecurityCacheLoadHistory.Entry> entries)
+        {
+            this.xcontext = xcontext.clone();
+            this.entries = entries;
+        }
+
+        @Override
+        protected void declareProperties(ExecutionContext executionContext)
+        {
+            this.xcontext.declareInExecutionContext(executionContext);
+        }
+
+        @Override
+        protected void runInternal()
+        {
+            long start = System.currentTimeMillis();
+            int loaded = 0;
+
+            for (SecurityCacheLoadHistory.Entry entry : this.entries) {
+                if (this.stopped) {
+                    break;
+                }
+
+                // The access is not important, asking for it loads everything needed to settle it
+                authorizationManager.hasAccess(Right.VIEW, entry.getUser(), entry.getEntity());
+                loaded++;
+            }
+
+            logger.info("Security cache warmed up with [{}] entries in [{}] ms", loaded,
+                System.currentTimeMillis() - start);
+        }
+
+        /**
+         * Stop the warm up.
+         */
+        void stop()
+        {
+            this.stopped = true;
+        }
+    }
+
+    @Override
+    public String getName()
+    {
+        return "security.cache.warmup";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return EVENTS;
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (!this.configuration.getProperty(PROPNAME_ENABLED, true)) {
+            return;
+        }
+
+        if (event instanceof ApplicationReadyEvent) {
+            startWarmup((XWikiContext) data);
+        } else {
+            if (this.warmup != null) {
+                this.warmup.stop();
+            }
+
+            saveSnapshot();
+        }
+    }
+
+    /**
+     * @return the file where the snapshot is saved
+     */
+    private File getSnapshotFile()
+    {
+        return new File(this.environment.getPermanentDirectory(), "cache/security/warmup.txt");
+    }
+
+    /**
+     * Start loading the saved entries in a background thread.
+     *
+     * @param xcontext the current context
+     */
+    private void startWarmup(XWikiContext xcontext)
+    {
+        List<SecurityCacheLoadHistory.Entry> entries = readSnapshot();
+
+        if (!entries.isEmpty()) {
+            this.warmup = new WarmupRunnable(xcontext, entries);
+
+            Thread thread = new Thread(this.warmup, "XWiki Security Cache Warmup");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+    }
+
+    /**
+     * @return the entries saved when the application stopped
+     */
+    private List<SecurityCacheLoadHistory.Entry> readSnapshot()
+    {
+        List<SecurityCacheLoadHistory.Entry> entries = new ArrayList<SecurityCacheLoadHistory.Entry>();
+
+        File file = getSnapshotFile();
+        if (file.exists()) {
+            try {
+                for (String line : FileUtils.readLines(file, "UTF-8")) {
+                    String[] fields = StringUtils.splitPreserveAllTokens(line, SEPARATOR);
+                    if (fields.length == 3) {
+                        try {
+                            DocumentReference user = StringUtils.isEmpty(fields[1]) ? null
+                                : new DocumentReference(this.resolver.resolve(fields[1], EntityType.DOCUMENT));
+                            EntityReference entity =
+                                this.resolver.resolve(fields[2], EntityType.valueOf(fields[0]));
+
+                            entries.add(new SecurityCacheLoadHistory.Entry(user, entity));
+                        } catch (Exception e) {
+                            this.logger.debug("Skipping invalid security cache warmup entry [{}]", line, e);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                this.logger.warn("Failed to read the security cache warmup snapshot [{}]", file, e);
+            }
+        }
+
+        return entries;
+    }
+
+    /**
+     * Save the entries most frequently accessed in the cache.
+     */
+    private void saveSnapshot()
+    {
+        List<String> lines = new ArrayList<String>();
+        for (SecurityCacheLoadHistory.Entry entry : this.loadHistory.getEntries()) {
+            StringBuilder line = new StringBuilder();
+            line.append(entry.getEntity().getType().name());
+            line.append(SEPARATOR);
+            if (entry.getUser() != null) {
+                line.append(this.serializer.serialize(entry.getUser()));
+            }
+            line.append(SEPARATOR);
+            line.append(this.serializer.serialize(entry.getEntity()));
+            lines.add(line.toString());
+        }
+
+        File file = getSnapshotFile();
+        try {
+            FileUtils.writeLines(file, "UTF-8", lines);
+        } catch (IOException e) {
+            this.logger.warn("Failed to save the security cache warmup snapshot [{}]", file, e);
+        }
+    }
+}
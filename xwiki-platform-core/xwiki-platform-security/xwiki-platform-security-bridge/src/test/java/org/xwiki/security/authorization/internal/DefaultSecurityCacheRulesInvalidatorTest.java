@@ -0,0 +1,99 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.security.authorization.internal;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.event.Event;
+import org.xwiki.security.SecurityReference;
+import org.xwiki.security.SecurityReferenceFactory;
+import org.xwiki.security.authorization.cache.SecurityCache;
+import org.xwiki.security.authorization.cache.SecurityCacheRulesInvalidator;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.internal.event.DocumentInvalidatedEvent;
+
+/**
+ * Unit tests for {@link DefaultSecurityCacheRulesInvalidator}.
+ * 
+ * @version $Id$
+ */
+public class DefaultSecurityCacheRulesInvalidatorTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<SecurityCacheRulesInvalidator> mocker =
+        new MockitoComponentMockingRule<SecurityCacheRulesInvalidator>(DefaultSecurityCacheRulesInvalidator.class);
+
+    @Test
+    public void listensToDocumentInvalidations() throws Exception
+    {
+        boolean found = false;
+        for (Event event : ((DefaultSecurityCacheRulesInvalidator) this.mocker.getComponentUnderTest()).getEvents()) {
+            found |= event instanceof DocumentInvalidatedEvent;
+        }
+
+        assertTrue(found);
+    }
+
+    @Test
+    public void documentInvalidationEvictsTheDocumentRules() throws Exception
+    {
+        DocumentReference reference = new DocumentReference("wiki", "Space", "Page");
+        XWikiDocument document = mock(XWikiDocument.class);
+        when(document.getDocumentReference()).thenReturn(reference);
+
+        SecurityReference securityReference = mock(SecurityReference.class);
+        SecurityReferenceFactory factory = this.mocker.getInstance(SecurityReferenceFactory.class);
+        when(factory.newEntityReference(reference)).thenReturn(securityReference);
+
+        ((DefaultSecurityCacheRulesInvalidator) this.mocker.getComponentUnderTest()).onEvent(
+            new DocumentInvalidatedEvent(reference), document, "2.1");
+
+        SecurityCache securityCache = this.mocker.getInstance(SecurityCache.class);
+        verify(securityCache).remove(securityReference);
+    }
+
+    @Test
+    public void spaceInvalidationEvictsTheSpaceRules() throws Exception
+    {
+        DocumentReference reference = new DocumentReference("wiki", "Space", "WebPreferences");
+        XWikiDocument document = mock(XWikiDocument.class);
+        when(document.getDocumentReference()).thenReturn(reference);
+
+        SecurityReference securityReference = mock(SecurityReference.class);
+        SecurityReferenceFactory factory = this.mocker.getInstance(SecurityReferenceFactory.class);
+        when(factory.newEntityReference(reference.getParent())).thenReturn(securityReference);
+
+        ((DefaultSecurityCacheRulesInvalidator) this.mocker.getComponentUnderTest()).onEvent(
+            new DocumentInvalidatedEvent(reference), document, "2.1");
+
+        SecurityCache securityCache = this.mocker.getInstance(SecurityCache.class);
+        verify(securityCache).remove(securityReference);
+        verify(document).getXObjects(any(DocumentReference.class));
+    }
+}
@@ -23,6 +23,7 @@
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -49,6 +50,7 @@
 import com.xpn.xwiki.objects.BaseObject;
 import com.xpn.xwiki.objects.classes.BaseClass;
 import com.xpn.xwiki.web.Utils;
+import com.xpn.xwiki.web.sx.SxBundleSource;
 
 /**
  * Abstract SX plugin for wiki-document-based extensions (Extensions written as object of a XWiki Extension class).
@@ -72,6 +74,17 @@ public abstract class AbstractDocumentSkinExtensionPlugin extends AbstractSkinEx
      */
     private static final String USE_FIELDNAME = "use";
 
+    /**
+     * The name of the preference (in the configuration file) specifying if the extensions pulled in a page should be
+     * aggregated in bundles, to reduce the number of requests made by the client.
+     */
+    private static final String AGGREGATE_PARAM = "xwiki.plugins.skinx.aggregate";
+
+    /**
+     * The separator between the parameters of the bundle URL, escaped since the URL is printed in the XHTML result.
+     */
+    private static final String QUERY_SEPARATOR = "&amp;";
+
     /**
      * A Map with wiki/database name as keys and sets of extensions to use always for this wiki as values.
      */
@@ -265,6 +278,138 @@ public void use(String resource, Map<String, Object> parameters, XWikiContext co
         getParametersMap(context).put(canonicalResource, parameters);
     }
 
+    /**
+     * Composes the linking element pointing to a bundle of extensions.
+     * 
+     * @param url the URL of the bundle
+     * @param context the current request context
+     * @return a {@code String} representation of the linking element that should be printed in the generated HTML, or
+     *         {@code null} if this type of extension can't be bundled
+     * @since 5.4M1
+     */
+    protected String getBundleLink(String url, XWikiContext context)
+    {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * When aggregation is enabled, consecutive extensions which can be bundled are linked with a single URL, listing
+     * the documents and carrying a hash of their versions, so that the bundle can be cached forever by the client. The
+     * order of the extensions is preserved.
+     * </p>
+     * 
+     * @see AbstractSkinExtensionPlugin#getLinks(Set, XWikiContext)
+     */
+    @Override
+    protected String getLinks(Set<String> extensions, XWikiContext context)
+    {
+        if (context.getWiki().ParamAsLong(AGGREGATE_PARAM, 0) != 1) {
+            return super.getLinks(extensions, context);
+        }
+
+        StringBuilder result = new StringBuilder();
+        List<String> bundleNames = new ArrayList<String>();
+        List<XWikiDocument> bundleDocuments = new ArrayList<XWikiDocument>();
+        for (String documentName : extensions) {
+            XWikiDocument document = getBundledDocument(documentName, context);
+            if (document != null) {
+                bundleNames.add(documentName);
+                bundleDocuments.add(document);
+            } else {
+                result.append(getBundleLinks(bundleNames, bundleDocuments, context));
+                bundleNames.clear();
+                bundleDocuments.clear();
+                result.append(getLink(documentName, context));
+            }
+        }
+        result.append(getBundleLinks(bundleNames, bundleDocuments, context));
+
+        return result.toString();
+    }
+
+    /**
+     * Composes the link to a bundle of extensions.
+     * 
+     * @param names the names of the bundled extensions
+     * @param documents the documents containing the bundled extensions
+     * @param context the current request context
+     * @return the link to the bundle, or the link to the extension if there is only one
+     */
+    private String getBundleLinks(List<String> names, List<XWikiDocument> documents, XWikiContext context)
+    {
+        if (documents.isEmpty()) {
+            return "";
+        } else if (documents.size() == 1) {
+            return getLink(names.get(0), context);
+        }
+
+        StringBuilder query = new StringBuilder("language=");
+        query.append(sanitize(context.getLanguage()));
+        query.append(QUERY_SEPARATOR);
+        query.append(SxBundleSource.HASH_PARAMETER);
+        query.append('=');
+        query.append(SxBundleSource.getHash(documents));
+        for (XWikiDocument document : documents) {
+            query.append(QUERY_SEPARATOR);
+            query.append(SxBundleSource.DOCUMENT_PARAMETER);
+            query.append('=');
+            query.append(sanitize(document.getPrefixedFullName()));
+        }
+
+        String link = getBundleLink(
+            context.getWiki().getURL(documents.get(0).getPrefixedFullName(), getName(), query.toString(), context),
+            context);
+        if (link == null) {
+            link = super.getLinks(new LinkedHashSet<String>(names), context);
+        }
+
+        return link;
+    }
+
+    /**
+     * Only the extensions pulled without parameters, which are not parsed and which can be cached for a long time are
+     * bundled: the content of the other ones depends on the request.
+     * 
+     * @param documentName the name of the document containing the extension
+     * @param context the current request context
+     * @return the document containing the extension if it can be bundled, {@code null} otherwise
+     */
+    private XWikiDocument getBundledDocument(String documentName, XWikiContext context)
+    {
+        if (!getParametersForResource(documentName, context).isEmpty()) {
+            return null;
+        }
+
+        try {
+            XWikiDocument document = context.getWiki().getDocument(documentName, context);
+            if (document.isNew()
+                || !context.getWiki().getRightService()
+                    .hasAccessLevel("view", context.getUser(), document.getPrefixedFullName(), context)) {
+                return null;
+            }
+
+            List<BaseObject> objects = document.getObjects(getExtensionClassName());
+            if (objects != null) {
+                for (BaseObject obj : objects) {
+                    if (obj != null
+                        && (obj.getIntValue("parse") == 1 || !StringUtils.equalsIgnoreCase(
+                            StringUtils.defaultIfEmpty(obj.getStringValue("cache"), "long"), "long"))) {
+                        return null;
+                    }
+                }
+            }
+
+            return document;
+        } catch (XWikiException e) {
+            LOGGER.warn("Failed to load skin extension [{}], it won't be bundled: [{}]", documentName,
+                e.getMessage());
+
+            return null;
+        }
+    }
+
     /**
      * {@inheritDoc}
      * <p>
@@ -211,7 +211,6 @@ protected void initializeRequestListIfNeeded(XWikiContext context)
      */
     public String getImportString(XWikiContext context)
     {
-        StringBuilder result = new StringBuilder();
         // Using LinkedHashSet to preserve the extensions order.
         Set<String> extensions = new LinkedHashSet<String>();
         // First, we add to the import string the extensions that should always be used.
@@ -226,6 +225,20 @@ public String getImportString(XWikiContext context)
             extensions.add(context.getDoc().getFullName());
         }
 
+        return getLinks(extensions, context);
+    }
+
+    /**
+     * Composes the links to the passed resources.
+     * 
+     * @param extensions the names of the resources to link, in order
+     * @param context the current request context
+     * @return a XHTML fragment with the import statements of the passed extensions
+     * @since 5.4M1
+     */
+    protected String getLinks(Set<String> extensions, XWikiContext context)
+    {
+        StringBuilder result = new StringBuilder();
         for (String documentName : extensions) {
             result.append(getLink(documentName, context));
         }
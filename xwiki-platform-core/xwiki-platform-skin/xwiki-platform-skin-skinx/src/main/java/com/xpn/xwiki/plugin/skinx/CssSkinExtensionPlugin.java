@@ -69,10 +69,15 @@ public void virtualInit(XWikiContext context)
     @Override
     public String getLink(String documentName, XWikiContext context)
     {
-        return "<link rel='stylesheet' type='text/css' href='"
-            + context.getWiki().getURL(documentName, PLUGIN_NAME,
-                "language=" + sanitize(context.getLanguage()) + parametersAsQueryString(documentName, context),
-                context) + "'/>";
+        return getBundleLink(context.getWiki().getURL(documentName, PLUGIN_NAME,
+            "language=" + sanitize(context.getLanguage()) + parametersAsQueryString(documentName, context), context),
+            context);
+    }
+
+    @Override
+    protected String getBundleLink(String url, XWikiContext context)
+    {
+        return "<link rel='stylesheet' type='text/css' href='" + url + "'/>";
     }
 
     @Override
@@ -77,14 +77,32 @@ public void virtualInit(XWikiContext context)
 
     @Override
     public String getLink(String documentName, XWikiContext context)
+    {
+        return getScriptLink(context.getWiki().getURL(documentName, PLUGIN_NAME,
+            "language=" + sanitize(context.getLanguage()) + parametersAsQueryString(documentName, context), context),
+            (Boolean) getParameter("defer", documentName, context), context);
+    }
+
+    @Override
+    protected String getBundleLink(String url, XWikiContext context)
+    {
+        return getScriptLink(url, null, context);
+    }
+
+    /**
+     * @param url the URL of the script
+     * @param defer whether the script should be deferred, {@code null} to use the configured default
+     * @param context the current request context
+     * @return the script element that should be printed in the generated HTML
+     */
+    private String getScriptLink(String url, Boolean defer, XWikiContext context)
     {
         StringBuilder result = new StringBuilder("<script type='text/javascript' src='");
-        result.append(context.getWiki().getURL(documentName, PLUGIN_NAME,
-            "language=" + sanitize(context.getLanguage()) + parametersAsQueryString(documentName, context), context));
+        result.append(url);
         // check if js should be deferred, defaults to the preference configured in the cfg file, which defaults to true
         String defaultDeferString = context.getWiki().Param(DEFER_DEFAULT_PARAM);
         Boolean defaultDefer = (!StringUtils.isEmpty(defaultDeferString)) ? Boolean.valueOf(defaultDeferString) : true;
-        if (BooleanUtils.toBooleanDefaultIfNull((Boolean) getParameter("defer", documentName, context), defaultDefer)) {
+        if (BooleanUtils.toBooleanDefaultIfNull(defer, defaultDefer)) {
             result.append("' defer='defer");
         }
         result.append("'></script>\n");
@@ -20,16 +20,26 @@
 package com.xpn.xwiki.web.sx;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.lang3.BooleanUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.skinx.internal.SxOutput;
+import org.xwiki.skinx.internal.SxOutputCache;
 
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.web.Utils;
 import com.xpn.xwiki.web.XWikiAction;
 import com.xpn.xwiki.web.XWikiRequest;
 import com.xpn.xwiki.web.XWikiResponse;
@@ -50,6 +60,9 @@ public abstract class AbstractSxAction extends XWikiAction
     /** How many milliseconds a file should be cached for if it sets CachePolicy to SHORT, hardcoded to 1 day. */
     private static final long SHORT_CACHE_DURATION = 1 * 24 * 3600 * 1000L;
 
+    /** How many milliseconds a bundle with an up to date hash should be cached for, hardcoded to 1 year. */
+    private static final long BUNDLE_CACHE_DURATION = 365 * 24 * 3600 * 1000L;
+
     /** What http header parameter is used to specify when a file was last modified. */
     private static final String LAST_MODIFIED_HEADER = "Last-Modified";
 
@@ -59,6 +72,18 @@ public abstract class AbstractSxAction extends XWikiAction
     /** What http header parameter is used to specify when the cache should expire. */
     private static final String CACHE_EXPIRES_HEADER = "Expires";
 
+    /** What http header parameter is used to specify the entity tag of the content. */
+    private static final String ETAG_HEADER = "ETag";
+
+    /** What http header parameter is used by the client to send the entity tags it already has. */
+    private static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+
+    /** What http header parameter is used by the client to list the content encodings it supports. */
+    private static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+
+    /** The gzip content encoding. */
+    private static final String GZIP_ENCODING = "gzip";
+
     /** The response will be sent to the browser as a byte array in this character set. */
     private static final String RESPONSE_CHARACTER_SET = "UTF-8";
 
@@ -86,8 +111,6 @@ public void renderExtension(SxSource sxSource, Extension sxType, XWikiContext co
         XWikiRequest request = context.getRequest();
         XWikiResponse response = context.getResponse();
 
-        String extensionContent = sxSource.getContent();
-
         response.setContentType(sxType.getContentType());
 
         if (sxSource.getLastModifiedDate() > 0) {
@@ -109,36 +132,204 @@ public void renderExtension(SxSource sxSource, Extension sxType, XWikiContext co
             response.setHeader(CACHE_CONTROL_HEADER, "no-cache, no-store, must-revalidate");
         }
 
-        if (BooleanUtils.toBoolean(StringUtils.defaultIfEmpty(
-            request.get(COMPRESS_SCRIPT_REQUEST_PARAMETER), "true"))) {
-            extensionContent = sxType.getCompressor().compress(extensionContent);
+        // The URL of a bundle changes as soon as one of the bundled documents is modified, so the client never has to
+        // check for a new version.
+        if (cachePolicy == CachePolicy.LONG && sxSource instanceof SxBundleSource
+            && ((SxBundleSource) sxSource).getHash().equals(request.get(SxBundleSource.HASH_PARAMETER))) {
+            response.setHeader(CACHE_CONTROL_HEADER, "public, max-age=" + BUNDLE_CACHE_DURATION / 1000
+                + ", immutable");
+            response.setDateHeader(CACHE_EXPIRES_HEADER, (new Date()).getTime() + BUNDLE_CACHE_DURATION);
         }
 
+        boolean minify =
+            BooleanUtils.toBoolean(StringUtils.defaultIfEmpty(request.get(COMPRESS_SCRIPT_REQUEST_PARAMETER), "true"));
+
         try {
-            response.setContentLength(extensionContent.getBytes(RESPONSE_CHARACTER_SET).length);
-            response.getOutputStream().write(extensionContent.getBytes(RESPONSE_CHARACTER_SET));
+            if (cachePolicy == CachePolicy.FORBID) {
+                byte[] bytes = getContent(sxSource, sxType, minify);
+                response.setContentLength(bytes.length);
+                response.getOutputStream().write(bytes);
+            } else {
+                sendOutput(getOutput(sxSource, sxType, minify, context), context);
+            }
         } catch (IOException ex) {
             getLogger().warn("Failed to send SX content: [{}]", ex.getMessage());
         }
 
     }
 
+    /**
+     * Get the generated content of the extension from the cache, generating it when it's not already there.
+     * 
+     * @param sxSource the source of the extension
+     * @param sxType the type of extension
+     * @param minify true if the content should be minified
+     * @param context the XWiki context when rendering the skin extension
+     * @return the generated content of the extension
+     * @throws IOException when failing to generate the content
+     */
+    private SxOutput getOutput(SxSource sxSource, Extension sxType, boolean minify, XWikiContext context)
+        throws IOException
+    {
+        SxOutputCache cache = Utils.getComponent(SxOutputCache.class);
+
+        SxOutput output;
+        if (sxSource instanceof SxBundleSource) {
+            // The bundle is removed from the cache as soon as one of the bundled documents is modified.
+            List<XWikiDocument> documents = ((SxBundleSource) sxSource).getDocuments();
+            List<DocumentReference> dependencies = new ArrayList<DocumentReference>(documents.size());
+            for (XWikiDocument document : documents) {
+                dependencies.add(document.getDocumentReference());
+            }
+            DocumentReference documentReference = dependencies.get(0);
+            Object[] extensions = new Object[] {sxType.getClassName(), minify, SxBundleSource.HASH_PARAMETER,
+                ((SxBundleSource) sxSource).getHash(), context.getLanguage(), getParametersKey(context.getRequest())};
+
+            output = cache.get(documentReference, extensions);
+            if (output == null) {
+                output = createOutput(sxSource, sxType, minify);
+                cache.set(output, dependencies, documentReference, extensions);
+            }
+        } else if (sxSource instanceof SxDocumentSource && ((SxDocumentSource) sxSource).isParsed()) {
+            // The content of a parsed extension can depend on anything (the current user, the skin, a CSRF token,
+            // etc.) so it's generated for each request and only used to compute the entity tag.
+            output = createOutput(sxSource, sxType, minify);
+        } else if (sxSource instanceof SxDocumentSource) {
+            // The document version is part of the key so that a stale entry is never used even if the document event
+            // was not received yet.
+            XWikiDocument document = ((SxDocumentSource) sxSource).getDocument();
+            Object[] extensions = new Object[] {sxType.getClassName(), minify, document.getVersion(),
+                context.getLanguage(), getParametersKey(context.getRequest())};
+
+            output = cache.get(document.getDocumentReference(), extensions);
+            if (output == null) {
+                output = createOutput(sxSource, sxType, minify);
+                cache.set(output, document.getDocumentReference(), extensions);
+            }
+        } else if (sxSource instanceof SxResourceSource) {
+            String key = ((SxResourceSource) sxSource).getResourceName() + ':' + minify;
+
+            output = cache.get(key);
+            if (output == null) {
+                output = createOutput(sxSource, sxType, minify);
+                cache.set(output, key);
+            }
+        } else {
+            output = createOutput(sxSource, sxType, minify);
+        }
+
+        return output;
+    }
+
+    /**
+     * @param sxSource the source of the extension
+     * @param sxType the type of extension
+     * @param minify true if the content should be minified
+     * @return the generated content of the extension
+     * @throws IOException when failing to generate the content
+     */
+    private SxOutput createOutput(SxSource sxSource, Extension sxType, boolean minify) throws IOException
+    {
+        return new SxOutput(getContent(sxSource, sxType, minify));
+    }
+
+    /**
+     * @param sxSource the source of the extension
+     * @param sxType the type of extension
+     * @param minify true if the content should be minified
+     * @return the generated content of the extension, encoded
+     * @throws IOException when failing to encode the content
+     */
+    private byte[] getContent(SxSource sxSource, Extension sxType, boolean minify) throws IOException
+    {
+        String extensionContent = sxSource.getContent();
+
+        if (minify) {
+            extensionContent = sxType.getCompressor().compress(extensionContent);
+        }
+
+        return extensionContent.getBytes(RESPONSE_CHARACTER_SET);
+    }
+
+    /**
+     * @param request the current request
+     * @return a key representing the request parameters, independent of their order in the URL
+     */
+    private String getParametersKey(XWikiRequest request)
+    {
+        Map<String, String[]> parameters = request.getParameterMap();
+        if (parameters == null || parameters.isEmpty()) {
+            return "";
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, String[]> entry : new TreeMap<String, String[]>(parameters).entrySet()) {
+            builder.append(entry.getKey());
+            builder.append('=');
+            builder.append(Arrays.toString(entry.getValue()));
+            builder.append('&');
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Send the passed content to the client, gzip compressed if the client supports it, or just a "Not Modified"
+     * status if the client already has it.
+     * 
+     * @param output the content to send
+     * @param context the XWiki context when rendering the skin extension
+     * @throws IOException when failing to send the content
+     */
+    private void sendOutput(SxOutput output, XWikiContext context) throws IOException
+    {
+        XWikiRequest request = context.getRequest();
+        XWikiResponse response = context.getResponse();
+
+        String acceptEncoding = request.getHeader(ACCEPT_ENCODING_HEADER);
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains(GZIP_ENCODING);
+
+        String etag = output.getETag(gzip);
+        response.setHeader(ETAG_HEADER, etag);
+        response.setHeader("Vary", ACCEPT_ENCODING_HEADER);
+
+        String ifNoneMatch = request.getHeader(IF_NONE_MATCH_HEADER);
+        if (ifNoneMatch != null && (ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(etag))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        if (gzip) {
+            response.setHeader("Content-Encoding", GZIP_ENCODING);
+        }
+
+        byte[] content = output.getContent(gzip);
+        response.setContentLength(content.length);
+        response.getOutputStream().write(content);
+    }
+
     @Override
     public String render(XWikiContext context) throws XWikiException
     {
         SxSource sxSource;
 
-        if (context.getRequest().getParameter(JAR_RESOURCE_REQUEST_PARAMETER) != null) {
-            sxSource = new SxResourceSource(context.getRequest().getParameter(JAR_RESOURCE_REQUEST_PARAMETER));
-        } else {
-            if (context.getDoc().isNew()) {
-                context.getResponse().setStatus(HttpServletResponse.SC_NOT_FOUND);
-                return "docdoesnotexist";
-            }
-            sxSource = new SxDocumentSource(context, getExtensionType());
-        }
+        XWikiRequest request = context.getRequest();
+        String[] bundleDocuments = request.getParameterValues(SxBundleSource.DOCUMENT_PARAMETER);
 
         try {
+            if (request.getParameter(JAR_RESOURCE_REQUEST_PARAMETER) != null) {
+                sxSource = new SxResourceSource(request.getParameter(JAR_RESOURCE_REQUEST_PARAMETER));
+            } else if (request.getParameter(SxBundleSource.HASH_PARAMETER) != null && bundleDocuments != null
+                && bundleDocuments.length > 0) {
+                sxSource = new SxBundleSource(bundleDocuments, context, getExtensionType());
+            } else {
+                if (context.getDoc().isNew()) {
+                    context.getResponse().setStatus(HttpServletResponse.SC_NOT_FOUND);
+                    return "docdoesnotexist";
+                }
+                sxSource = new SxDocumentSource(context, getExtensionType());
+            }
+
             renderExtension(sxSource, getExtensionType(), context);
         } catch (IllegalArgumentException e) {
             // Simply set a 404 status code and return null, so that no unneeded bytes are transfered
@@ -0,0 +1,171 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.web.sx;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * JavaScript or CSS source built by concatenating the extensions stored in several wiki documents, so that they can
+ * be sent to the client in a single request. Only extensions which are not parsed can be bundled, since parsed
+ * extensions expect to be evaluated in the context of their own document.
+ * 
+ * @version $Id$
+ * @since 5.4M1
+ */
+public class SxBundleSource implements SxSource
+{
+    /** The request parameter holding the hash of the bundle, as computed when generating its URL. */
+    public static final String HASH_PARAMETER = "bundle";
+
+    /** The request parameter listing the documents of the bundle. It's repeated for each document. */
+    public static final String DOCUMENT_PARAMETER = "document";
+
+    /** The sources of the bundled extensions, in order. */
+    private final List<SxDocumentSource> sources;
+
+    /** The documents containing the bundled extensions, in order. */
+    private final List<XWikiDocument> documents;
+
+    /**
+     * Inserted between the bundled extensions. A JavaScript extension which doesn't end with a semicolon would
+     * otherwise be merged with the first statement of the next one.
+     */
+    private final String separator;
+
+    /**
+     * Constructor for this extension source.
+     * 
+     * @param documentNames the names of the documents containing the extensions to bundle
+     * @param context the XWikiContext
+     * @param extension the Extension type
+     * @throws IllegalArgumentException when one of the documents does not exist, can't be viewed by the current user or
+     *             contains an extension which cannot be bundled
+     * @throws XWikiException when failing to load one of the documents
+     */
+    public SxBundleSource(String[] documentNames, XWikiContext context, Extension extension) throws XWikiException
+    {
+        this.sources = new ArrayList<SxDocumentSource>(documentNames.length);
+        this.documents = new ArrayList<XWikiDocument>(documentNames.length);
+        this.separator = extension instanceof JsExtension ? ";\n" : "\n";
+
+        for (String documentName : documentNames) {
+            XWikiDocument document = context.getWiki().getDocument(documentName, context);
+            if (document.isNew()
+                || !context.getWiki().getRightService()
+                    .hasAccessLevel("view", context.getUser(), document.getPrefixedFullName(), context)) {
+                throw new IllegalArgumentException("Skin extension [" + documentName + "] can't be bundled");
+            }
+
+            SxDocumentSource source = new SxDocumentSource(document, context, extension);
+            if (source.isParsed()) {
+                throw new IllegalArgumentException("Skin extension [" + documentName + "] is parsed and can't be "
+                    + "bundled");
+            }
+
+            this.sources.add(source);
+            this.documents.add(document);
+        }
+    }
+
+    /**
+     * Compute the hash identifying the content of a bundle. It changes as soon as one of the bundled documents is
+     * modified so that it can be used in the URL of the bundle to allow clients to cache it forever.
+     * 
+     * @param documents the documents containing the bundled extensions, in order
+     * @return the hash of the bundle
+     */
+    public static String getHash(Collection<XWikiDocument> documents)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (XWikiDocument document : documents) {
+            builder.append(document.getPrefixedFullName());
+            builder.append(':');
+            builder.append(document.getVersion());
+            builder.append('\n');
+        }
+
+        return DigestUtils.md5Hex(builder.toString());
+    }
+
+    /**
+     * @return the documents containing the bundled extensions, in order
+     */
+    public List<XWikiDocument> getDocuments()
+    {
+        return Collections.unmodifiableList(this.documents);
+    }
+
+    /**
+     * @return the hash of the bundle content
+     * @see #getHash(Collection)
+     */
+    public String getHash()
+    {
+        return getHash(this.documents);
+    }
+
+    @Override
+    public long getLastModifiedDate()
+    {
+        long lastModifiedDate = 0;
+        for (SxDocumentSource source : this.sources) {
+            lastModifiedDate = Math.max(lastModifiedDate, source.getLastModifiedDate());
+        }
+
+        return lastModifiedDate;
+    }
+
+    @Override
+    public String getContent()
+    {
+        StringBuilder resultBuilder = new StringBuilder();
+        for (SxDocumentSource source : this.sources) {
+            if (resultBuilder.length() > 0) {
+                resultBuilder.append(this.separator);
+            }
+            resultBuilder.append(source.getContent());
+        }
+
+        return resultBuilder.toString();
+    }
+
+    @Override
+    public CachePolicy getCachePolicy()
+    {
+        CachePolicy finalCache = CachePolicy.LONG;
+        for (SxDocumentSource source : this.sources) {
+            CachePolicy cache = source.getCachePolicy();
+            if (cache.compareTo(finalCache) > 0) {
+                finalCache = cache;
+            }
+        }
+
+        return finalCache;
+    }
+}
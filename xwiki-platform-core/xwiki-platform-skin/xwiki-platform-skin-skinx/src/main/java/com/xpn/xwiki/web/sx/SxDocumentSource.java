@@ -71,9 +71,22 @@ public class SxDocumentSource implements SxSource
      * @param extension The Extension type
      */
     public SxDocumentSource(XWikiContext context, Extension extension)
+    {
+        this(context.getDoc(), context, extension);
+    }
+
+    /**
+     * Constructor for this extension source.
+     * 
+     * @param document the document containing the extension
+     * @param context The XWikiContext
+     * @param extension The Extension type
+     * @since 5.4M1
+     */
+    public SxDocumentSource(XWikiDocument document, XWikiContext context, Extension extension)
     {
         this.context = context;
-        this.document = context.getDoc();
+        this.document = document;
         this.extension = extension;
     }
 
@@ -149,4 +162,29 @@ public long getLastModifiedDate()
         return this.document.getDate().getTime();
     }
 
+    /**
+     * @return true if the content of at least one of the extension objects is parsed with Velocity
+     * @since 5.4M1
+     */
+    public boolean isParsed()
+    {
+        if (this.document.getObjects(this.extension.getClassName()) != null) {
+            for (BaseObject sxObj : this.document.getObjects(this.extension.getClassName())) {
+                if (sxObj != null && sxObj.getIntValue(PARSE_CONTENT_PROPERTY_NAME) == 1) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the document containing the extension
+     * @since 5.4M1
+     */
+    public XWikiDocument getDocument()
+    {
+        return this.document;
+    }
+
 }
@@ -75,4 +75,13 @@ public long getLastModifiedDate()
         return 0;
     }
 
+    /**
+     * @return the full path of the resource to use as extension
+     * @since 5.4M1
+     */
+    public String getResourceName()
+    {
+        return this.resourceName;
+    }
+
 }
@@ -0,0 +1,91 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.skinx.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * The final content of a skin extension as sent to the client: encoded, minified when requested, and also compressed
+ * with gzip for the clients supporting it.
+ * 
+ * @version $Id$
+ * @since 5.4M1
+ */
+public class SxOutput
+{
+    /**
+     * The suffix added to the entity tag of the gzip compressed content.
+     */
+    private static final String GZIP_ETAG_SUFFIX = "-gzip";
+
+    /**
+     * The content.
+     */
+    private final byte[] content;
+
+    /**
+     * The content compressed with gzip.
+     */
+    private final byte[] gzipContent;
+
+    /**
+     * The digest of the content, used to generate the entity tags.
+     */
+    private final String digest;
+
+    /**
+     * @param content the content to send
+     * @throws IOException when failing to compress the content
+     */
+    public SxOutput(byte[] content) throws IOException
+    {
+        this.content = content;
+
+        ByteArrayOutputStream gzipStream = new ByteArrayOutputStream(content.length / 4 + 20);
+        GZIPOutputStream gzip = new GZIPOutputStream(gzipStream);
+        gzip.write(content);
+        gzip.close();
+        this.gzipContent = gzipStream.toByteArray();
+
+        this.digest = DigestUtils.md5Hex(content);
+    }
+
+    /**
+     * @param gzip true for the gzip compressed content
+     * @return the content
+     */
+    public byte[] getContent(boolean gzip)
+    {
+        return gzip ? this.gzipContent : this.content;
+    }
+
+    /**
+     * @param gzip true for the gzip compressed content
+     * @return the strong entity tag of the content, including the quotes
+     */
+    public String getETag(boolean gzip)
+    {
+        return '"' + this.digest + (gzip ? GZIP_ETAG_SUFFIX : "") + '"';
+    }
+}
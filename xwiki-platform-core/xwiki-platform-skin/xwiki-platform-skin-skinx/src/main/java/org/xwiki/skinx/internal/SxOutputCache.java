@@ -0,0 +1,152 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.skinx.internal;
+
+import java.util.Collection;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.internal.cache.DocumentCache;
+
+/**
+ * Keep the output of the skin extensions so that they are not generated and minified again for each request. The
+ * output of the extensions stored in documents is removed from the cache when the document is modified.
+ * 
+ * @version $Id$
+ * @since 5.4M1
+ */
+@Component(roles = SxOutputCache.class)
+@Singleton
+public class SxOutputCache implements Initializable
+{
+    /**
+     * Identifier of the cache.
+     */
+    private static final String NAME = "skinx.output";
+
+    /**
+     * The maximum number of outputs kept in each cache.
+     */
+    private static final int SIZE = 500;
+
+    /**
+     * The cache of the extensions stored in documents.
+     */
+    @Inject
+    private DocumentCache<SxOutput> documentCache;
+
+    /**
+     * Used to create the cache of the extensions stored in resources.
+     */
+    @Inject
+    private CacheManager cacheManager;
+
+    /**
+     * The cache of the extensions stored in resources.
+     */
+    private Cache<SxOutput> resourceCache;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        try {
+            this.documentCache.create(createConfiguration(NAME + ".document"));
+            this.resourceCache = this.cacheManager.createNewCache(createConfiguration(NAME + ".resource"));
+        } catch (CacheException e) {
+            throw new InitializationException("Failed to initialize the skin extensions output cache", e);
+        }
+    }
+
+    /**
+     * @param id the identifier of the cache
+     * @return the configuration of the cache
+     */
+    private CacheConfiguration createConfiguration(String id)
+    {
+        CacheConfiguration cacheConfiguration = new CacheConfiguration();
+        cacheConfiguration.setConfigurationId(id);
+        LRUEvictionConfiguration lru = new LRUEvictionConfiguration();
+        lru.setMaxEntries(SIZE);
+        cacheConfiguration.put(LRUEvictionConfiguration.CONFIGURATIONID, lru);
+
+        return cacheConfiguration;
+    }
+
+    /**
+     * @param documentReference the reference of the document containing the extension
+     * @param extensions the extensions to the document reference identifying the output
+     * @return the cached output or {@code null} if none could be found
+     */
+    public SxOutput get(DocumentReference documentReference, Object... extensions)
+    {
+        return this.documentCache.get(documentReference, extensions);
+    }
+
+    /**
+     * @param output the output to cache
+     * @param documentReference the reference of the document containing the extension
+     * @param extensions the extensions to the document reference identifying the output
+     */
+    public void set(SxOutput output, DocumentReference documentReference, Object... extensions)
+    {
+        this.documentCache.set(output, documentReference, extensions);
+    }
+
+    /**
+     * @param output the output to cache
+     * @param dependencies the references of the other documents containing parts of the extension
+     * @param documentReference the reference of the document containing the extension
+     * @param extensions the extensions to the document reference identifying the output
+     */
+    public void set(SxOutput output, Collection<DocumentReference> dependencies, DocumentReference documentReference,
+        Object... extensions)
+    {
+        this.documentCache.set(output, dependencies, documentReference, extensions);
+    }
+
+    /**
+     * @param key the key identifying the output of an extension stored in a resource
+     * @return the cached output or {@code null} if none could be found
+     */
+    public SxOutput get(String key)
+    {
+        return this.resourceCache.get(key);
+    }
+
+    /**
+     * @param output the output to cache
+     * @param key the key identifying the output of an extension stored in a resource
+     */
+    public void set(SxOutput output, String key)
+    {
+        this.resourceCache.set(key, output);
+    }
+}
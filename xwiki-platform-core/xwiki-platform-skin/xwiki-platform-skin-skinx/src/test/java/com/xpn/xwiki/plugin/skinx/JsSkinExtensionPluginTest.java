@@ -0,0 +1,203 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.plugin.skinx;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Vector;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.user.api.XWikiRightService;
+import com.xpn.xwiki.web.sx.SxBundleSource;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for the aggregation of the extensions linked by {@link JsSkinExtensionPlugin}.
+ * 
+ * @version $Id$
+ */
+public class JsSkinExtensionPluginTest
+{
+    private XWikiContext context = mock(XWikiContext.class);
+
+    private XWiki xwiki = mock(XWiki.class);
+
+    private XWikiRightService rightService = mock(XWikiRightService.class);
+
+    private JsSkinExtensionPlugin plugin;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        // The plugin keeps the pulled extensions and their parameters in the context
+        final Map<Object, Object> properties = new HashMap<Object, Object>();
+        when(this.context.containsKey(any())).thenAnswer(new Answer<Boolean>()
+        {
+            @Override
+            public Boolean answer(InvocationOnMock invocation)
+            {
+                return properties.containsKey(invocation.getArguments()[0]);
+            }
+        });
+        when(this.context.get(any())).thenAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                return properties.get(invocation.getArguments()[0]);
+            }
+        });
+        when(this.context.put(any(), any())).thenAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                return properties.put(invocation.getArguments()[0], invocation.getArguments()[1]);
+            }
+        });
+
+        when(this.context.getWiki()).thenReturn(this.xwiki);
+        when(this.context.getLanguage()).thenReturn("en");
+        when(this.context.getUser()).thenReturn("XWiki.XWikiGuest");
+
+        when(this.rightService.hasAccessLevel(eq("view"), eq("XWiki.XWikiGuest"), anyString(), same(this.context)))
+            .thenReturn(true);
+        when(this.xwiki.getRightService()).thenReturn(this.rightService);
+
+        when(this.xwiki.getURL(anyString(), eq("jsx"), anyString(), same(this.context))).thenAnswer(
+            new Answer<String>()
+            {
+                @Override
+                public String answer(InvocationOnMock invocation)
+                {
+                    return "/jsx/" + invocation.getArguments()[0] + '?' + invocation.getArguments()[2];
+                }
+            });
+
+        this.plugin = new JsSkinExtensionPlugin("jsx", JsSkinExtensionPlugin.class.getName(), this.context);
+    }
+
+    /**
+     * @param name the name of the document holding the extension
+     * @param parsed whether the extension is parsed with Velocity
+     * @return the document holding the extension
+     */
+    private XWikiDocument mockExtension(String name, boolean parsed) throws Exception
+    {
+        XWikiDocument document = mock(XWikiDocument.class, name);
+        when(document.getPrefixedFullName()).thenReturn(name);
+        when(document.getVersion()).thenReturn("1.1");
+
+        BaseObject object = mock(BaseObject.class);
+        when(object.getIntValue("parse")).thenReturn(parsed ? 1 : 0);
+        when(object.getStringValue("cache")).thenReturn("long");
+        when(document.getObjects(JsSkinExtensionPlugin.JSX_CLASS_NAME)).thenReturn(
+            new Vector<BaseObject>(Arrays.asList(object)));
+
+        when(this.xwiki.getDocument(name, this.context)).thenReturn(document);
+
+        return document;
+    }
+
+    private String getLink(String name)
+    {
+        return "<script type='text/javascript' src='/jsx/" + name + "?language=en' defer='defer'></script>\n";
+    }
+
+    private String getBundleLink(XWikiDocument... documents)
+    {
+        StringBuilder url = new StringBuilder("/jsx/");
+        url.append(documents[0].getPrefixedFullName());
+        url.append("?language=en&amp;bundle=");
+        url.append(SxBundleSource.getHash(Arrays.asList(documents)));
+        for (XWikiDocument document : documents) {
+            url.append("&amp;document=");
+            url.append(document.getPrefixedFullName().replace(":", "%3A"));
+        }
+
+        return "<script type='text/javascript' src='" + url + "' defer='defer'></script>\n";
+    }
+
+    private String getLinks(String... names)
+    {
+        return this.plugin.getLinks(new LinkedHashSet<String>(Arrays.asList(names)), this.context);
+    }
+
+    @Test
+    public void linksAreNotAggregatedByDefault() throws Exception
+    {
+        mockExtension("wiki:Space.A", false);
+        mockExtension("wiki:Space.B", false);
+
+        Assert.assertEquals(getLink("wiki:Space.A") + getLink("wiki:Space.B"),
+            getLinks("wiki:Space.A", "wiki:Space.B"));
+    }
+
+    @Test
+    public void consecutiveExtensionsAreAggregatedInOrder() throws Exception
+    {
+        when(this.xwiki.ParamAsLong("xwiki.plugins.skinx.aggregate", 0)).thenReturn(1L);
+
+        XWikiDocument a = mockExtension("wiki:Space.A", false);
+        XWikiDocument b = mockExtension("wiki:Space.B", false);
+        mockExtension("wiki:Space.C", true);
+        XWikiDocument d = mockExtension("wiki:Space.D", false);
+        XWikiDocument e = mockExtension("wiki:Space.E", false);
+
+        // The parsed extension is linked on its own and keeps its position
+        Assert.assertEquals(getBundleLink(a, b) + getLink("wiki:Space.C") + getBundleLink(d, e),
+            getLinks("wiki:Space.A", "wiki:Space.B", "wiki:Space.C", "wiki:Space.D", "wiki:Space.E"));
+    }
+
+    @Test
+    public void extensionsWithParametersOrNotViewableAreNotAggregated() throws Exception
+    {
+        when(this.xwiki.ParamAsLong("xwiki.plugins.skinx.aggregate", 0)).thenReturn(1L);
+
+        XWikiDocument a = mockExtension("wiki:Space.A", false);
+        XWikiDocument b = mockExtension("wiki:Space.B", false);
+        mockExtension("wiki:Space.C", false);
+        when(this.rightService.hasAccessLevel("view", "XWiki.XWikiGuest", "wiki:Space.C", this.context)).thenReturn(
+            false);
+        mockExtension("wiki:Space.D", false);
+        this.plugin.getParametersMap(this.context).put("wiki:Space.D",
+            Collections.<String, Object> singletonMap("minify", "false"));
+        mockExtension("wiki:Space.E", false);
+
+        // A single extension left between two extensions which can't be bundled gets its usual link
+        Assert.assertEquals(getBundleLink(a, b) + getLink("wiki:Space.C")
+            + getLink("wiki:Space.D").replace("?language=en", "?language=en&amp;minify=false")
+            + getLink("wiki:Space.E"),
+            getLinks("wiki:Space.A", "wiki:Space.B", "wiki:Space.C", "wiki:Space.D", "wiki:Space.E"));
+    }
+}
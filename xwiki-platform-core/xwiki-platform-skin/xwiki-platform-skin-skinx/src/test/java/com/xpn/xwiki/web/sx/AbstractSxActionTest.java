@@ -0,0 +1,342 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.web.sx;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.skinx.internal.SxOutput;
+import org.xwiki.skinx.internal.SxOutputCache;
+import org.xwiki.test.mockito.MockitoComponentManagerRule;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.user.api.XWikiRightService;
+import com.xpn.xwiki.web.JsxAction;
+import com.xpn.xwiki.web.Utils;
+import com.xpn.xwiki.web.XWikiRequest;
+import com.xpn.xwiki.web.XWikiResponse;
+import com.xpn.xwiki.web.sx.SxSource.CachePolicy;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link AbstractSxAction}.
+ * 
+ * @version $Id$
+ */
+public class AbstractSxActionTest
+{
+    /**
+     * {@link SxOutputCache} storing the outputs in a map.
+     */
+    private static class MemorySxOutputCache extends SxOutputCache
+    {
+        private final Map<Object, SxOutput> outputs = new HashMap<Object, SxOutput>();
+
+        @Override
+        public SxOutput get(DocumentReference documentReference, Object... extensions)
+        {
+            return this.outputs.get(Arrays.asList(documentReference, Arrays.asList(extensions)));
+        }
+
+        @Override
+        public void set(SxOutput output, DocumentReference documentReference, Object... extensions)
+        {
+            this.outputs.put(Arrays.asList(documentReference, Arrays.asList(extensions)), output);
+        }
+
+        @Override
+        public void set(SxOutput output, Collection<DocumentReference> dependencies,
+            DocumentReference documentReference, Object... extensions)
+        {
+            set(output, documentReference, extensions);
+        }
+
+        @Override
+        public SxOutput get(String key)
+        {
+            return this.outputs.get(key);
+        }
+
+        @Override
+        public void set(SxOutput output, String key)
+        {
+            this.outputs.put(key, output);
+        }
+    }
+
+    @Rule
+    public MockitoComponentManagerRule mocker = new MockitoComponentManagerRule();
+
+    private AbstractSxAction action = new JsxAction();
+
+    private Extension extension = mock(Extension.class);
+
+    private SxDocumentSource source = mock(SxDocumentSource.class);
+
+    private XWikiContext context = mock(XWikiContext.class);
+
+    private XWikiRequest request;
+
+    private XWikiResponse response;
+
+    private ByteArrayOutputStream responseContent;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.mocker.registerComponent(SxOutputCache.class, new MemorySxOutputCache());
+        Utils.setComponentManager(this.mocker);
+
+        SxCompressor compressor = mock(SxCompressor.class);
+        when(compressor.compress("content")).thenReturn("minified");
+        when(this.extension.getCompressor()).thenReturn(compressor);
+        when(this.extension.getClassName()).thenReturn("XWiki.JavaScriptExtension");
+        when(this.extension.getContentType()).thenReturn("text/javascript");
+
+        XWikiDocument document = mock(XWikiDocument.class);
+        when(document.getDocumentReference()).thenReturn(new DocumentReference("wiki", "Space", "Page"));
+        when(document.getVersion()).thenReturn("1.1");
+        when(this.source.getDocument()).thenReturn(document);
+        when(this.source.getContent()).thenReturn("content");
+        when(this.source.getCachePolicy()).thenReturn(CachePolicy.LONG);
+
+        when(this.context.getLanguage()).thenReturn("en");
+
+        newRequest();
+    }
+
+    /**
+     * Simulate a new request.
+     */
+    private void newRequest() throws IOException
+    {
+        this.request = mock(XWikiRequest.class);
+        when(this.request.getParameterMap()).thenReturn(Collections.emptyMap());
+        when(this.context.getRequest()).thenReturn(this.request);
+
+        this.response = mock(XWikiResponse.class);
+        this.responseContent = new ByteArrayOutputStream();
+        when(this.response.getOutputStream()).thenReturn(new ServletOutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                responseContent.write(b);
+            }
+        });
+        when(this.context.getResponse()).thenReturn(this.response);
+    }
+
+    /**
+     * @param xwiki the mocked wiki
+     * @param name the name of the document holding the JavaScript extension
+     * @param code the code of the extension
+     * @param parsed whether the extension is parsed with Velocity
+     * @return the document holding the extension
+     */
+    private XWikiDocument mockExtension(XWiki xwiki, String name, String code, boolean parsed) throws Exception
+    {
+        XWikiDocument document = mock(XWikiDocument.class, name);
+        when(document.getPrefixedFullName()).thenReturn(name);
+        when(document.getDocumentReference()).thenReturn(
+            new DocumentReference("wiki", "Space", StringUtils.substringAfter(name, ".")));
+        when(document.getVersion()).thenReturn("1.1");
+        when(document.getDate()).thenReturn(new Date());
+
+        BaseObject object = mock(BaseObject.class);
+        when(object.getLargeStringValue("code")).thenReturn(code);
+        when(object.getIntValue("parse")).thenReturn(parsed ? 1 : 0);
+        when(document.getObjects("XWiki.JavaScriptExtension")).thenReturn(
+            new Vector<BaseObject>(Arrays.asList(object)));
+
+        when(xwiki.getDocument(name, this.context)).thenReturn(document);
+
+        return document;
+    }
+
+    /**
+     * @return the mocked wiki, where the guest user can view all the documents
+     */
+    private XWiki mockWiki() throws Exception
+    {
+        XWiki xwiki = mock(XWiki.class);
+        XWikiRightService rightService = mock(XWikiRightService.class);
+        when(rightService.hasAccessLevel(eq("view"), eq("XWiki.XWikiGuest"), anyString(), same(this.context)))
+            .thenReturn(true);
+        when(xwiki.getRightService()).thenReturn(rightService);
+        when(this.context.getWiki()).thenReturn(xwiki);
+        when(this.context.getUser()).thenReturn("XWiki.XWikiGuest");
+
+        return xwiki;
+    }
+
+    /**
+     * Simulate a request for a bundle, without minification.
+     * 
+     * @param hash the hash of the requested bundle
+     * @param documents the names of the bundled documents
+     */
+    private void bundleRequest(String hash, String... documents)
+    {
+        when(this.request.getParameterValues("document")).thenReturn(documents);
+        when(this.request.getParameter("bundle")).thenReturn(hash);
+        when(this.request.get("bundle")).thenReturn(hash);
+        when(this.request.get("minify")).thenReturn("false");
+    }
+
+    /**
+     * @return the value of the ETag header sent in the current response
+     */
+    private String getETag()
+    {
+        ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+        verify(this.response).setHeader(eq("ETag"), etag.capture());
+
+        return etag.getValue();
+    }
+
+    @Test
+    public void renderCachesTheOutput() throws Exception
+    {
+        this.action.renderExtension(this.source, this.extension, this.context);
+        Assert.assertEquals("minified", this.responseContent.toString("UTF-8"));
+        String etag = getETag();
+
+        newRequest();
+        this.action.renderExtension(this.source, this.extension, this.context);
+        Assert.assertEquals("minified", this.responseContent.toString("UTF-8"));
+        Assert.assertEquals(etag, getETag());
+
+        verify(this.source, times(1)).getContent();
+    }
+
+    @Test
+    public void renderDoesNotCacheParsedExtensions() throws Exception
+    {
+        when(this.source.isParsed()).thenReturn(true);
+
+        this.action.renderExtension(this.source, this.extension, this.context);
+        newRequest();
+        this.action.renderExtension(this.source, this.extension, this.context);
+
+        verify(this.source, times(2)).getContent();
+    }
+
+    @Test
+    public void renderWithMatchingETagReturnsNotModified() throws Exception
+    {
+        this.action.renderExtension(this.source, this.extension, this.context);
+        String etag = getETag();
+
+        newRequest();
+        when(this.request.getHeader("If-None-Match")).thenReturn(etag);
+        this.action.renderExtension(this.source, this.extension, this.context);
+
+        verify(this.response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        Assert.assertEquals(0, this.responseContent.size());
+    }
+
+    @Test
+    public void renderWithOtherETagSendsTheContent() throws Exception
+    {
+        when(this.request.getHeader("If-None-Match")).thenReturn("\"other\"");
+        this.action.renderExtension(this.source, this.extension, this.context);
+
+        verify(this.response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        Assert.assertEquals("minified", this.responseContent.toString("UTF-8"));
+    }
+
+    @Test
+    public void renderCompressesWhenSupported() throws Exception
+    {
+        when(this.request.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+        this.action.renderExtension(this.source, this.extension, this.context);
+
+        verify(this.response).setHeader("Content-Encoding", "gzip");
+        Assert.assertTrue(getETag().endsWith("-gzip\""));
+        Assert.assertArrayEquals(new SxOutput("minified".getBytes("UTF-8")).getContent(true),
+            this.responseContent.toByteArray());
+    }
+
+    @Test
+    public void renderBundleSendsTheExtensionsSeparatedAndCachedForever() throws Exception
+    {
+        XWiki xwiki = mockWiki();
+        XWikiDocument a = mockExtension(xwiki, "wiki:Space.A", "var a = 1", false);
+        XWikiDocument b = mockExtension(xwiki, "wiki:Space.B", "var b = 2", false);
+        bundleRequest(SxBundleSource.getHash(Arrays.asList(a, b)), "wiki:Space.A", "wiki:Space.B");
+
+        this.action.render(this.context);
+
+        // The missing semicolon at the end of the first extension must not break the second one
+        Assert.assertEquals("var a = 1\n;\nvar b = 2\n", this.responseContent.toString("UTF-8"));
+        verify(this.response).setHeader("Cache-Control", "public, max-age=31536000, immutable");
+    }
+
+    @Test
+    public void renderBundleWithOutdatedHashIsNotCachedForever() throws Exception
+    {
+        XWiki xwiki = mockWiki();
+        bundleRequest("outdated", "wiki:Space.A", "wiki:Space.B");
+        mockExtension(xwiki, "wiki:Space.A", "var a = 1", false);
+        mockExtension(xwiki, "wiki:Space.B", "var b = 2", false);
+
+        this.action.render(this.context);
+
+        Assert.assertEquals("var a = 1\n;\nvar b = 2\n", this.responseContent.toString("UTF-8"));
+        verify(this.response).setHeader("Cache-Control", "public");
+        verify(this.response, never()).setHeader("Cache-Control", "public, max-age=31536000, immutable");
+    }
+
+    @Test
+    public void renderBundleWithParsedExtensionIsNotFound() throws Exception
+    {
+        XWiki xwiki = mockWiki();
+        bundleRequest("hash", "wiki:Space.A", "wiki:Space.B");
+        mockExtension(xwiki, "wiki:Space.A", "var a = 1", false);
+        mockExtension(xwiki, "wiki:Space.B", "var b = $b", true);
+
+        this.action.render(this.context);
+
+        verify(this.response).setStatus(HttpServletResponse.SC_NOT_FOUND);
+        Assert.assertEquals(0, this.responseContent.size());
+    }
+}
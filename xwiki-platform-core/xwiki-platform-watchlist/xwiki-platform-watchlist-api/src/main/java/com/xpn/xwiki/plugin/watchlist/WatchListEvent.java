@@ -146,6 +146,16 @@ public class WatchListEvent implements Comparable<WatchListEvent>
      */
     private String htmlDiff;
 
+    /**
+     * Indicate that the HTML diff failed to be computed, so that it's not computed again each time it's asked for.
+     */
+    private boolean htmlDiffFailed;
+
+    /**
+     * External URL of the document in which the event happened.
+     */
+    private String url;
+
     /**
      * Constructor.
      * 
@@ -187,6 +197,7 @@ public void addEvent(WatchListEvent event)
             authors = null;
             previousVersion = null;
             htmlDiff = null;
+            htmlDiffFailed = false;
         } else if (ActivityEventType.UPDATE.equals(event.getType()) && ActivityEventType.DELETE.equals(getType())) {
             // If an update event had been fired before a delete, discard it
             return;
@@ -241,17 +252,34 @@ public String getPrefixedFullName()
      */
     public String getUrl() 
     {
-        String url = "";
-        
-        try {
-            url = context.getWiki().getDocument(getPrefixedFullName(), context).getExternalURL("view", context);
-        } catch (Exception e) {
-            // Do nothing, we don't want to throw exceptions in notification emails.
+        if (url == null) {
+            try {
+                url = context.getWiki().getDocument(getPrefixedFullName(), context).getExternalURL("view", context);
+            } catch (Exception e) {
+                // Do nothing, we don't want to throw exceptions in notification emails.
+                url = "";
+            }
         }
         
         return url;
     }
 
+    /**
+     * Compute all the lazily loaded data of this event (URL, versions, diff, etc.) using the context of the job which
+     * created it. Once prepared the event can be read concurrently by several threads rendering notifications.
+     * 
+     * @since 5.4M1
+     */
+    public void prepare()
+    {
+        getUrl();
+        getDates();
+        getAuthors();
+        getVersions();
+        getPreviousVersion();
+        getHTMLDiff();
+    }
+
     /**
      * @return The date when the event occurred.
      */
@@ -523,7 +551,7 @@ private String getObjectsHTMLDiff(List<List<ObjectDiff>> objectDiffs, boolean is
      */
     public String getHTMLDiff()
     {
-        if (htmlDiff == null) {
+        if (htmlDiff == null && !htmlDiffFailed) {
             try {
                 DiffPluginApi diff = (DiffPluginApi) context.getWiki().getPluginApi("diff", context);
                 StringBuffer result = new StringBuffer();
@@ -567,6 +595,8 @@ public String getHTMLDiff()
             } catch (XWikiException e) {
                 // Catch the exception to be sure we won't send emails containing stacktraces to users.
                 e.printStackTrace();
+
+                htmlDiffFailed = true;
             }
         }
 
@@ -20,9 +20,14 @@
 package com.xpn.xwiki.plugin.watchlist;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.collections.ListUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -36,6 +41,7 @@
 import com.xpn.xwiki.plugin.activitystream.api.ActivityStreamException;
 import com.xpn.xwiki.plugin.activitystream.api.ActivityEvent;
 import com.xpn.xwiki.plugin.activitystream.plugin.ActivityStreamPlugin;
+import com.xpn.xwiki.plugin.watchlist.WatchListStore.ElementType;
 
 /**
  * Matcher for WatchList events. This class store all the events fired during a given interval. It also allows to 
@@ -159,4 +165,65 @@ public List<WatchListEvent> getMatchingEvents(List<String> wikis, List<String> s
 
         return matchingEvents;
     }
+
+    /**
+     * Get the events matching the elements watched by each of the passed subscribers, going through the events only
+     * once.
+     * 
+     * @param index the index of the elements watched by the subscribers
+     * @param subscribers the subscribers to find events for
+     * @param context the XWiki context
+     * @return the matching events of each subscriber having at least one matching event
+     * @since 5.4M1
+     */
+    public Map<String, List<WatchListEvent>> getMatchingEvents(WatchListIndex index, Collection<String> subscribers,
+        XWikiContext context)
+    {
+        Map<String, List<WatchListEvent>> matchingEvents = new HashMap<String, List<WatchListEvent>>();
+        WatchListPlugin plugin = (WatchListPlugin) context.getWiki().getPlugin(WatchListPlugin.ID, context);
+        List<String> jobDocumentNames = plugin.getStore().getJobDocumentNames();
+        Set<String> wantedSubscribers = new HashSet<String>(subscribers);
+
+        for (WatchListEvent event : events) {
+            // We exclude watchlist jobs from notifications since they are modified each time they are fired,
+            // producing useless noise.
+            if (jobDocumentNames.contains(event.getFullName())) {
+                continue;
+            }
+
+            Set<String> eventSubscribers = new HashSet<String>();
+            eventSubscribers.addAll(index.getSubscribers(ElementType.WIKI, event.getWiki()));
+            eventSubscribers.addAll(index.getSubscribers(ElementType.SPACE, event.getPrefixedSpace()));
+            eventSubscribers.addAll(index.getSubscribers(ElementType.DOCUMENT, event.getPrefixedFullName()));
+            for (String author : event.getAuthors()) {
+                eventSubscribers.addAll(index.getSubscribers(ElementType.USER, author));
+            }
+            eventSubscribers.retainAll(wantedSubscribers);
+
+            for (String subscriber : eventSubscribers) {
+                try {
+                    // We ensure that users have the right to view documents we send notifications for.
+                    if (context.getWiki().getRightService().hasAccessLevel("view", subscriber,
+                        event.getPrefixedFullName(), context)) {
+                        List<WatchListEvent> subscriberEvents = matchingEvents.get(subscriber);
+                        if (subscriberEvents == null) {
+                            subscriberEvents = new ArrayList<WatchListEvent>();
+                            matchingEvents.put(subscriber, subscriberEvents);
+                        }
+                        subscriberEvents.add(event);
+                    }
+                } catch (XWikiException e) {
+                    // We're in a job, we don't throw exceptions
+                    LOGGER.error("Failed to check if user [{}] can view [{}]", subscriber,
+                        event.getPrefixedFullName(), e);
+                }
+            }
+        }
+
+        for (List<WatchListEvent> subscriberEvents : matchingEvents.values()) {
+            Collections.sort(subscriberEvents);
+        }
+
+        return matchingEvents;
+    }
 }
@@ -0,0 +1,157 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.plugin.watchlist;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.xpn.xwiki.plugin.watchlist.WatchListStore.ElementType;
+
+/**
+ * Inverted index of the watchlist subscriptions: for each type of element, associate the watched elements to the
+ * subscribers watching them. It allows to find the subscribers interested in an event without going through all the
+ * subscribers.
+ * 
+ * @version $Id$
+ * @since 5.4M1
+ */
+public class WatchListIndex
+{
+    /**
+     * The subscribers watching each element, indexed by element type.
+     */
+    private final Map<ElementType, Map<String, Set<String>>> subscribersByElement =
+        new EnumMap<ElementType, Map<String, Set<String>>>(ElementType.class);
+
+    /**
+     * The elements watched by each subscriber, indexed by element type. Used to update the index when a subscription
+     * is modified.
+     */
+    private final Map<String, Map<ElementType, List<String>>> elementsBySubscriber =
+        new HashMap<String, Map<ElementType, List<String>>>();
+
+    /**
+     * Default constructor.
+     */
+    public WatchListIndex()
+    {
+        for (ElementType type : ElementType.values()) {
+            this.subscribersByElement.put(type, new HashMap<String, Set<String>>());
+        }
+    }
+
+    /**
+     * Set the elements of the passed type watched by the passed subscriber, replacing the previous ones.
+     * 
+     * @param subscriber the subscriber (example: "xwiki:XWiki.Admin")
+     * @param type the type of the elements
+     * @param elements the watched elements
+     */
+    public synchronized void setWatchedElements(String subscriber, ElementType type, List<String> elements)
+    {
+        Map<ElementType, List<String>> subscription = this.elementsBySubscriber.get(subscriber);
+        if (subscription == null) {
+            subscription = new EnumMap<ElementType, List<String>>(ElementType.class);
+            this.elementsBySubscriber.put(subscriber, subscription);
+        }
+
+        List<String> previousElements = subscription.put(type, elements);
+        if (previousElements != null) {
+            unindex(subscriber, type, previousElements);
+        }
+
+        Map<String, Set<String>> subscribers = this.subscribersByElement.get(type);
+        for (String element : elements) {
+            Set<String> elementSubscribers = subscribers.get(element);
+            if (elementSubscribers == null) {
+                elementSubscribers = new HashSet<String>();
+                subscribers.put(element, elementSubscribers);
+            }
+            elementSubscribers.add(subscriber);
+        }
+    }
+
+    /**
+     * Forget all the elements watched by the passed subscriber.
+     * 
+     * @param subscriber the subscriber (example: "xwiki:XWiki.Admin")
+     */
+    public synchronized void removeSubscriber(String subscriber)
+    {
+        Map<ElementType, List<String>> subscription = this.elementsBySubscriber.remove(subscriber);
+
+        if (subscription != null) {
+            for (Map.Entry<ElementType, List<String>> entry : subscription.entrySet()) {
+                unindex(subscriber, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @param type the type of the element
+     * @param element the element (example: "xwiki:Main.WebHome" for a document)
+     * @return the subscribers watching the passed element
+     */
+    public synchronized Set<String> getSubscribers(ElementType type, String element)
+    {
+        Set<String> subscribers = this.subscribersByElement.get(type).get(element);
+
+        return subscribers != null ? new HashSet<String>(subscribers) : Collections.<String>emptySet();
+    }
+
+    /**
+     * @param subscriber the subscriber (example: "xwiki:XWiki.Admin")
+     * @param type the type of the elements
+     * @return the elements of the passed type watched by the subscriber
+     */
+    public synchronized List<String> getWatchedElements(String subscriber, ElementType type)
+    {
+        Map<ElementType, List<String>> subscription = this.elementsBySubscriber.get(subscriber);
+        List<String> elements = subscription != null ? subscription.get(type) : null;
+
+        return elements != null ? Collections.unmodifiableList(elements) : Collections.<String>emptyList();
+    }
+
+    /**
+     * Remove the subscriber from the subscribers of the passed elements.
+     * 
+     * @param subscriber the subscriber
+     * @param type the type of the elements
+     * @param elements the elements
+     */
+    private void unindex(String subscriber, ElementType type, List<String> elements)
+    {
+        Map<String, Set<String>> subscribers = this.subscribersByElement.get(type);
+        for (String element : elements) {
+            Set<String> elementSubscribers = subscribers.get(element);
+            if (elementSubscribers != null) {
+                elementSubscribers.remove(subscriber);
+                if (elementSubscribers.isEmpty()) {
+                    subscribers.remove(element);
+                }
+            }
+        }
+    }
+}
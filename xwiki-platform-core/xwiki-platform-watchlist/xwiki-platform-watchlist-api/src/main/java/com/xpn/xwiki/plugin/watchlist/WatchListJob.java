@@ -21,8 +21,13 @@
 
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.quartz.Job;
 import org.quartz.JobDataMap;
 import org.quartz.JobExecutionContext;
@@ -38,8 +43,10 @@
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
 import com.xpn.xwiki.plugin.scheduler.AbstractJob;
-import com.xpn.xwiki.plugin.watchlist.WatchListStore.ElementType;
+import com.xpn.xwiki.util.AbstractXWikiRunnable;
+import com.xpn.xwiki.web.ExternalServletURLFactory;
 import com.xpn.xwiki.web.Utils;
+import com.xpn.xwiki.web.XWikiURLFactory;
 
 /**
  * WatchList abstract implementation of Quartz's Job.
@@ -58,6 +65,73 @@ public class WatchListJob extends AbstractJob implements Job
      */
     private static final Logger LOGGER = LoggerFactory.getLogger(WatchListPlugin.class);
 
+    /**
+     * Name of the configuration parameter holding the number of threads rendering the notifications of a job.
+     */
+    private static final String NOTIFICATION_THREADS_PARAM = "xwiki.plugin.watchlist.notificationThreads";
+
+    /**
+     * Renders the notification of one subscriber and queues it in the mail sender. Since the XWiki context is not
+     * thread safe each task works on its own copy of the job context.
+     */
+    private class NotificationTask extends AbstractXWikiRunnable
+    {
+        /**
+         * The user to notify.
+         */
+        private final String subscriber;
+
+        /**
+         * The events matching the elements watched by the subscriber.
+         */
+        private final List<WatchListEvent> events;
+
+        /**
+         * The previous job fire time.
+         */
+        private final Date previousFireTime;
+
+        /**
+         * The copy of the job context used by this task.
+         */
+        private final XWikiContext xcontext;
+
+        /**
+         * @param subscriber the user to notify
+         * @param events the events matching the elements watched by the subscriber
+         * @param previousFireTime the previous job fire time
+         */
+        NotificationTask(String subscriber, List<WatchListEvent> events, Date previousFireTime)
+        {
+            this.subscriber = subscriber;
+            this.events = events;
+            this.previousFireTime = previousFireTime;
+            this.xcontext = context.clone();
+        }
+
+        @Override
+        protected void declareProperties(ExecutionContext executionContext)
+        {
+            // Bridge with old XWiki Context, required for old code.
+            this.xcontext.declareInExecutionContext(executionContext);
+        }
+
+        @Override
+        protected void runInternal()
+        {
+            try {
+                String userWiki = StringUtils.substringBefore(this.subscriber, WatchListStore.WIKI_SPACE_SEP);
+
+                plugin.getNotifier().sendEmailNotification(this.subscriber, this.events,
+                    getEmailTemplate(userWiki, this.xcontext), this.previousFireTime, this.xcontext);
+            } catch (Exception e) {
+                LOGGER.error("Failed to send watchlist notification to user [{}]", this.subscriber, e);
+            } finally {
+                this.xcontext.getWiki().getStore().cleanUp(this.xcontext);
+            }
+        }
+    }
+
     /**
      * Scheduler Job XObject.
      */
@@ -166,9 +240,10 @@ private void setPreviousFireTime() throws XWikiException
 
     /**
      * @param userWiki wiki from which the user comes from
+     * @param xcontext the XWiki context
      * @return the name of the page that should be used as email template for this job
      */
-    private String getEmailTemplate(String userWiki)
+    private String getEmailTemplate(String userWiki, XWikiContext xcontext)
     {
         String fullName = this.watchListJobObject.getStringValue(WatchListJobManager.WATCHLIST_JOB_EMAIL_PROP);
         String prefixedFullName;
@@ -178,7 +253,7 @@ private String getEmailTemplate(String userWiki)
             prefixedFullName = fullName;
         } else {
             prefixedFullName = userWiki + WatchListStore.WIKI_SPACE_SEP + fullName;
-            if (this.context.getWiki().exists(prefixedFullName, this.context)) {
+            if (xcontext.getWiki().exists(prefixedFullName, xcontext)) {
                 // If the configured template exists in the user wiki, use it.
                 return prefixedFullName;
             }
@@ -241,29 +316,14 @@ public void executeJob(JobExecutionContext jobContext) throws JobExecutionExcept
                 return;
             }
 
-            for (String subscriber : subscribers) {
-                try {
-                    List<String> wikis =
-                        this.plugin.getStore().getWatchedElements(subscriber, ElementType.WIKI, this.context);
-                    List<String> spaces =
-                        this.plugin.getStore().getWatchedElements(subscriber, ElementType.SPACE, this.context);
-                    List<String> documents =
-                        this.plugin.getStore().getWatchedElements(subscriber, ElementType.DOCUMENT, this.context);
-                    List<String> users =
-                        this.plugin.getStore().getWatchedElements(subscriber, ElementType.USER, this.context);
-                    List<WatchListEvent> matchingEvents =
-                        eventMatcher.getMatchingEvents(wikis, spaces, documents, users, subscriber, this.context);
-                    String userWiki = StringUtils.substringBefore(subscriber, WatchListStore.WIKI_SPACE_SEP);
-
-                    // If events have occurred on at least one element watched by the user, send the email
-                    if (matchingEvents.size() > 0) {
-                        this.plugin.getNotifier().sendEmailNotification(subscriber, matchingEvents,
-                            getEmailTemplate(userWiki), previousFireTime, this.context);
-                    }
-                } catch (Exception e) {
-                    LOGGER.error("Failed to send watchlist notification to user [{}]", subscriber, e);
-                }
-            }
+            // Match the events to the subscribers watching them in a single pass over the events
+            WatchListIndex index = this.plugin.getStore().getIndex(this.context);
+            Map<String, List<WatchListEvent>> matchingEventsBySubscriber =
+                eventMatcher.getMatchingEvents(index, subscribers, this.context);
+
+            prepareEvents(matchingEventsBySubscriber);
+
+            sendNotifications(subscribers, matchingEventsBySubscriber, previousFireTime);
         } catch (Exception e) {
             // We're in a job, we don't throw exceptions
             LOGGER.error("Exception while running job", e);
@@ -272,4 +332,69 @@ public void executeJob(JobExecutionContext jobContext) throws JobExecutionExcept
             cleanupComponents();
         }
     }
+
+    /**
+     * Compute the lazily loaded data of the matched events in the job thread, so that the notification tasks only
+     * read them.
+     * 
+     * @param matchingEventsBySubscriber the events matching the elements watched by each subscriber
+     */
+    private void prepareEvents(Map<String, List<WatchListEvent>> matchingEventsBySubscriber)
+    {
+        // The event URLs are displayed in emails so they must be external
+        XWikiURLFactory originalURLFactory = this.context.getURLFactory();
+        try {
+            this.context.setURLFactory(new ExternalServletURLFactory(this.context));
+
+            for (List<WatchListEvent> events : matchingEventsBySubscriber.values()) {
+                for (WatchListEvent event : events) {
+                    try {
+                        event.prepare();
+                    } catch (Exception e) {
+                        // The notification tasks will retry to compute what's missing
+                        LOGGER.error("Failed to prepare watchlist event on document [{}]",
+                            event.getPrefixedFullName(), e);
+                    }
+                }
+            }
+        } finally {
+            this.context.setURLFactory(originalURLFactory);
+        }
+    }
+
+    /**
+     * Render and queue the notifications of the subscribers in parallel.
+     * 
+     * @param subscribers the subscribers of this job
+     * @param matchingEventsBySubscriber the events matching the elements watched by each subscriber
+     * @param previousFireTime the previous job fire time
+     * @throws InterruptedException if interrupted while waiting for the notifications to be rendered
+     */
+    private void sendNotifications(List<String> subscribers,
+        Map<String, List<WatchListEvent>> matchingEventsBySubscriber, Date previousFireTime)
+        throws InterruptedException
+    {
+        int threads = (int) this.context.getWiki().ParamAsLong(NOTIFICATION_THREADS_PARAM, 2);
+        BasicThreadFactory factory =
+            new BasicThreadFactory.Builder().namingPattern("XWiki watchlist notification thread %d").daemon(true)
+                .build();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1), factory);
+
+        try {
+            for (String subscriber : subscribers) {
+                List<WatchListEvent> matchingEvents = matchingEventsBySubscriber.get(subscriber);
+
+                // If events have occurred on at least one element watched by the user, send the email
+                if (matchingEvents != null && matchingEvents.size() > 0) {
+                    executor.execute(new NotificationTask(subscriber, matchingEvents, previousFireTime));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            LOGGER.debug("Waiting for the watchlist notifications to be rendered");
+        }
+    }
 }
@@ -69,7 +69,8 @@
     private static final String XWIKI_USER_CLASS_EMAIL_PROP = "email";
 
     /**
-     * Sends the email notifying the subscriber that the updatedDocuments have been changed.
+     * Sends the email notifying the subscriber that the updatedDocuments have been changed. The email is rendered
+     * right away and queued to be delivered asynchronously by the mail sender.
      * 
      * @param subscriber user to notify
      * @param events list of events
@@ -134,7 +135,7 @@ public void sendEmailNotification(String subscriber, List<WatchListEvent> events
             template = context.getMainXWiki() + ":" + DEFAULT_EMAIL_TEMPLATE;
         }
 
-        // Send message from template
-        emailService.sendMailFromTemplate(template, sender, emailAddr, null, null, language, vcontext, context);
+        // Queue message from template, the SMTP delivery is done by the mail sender workers
+        emailService.queueMailFromTemplate(template, sender, emailAddr, null, null, language, vcontext, context);
     }
 }
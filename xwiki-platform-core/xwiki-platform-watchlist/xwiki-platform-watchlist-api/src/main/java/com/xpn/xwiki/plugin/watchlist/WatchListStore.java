@@ -174,6 +174,11 @@ public class WatchListStore implements EventListener
      */
     private Map<String, List<String>> subscribers = new HashMap<String, List<String>>();
 
+    /**
+     * Inverted index of the watched elements of all the subscribers in the wiki farm, null until first needed.
+     */
+    private WatchListIndex index;
+
     /**
      * Create or update the watchlist class properties.
      * 
@@ -396,6 +401,79 @@ private void removeSubscriberForJob(String jobId, String user)
         }
     }
 
+    /**
+     * Get the inverted index of the elements watched by all the subscribers of the wiki farm. The index is built the
+     * first time it's requested and is then kept up to date when watchlist objects are modified.
+     * 
+     * @param context the XWiki context
+     * @return the index
+     * @since 5.4M1
+     */
+    public synchronized WatchListIndex getIndex(XWikiContext context)
+    {
+        if (this.index == null) {
+            WatchListIndex newIndex = new WatchListIndex();
+
+            List<Object> queryParams = new ArrayList<Object>();
+            queryParams.add(WATCHLIST_CLASS);
+            for (ElementType type : ElementType.values()) {
+                queryParams.add(getWatchListClassPropertyForType(type));
+            }
+
+            // Get all the watched elements of a wiki in one query instead of loading each subscriber profile
+            String request =
+                "select obj.name, prop.id.name, prop.value from BaseObject as obj, LargeStringProperty as prop"
+                    + " where obj.className=? and obj.id=prop.id.id and prop.id.name in (?, ?, ?, ?)";
+
+            String oriDatabase = context.getDatabase();
+            try {
+                for (String wiki : context.getWiki().getVirtualWikisDatabaseNames(context)) {
+                    context.setDatabase(wiki);
+                    try {
+                        List<Object[]> rows = context.getWiki().getStore().search(request, 0, 0, queryParams, context);
+                        for (Object[] row : rows) {
+                            ElementType type = getTypeForWatchListClassProperty((String) row[1]);
+                            if (type != null && row[2] != null) {
+                                newIndex.setWatchedElements(wiki + WIKI_SPACE_SEP + row[0], type,
+                                    unescapeList(((String) row[2]).trim()));
+                            }
+                        }
+                    } catch (XWikiException e) {
+                        LOGGER.error("Failed to index the watched elements of the wiki [{}]", wiki, e);
+                    }
+                }
+            } catch (XWikiException e) {
+                LOGGER.error("Failed to get the list of wikis", e);
+            } finally {
+                context.setDatabase(oriDatabase);
+            }
+
+            this.index = newIndex;
+        }
+
+        return this.index;
+    }
+
+    /**
+     * Update the index of watched elements after the modification of a subscriber profile.
+     * 
+     * @param subscriber the subscriber
+     * @param watchListObject the new watchlist object of the subscriber, null if it has been removed
+     */
+    private synchronized void updateIndex(String subscriber, BaseObject watchListObject)
+    {
+        if (this.index != null) {
+            if (watchListObject == null) {
+                this.index.removeSubscriber(subscriber);
+            } else {
+                for (ElementType type : ElementType.values()) {
+                    String watchedItems = watchListObject.getLargeStringValue(getWatchListClassPropertyForType(type));
+                    this.index.setWatchedElements(subscriber, type, unescapeList(StringUtils.trim(watchedItems)));
+                }
+            }
+        }
+    }
+
     /**
      * @return Names of documents which contain a watchlist job object.
      */
@@ -486,6 +564,23 @@ private String getWatchListClassPropertyForType(ElementType type)
         }
     }
 
+    /**
+     * Get the type of elements stored in the given XClass property.
+     * 
+     * @param property the name of the XClass property
+     * @return the type of elements or null if the property doesn't store watched elements
+     */
+    private ElementType getTypeForWatchListClassProperty(String property)
+    {
+        for (ElementType type : ElementType.values()) {
+            if (getWatchListClassPropertyForType(type).equals(property)) {
+                return type;
+            }
+        }
+
+        return null;
+    }
+
     /**
      * Add the specified element (document or space) to the corresponding list in the user's WatchList.
      * 
@@ -711,6 +806,10 @@ private void watchListObjectsEventHandler(XWikiDocument originalDoc, XWikiDocume
         BaseObject originalWatchListObj = originalDoc.getObject(WATCHLIST_CLASS);
         BaseObject currentWatchListObj = currentDoc.getObject(WATCHLIST_CLASS);
 
+        if (originalWatchListObj != null || currentWatchListObj != null) {
+            updateIndex(wiki + WIKI_SPACE_SEP + currentDoc.getFullName(), currentWatchListObj);
+        }
+
         if (originalWatchListObj != null) {
             // Existing subscriber
 
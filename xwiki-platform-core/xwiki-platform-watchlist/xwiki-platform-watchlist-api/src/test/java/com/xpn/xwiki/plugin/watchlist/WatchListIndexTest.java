@@ -0,0 +1,78 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.plugin.watchlist;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import com.xpn.xwiki.plugin.watchlist.WatchListStore.ElementType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link WatchListIndex}.
+ *
+ * @version $Id$
+ * @since 5.4M1
+ */
+public class WatchListIndexTest
+{
+    @Test
+    public void getSubscribers()
+    {
+        WatchListIndex index = new WatchListIndex();
+        index.setWatchedElements("wiki:XWiki.user1", ElementType.SPACE, Arrays.asList("wiki:Main", "wiki:Sandbox"));
+        index.setWatchedElements("wiki:XWiki.user2", ElementType.SPACE, Arrays.asList("wiki:Main"));
+        index.setWatchedElements("wiki:XWiki.user2", ElementType.DOCUMENT, Arrays.asList("wiki:Sandbox.WebHome"));
+
+        assertEquals(new HashSet<String>(Arrays.asList("wiki:XWiki.user1", "wiki:XWiki.user2")),
+            index.getSubscribers(ElementType.SPACE, "wiki:Main"));
+        assertEquals(Collections.singleton("wiki:XWiki.user1"),
+            index.getSubscribers(ElementType.SPACE, "wiki:Sandbox"));
+        assertEquals(Collections.singleton("wiki:XWiki.user2"),
+            index.getSubscribers(ElementType.DOCUMENT, "wiki:Sandbox.WebHome"));
+        assertTrue(index.getSubscribers(ElementType.DOCUMENT, "wiki:Main.WebHome").isEmpty());
+        assertEquals(Arrays.asList("wiki:Main"), index.getWatchedElements("wiki:XWiki.user2", ElementType.SPACE));
+    }
+
+    @Test
+    public void updateAndRemoveSubscriber()
+    {
+        WatchListIndex index = new WatchListIndex();
+        index.setWatchedElements("wiki:XWiki.user1", ElementType.SPACE, Arrays.asList("wiki:Main", "wiki:Sandbox"));
+        index.setWatchedElements("wiki:XWiki.user1", ElementType.WIKI, Arrays.asList("wiki"));
+
+        index.setWatchedElements("wiki:XWiki.user1", ElementType.SPACE, Arrays.asList("wiki:Sandbox"));
+
+        assertTrue(index.getSubscribers(ElementType.SPACE, "wiki:Main").isEmpty());
+        assertEquals(Collections.singleton("wiki:XWiki.user1"),
+            index.getSubscribers(ElementType.SPACE, "wiki:Sandbox"));
+
+        index.removeSubscriber("wiki:XWiki.user1");
+
+        assertTrue(index.getSubscribers(ElementType.SPACE, "wiki:Sandbox").isEmpty());
+        assertTrue(index.getSubscribers(ElementType.WIKI, "wiki").isEmpty());
+        assertTrue(index.getWatchedElements("wiki:XWiki.user1", ElementType.WIKI).isEmpty());
+    }
+}